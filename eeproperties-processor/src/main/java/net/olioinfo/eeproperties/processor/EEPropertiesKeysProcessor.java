@@ -0,0 +1,415 @@
+/* Copyright 2009-2010 Tracy Flynn
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.olioinfo.eeproperties.processor;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import javax.annotation.processing.AbstractProcessor;
+import javax.annotation.processing.RoundEnvironment;
+import javax.lang.model.SourceVersion;
+import javax.lang.model.element.AnnotationMirror;
+import javax.lang.model.element.AnnotationValue;
+import javax.lang.model.element.Element;
+import javax.lang.model.element.ElementKind;
+import javax.lang.model.element.ExecutableElement;
+import javax.lang.model.element.TypeElement;
+import javax.lang.model.element.VariableElement;
+import javax.lang.model.type.DeclaredType;
+import javax.lang.model.type.PrimitiveType;
+import javax.lang.model.type.TypeKind;
+import javax.lang.model.type.TypeMirror;
+import javax.tools.Diagnostic;
+import javax.tools.JavaFileObject;
+
+/**
+ * <p>Annotation processor for &#64;EEPropertiesKeys.</p>
+ *
+ * <p>For each annotated type, generates a final class in the same package with, for every String constant of the
+ * type:</p>
+ *
+ * <ul>
+ * <li>an int constant of the same name holding the key's slot, registered with EEPropertiesSlots</li>
+ * <li>a static accessor returning the String value, named after the constant in camel case (POOL_SIZE becomes
+ * poolSize())</li>
+ * <li>a static accessor returning the typed value, with Value appended (poolSizeValue()). It returns the type
+ * given by &#64;EEPropertiesKeys.Type on the constant, boxed if primitive and with wildcard type arguments if generic,
+ * or Object without it.</li>
+ * </ul>
+ *
+ * <p>The generated class also has missingKeys(), and reportMissingKeys(), which logs a warning for every key without
+ * a value. Loading the class doesn't check for missing keys, since it is usually loaded before the configuration.
+ * Duplicate keys, accessor names that clash, and invalid class names are compile errors.</p>
+ *
+ * <p>The processor only depends on the JDK. It refers to the annotation by name, so the eeproperties jar is only
+ * needed to compile the generated code, not to run the processor.</p>
+ *
+ * @author Tracy Flynn
+ * @since 2.10
+ */
+public class EEPropertiesKeysProcessor extends AbstractProcessor {
+
+    /**
+     * Annotation processed
+     */
+    static final String ANNOTATION_NAME = "net.olioinfo.eeproperties.EEPropertiesKeys";
+
+    /**
+     * Annotation declaring the type of a key's typed value
+     */
+    static final String TYPE_ANNOTATION_NAME = "net.olioinfo.eeproperties.EEPropertiesKeys.Type";
+
+    /**
+     * Names the generated class uses for its own members
+     */
+    private static final Set<String> RESERVED_NAMES = Collections.unmodifiableSet(new HashSet<String>(Arrays.asList("SLOTS","missingKeys","reportMissingKeys")));
+
+    public Set<String> getSupportedAnnotationTypes() {
+        return new HashSet<String>(Arrays.asList(EEPropertiesKeysProcessor.ANNOTATION_NAME,EEPropertiesKeysProcessor.TYPE_ANNOTATION_NAME));
+    }
+
+    public SourceVersion getSupportedSourceVersion() {
+        return SourceVersion.latestSupported();
+    }
+
+    public boolean process(Set<? extends TypeElement> annotations, RoundEnvironment roundEnvironment) {
+        for (TypeElement annotation : annotations) {
+            for (Element element : roundEnvironment.getElementsAnnotatedWith(annotation)) {
+                if (element instanceof TypeElement) {
+                    processKeySet((TypeElement) element);
+                }
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Validate one annotated type and generate its accessor class
+     *
+     * @param keySet Annotated type
+     */
+    private void processKeySet(TypeElement keySet) {
+        String className = generatedClassName(keySet);
+        if (className == null || ! SourceVersion.isName(className) || className.indexOf('.') > -1) {
+            error(keySet,String.format("@EEPropertiesKeys on %s needs a valid class name, not '%s'",keySet.getQualifiedName(),className));
+            return;
+        }
+        String packageName = this.processingEnv.getElementUtils().getPackageOf(keySet).getQualifiedName().toString();
+
+        // Constant name -> key, in declaration order
+        LinkedHashMap<String,String> keys = new LinkedHashMap<String,String>();
+        HashMap<String,String> constantsByKey = new HashMap<String,String>();
+        HashMap<String,String> constantsByAccessor = new HashMap<String,String>();
+        // Constant name -> type of the typed value, for constants that declare one
+        HashMap<String,String> types = new HashMap<String,String>();
+        boolean valid = true;
+        for (Element member : keySet.getEnclosedElements()) {
+            if (member.getKind() != ElementKind.FIELD) {
+                continue;
+            }
+            Object constantValue = ((VariableElement) member).getConstantValue();
+            String constantName = member.getSimpleName().toString();
+            if (! (constantValue instanceof String)) {
+                warning(member,String.format("%s is not a String constant and is not a key",constantName));
+                continue;
+            }
+            String key = (String) constantValue;
+            String accessorName = EEPropertiesKeysProcessor.accessorName(constantName);
+            if (key.trim().isEmpty() || ! key.equals(key.trim())) {
+                error(member,String.format("Key '%s' of %s is empty or has leading or trailing whitespace",key,constantName));
+                valid = false;
+            }
+            else if (constantsByKey.containsKey(key)) {
+                error(member,String.format("Key '%s' of %s is already declared by %s",key,constantName,constantsByKey.get(key)));
+                valid = false;
+            }
+            else if (EEPropertiesKeysProcessor.RESERVED_NAMES.contains(constantName) || EEPropertiesKeysProcessor.RESERVED_NAMES.contains(accessorName)
+                    || SourceVersion.isKeyword(accessorName)) {
+                error(member,String.format("%s can't be used as a key constant name: it gives a reserved accessor name",constantName));
+                valid = false;
+            }
+            else if (constantsByAccessor.containsKey(accessorName)) {
+                error(member,String.format("%s and %s both give the accessor name %s",constantsByAccessor.get(accessorName),constantName,accessorName));
+                valid = false;
+            }
+            TypeMirror type = annotationClassValue(member,EEPropertiesKeysProcessor.TYPE_ANNOTATION_NAME);
+            if (type != null) {
+                String typeName = typeName(type);
+                if (typeName == null) {
+                    error(member,String.format("@EEPropertiesKeys.Type of %s must be a class, interface or array type, not %s",constantName,type));
+                    valid = false;
+                }
+                else {
+                    types.put(constantName,typeName);
+                }
+            }
+            constantsByKey.put(key,constantName);
+            constantsByAccessor.put(accessorName,constantName);
+            keys.put(constantName,key);
+        }
+        if (! valid) {
+            return;
+        }
+        if (keys.isEmpty()) {
+            warning(keySet,String.format("@EEPropertiesKeys on %s declares no String constants",keySet.getQualifiedName()));
+        }
+
+        String qualifiedClassName = packageName.isEmpty() ? className : packageName + "." + className;
+        try {
+            JavaFileObject sourceFile = this.processingEnv.getFiler().createSourceFile(qualifiedClassName,keySet);
+            PrintWriter writer = new PrintWriter(sourceFile.openWriter());
+            try {
+                writeAccessorClass(writer,packageName,className,keySet.getQualifiedName().toString(),keys,types);
+            }
+            finally {
+                writer.close();
+            }
+        }
+        catch (IOException e) {
+            error(keySet,String.format("Can't write %s: %s",qualifiedClassName,e.getMessage()));
+        }
+    }
+
+    /**
+     * Write the generated class
+     *
+     * @param writer Destination
+     * @param packageName Package, empty for the unnamed package
+     * @param className Simple name of the generated class
+     * @param keySetName Qualified name of the annotated type
+     * @param keys Constant name -&gt; key
+     * @param types Constant name -&gt; type of the typed value, for constants that declare one
+     */
+    static void writeAccessorClass(PrintWriter writer, String packageName, String className, String keySetName, Map<String,String> keys,
+                                   Map<String,String> types) {
+        if (! packageName.isEmpty()) {
+            writer.println("package " + packageName + ";");
+            writer.println();
+        }
+        writer.println("import java.util.ArrayList;");
+        writer.println();
+        writer.println("import net.olioinfo.eeproperties.EEProperties;");
+        writer.println("import net.olioinfo.eeproperties.EEPropertiesSlots;");
+        writer.println();
+        writer.println("/**");
+        writer.println(" * Slot-indexed accessors for the keys declared in " + keySetName + ".");
+        writer.println(" *");
+        writer.println(" * <p>Generated by " + EEPropertiesKeysProcessor.class.getName() + ". Do not edit.</p>");
+        writer.println(" */");
+        writer.println("public final class " + className + " {");
+        writer.println();
+        for (Map.Entry<String,String> key : keys.entrySet()) {
+            writer.println("    /** Slot of " + EEPropertiesKeysProcessor.javadocText(key.getValue()) + " */");
+            writer.println("    public static final int " + key.getKey() + " = EEPropertiesSlots.slot(" + EEPropertiesKeysProcessor.stringLiteral(key.getValue()) + ");");
+            writer.println();
+        }
+        StringBuilder slots = new StringBuilder();
+        for (String constantName : keys.keySet()) {
+            slots.append(slots.length() == 0 ? "" : ", ").append(constantName);
+        }
+        writer.println("    private static final int[] SLOTS = {" + slots + "};");
+        writer.println();
+        writer.println("    private " + className + "() {");
+        writer.println("    }");
+        for (Map.Entry<String,String> key : keys.entrySet()) {
+            String accessorName = EEPropertiesKeysProcessor.accessorName(key.getKey());
+            String keyText = EEPropertiesKeysProcessor.javadocText(key.getValue());
+            writer.println();
+            writer.println("    /**");
+            writer.println("     * @return Value of " + keyText + " or null if not found");
+            writer.println("     */");
+            writer.println("    public static String " + accessorName + "() {");
+            writer.println("        return EEProperties.sGetSlotProperty(" + key.getKey() + ");");
+            writer.println("    }");
+            String type = types.get(key.getKey());
+            writer.println();
+            writer.println("    /**");
+            writer.println("     * @return Typed value of " + keyText + " or null if not found or not typed");
+            if (type == null) {
+                writer.println("     */");
+                writer.println("    public static Object " + accessorName + "Value() {");
+                writer.println("        return EEProperties.sGetSlotTypedValue(" + key.getKey() + ");");
+            }
+            else {
+                String rawType = type.replaceAll("<.*>","");
+                writer.println("     * @throws ClassCastException if the typed value is not a " + EEPropertiesKeysProcessor.javadocText(rawType));
+                writer.println("     */");
+                writer.println("    public static " + type + " " + accessorName + "Value() {");
+                writer.println("        return EEProperties.sGetSlotTypedValue(" + key.getKey() + "," + rawType + ".class);");
+            }
+            writer.println("    }");
+        }
+        writer.println();
+        writer.println("    /**");
+        writer.println("     * @return Keys of this set without a value");
+        writer.println("     */");
+        writer.println("    public static ArrayList<String> missingKeys() {");
+        writer.println("        return EEProperties.singleton().getMissingKeys(SLOTS);");
+        writer.println("    }");
+        writer.println();
+        writer.println("    /**");
+        writer.println("     * Log a warning for each key of this set without a value. Call once the configuration has loaded.");
+        writer.println("     *");
+        writer.println("     * @return Keys of this set without a value");
+        writer.println("     */");
+        writer.println("    public static ArrayList<String> reportMissingKeys() {");
+        writer.println("        return EEProperties.sReportMissingKeys(" + EEPropertiesKeysProcessor.stringLiteral(keySetName) + ",SLOTS);");
+        writer.println("    }");
+        writer.println();
+        writer.println("}");
+    }
+
+    /**
+     * Get the accessor name for a constant: POOL_SIZE becomes poolSize, url stays url
+     *
+     * @param constantName Constant name
+     * @return Accessor name
+     */
+    static String accessorName(String constantName) {
+        if (! constantName.equals(constantName.toUpperCase(Locale.ROOT))) {
+            return constantName.substring(0,1).toLowerCase(Locale.ROOT) + constantName.substring(1);
+        }
+        StringBuilder accessorName = new StringBuilder(constantName.length());
+        for (String part : constantName.toLowerCase(Locale.ROOT).split("_")) {
+            if (part.isEmpty()) {
+                continue;
+            }
+            if (accessorName.length() == 0) {
+                accessorName.append(part);
+            }
+            else {
+                accessorName.append(Character.toUpperCase(part.charAt(0))).append(part.substring(1));
+            }
+        }
+        return accessorName.length() == 0 ? constantName.toLowerCase(Locale.ROOT) : accessorName.toString();
+    }
+
+    /**
+     * Quote a String as a Java literal
+     *
+     * @param value Value
+     * @return Literal
+     */
+    static String stringLiteral(String value) {
+        StringBuilder literal = new StringBuilder(value.length() + 2).append('"');
+        for (int i = 0 ; i < value.length() ; i++) {
+            char c = value.charAt(i);
+            switch (c) {
+                case '"': literal.append("\\\""); break;
+                case '\\': literal.append("\\\\"); break;
+                case '\n': literal.append("\\n"); break;
+                case '\r': literal.append("\\r"); break;
+                case '\t': literal.append("\\t"); break;
+                default:
+                    if (c < 0x20 || c > 0x7e) {
+                        literal.append(String.format("\\u%04x",(int) c));
+                    }
+                    else {
+                        literal.append(c);
+                    }
+            }
+        }
+        return literal.append('"').toString();
+    }
+
+    /**
+     * Make a key safe to put in a doc comment
+     *
+     * @param value Key
+     * @return Escaped key
+     */
+    private static String javadocText(String value) {
+        return value.replace("&","&amp;").replace("<","&lt;").replace(">","&gt;").replace("*/","*&#47;").replace("\\u","\\\\u");
+    }
+
+    /**
+     * Get the class name given in the annotation
+     *
+     * @param keySet Annotated type
+     * @return Class name or null
+     */
+    private String generatedClassName(TypeElement keySet) {
+        for (AnnotationMirror annotationMirror : keySet.getAnnotationMirrors()) {
+            if (((TypeElement) annotationMirror.getAnnotationType().asElement()).getQualifiedName().contentEquals(EEPropertiesKeysProcessor.ANNOTATION_NAME)) {
+                for (Map.Entry<? extends ExecutableElement,? extends AnnotationValue> value : annotationMirror.getElementValues().entrySet()) {
+                    if (value.getKey().getSimpleName().contentEquals("value")) {
+                        return String.valueOf(value.getValue().getValue());
+                    }
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Get the source form of the type a typed accessor returns
+     *
+     * @param type Type given in &#64;EEPropertiesKeys.Type
+     * @return Type name, boxed if primitive, with wildcard type arguments if generic, or null if not usable
+     */
+    private String typeName(TypeMirror type) {
+        if (type.getKind().isPrimitive()) {
+            return this.processingEnv.getTypeUtils().boxedClass((PrimitiveType) type).getQualifiedName().toString();
+        }
+        if (type.getKind() == TypeKind.ARRAY) {
+            return this.processingEnv.getTypeUtils().erasure(type).toString();
+        }
+        if (type.getKind() != TypeKind.DECLARED) {
+            return null;
+        }
+        TypeElement typeElement = (TypeElement) ((DeclaredType) type).asElement();
+        StringBuilder typeName = new StringBuilder(typeElement.getQualifiedName());
+        for (int i = 0 ; i < typeElement.getTypeParameters().size() ; i++) {
+            typeName.append(i == 0 ? "<?" : ",?");
+        }
+        return typeElement.getTypeParameters().isEmpty() ? typeName.toString() : typeName.append('>').toString();
+    }
+
+    /**
+     * Get the Class value of an annotation on an element
+     *
+     * @param element Annotated element
+     * @param annotationName Qualified name of the annotation
+     * @return Type given as the annotation's value, or null if the element doesn't have the annotation
+     */
+    private TypeMirror annotationClassValue(Element element, String annotationName) {
+        for (AnnotationMirror annotationMirror : element.getAnnotationMirrors()) {
+            if (((TypeElement) annotationMirror.getAnnotationType().asElement()).getQualifiedName().contentEquals(annotationName)) {
+                for (Map.Entry<? extends ExecutableElement,? extends AnnotationValue> value : annotationMirror.getElementValues().entrySet()) {
+                    if (value.getKey().getSimpleName().contentEquals("value") && value.getValue().getValue() instanceof TypeMirror) {
+                        return (TypeMirror) value.getValue().getValue();
+                    }
+                }
+            }
+        }
+        return null;
+    }
+
+    private void error(Element element, String message) {
+        this.processingEnv.getMessager().printMessage(Diagnostic.Kind.ERROR,message,element);
+    }
+
+    private void warning(Element element, String message) {
+        this.processingEnv.getMessager().printMessage(Diagnostic.Kind.WARNING,message,element);
+    }
+
+}
@@ -0,0 +1,163 @@
+/* Copyright 2009-2010 Tracy Flynn
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.olioinfo.eeproperties.processor;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+import javax.tools.Diagnostic;
+import javax.tools.DiagnosticCollector;
+import javax.tools.JavaCompiler;
+import javax.tools.JavaFileObject;
+import javax.tools.SimpleJavaFileObject;
+import javax.tools.ToolProvider;
+import java.io.File;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Collections;
+
+/**
+ * Unit tests for EEPropertiesKeysProcessor
+ */
+public class EEPropertiesKeysProcessorTest extends TestCase {
+
+    /**
+     * Stand-in for the annotation, so the tests don't need the eeproperties jar
+     */
+    private static final String ANNOTATION_SOURCE =
+        "package net.olioinfo.eeproperties;\n" +
+        "public @interface EEPropertiesKeys { String value(); @interface Type { Class<?> value(); } }\n";
+
+    public EEPropertiesKeysProcessorTest(String testName) {
+        super(testName);
+    }
+
+    public static Test suite() {
+        return new TestSuite(EEPropertiesKeysProcessorTest.class);
+    }
+
+    public void testGeneratesAccessors() throws Exception {
+        File outputDirectory = Files.createTempDirectory("eeproperties-processor").toFile();
+        DiagnosticCollector<JavaFileObject> diagnostics = process(outputDirectory,
+            "package com.mysite;\n" +
+            "@net.olioinfo.eeproperties.EEPropertiesKeys(\"DbSettings\")\n" +
+            "public interface DbKeys {\n" +
+            "    String URL = \"com.mysite.db.url\";\n" +
+            "    String POOL_SIZE = \"com.mysite.db.poolSize\";\n" +
+            "    int NOT_A_KEY = 1;\n" +
+            "}\n");
+
+        File generated = new File(outputDirectory,"com/mysite/DbSettings.java");
+        assertTrue(diagnostics.getDiagnostics().toString(),generated.isFile());
+        String source = new String(Files.readAllBytes(generated.toPath()),StandardCharsets.UTF_8);
+        assertTrue(source.contains("public static final int URL = EEPropertiesSlots.slot(\"com.mysite.db.url\");"));
+        assertTrue(source.contains("public static final int POOL_SIZE = EEPropertiesSlots.slot(\"com.mysite.db.poolSize\");"));
+        assertTrue(source.contains("public static String poolSize() {"));
+        assertTrue(source.contains("public static Object poolSizeValue() {"));
+        assertTrue(source.contains("private static final int[] SLOTS = {URL, POOL_SIZE};"));
+        assertTrue(source.contains("return EEProperties.sReportMissingKeys(\"com.mysite.DbKeys\",SLOTS);"));
+        assertFalse(source.contains("static {"));
+        assertFalse(source.contains("NOT_A_KEY"));
+        assertEquals(1,count(diagnostics,Diagnostic.Kind.WARNING));
+    }
+
+    public void testGeneratesTypedAccessors() throws Exception {
+        File outputDirectory = Files.createTempDirectory("eeproperties-processor").toFile();
+        DiagnosticCollector<JavaFileObject> diagnostics = process(outputDirectory,
+            "package com.mysite;\n" +
+            "import net.olioinfo.eeproperties.EEPropertiesKeys;\n" +
+            "@EEPropertiesKeys(\"DbSettings\")\n" +
+            "public interface DbKeys {\n" +
+            "    String URL = \"com.mysite.db.url\";\n" +
+            "    @EEPropertiesKeys.Type(Integer.class) String POOL_SIZE = \"com.mysite.db.poolSize\";\n" +
+            "    @EEPropertiesKeys.Type(boolean.class) String READ_ONLY = \"com.mysite.db.readOnly\";\n" +
+            "    @EEPropertiesKeys.Type(java.util.Map.class) String OPTIONS = \"com.mysite.db.options\";\n" +
+            "    @EEPropertiesKeys.Type(String[].class) String HOSTS = \"com.mysite.db.hosts\";\n" +
+            "}\n");
+
+        File generated = new File(outputDirectory,"com/mysite/DbSettings.java");
+        assertTrue(diagnostics.getDiagnostics().toString(),generated.isFile());
+        String source = new String(Files.readAllBytes(generated.toPath()),StandardCharsets.UTF_8);
+        assertTrue(source.contains("public static Object urlValue() {"));
+        assertTrue(source.contains("public static java.lang.Integer poolSizeValue() {"));
+        assertTrue(source.contains("return EEProperties.sGetSlotTypedValue(POOL_SIZE,java.lang.Integer.class);"));
+        assertTrue(source.contains("public static java.lang.Boolean readOnlyValue() {"));
+        assertTrue(source.contains("public static java.util.Map<?,?> optionsValue() {"));
+        assertTrue(source.contains("return EEProperties.sGetSlotTypedValue(OPTIONS,java.util.Map.class);"));
+        assertTrue(source.contains("public static java.lang.String[] hostsValue() {"));
+        assertTrue(source.contains("return EEProperties.sGetSlotTypedValue(HOSTS,java.lang.String[].class);"));
+    }
+
+    public void testRejectsDuplicateKeys() throws Exception {
+        File outputDirectory = Files.createTempDirectory("eeproperties-processor").toFile();
+        DiagnosticCollector<JavaFileObject> diagnostics = process(outputDirectory,
+            "package com.mysite;\n" +
+            "@net.olioinfo.eeproperties.EEPropertiesKeys(\"DbSettings\")\n" +
+            "public interface DbKeys {\n" +
+            "    String URL = \"com.mysite.db.url\";\n" +
+            "    String OTHER_URL = \"com.mysite.db.url\";\n" +
+            "}\n");
+
+        assertEquals(1,count(diagnostics,Diagnostic.Kind.ERROR));
+        assertFalse(new File(outputDirectory,"com/mysite/DbSettings.java").exists());
+    }
+
+    public void testNames() {
+        assertEquals("poolSize",EEPropertiesKeysProcessor.accessorName("POOL_SIZE"));
+        assertEquals("url",EEPropertiesKeysProcessor.accessorName("URL"));
+        assertEquals("maxIdleTime",EEPropertiesKeysProcessor.accessorName("maxIdleTime"));
+        assertEquals("\"a\\\"b\\\\c\\u00e9\"",EEPropertiesKeysProcessor.stringLiteral("a\"b\\c\u00e9"));
+    }
+
+    /**
+     * Run the processor only over a key set source
+     *
+     * @param outputDirectory Directory for generated sources
+     * @param keySetSource Source of the annotated type
+     * @return Diagnostics
+     */
+    private DiagnosticCollector<JavaFileObject> process(File outputDirectory, String keySetSource) {
+        JavaCompiler compiler = ToolProvider.getSystemJavaCompiler();
+        DiagnosticCollector<JavaFileObject> diagnostics = new DiagnosticCollector<JavaFileObject>();
+        JavaCompiler.CompilationTask task = compiler.getTask(null,null,diagnostics,
+            Arrays.asList("-proc:only","-s",outputDirectory.getPath()),null,
+            Arrays.asList(source("net/olioinfo/eeproperties/EEPropertiesKeys",ANNOTATION_SOURCE),source("com/mysite/DbKeys",keySetSource)));
+        task.setProcessors(Collections.singletonList(new EEPropertiesKeysProcessor()));
+        task.call();
+        return diagnostics;
+    }
+
+    private static JavaFileObject source(String path, final String content) {
+        return new SimpleJavaFileObject(URI.create("string:///" + path + ".java"),JavaFileObject.Kind.SOURCE) {
+            public CharSequence getCharContent(boolean ignoreEncodingErrors) {
+                return content;
+            }
+        };
+    }
+
+    private static int count(DiagnosticCollector<JavaFileObject> diagnostics, Diagnostic.Kind kind) {
+        int count = 0;
+        for (Diagnostic<? extends JavaFileObject> diagnostic : diagnostics.getDiagnostics()) {
+            if (diagnostic.getKind() == kind) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+}
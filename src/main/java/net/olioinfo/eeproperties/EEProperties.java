@@ -15,13 +15,46 @@
 package net.olioinfo.eeproperties;
 
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
+import java.io.IOException;
 import java.io.InputStream;
 import java.io.PrintStream;
+import java.net.InetSocketAddress;
+import java.net.URI;
 import java.net.URL;
-import java.text.SimpleDateFormat;
+import java.nio.DoubleBuffer;
+import java.nio.IntBuffer;
+import java.nio.LongBuffer;
+import java.security.GeneralSecurityException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.OffsetDateTime;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.BiConsumer;
+import java.util.function.BiFunction;
+import java.util.function.Consumer;
+import java.util.function.Function;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -96,6 +129,36 @@ import java.util.regex.Pattern;
  * net.olioinfo.eeproperties.extendedPropertiesSyntax.enabled = true
  * </pre>
  *
+ * <p>(Starting in version 2.10) A configuration path whose last part is a pattern names a directory of drop-in
+ * files, e.g. '/etc/myapp/conf.d/*.properties'. Every matching file is loaded with every package's configuration,
+ * on top of the package's defaults, environment and external files. The files are read in parallel and merged in
+ * lexical order of their names, so '20-cache.properties' overrides '10-db.properties'.</p>
+ *
+ * <p>(Starting in version 2.10) A configuration path ending in '.zip' or '.jar' names an archive laid out like the
+ * configuration directory. The archive is opened once and indexed, and files are read from it without extracting
+ * it.</p>
+ *
+ *
+ * <h3>Configuration sources</h3>
+ *
+ * <p>(Starting in version 2.10) Configuration files can also be served over HTTP or HTTPS. Set the following to one
+ * or more base URLs, separated by spaces or commas:</p>
+ *
+ * <ul><li>net.olioinfo.eeproperties.runtime.configurationUrls</li></ul>
+ *
+ * <p>Files are requested from the base URL followed by the package path, in the same layout as the external
+ * configuration directory, and take precedence over the files on the classpath. Each file received is kept in a
+ * cache directory (by default 'eeproperties-cache' in the temporary directory) and then only requested again
+ * conditionally, so an unchanged file costs one 304 response. If the server can't be reached, the cached copy is
+ * used, and the rest of that load uses cached copies without trying the server again. To choose the cache
+ * directory, set:</p>
+ *
+ * <ul><li>net.olioinfo.eeproperties.runtime.configurationCacheDirectory</li></ul>
+ *
+ * <p>Other places to load files from can be added by implementing EEPropertiesConfigSource and calling
+ * <em>addConfigSource</em> before loading. For each file, the configuration paths are consulted first, then the
+ * configuration URLs, then the added sources, then the classpath, and the file is taken from the first that has
+ * it.</p>
  *
  * <h3>Servlet configuration</h3>
  *
@@ -114,6 +177,19 @@ import java.util.regex.Pattern;
  * value from the system environment (System.getEnv()) and the system properties (System.getProperty()) and any defined
  * property value in that order. First value fourd is used.
  * Thus, system properties always override environment settings alsways override property settings.</p>
+ *
+ * <p>(Starting in version 2.10) A string rendered repeatedly, such as a URL or file path built on every request,
+ * can be parsed once with <em>compileTemplate</em> and rendered with <em>render</em> against the current
+ * properties, a given instance or a Properties object. <em>substituteVariables</em> keeps the most recently used
+ * templates parsed, up to the number set by the following JVM option (default 1024):</p>
+ *
+ * <ul><li>net.olioinfo.eeproperties.templateCache.maximumSize</li></ul>
+ *
+ * <pre>
+ * private static final EEPropertiesTemplate ORDER_URL = EEProperties.compileTemplate("${com.mysite.orders.baseUrl}/orders");
+ * ...
+ * String url = ORDER_URL.render();
+ * </pre>
  * 
  * <h3>Extended syntax</h3>
  *
@@ -138,16 +214,59 @@ import java.util.regex.Pattern;
  * <li>Double</li>
  * <li>Boolean</li>
  * <li>Date</li>
+ * <li>Instant</li>
+ * <li>LocalDate</li>
+ * <li>OffsetDateTime</li>
  * <li>ArrayList&lt;String&gt;</li>
+ * <li>ArrayList&lt;Integer&gt;</li>
+ * <li>int[]</li>
+ * <li>long[]</li>
+ * <li>double[]</li>
+ * <li>ImmutableList&lt;String&gt;</li>
+ * <li>Duration - ISO-8601 (PT30S) or a number and unit (500ms, 30s, 5m, 2h, 1d)</li>
+ * <li>DataSize - a number of bytes with an optional unit (64KB, 64MB, 2GB), as a Long</li>
+ * <li>URI</li>
+ * <li>InetSocketAddress - host:port, unresolved</li>
+ * <li>Enum&lt;fully.qualified.ClassName&gt; - a constant name, ignoring case</li>
+ * <li>Encrypted - an AES-GCM encrypted secret, see below</li>
+ * </ul>
+ *
+ * <p>(Starting in version 2.10) Secrets can be kept in configuration files as [Encrypted] values, produced by
+ * EEPropertiesSecrets.encrypt. Loading only decodes them. A secret is decrypted when first read with
+ * <em>getEncryptedProperty</em>, which returns a copy of the plaintext as a char array for the caller to zero
+ * when done, so startup doesn't pay for secrets that are never read. The plaintext is then kept for a time to live
+ * so a secret read often is not decrypted every time, and expired plaintext is zeroed on the next read of any
+ * secret. <em>clearSecretCache</em> zeroes all of it at once. Keys come from an EEPropertiesKeyProvider set with
+ * <em>setKeyProvider</em>, or configured with these settings (JVM options, options or the bootstrap file):</p>
+ *
+ * <ul>
+ * <li>net.olioinfo.eeproperties.secrets.keyFile - a file holding a Base64 AES key, as made by EEPropertiesSecrets.generateKey</li>
+ * <li>net.olioinfo.eeproperties.secrets.keyStore - a key store holding AES keys, used if no key file is set</li>
+ * <li>net.olioinfo.eeproperties.secrets.keyStoreType - default PKCS12</li>
+ * <li>net.olioinfo.eeproperties.secrets.keyStorePassword</li>
+ * <li>net.olioinfo.eeproperties.secrets.keyAlias - alias of the key for values without a key identifier</li>
+ * <li>net.olioinfo.eeproperties.secrets.cacheTtlSeconds - how long plaintext is kept, default 300, 0 not to keep it</li>
  * </ul>
  *
+ * <p>(Starting in version 2.10) Applications can add their own types by registering an EEPropertiesConverter
+ * with EEPropertiesConverters.register before loading, and read the values with getTypedPropertyValue.</p>
+ *
+ * <p>List and array values are comma-separated. The ArrayList getters return a copy on every call. The
+ * int[], long[] and double[] getters return read-only buffers over the stored primitive array, and the
+ * ImmutableList&lt;String&gt; getter returns the stored unmodifiable list, so none of them copy.</p>
+ *
  * <p>For the Date type, the following two formats will be parsed automatically.
- * The format strings are those supported in SimpleDateFormat.</p>
+ * The format strings are those supported in DateTimeFormatter.</p>
  * <ul>
- * <li>"yyyy-MM-dd'T'HH:mm:ssZ"</li>
- * <li>"yyyy-MM-dd"</li>
+ * <li>"yyyy-MM-dd'T'HH:mm:ssZ" (ISO-8601 offsets such as -05:00 or Z are also accepted)</li>
+ * <li>"yyyy-MM-dd" (start of day in the default time zone)</li>
  * </ul>
  *
+ * <p>(Starting in version 2.10) Date values are held as Instants and getDateProperty returns a new Date on every
+ * call, so changing a returned Date no longer affects other callers. Instant and OffsetDateTime accept the same
+ * date and time format as Date, and LocalDate accepts "yyyy-MM-dd". Their values are immutable, so their getters
+ * return the stored instance without allocating.</p>
+ *
  * <p>A set of accessor methods for each type is also available.
  * For the default EEProperties instance, <em>sGet[object type]Property</em> and <em>sPut[object type[</em>.
  * For any EEProperties instance, <em>get[object type]Property</em> and <em>put[object type]</em>. Arguments to all methods are
@@ -170,6 +289,116 @@ import java.util.regex.Pattern;
  * (new EEProperties()).putInteger("net.olioinfo.eeproperties.test.value.10",new Integer(123));
  * </pre>
  *
+ * <h3>Layered store</h3>
+ *
+ * <p>(Starting in version 2.10) Properties are held in layers, from lowest to highest precedence: the bootstrap file,
+ * defaults files, environment files, files found in the additional configuration paths, and values set with put.
+ * A lookup returns the value from the highest layer that defines it, so an externally managed file always overrides
+ * the files bundled with a component. Each load publishes a new immutable generation that shares all unchanged
+ * data with the previous one. Readers never lock and always see a complete load.</p>
+ *
+ * <h3>Key and value deduplication</h3>
+ *
+ * <p>(Starting in version 2.10) Keys and values read from files are deduplicated through a pool shared by all
+ * instances, so a key or value repeated across files, load definitions and reloads is held once. Use
+ * <em>getStringPool</em> to see how much heap has been saved. Set the following to 'false' to turn it off:</p>
+ *
+ * <ul><li>net.olioinfo.eeproperties.stringPool.enabled</li></ul>
+ *
+ * <h3>Off-heap storage</h3>
+ *
+ * <p>(Starting in version 2.10) For configurations of hundreds of thousands of keys or more, the bulk of each layer
+ * can be held outside the Java heap as UTF-8 in direct buffers, so it is not traced by the garbage collector.
+ * Recent changes stay on the heap until enough have accumulated to rebuild the layer's table. Set the following
+ * to 'true' as a JVM option, an option or in the bootstrap file to turn it on:</p>
+ *
+ * <ul><li>net.olioinfo.eeproperties.store.offHeap.enabled</li></ul>
+ *
+ * <p>To map the tables from temporary files in a directory instead of allocating direct buffers, set:</p>
+ *
+ * <ul><li>net.olioinfo.eeproperties.store.offHeap.directory</li></ul>
+ *
+ * <p>Use <em>getOffHeapMemoryFootprint</em> to see the memory held outside the heap.</p>
+ *
+ * <h3>Key filters</h3>
+ *
+ * <p>(Starting in version 2.10) Each layer of the store carries a Bloom filter of its keys, built when a load is
+ * published, so a lookup only searches the layers that may define the key. Looking up a key that is not defined,
+ * as <em>getProperty(name,defaultValue)</em> often does, usually costs one filter check per layer instead of a
+ * search of each. The filters take 2 to 8 bytes per key. Set the following to 'false' to turn them off:</p>
+ *
+ * <ul><li>net.olioinfo.eeproperties.store.keyFilters.enabled</li></ul>
+ *
+ * <p>Use <em>getKeyFilterMemoryFootprint</em> and <em>getKeyFilterFalsePositiveRate</em> for their size and
+ * estimated false positive rate. With metrics enabled, the metrics snapshot also counts the layer searches the
+ * filters avoided and the false positives actually seen.</p>
+ *
+ * <h3>Typed value cache</h3>
+ *
+ * <p>(Starting in version 2.10) By default every typed value is converted when it is loaded and kept as long as the
+ * property is. To keep only the property strings and convert typed values when they are read, holding at most a
+ * given number of converted values, set the following to that number:</p>
+ *
+ * <ul><li>net.olioinfo.eeproperties.typedCache.maximumSize</li></ul>
+ *
+ * <p>When the cache is full, values read often are kept in preference to values read rarely, and a value not in
+ * the cache is converted again. Values set with put, and values loaded into a Properties object passed to
+ * loadAndMergeConfigurations, are always kept. Use <em>getTypedValueCache</em> for the hit
+ * rate and estimated memory use; both are also shown by the MBean.</p>
+ *
+ * <h3>Binding</h3>
+ *
+ * <p>(Starting in version 2.10) Instead of reading keys one at a time, a component can bind every key under a prefix
+ * onto an interface or a POJO with <em>bind</em>:</p>
+ *
+ * <pre>
+ * public interface DbConfig {
+ *     String getUrl();          // com.mysite.db.url
+ *     int poolSize();           // com.mysite.db.poolSize
+ *     Duration getTimeout();    // com.mysite.db.timeout
+ * }
+ *
+ * DbConfig dbConfig = EEProperties.sBind("com.mysite.db",DbConfig.class);
+ * </pre>
+ *
+ * <p>Values are converted once, using the extended syntax type if there is one and the member's type otherwise,
+ * so reading a bound value is not a property lookup. Whenever a load, put or reload changes any bound key the
+ * instance is re-populated as a whole. A POJO needs a no-argument constructor, and its non-final fields are
+ * bound by name.</p>
+ *
+ * <h3>Iterating and dumping</h3>
+ *
+ * <p>(Starting in version 2.10) <em>forEach</em> and <em>propertyIterator</em> walk a snapshot of all properties
+ * without copying it, and <em>dumpProperties</em> writes them to a channel or file, in properties or JSON form,
+ * through one reusable buffer. Prefer them to propertyNames and listProperties for large configurations.</p>
+ *
+ * <h3>Generated accessors</h3>
+ *
+ * <p>(Starting in version 2.10) Keys declared as String constants of a type annotated with &#64;EEPropertiesKeys
+ * get a generated accessor class when the eeproperties-processor module is on the compiler's processor path.
+ * Each key gets a slot, and the accessors read a dense array indexed by slot instead of looking the key up.
+ * Keys without a value are logged as warnings when the generated class is first used.</p>
+ *
+ * <h3>Asynchronous loading</h3>
+ *
+ * <p>(Starting in version 2.10) <em>sLoadPackageConfigurationAsync</em> and <em>loadPackageConfigurationAsync</em>
+ * load a package's configuration on a background thread and return a CompletableFuture that completes once it has
+ * been merged, so startup can carry on while files are read. A component that needs one key can wait for it alone:</p>
+ *
+ * <pre>
+ * EEProperties.sLoadPackageConfigurationAsync(com.mysite.db.Db.class,null);
+ * ...
+ * String url = EEProperties.sAwaitKey("com.mysite.db.url",5,TimeUnit.SECONDS);
+ * </pre>
+ *
+ * <h3>Switching environments</h3>
+ *
+ * <p>(Starting in version 2.10) <em>switchEnvironment</em> and <em>sSwitchEnvironment</em> change the runtime
+ * environment of a running instance, e.g. from 'development' to 'test', without reloading everything. The defaults
+ * files already parsed are kept; only the new environment's files, external files and drop-in files are read.
+ * Defaults that refer to variables are substituted again, and the new environment becomes visible to readers all at
+ * once. Packages loaded afterwards, and reloads, use the new environment.</p>
+ *
  * <h3>Caution</h3>
  * <p>All properties are loaded in the same context, so the names of the properties themselves must be distinct.</p>
  *
@@ -178,6 +407,15 @@ import java.util.regex.Pattern;
  * <p>The load process implied by a phrase similar to "EEProperties.sLoadPackageConfiguration(some.class)" is
  * thread-safe and can be invoked as many times as needed to reload settings for one or more packages.</p>
  *
+ * <p>(Starting in version 2.10) Loads and reloads are serialized with java.util.concurrent locks rather than
+ * monitors, so on JDK 21 and later a virtual thread waiting on file or classpath I/O during a load does not pin
+ * its carrier thread.</p>
+ *
+ * <p>(Starting in version 2.10) Only loads of the same definition (the same class, environment names and options)
+ * wait for each other. Loads of different packages read their files at the same time and only take turns to merge
+ * what they have read into the store, which is brief. Their properties are merged in the order the loads finish;
+ * a reload applies the definitions in the order the loads started.</p>
+ *
  * <p>The following JVM options are available for use in debugging and isolating problems during initialization.
  * They should not be used in other cases or in production, since they cause performance degradation and
  * may generate a lot of output. These options apply to the whole package.</p>
@@ -195,6 +433,63 @@ import java.util.regex.Pattern;
  *
  * <ul><li>-Dnet.olioinfo.eeproperties.bootstrapLogging.configurationFile=[fully qualified file name]</li></ul>
  *
+ * <h3>Metrics</h3>
+ *
+ * <p>(Starting in version 2.10) EEProperties can record lookup counts and misses per key, typed conversion failures,
+ * per-file parse and merge times, substitution passes and reload times. Metrics are off by default and are enabled
+ * by setting the following to 'true' as a JVM option, an option or in the bootstrap file:</p>
+ *
+ * <ul><li>net.olioinfo.eeproperties.metrics.enabled</li></ul>
+ *
+ * <p>To aggregate per-key counters by prefix instead of by full key, set the number of leading dotted segments to keep:</p>
+ *
+ * <ul><li>net.olioinfo.eeproperties.metrics.keyPrefixDepth</li></ul>
+ *
+ * <p>At most 1000 keys (or prefixes) are counted individually; lookups of further keys are counted under
+ * '(other)'. To change the limit, set:</p>
+ *
+ * <ul><li>net.olioinfo.eeproperties.metrics.maxTrackedKeys</li></ul>
+ *
+ * <p>Use <em>getMetricsSnapshot</em> or <em>sGetMetricsSnapshot</em> to read the current values.</p>
+ *
+ * <h3>Load profiling</h3>
+ *
+ * <p>(Starting in version 2.10) To find out where load time goes, set the following to 'true' as a JVM option or
+ * an option (to include logging initialization and the bootstrap file) or in the bootstrap file:</p>
+ *
+ * <ul><li>net.olioinfo.eeproperties.profiling.enabled</li></ul>
+ *
+ * <p>Every phase of every load definition and file is then recorded with its byte and key counts.
+ * Use <em>getLoadProfiler</em> to retrieve the timeline or <em>sPrintLoadProfile</em> to print summary tables.</p>
+ *
+ * <h3>Access profiling</h3>
+ *
+ * <p>(Starting in version 2.10) To find the most frequently read properties and those never read, set the following
+ * to 'true' as a JVM option, an option or in the bootstrap file:</p>
+ *
+ * <ul><li>net.olioinfo.eeproperties.accessProfiling.enabled</li></ul>
+ *
+ * <p>Reads are sampled, by default 1 in 64. The sample rate and the number of hot keys reported are set by:</p>
+ *
+ * <ul>
+ * <li>net.olioinfo.eeproperties.accessProfiling.sampleInterval</li>
+ * <li>net.olioinfo.eeproperties.accessProfiling.topK</li>
+ * </ul>
+ *
+ * <p>Use <em>getHotPropertyNames</em> and <em>getUnreadPropertyNames</em> for the reports. When profiling is
+ * disabled reads are not affected.</p>
+ *
+ * <h3>JMX management</h3>
+ *
+ * <p>(Starting in version 2.10) Setting the following to 'true' registers an MBean named
+ * "net.olioinfo.eeproperties:type=EEProperties" for the singleton instance:</p>
+ *
+ * <ul><li>net.olioinfo.eeproperties.jmx.enabled</li></ul>
+ *
+ * <p>The MBean shows the current generation, key counts, registered load definitions, the last reload time and
+ * duration and an estimate of the memory used. It can look up a property, reload all configurations, or reload
+ * only if a loaded file has changed.</p>
+ *
  * <h3>Exception handling</h3>
  * <p>No methods throw exceptions. Instead, exceptions will be logged. So, if something doesn't appear to be working
  * correctly, enable some of the logging options listed above to isolate the problem.</p>
@@ -221,6 +516,22 @@ import java.util.regex.Pattern;
 @SuppressWarnings("unchecked")
 public class EEProperties {
 
+    /**
+     * Output formats for dumpProperties
+     *
+     * @since 2.10
+     */
+    public enum DumpFormat {
+        /**
+         * One key=value line per property, escaped so that Properties.load reads it back
+         */
+        PROPERTIES,
+        /**
+         * A single JSON object, UTF-8 encoded
+         */
+        JSON
+    }
+
     /**
      * EEProperties bootstrap log4j settings
      */
@@ -234,22 +545,34 @@ public class EEProperties {
      */
     private static final String CORE_CONFIGURATION_FILE_NAME_FQ = "eeproperties-bootstrap.properties";
 
+    
     /**
-     * Property value key for a typed property
+     * Extended syntax: a type name in brackets followed by the value. Type names may contain "[]".
      */
-    private static final String TYPED_PROPERTY_VALUE = "value";
+    static final Pattern OBJECT_TYPE_PATTERN = Pattern.compile("^\\[((?:[^\\[\\]]|\\[\\])+)\\](.+)$");
 
+    /**
+     * Singleton instance of EEProperites
+     */
+    private static volatile EEProperties singletonInstance = null;
 
     /**
-     * Property type key for a typed property
+     * Loads into the singleton hold the read lock, so they can run at the same time. Creating the singleton and
+     * reloads, which replace it, hold the write lock. A java.util.concurrent lock rather than a monitor, so a virtual
+     * thread blocked on file I/O while holding it does not pin its carrier thread.
      */
-    private static final String TYPED_PROPERTY_TYPE = "type";
+    private static final ReentrantReadWriteLock SINGLETON_LOCK = new ReentrantReadWriteLock();
 
-    
     /**
-     * Singleton instance of EEProperites
+     * Number of load locks. A power of 2
+     */
+    private static final int LOAD_STRIPES = 64;
+
+    /**
+     * Templates parsed by substituteVariables and compileTemplate
      */
-    private static EEProperties singletonInstance = null;
+    private static final EEPropertiesTemplateCache TEMPLATE_CACHE = new EEPropertiesTemplateCache(
+        Integer.getInteger("net.olioinfo.eeproperties.templateCache.maximumSize",1024));
 
 
     /**
@@ -259,20 +582,38 @@ public class EEProperties {
 
 
     /**
-     * Properties object that holds all conventional i.e. String - properties
+     * Layered store that holds all conventional i.e. String - properties and all object-typed properties
+     */
+    private EEPropertiesLayeredStore store = new EEPropertiesLayeredStore();
+
+
+    /**
+     * Contents of the bootstrap file. Used to look up EEProperties' own settings.
      */
-    private Properties coreProperties = new Properties();
+    private Properties bootstrapProperties = new Properties();
+
 
+    /**
+     * Keys whose values still contain unresolved variables. Re-examined on every load. Only used while publishing,
+     * under the store's update lock.
+     */
+    private HashSet<String> unresolvedKeys = new HashSet<String>();
 
     /**
-     * HashMap object that holds all object-typed properties
+     * Values of defaults layer keys as read, before substitution, for those that contain variables. Substituted
+     * again by switchEnvironment. Only used while publishing, under the store's update lock.
      */
-    private HashMap<String,HashMap<String,Object>> typedCoreProperties = new HashMap<String,HashMap<String,Object>>();
+    private final HashMap<String,String> rawDefaultValues = new HashMap<String,String>();
     
     /*
      * Default environment if not specified is 'development'
      */
-    private String runtimeEnvironment = "development";
+    private volatile String runtimeEnvironment = "development";
+
+    /**
+     * Set once switchEnvironment has changed the runtime environment, so reloads keep the new environment
+     */
+    private volatile boolean environmentSwitched = false;
 
 
     /**
@@ -283,11 +624,140 @@ public class EEProperties {
     /*
      * Paths to search for external configuration files
      */
-    private ArrayList<String> searchPathsList = new ArrayList<String>();
+    private final CopyOnWriteArrayList<String> searchPathsList = new CopyOnWriteArrayList<String>();
 
 
     private String uniqueId = null;
 
+    /**
+     * Metrics registry. Null unless metrics are enabled.
+     */
+    private EEPropertiesMetrics metrics = null;
+
+    /**
+     * Load profiler. Null unless load profiling is enabled.
+     */
+    private EEPropertiesLoadProfiler loadProfiler = null;
+
+    /**
+     * Access profiler. Null unless access profiling is enabled.
+     */
+    private EEPropertiesAccessProfiler accessProfiler = null;
+
+    /**
+     * Pool used to deduplicate keys and values. Null if disabled.
+     */
+    private EEPropertiesStringPool stringPool = null;
+
+    /**
+     * Bounded cache of typed values converted on demand. Null if typed values are converted when loaded.
+     */
+    private EEPropertiesTypedValueCache typedValueCache = null;
+
+    /**
+     * Source of the keys that decrypt [Encrypted] values, or null if none is configured
+     */
+    private volatile EEPropertiesKeyProvider keyProvider = null;
+
+    /**
+     * True if the key provider was set with setKeyProvider rather than configured
+     */
+    private volatile boolean keyProviderSet = false;
+
+    /**
+     * Decrypted [Encrypted] values
+     */
+    private EEPropertiesSecretCache secretCache = null;
+
+    /**
+     * Conversion used by the typed value cache on a miss
+     */
+    private final BiFunction<String,String,EEPropertiesTypedValue> typedValueConverter = new BiFunction<String,String,EEPropertiesTypedValue>() {
+        public EEPropertiesTypedValue apply(String propertyName, String propertyValue) {
+            return convertToTypedValue(propertyName,propertyValue);
+        }
+    };
+
+    /**
+     * Time of the last reload (milliseconds since the epoch)
+     */
+    private volatile long lastReloadTime = 0L;
+
+    /**
+     * Duration of the last reload (nanoseconds)
+     */
+    private volatile long lastReloadDurationNanos = 0L;
+
+    /**
+     * Files loaded so far, with their source and last modification time when loaded
+     */
+    private final ConcurrentHashMap<String,LoadedFile> loadedFiles = new ConcurrentHashMap<String,LoadedFile>();
+
+    /**
+     * Sources for the URLs set with net.olioinfo.eeproperties.runtime.configurationUrls
+     */
+    private final CopyOnWriteArrayList<EEPropertiesConfigSource> urlConfigSources = new CopyOnWriteArrayList<EEPropertiesConfigSource>();
+
+    /**
+     * Sources added with addConfigSource
+     */
+    private final CopyOnWriteArrayList<EEPropertiesConfigSource> addedConfigSources = new CopyOnWriteArrayList<EEPropertiesConfigSource>();
+
+    /**
+     * Merged drop-in files of each configuration path ending in a pattern, by path
+     */
+    private final ConcurrentHashMap<String,EEPropertiesDirectorySource.Snapshot> directorySnapshots = new ConcurrentHashMap<String,EEPropertiesDirectorySource.Snapshot>();
+
+    /**
+     * Sources for the archives among the configuration paths, by path
+     */
+    private final ConcurrentHashMap<String,EEPropertiesArchiveSource> archiveSources = new ConcurrentHashMap<String,EEPropertiesArchiveSource>();
+
+    /**
+     * Source for files on the classpath, consulted last
+     */
+    private final EEPropertiesConfigSource classpathSource = new EEPropertiesClasspathSource();
+
+    /**
+     * Prefixes bound with bind. Refreshed on every new generation.
+     */
+    private final CopyOnWriteArrayList<EEPropertiesBinding<?>> bindings = new CopyOnWriteArrayList<EEPropertiesBinding<?>>();
+
+    /**
+     * Futures for keys waited for with awaitKey that had no value yet. Completed and removed when a generation
+     * defines the key.
+     */
+    private final ConcurrentHashMap<String,CompletableFuture<String>> keyWaiters = new ConcurrentHashMap<String,CompletableFuture<String>>();
+
+    /**
+     * Values of the keys registered in EEPropertiesSlots, as of the latest generation
+     */
+    private volatile EEPropertiesSlots.Table slotTable = new EEPropertiesSlots.Table(0L,new String[0],new EEPropertiesTypedValue[0]);
+
+    /**
+     * Serialize loads of the same definition into this instance. Loads of different definitions usually take
+     * different locks and read their files concurrently.
+     */
+    private final ReentrantLock[] loadStripes = newLoadStripes();
+
+    /**
+     * Loads hold the read lock. switchEnvironment holds the write lock, so no load runs while the environment
+     * changes.
+     */
+    private final ReentrantReadWriteLock environmentLock = new ReentrantReadWriteLock();
+
+    /**
+     * Definitions loaded into the store, in the order first loaded, by description. Guarded by definitionsLock.
+     */
+    private LinkedHashMap<String,EEPropertiesLoadDefinition> storeDefinitions = new LinkedHashMap<String,EEPropertiesLoadDefinition>();
+
+    private final ReentrantLock definitionsLock = new ReentrantLock();
+
+    /**
+     * Serializes slot table rebuilds
+     */
+    private final ReentrantLock slotTableLock = new ReentrantLock();
+
     /**
      * Construct an instance of EEProperties
      */
@@ -308,8 +778,46 @@ public class EEProperties {
             System.out.println(String.format("consoleTrace: (%s) EEProperties: Runtime environment set to %s",parts[1],this.runtimeEnvironment));
         }
         initializeConsoleTracing(options);
+        initializeLoadProfiler(options,null);
+        initializeStringPool(options);
+
+        long phaseStart = System.nanoTime();
         initializeLogging(options);
+        if (this.loadProfiler != null) {
+            this.loadProfiler.record(EEPropertiesLoadProfiler.PHASE_INITIALIZE_LOGGING,null,null,phaseStart,-1,-1);
+        }
+
+        phaseStart = System.nanoTime();
         loadBootstrapFile(options);
+        if (this.loadProfiler != null) {
+            this.loadProfiler.record(EEPropertiesLoadProfiler.PHASE_LOAD_BOOTSTRAP_FILE,null,null,phaseStart,-1,this.bootstrapProperties.size());
+        }
+        // The bootstrap file may also enable profiling. Phases from here on are recorded.
+        initializeLoadProfiler(options,this.bootstrapProperties);
+        initializeStringPool(options);
+        initializeOffHeapStore(options);
+        initializeKeyFilters(options);
+        initializeTypedValueCache(options);
+        initializeSecrets(options);
+        initializeConfigSources(options);
+
+        initializeMetrics(options);
+        initializeAccessProfiler(options);
+        initializeManagement(options);
+
+        this.store.addPublishListener(new Consumer<EEPropertiesLayeredStore.Generation>() {
+            public void accept(EEPropertiesLayeredStore.Generation generation) {
+                for (EEPropertiesBinding<?> binding : EEProperties.this.bindings) {
+                    binding.refresh(generation);
+                }
+                if (EEPropertiesSlots.size() > 0) {
+                    refreshSlotTable(generation);
+                }
+                if (! EEProperties.this.keyWaiters.isEmpty()) {
+                    completeKeyWaiters(generation);
+                }
+            }
+        });
 
 
     }
@@ -322,13 +830,23 @@ public class EEProperties {
      * @return Singleton EEProperties instance
      */
     public static EEProperties singleton() {
-        if (EEProperties.singletonInstance == null) {
-            if (EEProperties.testSystemProperty("net.olioinfo.eeproperties.consoleTracing","true")) {
-                System.out.println(String.format("consoleTrace: EEProperties: Creating singleton instance of EEProperties"));
+        EEProperties instance = EEProperties.singletonInstance;
+        if (instance != null) {
+            return instance;
+        }
+        EEProperties.SINGLETON_LOCK.writeLock().lock();
+        try {
+            if (EEProperties.singletonInstance == null) {
+                if (EEProperties.testSystemProperty("net.olioinfo.eeproperties.consoleTracing","true")) {
+                    System.out.println(String.format("consoleTrace: EEProperties: Creating singleton instance of EEProperties"));
+                }
+                EEProperties.singletonInstance = new EEProperties();
             }
-            EEProperties.singletonInstance = new EEProperties();
+            return EEProperties.singletonInstance;
+        }
+        finally {
+            EEProperties.SINGLETON_LOCK.writeLock().unlock();
         }
-        return EEProperties.singletonInstance;
     }
 
     /**
@@ -343,8 +861,8 @@ public class EEProperties {
      *
      * @param klass Load the configuration associated with the specified class
      */
-    public static synchronized void sLoadPackageConfiguration(Class klass) {
-       EEProperties.singleton().loadPackageConfiguration(klass,null);
+    public static void sLoadPackageConfiguration(Class klass) {
+        EEProperties.sLoadPackageConfiguration(klass,null);
     }
 
     /**
@@ -355,89 +873,519 @@ public class EEProperties {
      * @param klass Load the configuration associated with the specified class
      * @param options Hash of options
      */
-    public static synchronized void sLoadPackageConfiguration(Class klass,HashMap<String,String> options) {
-       EEProperties.singleton().loadPackageConfiguration(klass,options);
+    public static void sLoadPackageConfiguration(Class klass,HashMap<String,String> options) {
+        // Created first: the write lock can't be taken while holding the read lock
+        EEProperties.singleton();
+        EEProperties.SINGLETON_LOCK.readLock().lock();
+        try {
+            EEProperties.singletonInstance.loadPackageConfiguration(klass,options);
+        }
+        finally {
+            EEProperties.SINGLETON_LOCK.readLock().unlock();
+        }
     }
 
     /**
-     * Load the configuration files associated with the (root of the) specified package only.
+     * Load the configuration files associated with the (root of the) specified package on a background thread
+     * (for the singleton class).
      *
+     * <p>See the documentation for sLoadPackageConfiguration. Loads are run on a shared pool of daemon threads.</p>
      *
      * @param klass Load the configuration associated with the specified class
      * @param options Hash of options
+     * @return Future completed once the configuration has been merged, or exceptionally if the load failed
+     * @since 2.10
      */
-    public synchronized void loadPackageConfiguration(Class klass,HashMap<String,String> options) {
-
-        
-        ArrayList<String> names = new ArrayList<String>();
-        names.add("defaults");
-        names.add(this.runtimeEnvironment);
-        HashMap<String,String> combinedOptions = new HashMap<String,String>();
-        combinedOptions.put("net.olioinfo.eeproperties.configurationFile.prefix",null);
-        combinedOptions.put("net.olioinfo.eeproperties.configurationFile.suffix","-ee");
-        combinedOptions.put("net.olioinfo.eeproperties.configurationFile.extension","properties");
-        if (options != null) combinedOptions.putAll(options);
-
-        loadAndMergeConfigurations(names,klass,this.coreProperties,combinedOptions);
+    public static CompletableFuture<Void> sLoadPackageConfigurationAsync(Class klass, HashMap<String,String> options) {
+        return EEProperties.sLoadPackageConfigurationAsync(klass,options,LoadExecutorHolder.EXECUTOR);
     }
 
+    /**
+     * Load the configuration files associated with the (root of the) specified package using an executor
+     * (for the singleton class).
+     *
+     * @param klass Load the configuration associated with the specified class
+     * @param options Hash of options
+     * @param executor Executor to run the load on
+     * @return Future completed once the configuration has been merged, or exceptionally if the load failed
+     * @since 2.10
+     */
+    public static CompletableFuture<Void> sLoadPackageConfigurationAsync(final Class klass, final HashMap<String,String> options, Executor executor) {
+        return CompletableFuture.runAsync(new Runnable() {
+            public void run() {
+                EEProperties.sLoadPackageConfiguration(klass,options);
+            }
+        },executor);
+    }
 
     /**
-     * Load and merge configurations based on environment names, class location and other options
+     * Load the configuration files associated with the (root of the) specified package on a background thread.
      *
-     * <p>Environment names are a list of environment names, usually from the list [defaults,production,development,test[.
-     * File names will be constructed, and the files searched for and loaded if present in the order specified.</p>
+     * <p>See the documentation for loadPackageConfiguration. Loads are run on a shared pool of daemon threads.</p>
      *
-     * </p>The klass parameter specifies the klass used as the locator for the file within the search paths already configured.</p>
+     * @param klass Load the configuration associated with the specified class
+     * @param options Hash of options
+     * @return Future completed once the configuration has been merged, or exceptionally if the load failed
+     * @since 2.10
+     */
+    public CompletableFuture<Void> loadPackageConfigurationAsync(Class klass, HashMap<String,String> options) {
+        return loadPackageConfigurationAsync(klass,options,LoadExecutorHolder.EXECUTOR);
+    }
+
+    /**
+     * Load the configuration files associated with the (root of the) specified package using an executor.
      *
-     * <p>The properties object contains any configuration options already loaded.</p>
+     * @param klass Load the configuration associated with the specified class
+     * @param options Hash of options
+     * @param executor Executor to run the load on
+     * @return Future completed once the configuration has been merged, or exceptionally if the load failed
+     * @since 2.10
+     */
+    public CompletableFuture<Void> loadPackageConfigurationAsync(final Class klass, final HashMap<String,String> options, Executor executor) {
+        return CompletableFuture.runAsync(new Runnable() {
+            public void run() {
+                loadPackageConfiguration(klass,options);
+            }
+        },executor);
+    }
+
+    /**
+     * Wait until a property has a value (for the singleton class)
      *
-     * <p>Options are optional and can specify rules for forming the name of the properties file. Options are:</p>
-     * <ul>
-     * <li>net.olioinfo.eeproperties.configurationFile.prefix</li>
-     * <li>net.olioinfo.eeproperties.configurationFile.suffix</li>
-     * <li>net.olioinfo.eeproperties.configurationFile.extension</li>
-     * </ul>
+     * <p>Waits on the instance that is the singleton when called. Waiters are carried over if it is replaced by
+     * a reload.</p>
      *
-     * <p>The format of the file name for the properties flle is '[prefix][environment][suffix].[extension]'.
-     * If any element is absent or null it is skipped when constructing the name.</p>
+     * @param propertyName Property name
+     * @param timeout Maximum time to wait
+     * @param unit Unit of timeout
+     * @return Property value, or null if the property still had no value after the timeout
+     * @throws InterruptedException if interrupted while waiting
+     * @since 2.10
+     */
+    public static String sAwaitKey(String propertyName, long timeout, TimeUnit unit) throws InterruptedException {
+        return EEProperties.singleton().awaitKey(propertyName,timeout,unit);
+    }
+
+    /**
+     * Wait until a property has a value
      *
+     * <p>Returns at once if the property already has a value. Otherwise waits until a load or put publishes one,
+     * however that happens.</p>
      *
-     * @param environmentNames
-     * @param klass
-     * @param properties
-     * @param options
+     * @param propertyName Property name
+     * @param timeout Maximum time to wait
+     * @param unit Unit of timeout
+     * @return Property value, or null if the property still had no value after the timeout
+     * @throws InterruptedException if interrupted while waiting
+     * @since 2.10
      */
-    public void loadAndMergeConfigurations(ArrayList<String> environmentNames,Class klass, Properties properties,HashMap<String,String> options) {
-
-    	EEPropertiesLoadDefinition.createAndRegisterLoadDefinition(environmentNames, klass, properties, options);
-    	
-        //Check for addtional search paths in the options
-        if (options != null && options.containsKey("net.olioinfo.eeproperties.runtime.additionalConfigurationPaths")) {
-            this.searchPathsList.addAll(parseSearchPaths(options.get("net.olioinfo.eeproperties.runtime.additionalConfigurationPaths")));
+    public String awaitKey(String propertyName, long timeout, TimeUnit unit) throws InterruptedException {
+        String propertyValue = this.store.current().getProperty(propertyName);
+        if (propertyValue != null) {
+            return propertyValue;
         }
-
-        
-
+        CompletableFuture<String> waiter = new CompletableFuture<String>();
+        CompletableFuture<String> existing = this.keyWaiters.putIfAbsent(propertyName,waiter);
+        if (existing != null) {
+            waiter = existing;
+        }
+        // A generation published before the waiter was registered won't complete it
+        propertyValue = this.store.current().getProperty(propertyName);
+        if (propertyValue != null) {
+            this.keyWaiters.remove(propertyName,waiter);
+            waiter.complete(propertyValue);
+            return propertyValue;
+        }
+        try {
+            return waiter.get(timeout,unit);
+        }
+        catch (TimeoutException e) {
+            return null;
+        }
+        catch (ExecutionException e) {
+            // Waiters are only ever completed normally
+            throw new IllegalStateException(e.getCause());
+        }
+    }
+
+    /**
+     * Complete the waiters for keys that a generation defines
+     *
+     * @param generation Newly published generation
+     */
+    private void completeKeyWaiters(EEPropertiesLayeredStore.Generation generation) {
+        for (Map.Entry<String,CompletableFuture<String>> waiter : this.keyWaiters.entrySet()) {
+            String propertyValue = generation.getProperty(waiter.getKey());
+            if (propertyValue != null && this.keyWaiters.remove(waiter.getKey(),waiter.getValue())) {
+                waiter.getValue().complete(propertyValue);
+            }
+        }
+    }
+
+    /**
+     * Load the configuration files associated with the (root of the) specified package only.
+     *
+     *
+     * @param klass Load the configuration associated with the specified class
+     * @param options Hash of options
+     */
+    public void loadPackageConfiguration(Class klass,HashMap<String,String> options) {
+        // Held across choosing the environment and loading, so a concurrent switch can't interleave
+        this.environmentLock.readLock().lock();
+        try {
+            ArrayList<String> names = new ArrayList<String>();
+            names.add("defaults");
+            names.add(this.runtimeEnvironment);
+            HashMap<String,String> combinedOptions = new HashMap<String,String>();
+            combinedOptions.put("net.olioinfo.eeproperties.configurationFile.prefix",null);
+            combinedOptions.put("net.olioinfo.eeproperties.configurationFile.suffix","-ee");
+            combinedOptions.put("net.olioinfo.eeproperties.configurationFile.extension","properties");
+            if (options != null) combinedOptions.putAll(options);
+
+            loadAndMergeConfigurations(names,klass,null,combinedOptions);
+        }
+        finally {
+            this.environmentLock.readLock().unlock();
+        }
+    }
+
+    /**
+     * @return Load locks for a new instance
+     */
+    private static ReentrantLock[] newLoadStripes() {
+        ReentrantLock[] stripes = new ReentrantLock[EEProperties.LOAD_STRIPES];
+        for (int i = 0 ; i < stripes.length ; i++) {
+            stripes[i] = new ReentrantLock();
+        }
+        return stripes;
+    }
+
+    /**
+     * Get the lock serializing loads of a definition
+     *
+     * @param environmentNames Environment names
+     * @param klass Class locating the files
+     * @param options Options
+     * @return Lock for the definition
+     */
+    private ReentrantLock loadStripe(ArrayList<String> environmentNames, Class klass, HashMap<String,String> options) {
+        int hash = klass.getName().hashCode();
+        hash = 31 * hash + (environmentNames == null ? 0 : environmentNames.hashCode());
+        hash = 31 * hash + (options == null ? 0 : options.hashCode());
+        hash ^= hash >>> 16;
+        return this.loadStripes[hash & (EEProperties.LOAD_STRIPES - 1)];
+    }
+
+
+    /**
+     * Load and merge configurations based on environment names, class location and other options
+     *
+     * <p>Environment names are a list of environment names, usually from the list [defaults,production,development,test[.
+     * File names will be constructed, and the files searched for and loaded if present in the order specified.</p>
+     *
+     * </p>The klass parameter specifies the klass used as the locator for the file within the search paths already configured.</p>
+     *
+     * <p>The properties object contains any configuration options already loaded. If null, the files are merged
+     * into this instance's layered store: files found in the additional configuration paths go to the external layer,
+     * the first environment's file to the defaults layer and the others to the environment layer. All changes are
+     * published together once every file has been read.</p>
+     *
+     * <p>Options are optional and can specify rules for forming the name of the properties file. Options are:</p>
+     * <ul>
+     * <li>net.olioinfo.eeproperties.configurationFile.prefix</li>
+     * <li>net.olioinfo.eeproperties.configurationFile.suffix</li>
+     * <li>net.olioinfo.eeproperties.configurationFile.extension</li>
+     * </ul>
+     *
+     * <p>The format of the file name for the properties flle is '[prefix][environment][suffix].[extension]'.
+     * If any element is absent or null it is skipped when constructing the name.</p>
+     *
+     *
+     * <p>Loads of the same definition are serialized. Loads of different definitions read their files
+     * concurrently and only serialize the final merge into the store.</p>
+     *
+     * @param environmentNames
+     * @param klass
+     * @param properties
+     * @param options
+     */
+    public void loadAndMergeConfigurations(ArrayList<String> environmentNames,Class klass, Properties properties,HashMap<String,String> options) {
+        ReentrantLock stripe = loadStripe(environmentNames,klass,options);
+        this.environmentLock.readLock().lock();
+        stripe.lock();
+        List<EEPropertiesConfigSource> loadScopedSources = beginSourceLoad();
+        try {
+            loadAndMergeConfigurationsLocked(environmentNames,klass,properties,options);
+        }
+        finally {
+            endSourceLoad(loadScopedSources);
+            stripe.unlock();
+            this.environmentLock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Load and merge configurations while holding the definition's load lock
+     *
+     * @param environmentNames
+     * @param klass
+     * @param properties
+     * @param options
+     */
+    private void loadAndMergeConfigurationsLocked(ArrayList<String> environmentNames,Class klass, Properties properties,HashMap<String,String> options) {
+
+    	EEPropertiesLoadDefinition.createAndRegisterLoadDefinition(environmentNames, klass, properties, options);
+    	
+        //Check for addtional search paths in the options
+        if (options != null && options.containsKey("net.olioinfo.eeproperties.runtime.additionalConfigurationPaths")) {
+            this.searchPathsList.addAll(parseSearchPaths(options.get("net.olioinfo.eeproperties.runtime.additionalConfigurationPaths")));
+        }
+
+        
+
+        long definitionStart = System.nanoTime();
+
+        // Files for the store are staged per layer so that no I/O happens while publishing
+        EnumMap<EEPropertiesLayeredStore.Layer,Properties> staged = new EnumMap<EEPropertiesLayeredStore.Layer,Properties>(EEPropertiesLayeredStore.Layer.class);
+        for (int i = 0 ; i < environmentNames.size() ; i++) {
+            String environmentFileName = configurationFileName(environmentNames.get(i),options);
+            logger.debug(String.format("EEProperties.loadAndMergeConfigurations checking for file %s.",environmentFileName));
+            if (properties != null) {
+                loadPropertiesFromSources(properties,environmentFileName,klass,false);
+            }
+            else {
+                stageFile(staged,environmentFileName,klass,i == 0,false);
+            }
+        }
+        if (properties == null) {
+            recordStoreDefinition(environmentNames,klass,options);
+        }
+
+        // Drop-in files go on top of the definition's own files
+        if (properties != null) {
+            loadDirectorySources(properties,klass);
+        }
+        else {
+            Properties externalProperties = staged.containsKey(EEPropertiesLayeredStore.Layer.EXTERNAL)
+                ? staged.get(EEPropertiesLayeredStore.Layer.EXTERNAL) : new Properties();
+            if (loadDirectorySources(externalProperties,klass)) {
+                staged.put(EEPropertiesLayeredStore.Layer.EXTERNAL,externalProperties);
+            }
+        }
+
+        int keys;
+        if (properties != null) {
+            long phaseStart = System.nanoTime();
+            properties = EEProperties.substituteAll(properties,this.metrics,this.logger);
+            if (this.loadProfiler != null) {
+                this.loadProfiler.record(EEPropertiesLoadProfiler.PHASE_SUBSTITUTE_ALL,klass.getName(),null,phaseStart,-1,properties.size());
+                phaseStart = System.nanoTime();
+            }
+            convertToObjectInstances(properties);
+            if (this.loadProfiler != null) {
+                this.loadProfiler.record(EEPropertiesLoadProfiler.PHASE_CONVERT_TO_OBJECT_INSTANCES,klass.getName(),null,phaseStart,-1,properties.size());
+            }
+            keys = properties.size();
+        }
+        else {
+            keys = publish(staged,klass.getName());
+        }
+        if (this.loadProfiler != null) {
+            this.loadProfiler.record(EEPropertiesLoadProfiler.PHASE_LOAD_DEFINITION,klass.getName(),environmentNames.toString(),definitionStart,-1,keys);
+        }
+
+
+    }
+
+    /**
+     * Build the name of a configuration file, '[prefix][environment][suffix].[extension]'
+     *
+     * @param environmentName Environment name
+     * @param options Options giving the prefix, suffix and extension
+     * @return File name
+     */
+    private static String configurationFileName(String environmentName, HashMap<String,String> options) {
         String prefix = options.containsKey("net.olioinfo.eeproperties.configurationFile.prefix") ? options.get("net.olioinfo.eeproperties.configurationFile.prefix") : null;
         String suffix = options.containsKey("net.olioinfo.eeproperties.configurationFile.suffix") ? options.get("net.olioinfo.eeproperties.configurationFile.suffix") : null;
         String extension = options.containsKey("net.olioinfo.eeproperties.configurationFile.extension") ? options.get("net.olioinfo.eeproperties.configurationFile.extension") : null;
+        StringBuilder environmentFileName = new StringBuilder();
+        if (prefix != null ) environmentFileName.append(prefix);
+        if (environmentName != null ) environmentFileName.append(environmentName);
+        if (suffix != null) environmentFileName.append(suffix);
+        if (extension != null) environmentFileName.append(".").append(extension);
+        return environmentFileName.toString();
+    }
 
-        for (String environmentName : environmentNames ) {
-            StringBuffer environmentFileNameBuf = new StringBuffer();
-            if (prefix != null ) environmentFileNameBuf.append(prefix);
-            if (environmentName != null ) environmentFileNameBuf.append(environmentName);
-            if (suffix != null) environmentFileNameBuf.append(suffix);
-            if (extension != null) environmentFileNameBuf.append(".").append(extension);
-            String environmentFileName = environmentFileNameBuf.toString();
-            logger.debug(String.format("EEProperties.loadAndMergeConfigurations checking for file %s.",environmentFileName));
-            loadPropertiesFromLocationsOrClass(properties,this.searchPathsList,environmentFileName,klass);
+    /**
+     * Read a configuration file into the layer it belongs to: the external layer if it comes from an external
+     * source, otherwise the defaults layer for the first environment's file and the environment layer for the others
+     *
+     * @param staged Files read so far, by layer
+     * @param fileName File name
+     * @param klass Class of the load definition
+     * @param defaultsFile true for the first environment's file
+     * @param externalOnly true to skip the file if it would go to the defaults or environment layer
+     */
+    private void stageFile(EnumMap<EEPropertiesLayeredStore.Layer,Properties> staged, String fileName, Class klass,
+                           boolean defaultsFile, boolean externalOnly) {
+        Properties fileProperties = new Properties();
+        EEPropertiesConfigSource source = loadPropertiesFromSources(fileProperties,fileName,klass,externalOnly);
+        if (source != null) {
+            EEPropertiesLayeredStore.Layer layer = source.isExternal() ? EEPropertiesLayeredStore.Layer.EXTERNAL
+                : (defaultsFile ? EEPropertiesLayeredStore.Layer.DEFAULTS : EEPropertiesLayeredStore.Layer.ENVIRONMENT);
+            if (! staged.containsKey(layer)) {
+                staged.put(layer,new Properties());
+            }
+            addAll(staged.get(layer),fileProperties);
+        }
+    }
+
+    /**
+     * Remember a definition loaded into the store, for switchEnvironment
+     *
+     * @param environmentNames Environment names
+     * @param klass Class
+     * @param options Options
+     */
+    private void recordStoreDefinition(ArrayList<String> environmentNames, Class klass, HashMap<String,String> options) {
+        EEPropertiesLoadDefinition definition = new EEPropertiesLoadDefinition();
+        definition.setEnvironmentNames(new ArrayList<String>(environmentNames));
+        definition.setClassContext(klass);
+        definition.setOptions(options == null ? new HashMap<String,String>() : new HashMap<String,String>(options));
+        this.definitionsLock.lock();
+        try {
+            if (! this.storeDefinitions.containsKey(definition.toString())) {
+                this.storeDefinitions.put(definition.toString(),definition);
+            }
+        }
+        finally {
+            this.definitionsLock.unlock();
+        }
+    }
+
+    /**
+     * Switch the runtime environment, e.g. from 'development' to 'test'
+     *
+     * <p>Every definition loaded into the store has its files for the current environment replaced by those for the
+     * new one. The defaults files already parsed are kept: only the new environment's files, external files and
+     * drop-in files are read. Variables are substituted again in the keys that changed and in the defaults that
+     * contain variables, and the result is published as one new generation. Loads wait until the switch is
+     * complete.</p>
+     *
+     * <p>Definitions loaded into a Properties object passed to loadAndMergeConfigurations are not affected.</p>
+     *
+     * @param environment New runtime environment
+     * @since 2.10
+     */
+    public void switchEnvironment(String environment) {
+        this.environmentLock.writeLock().lock();
+        List<EEPropertiesConfigSource> loadScopedSources = beginSourceLoad();
+        try {
+            switchEnvironmentLocked(environment);
+        }
+        finally {
+            endSourceLoad(loadScopedSources);
+            this.environmentLock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Switch the runtime environment (singleton instance)
+     *
+     * See the documentation for switchEnvironment
+     *
+     * @param environment New runtime environment
+     * @since 2.10
+     */
+    public static void sSwitchEnvironment(String environment) {
+        EEProperties.singleton();
+        EEProperties.SINGLETON_LOCK.readLock().lock();
+        try {
+            EEProperties.singletonInstance.switchEnvironment(environment);
+        }
+        finally {
+            EEProperties.SINGLETON_LOCK.readLock().unlock();
+        }
+    }
+
+    /**
+     * Switch the runtime environment while holding the environment write lock
+     *
+     * @param environment New runtime environment
+     */
+    private void switchEnvironmentLocked(String environment) {
+        long switchStart = System.nanoTime();
+        String previousEnvironment = this.runtimeEnvironment;
+        ArrayList<EEPropertiesLoadDefinition> definitions;
+        this.definitionsLock.lock();
+        try {
+            definitions = new ArrayList<EEPropertiesLoadDefinition>(this.storeDefinitions.values());
+        }
+        finally {
+            this.definitionsLock.unlock();
+        }
+
+        // The environment and external layers are rebuilt from the files; the defaults layer is kept
+        EnumMap<EEPropertiesLayeredStore.Layer,Properties> staged = new EnumMap<EEPropertiesLayeredStore.Layer,Properties>(EEPropertiesLayeredStore.Layer.class);
+        LinkedHashMap<String,EEPropertiesLoadDefinition> switchedDefinitions = new LinkedHashMap<String,EEPropertiesLoadDefinition>();
+        Class lastClass = null;
+        for (EEPropertiesLoadDefinition definition : definitions) {
+            ArrayList<String> environmentNames = EEProperties.switchEnvironmentNames(definition.getEnvironmentNames(),previousEnvironment,environment);
+            for (int i = 0 ; i < environmentNames.size() ; i++) {
+                stageFile(staged,configurationFileName(environmentNames.get(i),definition.getOptions()),definition.getClassContext(),i == 0,i == 0);
+            }
+            definition.setEnvironmentNames(environmentNames);
+            switchedDefinitions.put(definition.toString(),definition);
+            lastClass = definition.getClassContext();
+        }
+        if (lastClass != null) {
+            Properties externalProperties = staged.containsKey(EEPropertiesLayeredStore.Layer.EXTERNAL)
+                ? staged.get(EEPropertiesLayeredStore.Layer.EXTERNAL) : new Properties();
+            if (loadDirectorySources(externalProperties,lastClass)) {
+                staged.put(EEPropertiesLayeredStore.Layer.EXTERNAL,externalProperties);
+            }
+        }
+
+        publishEnvironment(staged,environment);
+        this.runtimeEnvironment = environment;
+        this.bootstrapProperties.setProperty("net.olioinfo.eeproperties.runtime.environment",environment);
+        this.environmentSwitched = true;
+        this.definitionsLock.lock();
+        try {
+            this.storeDefinitions = switchedDefinitions;
+        }
+        finally {
+            this.definitionsLock.unlock();
         }
-        //TODO Substitution needs to happen after all files are loaded
-        properties = EEProperties.substituteAll(properties);
-        convertToObjectInstances(properties);
 
+        // Later reloads of the singleton load the new environment's files
+        if (this == EEProperties.singletonInstance) {
+            for (EEPropertiesLoadDefinition definition : EEPropertiesLoadDefinition.getRegisteredDefinitionsCopy()) {
+                if (definition.getProperties() == null) {
+                    definition.setEnvironmentNames(EEProperties.switchEnvironmentNames(definition.getEnvironmentNames(),previousEnvironment,environment));
+                }
+            }
+        }
+        this.logger.info(String.format("EEProperties.switchEnvironment switched from %s to %s in %d ms",
+            previousEnvironment,environment,TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - switchStart)));
+    }
 
+    /**
+     * Replace an environment in a definition's environment names. The first name, the defaults, is never replaced.
+     *
+     * @param environmentNames Environment names
+     * @param previousEnvironment Environment to replace
+     * @param environment New environment
+     * @return New list of environment names
+     */
+    private static ArrayList<String> switchEnvironmentNames(ArrayList<String> environmentNames, String previousEnvironment, String environment) {
+        ArrayList<String> switched = new ArrayList<String>(environmentNames);
+        for (int i = 1 ; i < switched.size() ; i++) {
+            if (previousEnvironment.equals(switched.get(i))) {
+                switched.set(i,environment);
+            }
+        }
+        return switched;
     }
 
     /**
@@ -499,9 +1447,121 @@ public class EEProperties {
      *
      * @param printStream PrintStream to output properties to
      */
-    public void listProperties(PrintStream printStream) {
-        for (String propertyName : this.coreProperties.stringPropertyNames()) {
-            printStream.println(String.format("%s=%s",propertyName, this.coreProperties.getProperty(propertyName)));
+    public void listProperties(final PrintStream printStream) {
+        final String lineSeparator = System.getProperty("line.separator");
+        final StringBuilder lines = new StringBuilder(8192);
+        this.store.current().forEach(new BiConsumer<String,String>() {
+            public void accept(String propertyName, String propertyValue) {
+                lines.append(propertyName).append('=').append(propertyValue).append(lineSeparator);
+                if (lines.length() >= 8192) {
+                    printStream.print(lines);
+                    lines.setLength(0);
+                }
+            }
+        });
+        printStream.print(lines);
+        printStream.flush();
+    }
+
+    /**
+     * Apply an action to every property (singleton version)
+     *
+     * @param action Action applied to each property name and value
+     * @since 2.10
+     */
+    public static void sForEach(BiConsumer<String,String> action) {
+        EEProperties.singleton().forEach(action);
+    }
+
+    /**
+     * Apply an action to every property
+     *
+     * <p>Visits a snapshot: loads during the call are not seen. Nothing is copied, so this is the cheapest way to
+     * walk a large configuration.</p>
+     *
+     * @param action Action applied to each property name and value, in no particular order
+     * @since 2.10
+     */
+    public void forEach(BiConsumer<String,String> action) {
+        this.store.current().forEach(action);
+    }
+
+    /**
+     * Iterate over every property (singleton version)
+     *
+     * @return Iterator over property names and values
+     * @since 2.10
+     */
+    public static Iterator<Map.Entry<String,String>> sPropertyIterator() {
+        return EEProperties.singleton().propertyIterator();
+    }
+
+    /**
+     * Iterate over every property
+     *
+     * <p>Like forEach, the iterator walks a snapshot without copying it first. It does not support remove.</p>
+     *
+     * @return Iterator over property names and values, in no particular order
+     * @since 2.10
+     */
+    public Iterator<Map.Entry<String,String>> propertyIterator() {
+        return this.store.current().iterator();
+    }
+
+    /**
+     * Write every property to a channel (singleton version)
+     *
+     * @param channel Destination. Not closed
+     * @param format Output format
+     * @throws IOException if writing fails
+     * @since 2.10
+     */
+    public static void sDumpProperties(WritableByteChannel channel, DumpFormat format) throws IOException {
+        EEProperties.singleton().dumpProperties(channel,format);
+    }
+
+    /**
+     * Write every property to a channel
+     *
+     * <p>Writes a snapshot through a single reusable buffer, without formatting or allocating per property, so
+     * this is much faster than listProperties for large configurations.</p>
+     *
+     * @param channel Destination. Not closed
+     * @param format Output format
+     * @throws IOException if writing fails
+     * @since 2.10
+     */
+    public void dumpProperties(WritableByteChannel channel, DumpFormat format) throws IOException {
+        EEPropertiesDumper.dump(this.store.current(),channel,format);
+    }
+
+    /**
+     * Write every property to a file, replacing it if it exists (singleton version)
+     *
+     * @param path File to write
+     * @param format Output format
+     * @throws IOException if writing fails
+     * @since 2.10
+     */
+    public static void sDumpProperties(Path path, DumpFormat format) throws IOException {
+        EEProperties.singleton().dumpProperties(path,format);
+    }
+
+    /**
+     * Write every property to a file, replacing it if it exists
+     *
+     * @param path File to write
+     * @param format Output format
+     * @throws IOException if writing fails
+     * @since 2.10
+     */
+    public void dumpProperties(Path path, DumpFormat format) throws IOException {
+        FileChannel channel = FileChannel.open(path,StandardOpenOption.CREATE,StandardOpenOption.TRUNCATE_EXISTING,StandardOpenOption.WRITE);
+        try {
+            dumpProperties(channel,format);
+        }
+        finally {
+            channel.close();
         }
     }
 
@@ -530,18 +1590,7 @@ public class EEProperties {
      * @since 2.8
      */
     public ArrayList<String> propertyNames() {
-        ArrayList<String> propertyNames = new ArrayList<String>();
-        for (Object key : this.coreProperties.keySet()) {
-            try {
-                String propertyName = (String) key;
-                propertyNames.add(propertyName);
-            }
-            catch (Exception ex) {
-                // Do nothing - just skip
-
-            }
-        }
-        return propertyNames;
+        return this.store.current().propertyNames();
     }
 
     /**
@@ -561,7 +1610,14 @@ public class EEProperties {
      * @return Property value or null if not found
      */
     public String getProperty(String propertyName) {
-        return this.coreProperties.getProperty(propertyName);
+        String propertyValue = this.store.current().getProperty(propertyName);
+        if (this.metrics != null) {
+            this.metrics.recordLookup(propertyName,propertyValue != null);
+        }
+        if (this.accessProfiler != null) {
+            this.accessProfiler.recordAccess(propertyName);
+        }
+        return propertyValue;
     }
 
     /**
@@ -583,7 +1639,72 @@ public class EEProperties {
      * @return Property value or null if not found
      */
     public String getProperty(String propertyName, String defaultValue) {
-        return this.coreProperties.getProperty(propertyName,defaultValue);
+        String propertyValue = getProperty(propertyName);
+        return propertyValue == null ? defaultValue : propertyValue;
+    }
+
+    /**
+     * Get several property settings from one generation (for the singleton class)
+     *
+     * @param propertyNames Property Names to retrieve
+     * @return Property values, in the same order, null where not found
+     * @since 2.10
+     */
+    public static String[] sGetProperties(String... propertyNames) {
+        return EEProperties.singleton().getProperties(propertyNames);
+    }
+
+    /**
+     * Get several property settings from one generation
+     *
+     * @param propertyNames Property Names to retrieve
+     * @return Property values, in the same order, null where not found
+     * @since 2.10
+     */
+    public String[] getProperties(String... propertyNames) {
+        return getProperties(propertyNames,new String[propertyNames.length]);
+    }
+
+    /**
+     * Get several property settings from one generation into an existing array (for the singleton class)
+     *
+     * @param propertyNames Property Names to retrieve
+     * @param propertyValues Array to fill, at least as long as propertyNames
+     * @return propertyValues
+     * @since 2.10
+     */
+    public static String[] sGetProperties(String[] propertyNames, String[] propertyValues) {
+        return EEProperties.singleton().getProperties(propertyNames,propertyValues);
+    }
+
+    /**
+     * Get several property settings from one generation into an existing array
+     *
+     * <p>All the values come from the same generation, so a load or reload that happens during the call is either
+     * entirely visible or not at all. Nothing is allocated, so the arrays can be reused across calls.</p>
+     *
+     * @param propertyNames Property Names to retrieve
+     * @param propertyValues Array to fill, at least as long as propertyNames. Null where not found
+     * @return propertyValues
+     * @throws IllegalArgumentException if propertyValues is shorter than propertyNames
+     * @since 2.10
+     */
+    public String[] getProperties(String[] propertyNames, String[] propertyValues) {
+        if (propertyValues.length < propertyNames.length) {
+            throw new IllegalArgumentException(String.format("EEProperties.getProperties needs room for %d values, not %d",propertyNames.length,propertyValues.length));
+        }
+        EEPropertiesLayeredStore.Generation generation = this.store.current();
+        for (int i = 0 ; i < propertyNames.length ; i++) {
+            String propertyValue = generation.getProperty(propertyNames[i]);
+            if (this.metrics != null) {
+                this.metrics.recordLookup(propertyNames[i],propertyValue != null);
+            }
+            if (this.accessProfiler != null) {
+                this.accessProfiler.recordAccess(propertyNames[i]);
+            }
+            propertyValues[i] = propertyValue;
+        }
+        return propertyValues;
     }
 
 
@@ -606,8 +1727,14 @@ public class EEProperties {
      *
      */
     public void put(String propertyName, String propertyValue) {
-        this.coreProperties.put(propertyName,propertyValue);
-        setTypedPropertyValueAndType(propertyName,propertyValue,"String");
+        final String canonicalName = canonicalize(propertyName);
+        final String canonicalValue = canonicalize(propertyValue);
+        this.store.update(new Consumer<EEPropertiesLayeredStore.Editor>() {
+            public void accept(EEPropertiesLayeredStore.Editor editor) {
+                editor.put(EEPropertiesLayeredStore.Layer.RUNTIME,canonicalName,canonicalValue);
+                editor.putTyped(canonicalName,new EEPropertiesTypedValue("String",canonicalValue));
+            }
+        });
     }
 
     /**
@@ -928,7 +2055,8 @@ public class EEProperties {
      * @return Property value or null if not found
      */
     public Date getDateProperty(String propertyName) {
-        return (Date) getTypedPropertyValue(propertyName);
+        Object propertyValue = getTypedPropertyValue(propertyName);
+        return propertyValue instanceof Date ? (Date) propertyValue : null;
     }
 
 
@@ -951,7 +2079,139 @@ public class EEProperties {
      *
      */
     public void putDate(String propertyName, Date propertyValue) {
-        setTypedPropertyValueAndType(propertyName,propertyValue,"Date");
+        setTypedPropertyValueAndType(propertyName,propertyValue == null ? null : propertyValue.toInstant(),"Date");
+    }
+
+    /**
+     * Get an Instant property setting  (for the singleton class)
+     *
+     * @param propertyName Property Name to retrieve
+     * @return Property value or null if not found
+     * @since 2.10
+     */
+    public static Instant sGetInstantProperty(String propertyName) {
+        return EEProperties.singleton().getInstantProperty(propertyName);
+    }
+
+    /**
+     * Get an Instant property setting
+     *
+     * @param propertyName Property Name to retrieve
+     * @return Property value or null if not found
+     * @since 2.10
+     */
+    public Instant getInstantProperty(String propertyName) {
+        return (Instant) getTypedPropertyValue(propertyName);
+    }
+
+    /**
+     * Put an Instant property (for the singleton class)
+     *
+     * @param propertyName Property Name to set
+     * @param propertyValue Value for property
+     * @since 2.10
+     */
+    public static void sPutInstant(String propertyName, Instant propertyValue) {
+        EEProperties.singleton().putInstant(propertyName,propertyValue);
+    }
+
+    /**
+     * Put an Instant property
+     *
+     * @param propertyName Property Name to set
+     * @param propertyValue Value for property
+     * @since 2.10
+     */
+    public void putInstant(String propertyName, Instant propertyValue) {
+        setTypedPropertyValueAndType(propertyName,propertyValue,"Instant");
+    }
+
+    /**
+     * Get a LocalDate property setting  (for the singleton class)
+     *
+     * @param propertyName Property Name to retrieve
+     * @return Property value or null if not found
+     * @since 2.10
+     */
+    public static LocalDate sGetLocalDateProperty(String propertyName) {
+        return EEProperties.singleton().getLocalDateProperty(propertyName);
+    }
+
+    /**
+     * Get a LocalDate property setting
+     *
+     * @param propertyName Property Name to retrieve
+     * @return Property value or null if not found
+     * @since 2.10
+     */
+    public LocalDate getLocalDateProperty(String propertyName) {
+        return (LocalDate) getTypedPropertyValue(propertyName);
+    }
+
+    /**
+     * Put a LocalDate property (for the singleton class)
+     *
+     * @param propertyName Property Name to set
+     * @param propertyValue Value for property
+     * @since 2.10
+     */
+    public static void sPutLocalDate(String propertyName, LocalDate propertyValue) {
+        EEProperties.singleton().putLocalDate(propertyName,propertyValue);
+    }
+
+    /**
+     * Put a LocalDate property
+     *
+     * @param propertyName Property Name to set
+     * @param propertyValue Value for property
+     * @since 2.10
+     */
+    public void putLocalDate(String propertyName, LocalDate propertyValue) {
+        setTypedPropertyValueAndType(propertyName,propertyValue,"LocalDate");
+    }
+
+    /**
+     * Get an OffsetDateTime property setting  (for the singleton class)
+     *
+     * @param propertyName Property Name to retrieve
+     * @return Property value or null if not found
+     * @since 2.10
+     */
+    public static OffsetDateTime sGetOffsetDateTimeProperty(String propertyName) {
+        return EEProperties.singleton().getOffsetDateTimeProperty(propertyName);
+    }
+
+    /**
+     * Get an OffsetDateTime property setting
+     *
+     * @param propertyName Property Name to retrieve
+     * @return Property value or null if not found
+     * @since 2.10
+     */
+    public OffsetDateTime getOffsetDateTimeProperty(String propertyName) {
+        return (OffsetDateTime) getTypedPropertyValue(propertyName);
+    }
+
+    /**
+     * Put an OffsetDateTime property (for the singleton class)
+     *
+     * @param propertyName Property Name to set
+     * @param propertyValue Value for property
+     * @since 2.10
+     */
+    public static void sPutOffsetDateTime(String propertyName, OffsetDateTime propertyValue) {
+        EEProperties.singleton().putOffsetDateTime(propertyName,propertyValue);
+    }
+
+    /**
+     * Put an OffsetDateTime property
+     *
+     * @param propertyName Property Name to set
+     * @param propertyValue Value for property
+     * @since 2.10
+     */
+    public void putOffsetDateTime(String propertyName, OffsetDateTime propertyValue) {
+        setTypedPropertyValueAndType(propertyName,propertyValue,"OffsetDateTime");
     }
 
     /**
@@ -971,7 +2231,8 @@ public class EEProperties {
      * @return Property value or null if not found
      */
     public ArrayList<String> getArrayListStringProperty(String propertyName) {
-        return (ArrayList<String>) getTypedPropertyValue(propertyName);
+        ArrayList<String> propertyValue = (ArrayList<String>) getTypedPropertyValue(propertyName);
+        return propertyValue == null ? null : new ArrayList<String>(propertyValue);
     }
 
 
@@ -982,197 +2243,1417 @@ public class EEProperties {
      * @param propertyValue Value for property
      *
      */
-    public static void sPutArrayListString(String propertyName, ArrayList<String> propertyValue) {
-        EEProperties.singleton().putArrayListString(propertyName,propertyValue);
+    public static void sPutArrayListString(String propertyName, ArrayList<String> propertyValue) {
+        EEProperties.singleton().putArrayListString(propertyName,propertyValue);
+    }
+
+    /**
+     * Put an ArrayList<String> property
+     *
+     * @param propertyName Property Name to set
+     * @param propertyValue Value for property
+     *
+     */
+    public void putArrayListString(String propertyName, ArrayList<String> propertyValue) {
+        setTypedPropertyValueAndType(propertyName,propertyValue == null ? null : new ArrayList<String>(propertyValue),"ArrayList<String>");
+    }
+
+
+    /**
+     * Get an ArrayList<Integer> property setting  (for the singleton class)
+     *
+     * @param propertyName Property Name to retrieve
+     * @return Property value or null if not found
+     */
+    public static ArrayList<Integer> sGetArrayListIntegerProperty(String propertyName) {
+        return EEProperties.singleton().getArrayListIntegerProperty(propertyName);
+    }
+
+    /**
+     * Get an ArrayList<Integer> property setting
+     *
+     * @param propertyName Property Name to retrieve
+     * @return Property value or null if not found
+     */
+    public ArrayList<Integer> getArrayListIntegerProperty(String propertyName) {
+        ArrayList<Integer> propertyValue = (ArrayList<Integer>) getTypedPropertyValue(propertyName);
+        return propertyValue == null ? null : new ArrayList<Integer>(propertyValue);
+    }
+
+
+    /**
+     * Put an ArrayList<Integer> property (for the singleton class)
+     *
+     * @param propertyName Property Name to set
+     * @param propertyValue Value for property
+     *
+     */
+    public static void sPutArrayListInteger(String propertyName, ArrayList<Integer> propertyValue) {
+        EEProperties.singleton().putArrayListInteger(propertyName,propertyValue);
+    }
+
+    /**
+     * Put an ArrayList<Integer property
+     *
+     * @param propertyName Property Name to set
+     * @param propertyValue Value for property
+     *
+     */
+    public void putArrayListInteger(String propertyName, ArrayList<Integer> propertyValue) {
+        setTypedPropertyValueAndType(propertyName,propertyValue == null ? null : new ArrayList<Integer>(propertyValue),"ArrayList<Integer>");
+    }
+
+    /**
+     * Get an int[] property setting  (for the singleton class)
+     *
+     * @param propertyName Property Name to retrieve
+     * @return Read-only view of the property value or null if not found
+     * @since 2.10
+     */
+    public static IntBuffer sGetIntArrayProperty(String propertyName) {
+        return EEProperties.singleton().getIntArrayProperty(propertyName);
+    }
+
+    /**
+     * Get an int[] property setting
+     *
+     * @param propertyName Property Name to retrieve
+     * @return Read-only view of the property value or null if not found
+     * @since 2.10
+     */
+    public IntBuffer getIntArrayProperty(String propertyName) {
+        IntBuffer propertyValue = (IntBuffer) getTypedPropertyValue(propertyName);
+        return propertyValue == null ? null : propertyValue.duplicate();
+    }
+
+    /**
+     * Put an int[] property (for the singleton class)
+     *
+     * @param propertyName Property Name to set
+     * @param propertyValue Value for property. The array is copied
+     * @since 2.10
+     */
+    public static void sPutIntArray(String propertyName, int[] propertyValue) {
+        EEProperties.singleton().putIntArray(propertyName,propertyValue);
+    }
+
+    /**
+     * Put an int[] property
+     *
+     * @param propertyName Property Name to set
+     * @param propertyValue Value for property. The array is copied
+     * @since 2.10
+     */
+    public void putIntArray(String propertyName, int[] propertyValue) {
+        setTypedPropertyValueAndType(propertyName,propertyValue == null ? null : IntBuffer.wrap(propertyValue.clone()).asReadOnlyBuffer(),"int[]");
+    }
+
+    /**
+     * Get a long[] property setting  (for the singleton class)
+     *
+     * @param propertyName Property Name to retrieve
+     * @return Read-only view of the property value or null if not found
+     * @since 2.10
+     */
+    public static LongBuffer sGetLongArrayProperty(String propertyName) {
+        return EEProperties.singleton().getLongArrayProperty(propertyName);
+    }
+
+    /**
+     * Get a long[] property setting
+     *
+     * @param propertyName Property Name to retrieve
+     * @return Read-only view of the property value or null if not found
+     * @since 2.10
+     */
+    public LongBuffer getLongArrayProperty(String propertyName) {
+        LongBuffer propertyValue = (LongBuffer) getTypedPropertyValue(propertyName);
+        return propertyValue == null ? null : propertyValue.duplicate();
+    }
+
+    /**
+     * Put a long[] property (for the singleton class)
+     *
+     * @param propertyName Property Name to set
+     * @param propertyValue Value for property. The array is copied
+     * @since 2.10
+     */
+    public static void sPutLongArray(String propertyName, long[] propertyValue) {
+        EEProperties.singleton().putLongArray(propertyName,propertyValue);
+    }
+
+    /**
+     * Put a long[] property
+     *
+     * @param propertyName Property Name to set
+     * @param propertyValue Value for property. The array is copied
+     * @since 2.10
+     */
+    public void putLongArray(String propertyName, long[] propertyValue) {
+        setTypedPropertyValueAndType(propertyName,propertyValue == null ? null : LongBuffer.wrap(propertyValue.clone()).asReadOnlyBuffer(),"long[]");
+    }
+
+    /**
+     * Get a double[] property setting  (for the singleton class)
+     *
+     * @param propertyName Property Name to retrieve
+     * @return Read-only view of the property value or null if not found
+     * @since 2.10
+     */
+    public static DoubleBuffer sGetDoubleArrayProperty(String propertyName) {
+        return EEProperties.singleton().getDoubleArrayProperty(propertyName);
+    }
+
+    /**
+     * Get a double[] property setting
+     *
+     * @param propertyName Property Name to retrieve
+     * @return Read-only view of the property value or null if not found
+     * @since 2.10
+     */
+    public DoubleBuffer getDoubleArrayProperty(String propertyName) {
+        DoubleBuffer propertyValue = (DoubleBuffer) getTypedPropertyValue(propertyName);
+        return propertyValue == null ? null : propertyValue.duplicate();
+    }
+
+    /**
+     * Put a double[] property (for the singleton class)
+     *
+     * @param propertyName Property Name to set
+     * @param propertyValue Value for property. The array is copied
+     * @since 2.10
+     */
+    public static void sPutDoubleArray(String propertyName, double[] propertyValue) {
+        EEProperties.singleton().putDoubleArray(propertyName,propertyValue);
+    }
+
+    /**
+     * Put a double[] property
+     *
+     * @param propertyName Property Name to set
+     * @param propertyValue Value for property. The array is copied
+     * @since 2.10
+     */
+    public void putDoubleArray(String propertyName, double[] propertyValue) {
+        setTypedPropertyValueAndType(propertyName,propertyValue == null ? null : DoubleBuffer.wrap(propertyValue.clone()).asReadOnlyBuffer(),"double[]");
+    }
+
+    /**
+     * Get an ImmutableList<String> property setting  (for the singleton class)
+     *
+     * @param propertyName Property Name to retrieve
+     * @return Unmodifiable list or null if not found
+     * @since 2.10
+     */
+    public static List<String> sGetImmutableListStringProperty(String propertyName) {
+        return EEProperties.singleton().getImmutableListStringProperty(propertyName);
+    }
+
+    /**
+     * Get an ImmutableList<String> property setting
+     *
+     * @param propertyName Property Name to retrieve
+     * @return Unmodifiable list or null if not found
+     * @since 2.10
+     */
+    public List<String> getImmutableListStringProperty(String propertyName) {
+        return (List<String>) getTypedPropertyValue(propertyName);
+    }
+
+    /**
+     * Put an ImmutableList<String> property (for the singleton class)
+     *
+     * @param propertyName Property Name to set
+     * @param propertyValue Value for property. The list is copied
+     * @since 2.10
+     */
+    public static void sPutImmutableListString(String propertyName, List<String> propertyValue) {
+        EEProperties.singleton().putImmutableListString(propertyName,propertyValue);
+    }
+
+    /**
+     * Put an ImmutableList<String> property
+     *
+     * @param propertyName Property Name to set
+     * @param propertyValue Value for property. The list is copied
+     * @since 2.10
+     */
+    public void putImmutableListString(String propertyName, List<String> propertyValue) {
+        setTypedPropertyValueAndType(propertyName,propertyValue == null ? null
+            : Collections.unmodifiableList(Arrays.asList(propertyValue.toArray(new String[propertyValue.size()]))),"ImmutableList<String>");
+    }
+
+    /**
+     * Get a Duration property setting  (for the singleton class)
+     *
+     * @param propertyName Property Name to retrieve
+     * @return Property value or null if not found
+     * @since 2.10
+     */
+    public static Duration sGetDurationProperty(String propertyName) {
+        return EEProperties.singleton().getDurationProperty(propertyName);
+    }
+
+    /**
+     * Get a Duration property setting
+     *
+     * @param propertyName Property Name to retrieve
+     * @return Property value or null if not found
+     * @since 2.10
+     */
+    public Duration getDurationProperty(String propertyName) {
+        return (Duration) getTypedPropertyValue(propertyName);
+    }
+
+    /**
+     * Get a DataSize property setting  (for the singleton class)
+     *
+     * @param propertyName Property Name to retrieve
+     * @return Size in bytes or null if not found
+     * @since 2.10
+     */
+    public static Long sGetDataSizeProperty(String propertyName) {
+        return EEProperties.singleton().getDataSizeProperty(propertyName);
+    }
+
+    /**
+     * Get a DataSize property setting
+     *
+     * @param propertyName Property Name to retrieve
+     * @return Size in bytes or null if not found
+     * @since 2.10
+     */
+    public Long getDataSizeProperty(String propertyName) {
+        return (Long) getTypedPropertyValue(propertyName);
+    }
+
+    /**
+     * Get a URI property setting  (for the singleton class)
+     *
+     * @param propertyName Property Name to retrieve
+     * @return Property value or null if not found
+     * @since 2.10
+     */
+    public static URI sGetURIProperty(String propertyName) {
+        return EEProperties.singleton().getURIProperty(propertyName);
+    }
+
+    /**
+     * Get a URI property setting
+     *
+     * @param propertyName Property Name to retrieve
+     * @return Property value or null if not found
+     * @since 2.10
+     */
+    public URI getURIProperty(String propertyName) {
+        return (URI) getTypedPropertyValue(propertyName);
+    }
+
+    /**
+     * Get an InetSocketAddress property setting  (for the singleton class)
+     *
+     * @param propertyName Property Name to retrieve
+     * @return Unresolved address or null if not found
+     * @since 2.10
+     */
+    public static InetSocketAddress sGetInetSocketAddressProperty(String propertyName) {
+        return EEProperties.singleton().getInetSocketAddressProperty(propertyName);
+    }
+
+    /**
+     * Get an InetSocketAddress property setting
+     *
+     * @param propertyName Property Name to retrieve
+     * @return Unresolved address or null if not found
+     * @since 2.10
+     */
+    public InetSocketAddress getInetSocketAddressProperty(String propertyName) {
+        return (InetSocketAddress) getTypedPropertyValue(propertyName);
+    }
+
+    /**
+     * Get an Enum property setting  (for the singleton class)
+     *
+     * @param propertyName Property Name to retrieve
+     * @param enumClass Enum class
+     * @return Property value or null if not found or not a constant of enumClass
+     * @since 2.10
+     */
+    public static <E extends Enum<E>> E sGetEnumProperty(String propertyName, Class<E> enumClass) {
+        return EEProperties.singleton().getEnumProperty(propertyName,enumClass);
+    }
+
+    /**
+     * Get an Enum property setting
+     *
+     * @param propertyName Property Name to retrieve
+     * @param enumClass Enum class
+     * @return Property value or null if not found or not a constant of enumClass
+     * @since 2.10
+     */
+    public <E extends Enum<E>> E getEnumProperty(String propertyName, Class<E> enumClass) {
+        Object propertyValue = getTypedPropertyValue(propertyName);
+        return enumClass.isInstance(propertyValue) ? enumClass.cast(propertyValue) : null;
+    }
+
+    /**
+     * Bind a property prefix onto an interface or POJO (for the singleton class)
+     *
+     * @param prefix Key prefix, e.g. "com.mysite.db"
+     * @param type Interface, or class with a no-argument constructor
+     * @return Bound instance, kept up to date until the singleton is discarded
+     * @throws IllegalArgumentException if type has a member that can't be bound
+     * @since 2.10
+     */
+    public static <T> T sBind(String prefix, Class<T> type) {
+        return EEProperties.singleton().bind(prefix,type);
+    }
+
+    /**
+     * Bind a property prefix onto an interface or POJO
+     *
+     * <p>Each interface method without arguments is bound to prefix + "." + its name, without any get or is
+     * prefix. Each non-static, non-final, non-transient POJO field is bound to prefix + "." + its name. Values are
+     * converted using the extended syntax type if the key has one, otherwise the member's type: String, the boxed
+     * and primitive types, Date, Instant, LocalDate, OffsetDateTime, Duration, URI, InetSocketAddress, enums,
+     * int[], long[], double[] and List&lt;String&gt; are supported. Keys not defined give null, or zero for
+     * primitives.</p>
+     *
+     * <p>The bound instance is re-populated as a whole whenever a new generation changes any bound key. POJO fields
+     * are set while holding the instance's monitor.</p>
+     *
+     * @param prefix Key prefix, e.g. "com.mysite.db"
+     * @param type Interface, or class with a no-argument constructor
+     * @return Bound instance, kept up to date for the life of this EEProperties instance
+     * @throws IllegalArgumentException if type has a member that can't be bound
+     * @since 2.10
+     */
+    public <T> T bind(String prefix, Class<T> type) {
+        EEPropertiesBinding<T> binding = new EEPropertiesBinding<T>(prefix,type,this.logger);
+        this.bindings.add(binding);
+        binding.refresh(this.store.current());
+        return binding.getInstance();
+    }
+
+    /**
+     * Substitute all the variable expressions in a given string with system environment settings and system properties and existing properties
+     * in that order. If no match is found, the variable is left unmodified
+     *
+     * @param inputString String with possible variable substitution patterns
+     * @return String with substitutions or null if no substitutions
+     * @since 2.5
+     */
+    public static String substituteVariables(String inputString, final Properties properties) {
+        EEPropertiesTemplate template = EEProperties.TEMPLATE_CACHE.get(inputString);
+        if (template != null) {
+            return template.substitute(properties,null);
+        }
+        // A variable is not closed: fail as before
+        return EEProperties.resolveVariables(inputString,properties == null ? null : new Function<String,String>() {
+            public String apply(String varName) {
+                return properties.getProperty(varName);
+            }
+        });
+    }
+
+    /**
+     * Parse a string with variables once, so it can be rendered many times
+     *
+     * <p>Templates are cached, so compiling the same string again is cheap.</p>
+     *
+     * @param template String with variable substitution patterns
+     * @return Compiled template
+     * @throws IllegalArgumentException if a variable is not closed
+     * @since 2.10
+     */
+    public static EEPropertiesTemplate compileTemplate(String template) {
+        EEPropertiesTemplate compiled = EEProperties.TEMPLATE_CACHE.get(template);
+        if (compiled == null) {
+            throw new IllegalArgumentException(String.format("EEProperties.compileTemplate: unclosed variable in %s",template));
+        }
+        return compiled;
+    }
+
+    /**
+     * Get the template cache used by substituteVariables and compileTemplate
+     *
+     * @return Template cache
+     */
+    static EEPropertiesTemplateCache getTemplateCache() {
+        return EEProperties.TEMPLATE_CACHE;
+    }
+
+    /**
+     * Get the current generation of the store
+     *
+     * @return Current generation
+     */
+    EEPropertiesLayeredStore.Generation currentGeneration() {
+        return this.store.current();
+    }
+
+    /**
+     * Substitute all the variable expressions in a given string with system environment settings and system properties and
+     * values returned by a lookup function in that order. If no match is found, the variable is left unmodified
+     *
+     * @param inputString String with possible variable substitution patterns
+     * @param lookup Property lookup. Ignored if null
+     * @return String with substitutions or null if no substitutions
+     */
+    private static String resolveVariables(String inputString, Function<String,String> lookup) {
+
+        // Returned String builder
+        StringBuffer returnedStringBuf = new StringBuffer();
+
+        int matchPos;
+        int startPos = 0;
+        int endPos = inputString.length() - 1;
+        boolean anySubstitution = false;
+        while ( ( matchPos = inputString.indexOf("${",startPos)) != -1 ) {
+            String beforeVariable = inputString.substring(startPos,matchPos);
+            int varNameEnd = inputString.indexOf("}",matchPos + 2);
+            String varName = inputString.substring(matchPos + 2, varNameEnd);
+            String substitutionValue = null;
+            if (System.getProperty(varName) != null) {
+                substitutionValue = System.getProperty(varName);
+                anySubstitution = true;
+            }
+            else if (System.getenv(varName) != null ) {
+                substitutionValue = System.getenv(varName);
+                anySubstitution = true;
+            }
+            else if (lookup != null && (substitutionValue = lookup.apply(varName)) != null) {
+                anySubstitution = true;
+            }
+            if (substitutionValue == null) {
+                substitutionValue = String.format("${%s}",varName);
+            }
+            returnedStringBuf.append(beforeVariable).append(substitutionValue);
+            startPos = varNameEnd + 1;
+        }
+        if (startPos <= endPos) {
+           returnedStringBuf.append(inputString.substring(startPos));
+        }
+        if (anySubstitution) {
+            return returnedStringBuf.toString();
+        }
+        else {
+            return null;
+        }
+    }
+
+    /**
+     * Reload all the existing configuration definitions, in the order they were originally loaded, into this instance
+     *
+     * <p>Only intended for internal use. Requires setup. See explanation in sReloadConfigurations.</p>
+     *
+     * @param loadDefinitions Used if supplied. If null use existing (singleton) values
+     *
+     * @since 2.6
+     */
+    public void reloadConfigurations(ArrayList<EEPropertiesLoadDefinition> loadDefinitions) {
+
+        if (loadDefinitions == null) {
+            loadDefinitions = EEPropertiesLoadDefinition.getRegisteredDefinitions();
+        }
+        // One load for all definitions, so an unreachable server is only waited for once
+        List<EEPropertiesConfigSource> loadScopedSources = beginSourceLoad();
+        try {
+            for (EEPropertiesLoadDefinition loadDefinition : loadDefinitions ) {
+                loadAndMergeConfigurations(
+                        loadDefinition.getEnvironmentNames(),
+                        loadDefinition.getClassContext(),
+                        loadDefinition.getProperties(),
+                        loadDefinition.getOptions());
+            }
+        }
+        finally {
+            endSourceLoad(loadScopedSources);
+        }
+        
+        
+    }
+
+    /**
+     * Reload all the existing configuration definitions in the order they were originally loaded
+     *
+     * <p>Only intended for internal use. Requires setup. See explanation in sReloadConfigurations.</p>
+     *
+     * @since 2.6
+     */
+    public void reloadConfigurations() {
+        reloadConfigurations(null);
+    }
+
+
+
+    /**
+     * Reload all the existing configuration definitions in the order they were originally loaded (singleton instance)
+     *
+     * <p>Sequence</p>
+     * <ul>
+     * <li>Get existing load definitions</li>
+     * <li>Initialize new (singleton) instance</li>
+     * <li>Reload existing load definitions against new (singleton) instance</li>
+     * <li>Replace the singleton instance. Until then readers see the previous instance, never a partly loaded one</li>
+     * </ul>
+     *
+     * @since 2.6
+     */
+    public static void sReloadConfigurations() {
+
+        EEProperties.SINGLETON_LOCK.writeLock().lock();
+        try {
+            long startTime = System.nanoTime();
+            EEPropertiesMetrics existingMetrics = EEProperties.singletonInstance == null ? null : EEProperties.singletonInstance.metrics;
+            EEPropertiesAccessProfiler existingAccessProfiler = EEProperties.singletonInstance == null ? null : EEProperties.singletonInstance.accessProfiler;
+            List<EEPropertiesBinding<?>> existingBindings = EEProperties.singletonInstance == null ? null : EEProperties.singletonInstance.bindings;
+            Map<String,CompletableFuture<String>> existingKeyWaiters = EEProperties.singletonInstance == null ? null : EEProperties.singletonInstance.keyWaiters;
+            List<EEPropertiesConfigSource> existingConfigSources = EEProperties.singletonInstance == null ? null : EEProperties.singletonInstance.addedConfigSources;
+            Map<String,EEPropertiesArchiveSource> existingArchiveSources = EEProperties.singletonInstance == null ? null : EEProperties.singletonInstance.archiveSources;
+            String switchedEnvironment = EEProperties.singletonInstance == null || ! EEProperties.singletonInstance.environmentSwitched
+                ? null : EEProperties.singletonInstance.runtimeEnvironment;
+            EEPropertiesKeyProvider existingKeyProvider = EEProperties.singletonInstance == null || ! EEProperties.singletonInstance.keyProviderSet
+                ? null : EEProperties.singletonInstance.keyProvider;
+            EEPropertiesSecretCache existingSecretCache = EEProperties.singletonInstance == null ? null : EEProperties.singletonInstance.secretCache;
+
+            // This sequence avoids an infinite loop when reloading as EEProperties.registerDefinition is called during reload
+
+            ArrayList<EEPropertiesLoadDefinition> existingLoadDefinitions = EEPropertiesLoadDefinition.getRegisteredDefinitions();
+            EEPropertiesLoadDefinition.sResetRegisteredDefinitions();
+
+            // This call does the basic initialization for EEProperties itself - including rereading the bootstrap file and internal logging settings
+            EEProperties newInstance = new EEProperties();
+
+            // Keep accumulating into the existing registry so counters survive the reload
+            if (newInstance.metrics != null && existingMetrics != null) {
+                newInstance.metrics = existingMetrics;
+            }
+            if (newInstance.accessProfiler != null && existingAccessProfiler != null) {
+                newInstance.accessProfiler = existingAccessProfiler;
+            }
+            if (existingConfigSources != null) {
+                newInstance.addedConfigSources.addAll(existingConfigSources);
+            }
+            if (existingKeyProvider != null) {
+                newInstance.setKeyProvider(existingKeyProvider);
+            }
+            if (switchedEnvironment != null) {
+                newInstance.switchEnvironment(switchedEnvironment);
+            }
+            // Now load the previous definitions in order. Readers keep the old instance until the load is complete.
+            newInstance.reloadConfigurations(existingLoadDefinitions);
+            EEProperties.singletonInstance = newInstance;
+
+            // Keys still awaited on the old instance are completed by the new one
+            if (existingKeyWaiters != null && ! existingKeyWaiters.isEmpty()) {
+                newInstance.keyWaiters.putAll(existingKeyWaiters);
+                newInstance.completeKeyWaiters(newInstance.store.current());
+            }
+
+            // Bound instances keep their old values until the reload is complete, then change once
+            if (existingBindings != null && ! existingBindings.isEmpty()) {
+                newInstance.bindings.addAll(existingBindings);
+                EEPropertiesLayeredStore.Generation generation = newInstance.store.current();
+                for (EEPropertiesBinding<?> binding : existingBindings) {
+                    binding.refresh(generation);
+                }
+            }
+
+            long reloadNanos = System.nanoTime() - startTime;
+            newInstance.lastReloadTime = System.currentTimeMillis();
+            newInstance.lastReloadDurationNanos = reloadNanos;
+            if (newInstance.metrics != null) {
+                newInstance.metrics.recordReload(reloadNanos);
+            }
+
+            // Secrets are decrypted again from the new instance's values
+            if (existingSecretCache != null) {
+                existingSecretCache.clear();
+            }
+
+            // The new instance opened the archives again
+            if (existingArchiveSources != null) {
+                for (EEPropertiesArchiveSource archiveSource : existingArchiveSources.values()) {
+                    try {
+                        archiveSource.close();
+                    }
+                    catch (IOException ex) {
+                        newInstance.logger.warn(String.format("EEProperties.sReloadConfigurations unable to close archive %s",archiveSource));
+                    }
+                }
+            }
+        }
+        finally {
+            EEProperties.SINGLETON_LOCK.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Reload all the existing configuration definitions if any file loaded so far has changed (singleton instance)
+     *
+     * @return true if a reload took place
+     * @since 2.10
+     */
+    public static boolean sReloadConfigurationsIfChanged() {
+        EEProperties.SINGLETON_LOCK.writeLock().lock();
+        try {
+            if (EEProperties.singleton().isConfigurationChanged()) {
+                EEProperties.sReloadConfigurations();
+                return true;
+            }
+            return false;
+        }
+        finally {
+            EEProperties.SINGLETON_LOCK.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Check whether any file loaded so far has been modified since it was loaded
+     *
+     * @return true if any loaded file has changed
+     * @since 2.10
+     */
+    public boolean isConfigurationChanged() {
+        List<EEPropertiesConfigSource> loadScopedSources = beginSourceLoad();
+        try {
+            for (Map.Entry<String,LoadedFile> loadedFile : this.loadedFiles.entrySet()) {
+                if (loadedFile.getValue().source.lastModified(loadedFile.getKey()) != loadedFile.getValue().lastModified) {
+                    this.logger.debug(String.format("EEProperties.isConfigurationChanged %s has changed",loadedFile.getKey()));
+                    return true;
+                }
+            }
+            return false;
+        }
+        finally {
+            endSourceLoad(loadScopedSources);
+        }
+    }
+
+    /**
+     * Add a configuration source, consulted after the configuration paths and URLs and before the classpath.
+     * Sources added earlier are consulted first.
+     *
+     * @param configSource Source to add
+     * @since 2.10
+     */
+    public void addConfigSource(EEPropertiesConfigSource configSource) {
+        this.addedConfigSources.add(configSource);
+    }
+
+    /**
+     * Add a configuration source (singleton instance). Kept when the configuration is reloaded.
+     *
+     * See the documentation for addConfigSource
+     *
+     * @param configSource Source to add
+     * @since 2.10
+     */
+    public static void sAddConfigSource(EEPropertiesConfigSource configSource) {
+        EEProperties.singleton().addConfigSource(configSource);
+    }
+
+    /**
+     * Get the configuration sources in the order they are consulted: the configuration paths, the configuration URLs,
+     * sources added with addConfigSource, then the classpath
+     *
+     * @return Configuration sources
+     * @since 2.10
+     */
+    public List<EEPropertiesConfigSource> getConfigSources() {
+        List<EEPropertiesConfigSource> configSources = new ArrayList<EEPropertiesConfigSource>();
+        for (String location : this.searchPathsList) {
+            if (EEPropertiesArchiveSource.isArchive(location)) {
+                EEPropertiesArchiveSource archiveSource = archiveSource(location);
+                if (archiveSource != null) {
+                    configSources.add(archiveSource);
+                }
+            }
+            else if (! EEPropertiesDirectorySource.isDirectoryPattern(location)) {
+                configSources.add(new EEPropertiesFileSource(location));
+            }
+        }
+        configSources.addAll(this.urlConfigSources);
+        configSources.addAll(this.addedConfigSources);
+        configSources.add(this.classpathSource);
+        return configSources;
+    }
+
+    /**
+     * Get the source for an archive configuration path, opening the archive the first time
+     *
+     * @param location Archive file name
+     * @return Source, or null if the archive can't be opened
+     */
+    private EEPropertiesArchiveSource archiveSource(String location) {
+        EEPropertiesArchiveSource archiveSource = this.archiveSources.get(location);
+        if (archiveSource == null) {
+            try {
+                archiveSource = new EEPropertiesArchiveSource(new File(location));
+            }
+            catch (IOException ex) {
+                this.logger.warn(String.format("EEProperties.archiveSource unable to open archive %s: %s",location,ex.toString()));
+                return null;
+            }
+            EEPropertiesArchiveSource existing = this.archiveSources.putIfAbsent(location,archiveSource);
+            if (existing != null) {
+                try {
+                    archiveSource.close();
+                }
+                catch (IOException ex) {
+                    // Never used
+                }
+                archiveSource = existing;
+            }
+        }
+        return archiveSource;
+    }
+
+    /**
+     * Get the current generation. The generation changes every time the configuration changes.
+     *
+     * @return Current generation
+     * @since 2.10
+     */
+    public long getGeneration() {
+        return this.store.current().getNumber();
+    }
+
+    /**
+     * Get the number of String properties
+     *
+     * @return Number of String properties
+     * @since 2.10
+     */
+    public int getKeyCount() {
+        return this.store.current().size();
+    }
+
+    /**
+     * Get the number of typed properties
+     *
+     * @return Number of typed properties
+     * @since 2.10
+     */
+    public int getTypedKeyCount() {
+        return this.store.current().getTypedSize();
+    }
+
+    /**
+     * Get the runtime environment
+     *
+     * @return Runtime environment
+     * @since 2.10
+     */
+    public String getRuntimeEnvironment() {
+        return this.runtimeEnvironment;
+    }
+
+    /**
+     * Get the time of the last reload
+     *
+     * @return Milliseconds since the epoch or 0 if this instance was not created by a reload
+     * @since 2.10
+     */
+    public long getLastReloadTime() {
+        return this.lastReloadTime;
+    }
+
+    /**
+     * Get the duration of the last reload
+     *
+     * @return Duration in nanoseconds
+     * @since 2.10
+     */
+    public long getLastReloadDurationNanos() {
+        return this.lastReloadDurationNanos;
+    }
+
+    /**
+     * Get the estimated heap used by String property keys and values in all layers
+     *
+     * @return Estimated size in bytes
+     * @since 2.10
+     */
+    public long getEstimatedMemoryFootprint() {
+        return this.store.current().estimateMemoryFootprint();
+    }
+
+    /**
+     * Get the memory held outside the heap by property keys and values
+     *
+     * @return Size in bytes, 0 unless off-heap storage is enabled
+     * @since 2.10
+     */
+    public long getOffHeapMemoryFootprint() {
+        return this.store.current().getOffHeapBytes();
+    }
+
+    /**
+     * Get the memory held outside the heap by property keys and values (for the singleton class)
+     *
+     * @return Size in bytes, 0 unless off-heap storage is enabled
+     * @since 2.10
+     */
+    public static long sGetOffHeapMemoryFootprint() {
+        return EEProperties.singleton().getOffHeapMemoryFootprint();
+    }
+
+    /**
+     * Get the heap used by the key filters of all layers
+     *
+     * @return Size in bytes, 0 if key filters are disabled
+     * @since 2.10
+     */
+    public long getKeyFilterMemoryFootprint() {
+        return this.store.current().getKeyFilterMemoryFootprint();
+    }
+
+    /**
+     * Get the heap used by the key filters of all layers (for the singleton class)
+     *
+     * @return Size in bytes, 0 if key filters are disabled
+     * @since 2.10
+     */
+    public static long sGetKeyFilterMemoryFootprint() {
+        return EEProperties.singleton().getKeyFilterMemoryFootprint();
+    }
+
+    /**
+     * Estimate the chance that looking up a property that is not defined still searches at least one layer
+     *
+     * @return Estimated false positive rate, 0 if key filters are disabled
+     * @since 2.10
+     */
+    public double getKeyFilterFalsePositiveRate() {
+        return this.store.current().getKeyFilterFalsePositiveRate();
+    }
+
+    /**
+     * Estimate the chance that looking up a property that is not defined still searches at least one layer
+     * (for the singleton class)
+     *
+     * @return Estimated false positive rate, 0 if key filters are disabled
+     * @since 2.10
+     */
+    public static double sGetKeyFilterFalsePositiveRate() {
+        return EEProperties.singleton().getKeyFilterFalsePositiveRate();
+    }
+
+    /**
+     * Get a snapshot of the metrics for this instance
+     *
+     * @return Metrics snapshot or null if metrics are not enabled
+     * @since 2.10
+     */
+    public EEPropertiesMetricsSnapshot getMetricsSnapshot() {
+        return this.metrics == null ? null : this.metrics.snapshot();
+    }
+
+    /**
+     * Get a snapshot of the metrics (for the singleton class)
+     *
+     * @return Metrics snapshot or null if metrics are not enabled
+     * @since 2.10
+     */
+    public static EEPropertiesMetricsSnapshot sGetMetricsSnapshot() {
+        return EEProperties.singleton().getMetricsSnapshot();
+    }
+
+    /**
+     * Get the load profiler for this instance
+     *
+     * @return Load profiler or null if load profiling is not enabled
+     * @since 2.10
+     */
+    public EEPropertiesLoadProfiler getLoadProfiler() {
+        return this.loadProfiler;
+    }
+
+    /**
+     * Get the load profiler (for the singleton class)
+     *
+     * @return Load profiler or null if load profiling is not enabled
+     * @since 2.10
+     */
+    public static EEPropertiesLoadProfiler sGetLoadProfiler() {
+        return EEProperties.singleton().getLoadProfiler();
+    }
+
+    /**
+     * Print the load profile summary tables to the designated output stream (singleton version)
+     *
+     * @param printStream PrintStream to output the summary to
+     * @since 2.10
+     */
+    public static void sPrintLoadProfile(PrintStream printStream) {
+        EEPropertiesLoadProfiler loadProfiler = EEProperties.sGetLoadProfiler();
+        if (loadProfiler == null) {
+            printStream.println("Load profiling is not enabled");
+        }
+        else {
+            loadProfiler.printSummary(printStream);
+        }
+    }
+
+    /**
+     * Get the hottest property names read from this instance
+     *
+     * @return Map of property name to estimated number of reads, hottest first, or null if access profiling is not enabled
+     * @since 2.10
+     */
+    public LinkedHashMap<String,Long> getHotPropertyNames() {
+        return this.accessProfiler == null ? null : this.accessProfiler.getHotKeys();
+    }
+
+    /**
+     * Get the hottest property names read (for the singleton class)
+     *
+     * @return Map of property name to estimated number of reads, hottest first, or null if access profiling is not enabled
+     * @since 2.10
+     */
+    public static LinkedHashMap<String,Long> sGetHotPropertyNames() {
+        return EEProperties.singleton().getHotPropertyNames();
+    }
+
+    /**
+     * Get the property names never seen by the access profiler
+     *
+     * @return Sorted list of property names or null if access profiling is not enabled
+     * @since 2.10
+     */
+    public ArrayList<String> getUnreadPropertyNames() {
+        return this.accessProfiler == null ? null : this.accessProfiler.getUnreadKeys(propertyNames());
+    }
+
+    /**
+     * Get the property names never seen by the access profiler (for the singleton class)
+     *
+     * @return Sorted list of property names or null if access profiling is not enabled
+     * @since 2.10
+     */
+    public static ArrayList<String> sGetUnreadPropertyNames() {
+        return EEProperties.singleton().getUnreadPropertyNames();
+    }
+
+    /**
+     * Get the pool used to deduplicate keys and values
+     *
+     * @return String pool or null if deduplication is disabled
+     * @since 2.10
+     */
+    public EEPropertiesStringPool getStringPool() {
+        return this.stringPool;
+    }
+
+    /**
+     * Get the pool used to deduplicate keys and values (for the singleton class)
+     *
+     * @return String pool or null if deduplication is disabled
+     * @since 2.10
+     */
+    public static EEPropertiesStringPool sGetStringPool() {
+        return EEProperties.singleton().getStringPool();
+    }
+
+    /**
+     * Get the cache of typed values converted on demand
+     *
+     * @return Typed value cache or null if typed values are converted when loaded
+     * @since 2.10
+     */
+    public EEPropertiesTypedValueCache getTypedValueCache() {
+        return this.typedValueCache;
+    }
+
+    /**
+     * Get the cache of typed values converted on demand (for the singleton class)
+     *
+     * @return Typed value cache or null if typed values are converted when loaded
+     * @since 2.10
+     */
+    public static EEPropertiesTypedValueCache sGetTypedValueCache() {
+        return EEProperties.singleton().getTypedValueCache();
+    }
+
+    /**
+     * Check whether metrics are being recorded for this instance
+     *
+     * @return true if metrics are enabled
+     * @since 2.10
+     */
+    public boolean isMetricsEnabled() {
+        return this.metrics != null;
+    }
+
+    /**
+     * Get the value of a (typed) Property Value
+     *
+     * <p>Note - this call is only intended for internal use. It should not be used directly.</p>
+     *
+     * @param propertyName Property name of the (typed) Property to retrieve
+     * @return value of the property as an Object
+     * @since 2.9
+     */
+    public Object getTypedPropertyValue(String propertyName) {
+        EEPropertiesTypedValue typedEntry = getTypedEntry(this.store.current(),propertyName);
+        if (this.metrics != null) {
+            this.metrics.recordLookup(propertyName,typedEntry != null);
+        }
+        if (this.accessProfiler != null) {
+            this.accessProfiler.recordAccess(propertyName);
+        }
+        return EEProperties.typedValueOf(typedEntry);
+    }
+
+    /**
+     * Get the plaintext of an [Encrypted] property setting (for the singleton class)
+     *
+     * See the documentation for getEncryptedProperty
+     *
+     * @param propertyName Property Name to retrieve
+     * @return Copy of the plaintext, or null if not found, not encrypted or not decrypted
+     * @since 2.10
+     */
+    public static char[] sGetEncryptedProperty(String propertyName) {
+        return EEProperties.singleton().getEncryptedProperty(propertyName);
+    }
+
+    /**
+     * Get the plaintext of an [Encrypted] property setting
+     *
+     * <p>The value is decrypted on first read and the plaintext kept for the secret cache's time to live. The
+     * caller gets its own copy and should zero it when done. A value that can't be decrypted, for example because
+     * no key provider is set or the key is wrong, is logged and gives null.</p>
+     *
+     * @param propertyName Property Name to retrieve
+     * @return Copy of the plaintext, or null if not found, not encrypted or not decrypted
+     * @since 2.10
+     */
+    public char[] getEncryptedProperty(String propertyName) {
+        Object typedValue = getTypedPropertyValue(propertyName);
+        if (! (typedValue instanceof EEPropertiesEncryptedValue)) {
+            return null;
+        }
+        EEPropertiesKeyProvider currentKeyProvider = this.keyProvider;
+        if (currentKeyProvider == null) {
+            this.logger.error(String.format("EEProperties.getEncryptedProperty: no key provider to decrypt %s",propertyName));
+            return null;
+        }
+        try {
+            return this.secretCache.get(propertyName,(EEPropertiesEncryptedValue) typedValue,currentKeyProvider);
+        }
+        catch (GeneralSecurityException ex) {
+            this.logger.error(String.format("EEProperties.getEncryptedProperty: unable to decrypt %s",propertyName),ex);
+        }
+        catch (IOException ex) {
+            this.logger.error(String.format("EEProperties.getEncryptedProperty: unable to read the key for %s",propertyName),ex);
+        }
+        if (this.metrics != null) {
+            this.metrics.recordConversionFailure(propertyName);
+        }
+        return null;
+    }
+
+    /**
+     * Set the source of the keys that decrypt [Encrypted] values (for the singleton class)
+     *
+     * @param keyProvider Key provider
+     * @since 2.10
+     */
+    public static void sSetKeyProvider(EEPropertiesKeyProvider keyProvider) {
+        EEProperties.singleton().setKeyProvider(keyProvider);
+    }
+
+    /**
+     * Set the source of the keys that decrypt [Encrypted] values, replacing any configured one. Cached plaintext
+     * is zeroed.
+     *
+     * @param keyProvider Key provider
+     * @since 2.10
+     */
+    public void setKeyProvider(EEPropertiesKeyProvider keyProvider) {
+        this.keyProvider = keyProvider;
+        this.keyProviderSet = true;
+        this.secretCache.clear();
+    }
+
+    /**
+     * Get the source of the keys that decrypt [Encrypted] values
+     *
+     * @return Key provider, or null if none is set
+     * @since 2.10
+     */
+    public EEPropertiesKeyProvider getKeyProvider() {
+        return this.keyProvider;
+    }
+
+    /**
+     * Zero and discard all decrypted secrets held by the singleton instance
+     *
+     * @since 2.10
+     */
+    public static void sClearSecretCache() {
+        EEProperties.singleton().clearSecretCache();
+    }
+
+    /**
+     * Zero and discard all decrypted secrets. They are decrypted again when next read.
+     *
+     * @since 2.10
+     */
+    public void clearSecretCache() {
+        this.secretCache.clear();
+    }
+
+    /**
+     * Get the secret cache
+     *
+     * @return Secret cache
+     */
+    EEPropertiesSecretCache getSecretCache() {
+        return this.secretCache;
+    }
+
+    /**
+     * Get several (typed) Property Values from one generation (for the singleton class)
+     *
+     * @param propertyNames Property names of the (typed) Properties to retrieve
+     * @return Values, in the same order, null where not found or not typed
+     * @since 2.10
+     */
+    public static Object[] sGetTypedPropertyValues(String... propertyNames) {
+        return EEProperties.singleton().getTypedPropertyValues(propertyNames);
+    }
+
+    /**
+     * Get several (typed) Property Values from one generation
+     *
+     * @param propertyNames Property names of the (typed) Properties to retrieve
+     * @return Values, in the same order, null where not found or not typed
+     * @since 2.10
+     */
+    public Object[] getTypedPropertyValues(String... propertyNames) {
+        return getTypedPropertyValues(propertyNames,new Object[propertyNames.length]);
+    }
+
+    /**
+     * Get several (typed) Property Values from one generation into an existing array (for the singleton class)
+     *
+     * @param propertyNames Property names of the (typed) Properties to retrieve
+     * @param propertyValues Array to fill, at least as long as propertyNames
+     * @return propertyValues
+     * @since 2.10
+     */
+    public static Object[] sGetTypedPropertyValues(String[] propertyNames, Object[] propertyValues) {
+        return EEProperties.singleton().getTypedPropertyValues(propertyNames,propertyValues);
     }
 
     /**
-     * Put an ArrayList<String> property
+     * Get several (typed) Property Values from one generation into an existing array
      *
-     * @param propertyName Property Name to set
-     * @param propertyValue Value for property
+     * <p>As getProperties, but for typed values. Nothing is allocated apart from the copies of any Date
+     * values.</p>
      *
+     * @param propertyNames Property names of the (typed) Properties to retrieve
+     * @param propertyValues Array to fill, at least as long as propertyNames. Null where not found or not typed
+     * @return propertyValues
+     * @throws IllegalArgumentException if propertyValues is shorter than propertyNames
+     * @since 2.10
      */
-    public void putArrayListString(String propertyName, ArrayList<String> propertyValue) {
-        setTypedPropertyValueAndType(propertyName,propertyValue,"ArrayList<String>");
+    public Object[] getTypedPropertyValues(String[] propertyNames, Object[] propertyValues) {
+        if (propertyValues.length < propertyNames.length) {
+            throw new IllegalArgumentException(String.format("EEProperties.getTypedPropertyValues needs room for %d values, not %d",propertyNames.length,propertyValues.length));
+        }
+        EEPropertiesLayeredStore.Generation generation = this.store.current();
+        for (int i = 0 ; i < propertyNames.length ; i++) {
+            EEPropertiesTypedValue typedEntry = getTypedEntry(generation,propertyNames[i]);
+            if (this.metrics != null) {
+                this.metrics.recordLookup(propertyNames[i],typedEntry != null);
+            }
+            if (this.accessProfiler != null) {
+                this.accessProfiler.recordAccess(propertyNames[i]);
+            }
+            propertyValues[i] = EEProperties.typedValueOf(typedEntry);
+        }
+        return propertyValues;
     }
 
-
     /**
-     * Get an ArrayList<Integer> property setting  (for the singleton class)
+     * Get the value to hand out for a typed entry
      *
-     * @param propertyName Property Name to retrieve
-     * @return Property value or null if not found
+     * @param typedEntry Typed entry or null
+     * @return Value or null
      */
-    public static ArrayList<Integer> sGetArrayListIntegerProperty(String propertyName) {
-        return EEProperties.singleton().getArrayListIntegerProperty(propertyName);
+    private static Object typedValueOf(EEPropertiesTypedValue typedEntry) {
+        if (typedEntry == null) {
+            return null;
+        }
+        if (typedEntry.value instanceof Instant && "Date".equals(typedEntry.type)) {
+            // Dates are mutable, so each caller gets its own
+            return Date.from((Instant) typedEntry.value);
+        }
+        return typedEntry.value;
     }
 
     /**
-     * Get an ArrayList<Integer> property setting
+     * Get a property by slot (for the singleton class)
      *
-     * @param propertyName Property Name to retrieve
+     * @param slot Slot from EEPropertiesSlots.slot
      * @return Property value or null if not found
+     * @since 2.10
      */
-    public ArrayList<Integer> getArrayListIntegerProperty(String propertyName) {
-        return (ArrayList<Integer>) getTypedPropertyValue(propertyName);
+    public static String sGetSlotProperty(int slot) {
+        return EEProperties.singleton().getSlotProperty(slot);
     }
 
-
     /**
-     * Put an ArrayList<Integer> property (for the singleton class)
+     * Get a property by slot
      *
-     * @param propertyName Property Name to set
-     * @param propertyValue Value for property
+     * <p>Used by the accessors generated for &#64;EEPropertiesKeys. Reads an array instead of looking the key up,
+     * and is not counted by metrics or the access profiler.</p>
      *
+     * @param slot Slot from EEPropertiesSlots.slot
+     * @return Property value or null if not found
+     * @since 2.10
      */
-    public static void sPutArrayListInteger(String propertyName, ArrayList<Integer> propertyValue) {
-        EEProperties.singleton().putArrayListInteger(propertyName,propertyValue);
+    public String getSlotProperty(int slot) {
+        return slotTable(slot).properties[slot];
     }
 
     /**
-     * Put an ArrayList<Integer property
-     *
-     * @param propertyName Property Name to set
-     * @param propertyValue Value for property
+     * Get a typed property value by slot (for the singleton class)
      *
+     * @param slot Slot from EEPropertiesSlots.slot
+     * @return Typed value or null if not found or not typed
+     * @since 2.10
      */
-    public void putArrayListInteger(String propertyName, ArrayList<Integer> propertyValue) {
-        setTypedPropertyValueAndType(propertyName,propertyValue,"ArrayList<Integer>");
+    public static Object sGetSlotTypedValue(int slot) {
+        return EEProperties.singleton().getSlotTypedValue(slot);
     }
 
     /**
-     * Substitute all the variable expressions in a given string with system environment settings and system properties and existing properties
-     * in that order. If no match is found, the variable is left unmodified
+     * Get a typed property value by slot
      *
-     * @param inputString String with possible variable substitution patterns
-     * @return String with substitutions or null if no substitutions
-     * @since 2.5
+     * @param slot Slot from EEPropertiesSlots.slot
+     * @return Typed value or null if not found or not typed
+     * @since 2.10
      */
-    public static String substituteVariables(String inputString, Properties properties) {
+    public Object getSlotTypedValue(int slot) {
+        return EEProperties.typedValueOf(slotTable(slot).typedValues[slot]);
+    }
 
-        // Returned String builder
-        StringBuffer returnedStringBuf = new StringBuffer();
+    /**
+     * Get a typed property value of a known type by slot (for the singleton class)
+     *
+     * @param slot Slot from EEPropertiesSlots.slot
+     * @param type Type of the value
+     * @param <T> Type of the value
+     * @return Typed value or null if not found or not typed
+     * @throws ClassCastException if the value is not of that type
+     * @since 2.10
+     */
+    public static <T> T sGetSlotTypedValue(int slot, Class<T> type) {
+        return EEProperties.singleton().getSlotTypedValue(slot,type);
+    }
 
-        int matchPos;
-        int startPos = 0;
-        int endPos = inputString.length() - 1;
-        boolean anySubstitution = false;
-        while ( ( matchPos = inputString.indexOf("${",startPos)) != -1 ) {
-            String beforeVariable = inputString.substring(startPos,matchPos);
-            int varNameEnd = inputString.indexOf("}",matchPos + 2);
-            String varName = inputString.substring(matchPos + 2, varNameEnd);
-            String substitutionValue = null;
-            if (System.getProperty(varName) != null) {
-                substitutionValue = System.getProperty(varName);
-                anySubstitution = true;
-            }
-            else if (System.getenv(varName) != null ) {
-                substitutionValue = System.getenv(varName);
-                anySubstitution = true;
-            }
-            else if (properties != null && properties.getProperty(varName) != null) {
-                substitutionValue = properties.getProperty(varName);
-                anySubstitution = true;
-            }
-            if (substitutionValue == null) {
-                substitutionValue = String.format("${%s}",varName);
-            }
-            returnedStringBuf.append(beforeVariable).append(substitutionValue);
-            startPos = varNameEnd + 1;
-        }
-        if (startPos <= endPos) {
-           returnedStringBuf.append(inputString.substring(startPos));
-        }
-        if (anySubstitution) {
-            return returnedStringBuf.toString();
-        }
-        else {
-            return null;
-        }
+    /**
+     * Get a typed property value of a known type by slot
+     *
+     * @param slot Slot from EEPropertiesSlots.slot
+     * @param type Type of the value
+     * @param <T> Type of the value
+     * @return Typed value or null if not found or not typed
+     * @throws ClassCastException if the value is not of that type
+     * @since 2.10
+     */
+    public <T> T getSlotTypedValue(int slot, Class<T> type) {
+        return type.cast(getSlotTypedValue(slot));
     }
 
     /**
-     * Reload all the existing configuration definitions in the order they were originally loaded
-     *
-     * <p>Only intended for internal use. Requires setup. See explanation in sReloadConfigurations.</p>
-     *
-     * @param loadDefinitions Used if supplied. If null use existing (singleton) values
+     * Get the keys among some slots that have no value
      *
-     * @since 2.6
+     * @param slots Slots from EEPropertiesSlots.slot
+     * @return Keys with no value
+     * @since 2.10
      */
-    public void reloadConfigurations(ArrayList<EEPropertiesLoadDefinition> loadDefinitions) {
-
-        if (loadDefinitions == null) {
-            loadDefinitions = EEPropertiesLoadDefinition.getRegisteredDefinitions();
+    public ArrayList<String> getMissingKeys(int[] slots) {
+        int highestSlot = -1;
+        for (int slot : slots) {
+            highestSlot = Math.max(highestSlot,slot);
         }
-        for (EEPropertiesLoadDefinition loadDefinition : loadDefinitions ) {
-        	EEProperties.singleton().loadAndMergeConfigurations(
-        			loadDefinition.getEnvironmentNames(),
-        			loadDefinition.getClassContext(),
-        			loadDefinition.getProperties(),
-        			loadDefinition.getOptions());
-        }
-        
-        
+        return EEPropertiesSlots.missingKeys(slotTable(highestSlot),slots);
     }
 
     /**
-     * Reload all the existing configuration definitions in the order they were originally loaded
-     *
-     * <p>Only intended for internal use. Requires setup. See explanation in sReloadConfigurations.</p>
+     * Log a warning for each key among some slots that has no value (for the singleton class)
      *
-     * @since 2.6
+     * @param keySetName Name of the key set, used in the messages
+     * @param slots Slots from EEPropertiesSlots.slot
+     * @return Keys with no value
+     * @since 2.10
      */
-    public void reloadConfigurations() {
-        reloadConfigurations(null);
+    public static ArrayList<String> sReportMissingKeys(String keySetName, int[] slots) {
+        return EEProperties.singleton().reportMissingKeys(keySetName,slots);
     }
 
-
-
     /**
-     * Reload all the existing configuration definitions in the order they were originally loaded (singleton instance)
+     * Log a warning for each key among some slots that has no value
      *
-     * <p>Sequence</p>
-     * <ul>
-     * <li>Get existing load definitions</li>
-     * <li>Initialize new (singleton) instance</li>
-     * <li>Reload existing load definitions against new (singleton) instance</li>
-     * </ul>
+     * <p>Classes generated for &#64;EEPropertiesKeys call this for the singleton from their reportMissingKeys
+     * method, which the application calls once its configuration has loaded.</p>
      *
-     * @since 2.6
+     * @param keySetName Name of the key set, used in the messages
+     * @param slots Slots from EEPropertiesSlots.slot
+     * @return Keys with no value
+     * @since 2.10
      */
-    public static void sReloadConfigurations() {
-
-        synchronized (EEProperties.class) {
-            // This sequence avoids an infinite loop when reloading as EEProperties.registerDefinition is called during reload
-
-            ArrayList<EEPropertiesLoadDefinition> existingLoadDefinitions = EEPropertiesLoadDefinition.getRegisteredDefinitions();
-            EEPropertiesLoadDefinition.sResetRegisteredDefinitions();
-
-            // This call does the basic initialization for EEProperties itself - including rereading the bootstrap file and internal logging settings
-            EEProperties.singletonInstance = new EEProperties();
-            
-            // Now load the previous definitions in order
-            EEProperties.singleton().reloadConfigurations(existingLoadDefinitions);
+    public ArrayList<String> reportMissingKeys(String keySetName, int[] slots) {
+        ArrayList<String> missingKeys = getMissingKeys(slots);
+        for (String missingKey : missingKeys) {
+            this.logger.warn(String.format("EEProperties.reportMissingKeys %s: no value for %s",keySetName,missingKey));
         }
+        return missingKeys;
     }
 
     /**
-     * Get the value of a (typed) Property Value
+     * Get a slot table that covers a slot
      *
-     * <p>Note - this call is only intended for internal use. It should not be used directly.</p>
+     * @param slot Slot
+     * @return Current table, rebuilt first if the slot was registered after it was built
+     */
+    private EEPropertiesSlots.Table slotTable(int slot) {
+        EEPropertiesSlots.Table table = this.slotTable;
+        if (slot >= table.properties.length) {
+            table = refreshSlotTable(null);
+        }
+        return table;
+    }
+
+    /**
+     * Bring the slot table up to date, rebuilding only the slots that changed where possible
      *
-     * @param propertyName Property name of the (typed) Property to retrieve
-     * @return value of the property as an Object
-     * @since 2.9
+     * @param generation Newly published generation, or null for the current one
+     * @return Slot table
      */
-    public Object getTypedPropertyValue(String propertyName) {
-        HashMap<String,Object> typedEntry = this.typedCoreProperties.get(propertyName);
-        if (typedEntry == null) {
-            return null;
+    private EEPropertiesSlots.Table refreshSlotTable(EEPropertiesLayeredStore.Generation generation) {
+        this.slotTableLock.lock();
+        try {
+            if (generation == null) {
+                generation = this.store.current();
+            }
+            EEPropertiesSlots.Table table = this.slotTable;
+            if (generation.getNumber() > table.generationNumber || EEPropertiesSlots.size() > table.properties.length) {
+                table = EEPropertiesSlots.table(generation,this,table);
+                this.slotTable = table;
+            }
+            return table;
+        }
+        finally {
+            this.slotTableLock.unlock();
         }
-        return typedEntry.get(EEProperties.TYPED_PROPERTY_VALUE);
     }
 
     /**
@@ -1184,13 +3665,13 @@ public class EEProperties {
      * @param propertyValue Value of the (typed) Property to set
      * @since 2.9
      */
-    public void setTypedPropertyValue(String propertyName,Object propertyValue) {
-        HashMap<String,Object> typedEntry = this.typedCoreProperties.get(propertyName);
-        if (typedEntry == null) {
-            typedEntry = new HashMap<String,Object>();
-        }
-        typedEntry.put(EEProperties.TYPED_PROPERTY_VALUE,propertyValue);
-        this.typedCoreProperties.put(propertyName,typedEntry);
+    public void setTypedPropertyValue(final String propertyName,final Object propertyValue) {
+        this.store.update(new Consumer<EEPropertiesLayeredStore.Editor>() {
+            public void accept(EEPropertiesLayeredStore.Editor editor) {
+                EEPropertiesTypedValue typedEntry = editor.getTyped(propertyName);
+                editor.putTyped(propertyName,new EEPropertiesTypedValue(typedEntry == null ? null : typedEntry.type,propertyValue));
+            }
+        });
     }
 
     /**
@@ -1201,11 +3682,11 @@ public class EEProperties {
      * @since 2.9
      */
     public String getTypedPropertyType(String propertyName) {
-        HashMap<String,Object> typedEntry = this.typedCoreProperties.get(propertyName);
+        EEPropertiesTypedValue typedEntry = getTypedEntry(this.store.current(),propertyName);
         if (typedEntry == null) {
             return null;
         }
-        return (String) typedEntry.get(EEProperties.TYPED_PROPERTY_TYPE);
+        return typedEntry.type;
     }
 
 
@@ -1218,13 +3699,13 @@ public class EEProperties {
      * @param propertyType Type of the (typed) Property to set
      * @since 2.9
      */
-    public void setTypedPropertyType(String propertyName,String propertyType) {
-        HashMap<String,Object> typedEntry = this.typedCoreProperties.get(propertyName);
-        if (typedEntry == null) {
-            typedEntry = new HashMap<String,Object>();
-        }
-        typedEntry.put(EEProperties.TYPED_PROPERTY_TYPE,propertyType);
-        this.typedCoreProperties.put(propertyName,typedEntry);
+    public void setTypedPropertyType(final String propertyName,final String propertyType) {
+        this.store.update(new Consumer<EEPropertiesLayeredStore.Editor>() {
+            public void accept(EEPropertiesLayeredStore.Editor editor) {
+                EEPropertiesTypedValue typedEntry = editor.getTyped(propertyName);
+                editor.putTyped(propertyName,new EEPropertiesTypedValue(propertyType,typedEntry == null ? null : typedEntry.value));
+            }
+        });
     }
 
     /**
@@ -1237,14 +3718,12 @@ public class EEProperties {
      * @param propertyType Type of the (typed) Property to set
      * @since 2.9
      */
-    public void setTypedPropertyValueAndType(String propertyName,Object propertyValue, String propertyType) {
-        HashMap<String,Object> typedEntry = this.typedCoreProperties.get(propertyName);
-        if (typedEntry == null) {
-            typedEntry = new HashMap<String,Object>();
-        }
-        typedEntry.put(EEProperties.TYPED_PROPERTY_TYPE,propertyType);
-        typedEntry.put(EEProperties.TYPED_PROPERTY_VALUE,propertyValue);
-        this.typedCoreProperties.put(propertyName,typedEntry);
+    public void setTypedPropertyValueAndType(final String propertyName,final Object propertyValue, final String propertyType) {
+        this.store.update(new Consumer<EEPropertiesLayeredStore.Editor>() {
+            public void accept(EEPropertiesLayeredStore.Editor editor) {
+                editor.putTyped(propertyName,new EEPropertiesTypedValue(propertyType,propertyValue));
+            }
+        });
     }
 
     /**
@@ -1301,27 +3780,274 @@ public class EEProperties {
             if (overrideBootstrapPropertiesFileName != null) {
                 bootstrapPropertiesFileName = overrideBootstrapPropertiesFileName;
             }
-            if ( (options != null ) && options.containsKey("net.olioinfo.eeproperties.bootstrapLogging.configurationFile") ) {
-                bootstrapPropertiesFileName = options.get("net.olioinfo.eeproperties.bootstrapLogging.configurationFile");
+            if ( (options != null ) && options.containsKey("net.olioinfo.eeproperties.bootstrapLogging.configurationFile") ) {
+                bootstrapPropertiesFileName = options.get("net.olioinfo.eeproperties.bootstrapLogging.configurationFile");
+            }
+        }
+
+
+        if (bootstrapLogging) {
+            Properties log4jBootstrapProperties = new Properties();
+            boolean loaded = loadPropertiesFromFileOrClass(log4jBootstrapProperties,bootstrapPropertiesFileName,EEProperties.class);
+            if (loaded) {
+                org.apache.log4j.PropertyConfigurator.configure(log4jBootstrapProperties);
+                this.logger.debug(String.format("EEproperties.initializeLogging: Bootstrap logging successfully configured using log4j settings %s",bootstrapPropertiesFileName));
+                this.logger.dumpProperties("trace",log4jBootstrapProperties);
+                this.logger.setBootstrapLogging(true);
+                this.logger.debug("EEproperties.initializeLogging: Bootstrap logging successfully initialized");
+            }
+            else {
+                this.logger.error("EEproperties.initializeLogging: error initializing bootstrap logging");
+            }
+        }
+
+    }
+
+    /**
+     * Initialize metrics
+     *
+     * <p>Must be called after the bootstrap file is loaded so the bootstrap file can enable metrics.</p>
+     *
+     * @param options Hash of options
+     */
+    private void initializeMetrics(HashMap<String,String> options) {
+        String metricsEnabled = getPropertyFromOptionsOrSystemOrPropertiesWithDefault(
+            "net.olioinfo.eeproperties.metrics.enabled",options,this.bootstrapProperties,"false");
+        if (metricsEnabled.equals("true")) {
+            int keyPrefixDepth = 0;
+            String keyPrefixDepthSetting = getPropertyFromOptionsOrSystemOrPropertiesWithDefault(
+                "net.olioinfo.eeproperties.metrics.keyPrefixDepth",options,this.bootstrapProperties,"0");
+            try {
+                keyPrefixDepth = Integer.parseInt(keyPrefixDepthSetting);
+            }
+            catch (NumberFormatException ex) {
+                this.logger.error(String.format("EEProperties.initializeMetrics: invalid key prefix depth %s. Using full keys",keyPrefixDepthSetting));
+            }
+            int maxTrackedKeys = EEPropertiesMetrics.DEFAULT_MAX_TRACKED_KEYS;
+            String maxTrackedKeysSetting = getPropertyFromOptionsOrSystemOrPropertiesWithDefault(
+                "net.olioinfo.eeproperties.metrics.maxTrackedKeys",options,this.bootstrapProperties,
+                String.valueOf(EEPropertiesMetrics.DEFAULT_MAX_TRACKED_KEYS));
+            try {
+                maxTrackedKeys = Integer.parseInt(maxTrackedKeysSetting);
+            }
+            catch (NumberFormatException ex) {
+                this.logger.error(String.format("EEProperties.initializeMetrics: invalid tracked key limit %s. Using %d",
+                    maxTrackedKeysSetting,EEPropertiesMetrics.DEFAULT_MAX_TRACKED_KEYS));
+            }
+            this.metrics = new EEPropertiesMetrics(keyPrefixDepth,maxTrackedKeys);
+            this.store.setMetrics(this.metrics);
+            this.logger.debug("EEProperties.initializeMetrics: metrics enabled");
+        }
+    }
+
+    /**
+     * Initialize the load profiler if enabled and not already initialized
+     *
+     * <p>Called before logging is initialized (options and JVM options only) and again once the bootstrap
+     * file has been loaded.</p>
+     *
+     * @param options Hash of options
+     * @param bootstrapProperties Bootstrap file contents, or null if not yet loaded
+     */
+    private void initializeLoadProfiler(HashMap<String,String> options, Properties bootstrapProperties) {
+        if (this.loadProfiler == null) {
+            boolean profilingEnabled = EEProperties.testSystemProperty("net.olioinfo.eeproperties.profiling.enabled","true")
+                || EEProperties.testOption(options,"net.olioinfo.eeproperties.profiling.enabled","true")
+                || (bootstrapProperties != null && "true".equals(bootstrapProperties.getProperty("net.olioinfo.eeproperties.profiling.enabled")));
+            if (profilingEnabled) {
+                this.loadProfiler = new EEPropertiesLoadProfiler();
+            }
+        }
+    }
+
+    /**
+     * Initialize key and value deduplication
+     *
+     * <p>Called before the bootstrap file is loaded, so its contents are deduplicated too, and again afterwards
+     * so the bootstrap file can disable deduplication.</p>
+     *
+     * @param options Hash of options
+     */
+    private void initializeStringPool(HashMap<String,String> options) {
+        String stringPoolEnabled = getPropertyFromOptionsOrSystemOrPropertiesWithDefault(
+            "net.olioinfo.eeproperties.stringPool.enabled",options,this.bootstrapProperties,"true");
+        this.stringPool = stringPoolEnabled.equals("true") ? EEPropertiesStringPool.shared() : null;
+    }
+
+    /**
+     * Enable off-heap storage for the store if requested
+     *
+     * @param options Hash of options
+     */
+    private void initializeOffHeapStore(HashMap<String,String> options) {
+        String offHeapEnabled = getPropertyFromOptionsOrSystemOrPropertiesWithDefault(
+            "net.olioinfo.eeproperties.store.offHeap.enabled",options,this.bootstrapProperties,"false");
+        String offHeapDirectory = getPropertyFromOptionsOrSystemOrPropertiesWithDefault(
+            "net.olioinfo.eeproperties.store.offHeap.directory",options,this.bootstrapProperties,null);
+        this.store.setOffHeap(offHeapEnabled.equals("true"),offHeapDirectory == null ? null : new File(offHeapDirectory));
+    }
+
+    /**
+     * Disable the store's key filters if requested
+     *
+     * @param options Hash of options
+     */
+    private void initializeKeyFilters(HashMap<String,String> options) {
+        String keyFiltersEnabled = getPropertyFromOptionsOrSystemOrPropertiesWithDefault(
+            "net.olioinfo.eeproperties.store.keyFilters.enabled",options,this.bootstrapProperties,"true");
+        this.store.setKeyFilters(keyFiltersEnabled.equals("true"));
+    }
+
+    /**
+     * Create sources for the configuration URLs, if any are set
+     *
+     * @param options Hash of options
+     */
+    private void initializeConfigSources(HashMap<String,String> options) {
+        String configurationUrls = getPropertyFromOptionsOrSystemOrPropertiesWithDefault(
+            "net.olioinfo.eeproperties.runtime.configurationUrls",options,this.bootstrapProperties,null);
+        if (configurationUrls == null || configurationUrls.trim().length() == 0) {
+            return;
+        }
+        String cacheDirectory = getPropertyFromOptionsOrSystemOrPropertiesWithDefault(
+            "net.olioinfo.eeproperties.runtime.configurationCacheDirectory",options,this.bootstrapProperties,
+            new File(System.getProperty("java.io.tmpdir"),"eeproperties-cache").getPath());
+        for (String configurationUrl : configurationUrls.trim().split("[\\s,]+")) {
+            this.urlConfigSources.add(new EEPropertiesHttpSource(configurationUrl,new File(cacheDirectory)));
+            this.logger.debug(String.format("EEProperties.initializeConfigSources adding configuration URL %s",configurationUrl));
+        }
+    }
+
+    /**
+     * Create the typed value cache if a maximum size is set
+     *
+     * @param options Hash of options
+     */
+    private void initializeTypedValueCache(HashMap<String,String> options) {
+        String maximumSize = getPropertyFromOptionsOrSystemOrPropertiesWithDefault(
+            "net.olioinfo.eeproperties.typedCache.maximumSize",options,this.bootstrapProperties,"0");
+        try {
+            int size = Integer.parseInt(maximumSize.trim());
+            this.typedValueCache = size > 0 ? new EEPropertiesTypedValueCache(size) : null;
+        }
+        catch (NumberFormatException e) {
+            this.logger.warn(String.format("EEProperties: ignoring invalid net.olioinfo.eeproperties.typedCache.maximumSize %s",maximumSize));
+            this.typedValueCache = null;
+        }
+    }
+
+    /**
+     * Create the secret cache, and the key provider if one is configured. Nothing is read until a secret is.
+     *
+     * @param options Hash of options
+     */
+    private void initializeSecrets(HashMap<String,String> options) {
+        String cacheTtlSeconds = getPropertyFromOptionsOrSystemOrPropertiesWithDefault(
+            "net.olioinfo.eeproperties.secrets.cacheTtlSeconds",options,this.bootstrapProperties,"300");
+        long timeToLiveSeconds = 300L;
+        try {
+            timeToLiveSeconds = Long.parseLong(cacheTtlSeconds.trim());
+        }
+        catch (NumberFormatException e) {
+            this.logger.warn(String.format("EEProperties: ignoring invalid net.olioinfo.eeproperties.secrets.cacheTtlSeconds %s",cacheTtlSeconds));
+        }
+        this.secretCache = new EEPropertiesSecretCache(TimeUnit.SECONDS.toNanos(timeToLiveSeconds));
+
+        String keyFile = getPropertyFromOptionsOrSystemOrPropertiesWithDefault(
+            "net.olioinfo.eeproperties.secrets.keyFile",options,this.bootstrapProperties,null);
+        String keyStore = getPropertyFromOptionsOrSystemOrPropertiesWithDefault(
+            "net.olioinfo.eeproperties.secrets.keyStore",options,this.bootstrapProperties,null);
+        if (keyFile != null) {
+            this.keyProvider = new EEPropertiesFileKeyProvider(new File(keyFile));
+        }
+        else if (keyStore != null) {
+            String keyStoreType = getPropertyFromOptionsOrSystemOrPropertiesWithDefault(
+                "net.olioinfo.eeproperties.secrets.keyStoreType",options,this.bootstrapProperties,"PKCS12");
+            String keyStorePassword = getPropertyFromOptionsOrSystemOrPropertiesWithDefault(
+                "net.olioinfo.eeproperties.secrets.keyStorePassword",options,this.bootstrapProperties,null);
+            String keyAlias = getPropertyFromOptionsOrSystemOrPropertiesWithDefault(
+                "net.olioinfo.eeproperties.secrets.keyAlias",options,this.bootstrapProperties,null);
+            this.keyProvider = new EEPropertiesKeyStoreKeyProvider(new File(keyStore),keyStoreType,
+                keyStorePassword == null ? null : keyStorePassword.toCharArray(),keyAlias,null);
+        }
+    }
+
+    /**
+     * Get the typed entry for a key in a generation, converting it through the typed value cache if it is
+     * enabled and the entry was not set explicitly
+     *
+     * @param generation Generation to read
+     * @param propertyName Property name
+     * @return Typed entry or null
+     */
+    EEPropertiesTypedValue getTypedEntry(EEPropertiesLayeredStore.Generation generation, String propertyName) {
+        EEPropertiesTypedValue typedEntry = generation.getTyped(propertyName);
+        if (typedEntry == null && this.typedValueCache != null && this.extendedPropertiesSyntax) {
+            String propertyValue = generation.getProperty(propertyName);
+            if (propertyValue != null) {
+                typedEntry = this.typedValueCache.get(propertyName,propertyValue,this.typedValueConverter);
+            }
+        }
+        return typedEntry;
+    }
+
+    /**
+     * Get the canonical instance of a key or value
+     *
+     * @param value String
+     * @return Canonical instance, or value itself if deduplication is disabled
+     */
+    private String canonicalize(String value) {
+        return this.stringPool == null ? value : this.stringPool.canonicalize(value);
+    }
+
+    /**
+     * Initialize the access profiler
+     *
+     * @param options Hash of options
+     */
+    private void initializeAccessProfiler(HashMap<String,String> options) {
+        String accessProfilingEnabled = getPropertyFromOptionsOrSystemOrPropertiesWithDefault(
+            "net.olioinfo.eeproperties.accessProfiling.enabled",options,this.bootstrapProperties,"false");
+        if (accessProfilingEnabled.equals("true")) {
+            int sampleInterval = EEPropertiesAccessProfiler.DEFAULT_SAMPLE_INTERVAL;
+            int topK = EEPropertiesAccessProfiler.DEFAULT_TOP_K;
+            String sampleIntervalSetting = getPropertyFromOptionsOrSystemOrPropertiesWithDefault(
+                "net.olioinfo.eeproperties.accessProfiling.sampleInterval",options,this.bootstrapProperties,null);
+            String topKSetting = getPropertyFromOptionsOrSystemOrPropertiesWithDefault(
+                "net.olioinfo.eeproperties.accessProfiling.topK",options,this.bootstrapProperties,null);
+            try {
+                if (sampleIntervalSetting != null) {
+                    sampleInterval = Integer.parseInt(sampleIntervalSetting);
+                }
+                if (topKSetting != null) {
+                    topK = Integer.parseInt(topKSetting);
+                }
+            }
+            catch (NumberFormatException ex) {
+                this.logger.error(String.format("EEProperties.initializeAccessProfiler: invalid setting %s",ex.getMessage()));
             }
+            this.accessProfiler = new EEPropertiesAccessProfiler(sampleInterval,topK);
+            this.logger.debug(String.format("EEProperties.initializeAccessProfiler: access profiling enabled, sampling 1 in %d reads",sampleInterval));
         }
+    }
 
-
-        if (bootstrapLogging) {
-            Properties log4jBootstrapProperties = new Properties();
-            boolean loaded = loadPropertiesFromFileOrClass(log4jBootstrapProperties,bootstrapPropertiesFileName,EEProperties.class);
-            if (loaded) {
-                org.apache.log4j.PropertyConfigurator.configure(log4jBootstrapProperties);
-                this.logger.debug(String.format("EEproperties.initializeLogging: Bootstrap logging successfully configured using log4j settings %s",bootstrapPropertiesFileName));
-                this.logger.dumpProperties("trace",log4jBootstrapProperties);
-                this.logger.setBootstrapLogging(true);
-                this.logger.debug("EEproperties.initializeLogging: Bootstrap logging successfully initialized");
+    /**
+     * Initialize JMX management
+     *
+     * @param options Hash of options
+     */
+    private void initializeManagement(HashMap<String,String> options) {
+        String jmxEnabled = getPropertyFromOptionsOrSystemOrPropertiesWithDefault(
+            "net.olioinfo.eeproperties.jmx.enabled",options,this.bootstrapProperties,"false");
+        if (jmxEnabled.equals("true")) {
+            if (EEPropertiesAdmin.register()) {
+                this.logger.debug(String.format("EEProperties.initializeManagement: registered MBean %s",EEPropertiesAdmin.OBJECT_NAME));
             }
             else {
-                this.logger.error("EEproperties.initializeLogging: error initializing bootstrap logging");
+                this.logger.error(String.format("EEProperties.initializeManagement: unable to register MBean %s",EEPropertiesAdmin.OBJECT_NAME));
             }
         }
-
     }
 
     /**
@@ -1349,7 +4075,7 @@ public class EEProperties {
 
         this.logger.debug(String.format("EEProperties.loadBootstrapFile bootstrap file name %s",corePropertiesFileName));
 
-        boolean loaded = loadPropertiesFromFileOrClass(this.coreProperties,corePropertiesFileName,EEProperties.class);
+        boolean loaded = loadPropertiesFromFileOrClass(this.bootstrapProperties,corePropertiesFileName,EEProperties.class);
         if (loaded) {
             this.logger.info("EEProperties.loadBootstrapFile bootstrap file loaded successfully.");
         }
@@ -1359,26 +4085,29 @@ public class EEProperties {
 
 
         this.runtimeEnvironment = getPropertyFromOptionsOrSystemOrPropertiesWithDefault(
-            "net.olioinfo.eeproperties.runtime.environment",options,this.coreProperties,this.runtimeEnvironment);
-        this.coreProperties.setProperty("net.olioinfo.eeproperties.runtime.environment",this.runtimeEnvironment);
+            "net.olioinfo.eeproperties.runtime.environment",options,this.bootstrapProperties,this.runtimeEnvironment);
+        this.bootstrapProperties.setProperty("net.olioinfo.eeproperties.runtime.environment",this.runtimeEnvironment);
 
         if (this.logger.isConsoleTracing()) {
             this.logger.trace("EEProperties.loadBootstrapFile bootstrap file contents.");
-            this.logger.dumpProperties("trace",this.coreProperties);
+            this.logger.dumpProperties("trace",this.bootstrapProperties);
             this.logger.trace(String.format("EEProperties.loadBootstrapFile effective environment now set to %s",this.runtimeEnvironment));
         }
 
 
-        String extendedPropertiesSyntaxSetting =  coreProperties.getProperty("net.olioinfo.eeproperties.extendedPropertiesSyntax.enabled");
+        String extendedPropertiesSyntaxSetting =  this.bootstrapProperties.getProperty("net.olioinfo.eeproperties.extendedPropertiesSyntax.enabled");
         if (extendedPropertiesSyntaxSetting != null && extendedPropertiesSyntaxSetting.equals("true")) {
             this.extendedPropertiesSyntax = true;
         }
 
         String additionalPathsAsString = getPropertyFromOptionsOrSystemOrPropertiesWithDefault(
-            "net.olioinfo.eeproperties.runtime.additionalConfigurationPaths",options,this.coreProperties,null);
+            "net.olioinfo.eeproperties.runtime.additionalConfigurationPaths",options,this.bootstrapProperties,null);
 
         this.searchPathsList.addAll(parseSearchPaths(additionalPathsAsString));
 
+        EnumMap<EEPropertiesLayeredStore.Layer,Properties> staged = new EnumMap<EEPropertiesLayeredStore.Layer,Properties>(EEPropertiesLayeredStore.Layer.class);
+        staged.put(EEPropertiesLayeredStore.Layer.BOOTSTRAP,this.bootstrapProperties);
+        publish(staged,EEProperties.class.getName());
 
     }
 
@@ -1426,7 +4155,7 @@ public class EEProperties {
 
         String returnValue = defaultValue;
 
-        if (this.coreProperties.containsKey(propertyName)) {
+        if (properties != null && properties.containsKey(propertyName)) {
             returnValue = (String) properties.get(propertyName);
         }
 
@@ -1456,6 +4185,8 @@ public class EEProperties {
         else {
             try {
                 InputStream is = null;
+                String source = fileName;
+                String definition = klass == null ? fileName : klass.getName();
                 if (fileName == null) {
                     this.logger.info(String.format("EEProperties.loadPropertiesFromFileOrClass no file name specified"));
                 }
@@ -1466,9 +4197,14 @@ public class EEProperties {
                         }
                     }
                     else if (klass != null) {
+                        long lookupStart = System.nanoTime();
                         URL url = klass.getResource(fileName);
+                        if (this.loadProfiler != null) {
+                            this.loadProfiler.record(EEPropertiesLoadProfiler.PHASE_CLASSPATH_LOOKUP,definition,fileName,lookupStart,-1,-1);
+                        }
                         if (url != null) {
                             is = url.openStream();
+                            source = url.toString();
                         }
                     }
                 }
@@ -1476,13 +4212,8 @@ public class EEProperties {
                     this.logger.error(String.format("EEProperties.loadPropertiesFromFileOrClass input stream not created. Check file name and location"));
                 }
                 else {
-                    Properties newProperties = new Properties();
-                    newProperties.load(is);
-                    newProperties = stripAllLeadingTrailingWhiteSpace(newProperties);
-                    //newProperties = EEProperties.substituteAll(newProperties);
-                    //convertToObjectInstances(newProperties);
-                    addAll(properties,newProperties);
-                    is.close();
+                    EEPropertiesConfigSource configSource = source.startsWith("/") ? new EEPropertiesFileSource(new File(source).getParent()) : this.classpathSource;
+                    mergePropertiesFromStream(properties,is,source,definition,configSource);
                     returnStatus = true;
                     this.logger.dumpProperties("debug",properties);
                 }
@@ -1499,76 +4230,240 @@ public class EEProperties {
 
 
     /**
-     * Load a properties file from a list of locations or relative to a class
+     * Start a load on the current thread for every HTTP and archive source, so that once a server can't be reached
+     * the rest of the load uses its cached files, and an archive is checked for replacement once per load
+     *
+     * @return Sources the load was started for
+     */
+    private List<EEPropertiesConfigSource> beginSourceLoad() {
+        ArrayList<EEPropertiesConfigSource> loadScopedSources = new ArrayList<EEPropertiesConfigSource>();
+        for (EEPropertiesConfigSource configSource : getConfigSources()) {
+            if (configSource instanceof EEPropertiesHttpSource) {
+                ((EEPropertiesHttpSource) configSource).beginLoad();
+                loadScopedSources.add(configSource);
+            }
+            else if (configSource instanceof EEPropertiesArchiveSource) {
+                ((EEPropertiesArchiveSource) configSource).beginLoad();
+                loadScopedSources.add(configSource);
+            }
+        }
+        return loadScopedSources;
+    }
+
+    /**
+     * End a load started with beginSourceLoad
+     *
+     * @param loadScopedSources Sources the load was started for
+     */
+    private void endSourceLoad(List<EEPropertiesConfigSource> loadScopedSources) {
+        for (EEPropertiesConfigSource configSource : loadScopedSources) {
+            if (configSource instanceof EEPropertiesHttpSource) {
+                ((EEPropertiesHttpSource) configSource).endLoad();
+            }
+            else {
+                ((EEPropertiesArchiveSource) configSource).endLoad();
+            }
+        }
+    }
+
+    /**
+     * Load a properties file from the first configuration source that has it
      *
      * @param properties Properties file to update.
-     * @param locations An array of absolute directory names
-     * @param fileName File name to load. Ignored if null
-     * @param klass Class to load file relative to. Ignored if null
-     * @return boolean true if loaded, false otherwise
+     * @param fileName File name to load
+     * @param klass Class to load file relative to
+     * @param externalOnly true to load the file only if the first source that has it is external
+     * @return Source the file was loaded from, or null if not loaded
      */
-    private boolean loadPropertiesFromLocationsOrClass(Properties properties,ArrayList<String> locations, String fileName, Class klass) {
+    private EEPropertiesConfigSource loadPropertiesFromSources(Properties properties, String fileName, Class klass, boolean externalOnly) {
 
-        boolean fileFound = false;
-        for (String location : locations ) {
-            String fullFileName = null;
-            fullFileName = String.format("%s/%s/%s",location,klass.getPackage().getName().replaceAll("\\.","/"),fileName);
-            if (! (new File(fullFileName).exists())) {
-                fullFileName = String.format("%s/%s",location,fileName);
-                if (! (new File(fullFileName).exists())) {
-                    fullFileName = null;
+        for (EEPropertiesConfigSource configSource : getConfigSources()) {
+            if (externalOnly && configSource == this.classpathSource) {
+                // Nothing after the classpath could be external
+                return null;
+            }
+            long lookupStart = System.nanoTime();
+            String location = configSource.locate(fileName,klass);
+            if (this.loadProfiler != null) {
+                if (configSource instanceof EEPropertiesClasspathSource) {
+                    this.loadProfiler.record(EEPropertiesLoadProfiler.PHASE_CLASSPATH_LOOKUP,klass.getName(),fileName,lookupStart,-1,-1);
+                }
+                else {
+                    this.loadProfiler.record(EEPropertiesLoadProfiler.PHASE_FILE_LOOKUP,klass.getName(),String.format("%s/%s",configSource,fileName),lookupStart,-1,-1);
                 }
             }
-            if (fullFileName != null) {
-                InputStream is = null;
+            if (location != null && externalOnly && ! configSource.isExternal()) {
+                return null;
+            }
+            if (location != null) {
                 try {
-                    is = new FileInputStream(fullFileName);
-                    Properties newProperties = new Properties();
-                    newProperties.load(is);
-                    newProperties = stripAllLeadingTrailingWhiteSpace(newProperties);
-                    //newProperties = EEProperties.substituteAll(newProperties);
-                    //convertToObjectInstances(newProperties);
-                    properties = addAll(properties,newProperties);
-                    is.close();
-                    fileFound = true;
-                    logger.debug(String.format("EEProperties.loadPropertiesFromLocationsOrClass Loaded class %s from %s",fileName,fullFileName));
+                    mergePropertiesFromStream(properties,configSource.open(location),location,klass.getName(),configSource);
+                    logger.debug(String.format("EEProperties.loadPropertiesFromSources Loaded file %s from %s",fileName,location));
+                    this.logger.dumpProperties("debug",properties);
+                    return configSource;
                 }
                 catch (Exception ex) {
-                    logger.info(String.format("EEProperties.loadPropertiesFromLocationsOrClass Unable to load file %s",fileName));
+                    logger.info(String.format("EEProperties.loadPropertiesFromSources Unable to load file %s from %s",fileName,location));
                 }
             }
-            if (fileFound) break;
         }
-        if (! fileFound) {
-            if (klass != null) {
-                InputStream is = null;
-                try {
-                    URL url = klass.getResource(fileName);
-                    if (url != null) {
-                        is = url.openStream();
-                    }
-                    Properties newProperties = new Properties();
-                    newProperties.load(is);
-                    newProperties = stripAllLeadingTrailingWhiteSpace(newProperties);
-                    //newProperties = EEProperties.substituteAll(newProperties);
-                    //convertToObjectInstances(newProperties);
-                    addAll(properties,newProperties);
-                    is.close();
-                    fileFound = true;
-                    logger.debug(String.format("EEProperties.loadPropertiesFromLocationsOrClass Loaded file %s relative to class %s",fileName,klass.getName()));
+        logger.error(String.format("EEProperties.loadPropertiesFromSources Unable to load file %s from anywhere",fileName));
+        return null;
+    }
+
+    /**
+     * Load the drop-in files of the configuration paths that end in a pattern. The files are read and parsed in
+     * parallel, then merged in lexical order.
+     *
+     * <p>The merged files of each directory are kept and reused by later definitions, and by switchEnvironment,
+     * until the directory or one of its files changes.</p>
+     *
+     * @param properties Properties to merge the files into
+     * @param klass Class of the load definition
+     * @return true if any file was loaded
+     */
+    private boolean loadDirectorySources(Properties properties, final Class klass) {
+        LinkedHashMap<String,EEPropertiesDirectorySource.Snapshot> snapshots = new LinkedHashMap<String,EEPropertiesDirectorySource.Snapshot>();
+        ArrayList<String> staleLocations = new ArrayList<String>();
+        final List<File> files = new ArrayList<File>();
+        for (String location : new LinkedHashSet<String>(this.searchPathsList)) {
+            if (EEPropertiesDirectorySource.isDirectoryPattern(location)) {
+                EEPropertiesDirectorySource directorySource = EEPropertiesDirectorySource.forLocation(location);
+                EEPropertiesDirectorySource.Snapshot snapshot = this.directorySnapshots.get(location);
+                if (snapshot == null || ! snapshot.isCurrent()) {
+                    snapshot = directorySource.snapshot();
+                    staleLocations.add(location);
+                    files.addAll(snapshot.getFiles());
                 }
-                catch (Exception ex) {
-                    logger.info(String.format("EEProperties.loadPropertiesFromLocationsOrClass Unable to load file %s relative to class %s",fileName,klass.getName()));
+                snapshots.put(location,snapshot);
+                // Adding or removing a file changes the directory's modification time
+                String directory = directorySource.getDirectory().getAbsolutePath();
+                EEPropertiesFileSource fileSource = new EEPropertiesFileSource(directory);
+                this.loadedFiles.put(directory,new LoadedFile(fileSource,fileSource.lastModified(directory)));
+            }
+        }
+
+        // Each task parses every tasks-th file, and the calling thread runs the first
+        final Properties[] parsed = new Properties[files.size()];
+        final int tasks = Math.min(files.size(),Runtime.getRuntime().availableProcessors());
+        List<CompletableFuture<Void>> futures = new ArrayList<CompletableFuture<Void>>(tasks);
+        for (int task = 1 ; task < tasks ; task++) {
+            final int first = task;
+            futures.add(CompletableFuture.runAsync(new Runnable() {
+                public void run() {
+                    parseDirectoryFiles(files,parsed,first,tasks,klass);
+                }
+            },LoadExecutorHolder.EXECUTOR));
+        }
+        if (tasks > 0) {
+            parseDirectoryFiles(files,parsed,0,tasks,klass);
+        }
+        for (CompletableFuture<Void> future : futures) {
+            future.join();
+        }
+
+        // Merge each re-read directory's files once, for this and later definitions
+        int fileIndex = 0;
+        for (String location : staleLocations) {
+            EEPropertiesDirectorySource.Snapshot snapshot = snapshots.get(location);
+            Properties directoryProperties = new Properties();
+            boolean directoryLoaded = false;
+            for (int i = 0 ; i < snapshot.getFiles().size() ; i++) {
+                Properties fileProperties = parsed[fileIndex++];
+                if (fileProperties != null) {
+                    addAll(directoryProperties,fileProperties);
+                    directoryLoaded = true;
                 }
             }
+            snapshot = snapshot.withProperties(directoryProperties,directoryLoaded);
+            snapshots.put(location,snapshot);
+            this.directorySnapshots.put(location,snapshot);
         }
-        if (fileFound) {
-            this.logger.dumpProperties("debug",properties);
+
+        boolean loaded = false;
+        for (EEPropertiesDirectorySource.Snapshot snapshot : snapshots.values()) {
+            if (snapshot.isLoaded()) {
+                addAll(properties,snapshot.getProperties());
+                loaded = true;
+            }
         }
-        else {
-            logger.error(String.format("EEProperties.loadPropertiesFromLocationsOrClass Unable to load file %s from anywhere",fileName));
+        return loaded;
+    }
+
+    /**
+     * Parse every step-th drop-in file starting at first
+     *
+     * @param files Drop-in files
+     * @param parsed Parsed properties, by file. Left null for a file that can't be read
+     * @param first Index of the first file
+     * @param step Distance between files
+     * @param klass Class of the load definition
+     */
+    private void parseDirectoryFiles(List<File> files, Properties[] parsed, int first, int step, Class klass) {
+        for (int i = first ; i < files.size() ; i += step) {
+            File file = files.get(i);
+            String location = file.getAbsolutePath();
+            Properties fileProperties = new Properties();
+            try {
+                EEPropertiesFileSource fileSource = new EEPropertiesFileSource(file.getParent());
+                mergePropertiesFromStream(fileProperties,fileSource.open(location),location,klass.getName(),fileSource);
+                parsed[i] = fileProperties;
+                logger.debug(String.format("EEProperties.parseDirectoryFiles Loaded drop-in file %s",location));
+            }
+            catch (Exception ex) {
+                logger.info(String.format("EEProperties.parseDirectoryFiles Unable to load drop-in file %s",location));
+            }
+        }
+    }
+
+    /**
+     * Read, parse and merge properties from an input stream. The stream is always closed.
+     *
+     * <p>Records metrics, profiling events and the loaded file's modification time as applicable.</p>
+     *
+     * @param properties Properties to merge into
+     * @param is Input stream to read
+     * @param source File name or URL the stream was opened on
+     * @param definition Load definition (class name) the file belongs to
+     * @throws IOException if the stream can't be read
+     */
+    private void mergePropertiesFromStream(Properties properties, InputStream is, String source, String definition,
+                                           EEPropertiesConfigSource configSource) throws IOException {
+        long readStart = System.nanoTime();
+        byte[] bytes;
+        try {
+            ByteArrayOutputStream bytesRead = new ByteArrayOutputStream();
+            byte[] buffer = new byte[8192];
+            int count;
+            while ((count = is.read(buffer)) != -1) {
+                bytesRead.write(buffer,0,count);
+            }
+            bytes = bytesRead.toByteArray();
+        }
+        finally {
+            is.close();
+        }
+        long parseStart = System.nanoTime();
+        if (this.loadProfiler != null) {
+            this.loadProfiler.record(EEPropertiesLoadProfiler.PHASE_READ,definition,source,readStart,bytes.length,-1);
+            parseStart = System.nanoTime();
         }
-        return fileFound;
+        Properties newProperties = new Properties();
+        newProperties.load(new ByteArrayInputStream(bytes));
+        newProperties = stripAllLeadingTrailingWhiteSpace(newProperties);
+        long mergeStart = System.nanoTime();
+        if (this.loadProfiler != null) {
+            this.loadProfiler.record(EEPropertiesLoadProfiler.PHASE_PARSE,definition,source,parseStart,bytes.length,newProperties.size());
+            mergeStart = System.nanoTime();
+        }
+        addAll(properties,newProperties);
+        if (this.loadProfiler != null) {
+            this.loadProfiler.record(EEPropertiesLoadProfiler.PHASE_MERGE,definition,source,mergeStart,-1,newProperties.size());
+        }
+        if (this.metrics != null) {
+            this.metrics.recordFileLoad(source,mergeStart - readStart,System.nanoTime() - mergeStart);
+        }
+        this.loadedFiles.put(source,new LoadedFile(configSource,configSource.lastModified(source)));
     }
     
 
@@ -1585,7 +4480,7 @@ public class EEProperties {
         if (searchPaths != null && searchPaths.length() > 0 ) {
             String[] searchPathsArray = searchPaths.split(":");
             for (int i = 0 ; i < searchPathsArray.length ; i++ ) {
-                searchPathsList.add(searchPathsArray[i]);
+                searchPathsList.addIfAbsent(searchPathsArray[i]);
                 logger.debug(String.format("EEProperties.parseSearchPaths adding search path %s",searchPathsArray[i]));
             }
         }
@@ -1606,7 +4501,7 @@ public class EEProperties {
         Iterator<String> propertyNamesItr = propertyNames.iterator();
         while (propertyNamesItr.hasNext()) {
             String propertyName = propertyNamesItr.next();
-            existingProperties.setProperty(propertyName,removeLeadingTrailingWhiteSpace(newProperties.getProperty(propertyName)));
+            existingProperties.setProperty(canonicalize(propertyName),canonicalize(removeLeadingTrailingWhiteSpace(newProperties.getProperty(propertyName))));
         }
         return existingProperties;
 
@@ -1614,161 +4509,227 @@ public class EEProperties {
 
 
     /**
-     * Convert properties to object instances
+     * Publish staged properties to the layered store as one new generation
      *
-     * <p>Internal storage is updated. If errors occur during conversion no entry is made in the interance storage.</p>
-     *
-     * @param newProperties
+     * <p>Variables are substituted in the staged keys and in keys still unresolved from earlier loads, against
+     * the merged view of all layers. Typed values are converted only for those keys.</p>
      *
+     * @param staged Properties to publish by layer
+     * @param definition Load definition (class name) the properties belong to
+     * @return Number of keys published
      */
-    private void convertToObjectInstances(Properties newProperties) {
-
-        Pattern objectTypeRegex = Pattern.compile("^\\[([^]]+)\\](.+)$", Pattern.CASE_INSENSITIVE);
-
-        if (this.extendedPropertiesSyntax) {
-            Set<String> propertyNames = newProperties.stringPropertyNames();
-            Iterator<String> propertyNamesItr = propertyNames.iterator();
-            while (propertyNamesItr.hasNext()) {
-                String propertyName = propertyNamesItr.next();
-                String propertyValue = newProperties.getProperty(propertyName);
-                Matcher matcher = objectTypeRegex.matcher(propertyValue);
-                if (matcher.matches()) {
-                    String objectType = matcher.group(1);
-                    String objectTypeLowerCase = objectType.toLowerCase();
-                    String stringValue = removeLeadingTrailingWhiteSpace(matcher.group(2));
-                    Object returnedInstance = convertToObjectInstance(objectType,stringValue);
-                    if (returnedInstance != null) {
-                        try {
-                            HashMap<String,Object> valueAndType = new HashMap<String,Object>();
-                            if (objectTypeLowerCase.startsWith("arraylist")) {
-                                ArrayList<Object> returnedList  = (ArrayList<Object>) returnedInstance;
-                                String arrayListType = (String) returnedList.get(0);
-                                if (arrayListType.equals("string")) {
-                                    valueAndType.put(EEProperties.TYPED_PROPERTY_TYPE,"ArrayList<String>");
-                                    valueAndType.put(EEProperties.TYPED_PROPERTY_VALUE, returnedList.get(1));
-                                }
-                                else if (arrayListType.equals("integer")) {
-                                    valueAndType.put(EEProperties.TYPED_PROPERTY_TYPE,"ArrayList<Integer>");
-                                    valueAndType.put(EEProperties.TYPED_PROPERTY_VALUE, returnedList.get(1));
-                                }
-                                this.typedCoreProperties.put(propertyName,valueAndType);
+    private int publish(final EnumMap<EEPropertiesLayeredStore.Layer,Properties> staged, final String definition) {
+        final int[] keys = new int[1];
+        this.store.update(new Consumer<EEPropertiesLayeredStore.Editor>() {
+            public void accept(EEPropertiesLayeredStore.Editor editor) {
+                EnumMap<EEPropertiesLayeredStore.Layer,HashSet<String>> touched =
+                    new EnumMap<EEPropertiesLayeredStore.Layer,HashSet<String>>(EEPropertiesLayeredStore.Layer.class);
+                for (EEPropertiesLayeredStore.Layer layer : EEPropertiesLayeredStore.Layer.values()) {
+                    touched.put(layer,new HashSet<String>());
+                }
+                for (Map.Entry<EEPropertiesLayeredStore.Layer,Properties> layerEntry : staged.entrySet()) {
+                    Properties layerProperties = layerEntry.getValue();
+                    for (String propertyName : layerProperties.stringPropertyNames()) {
+                        String propertyValue = layerProperties.getProperty(propertyName);
+                        editor.put(layerEntry.getKey(),propertyName,propertyValue);
+                        touched.get(layerEntry.getKey()).add(propertyName);
+                        keys[0]++;
+                        if (layerEntry.getKey() == EEPropertiesLayeredStore.Layer.DEFAULTS) {
+                            if (propertyValue.contains("${")) {
+                                EEProperties.this.rawDefaultValues.put(propertyName,propertyValue);
                             }
                             else {
-                                valueAndType.put(EEProperties.TYPED_PROPERTY_TYPE,objectType);
-                                valueAndType.put(EEProperties.TYPED_PROPERTY_VALUE,returnedInstance);
-                                this.typedCoreProperties.put(propertyName,valueAndType);
+                                EEProperties.this.rawDefaultValues.remove(propertyName);
                             }
-
-                            
                         }
-                        catch (Exception ex) {
-                            logger.debug(String.format("Failed to cast %s to an object instance of type %s",stringValue,objectType),ex);
+                    }
+                }
+                for (String propertyName : EEProperties.this.unresolvedKeys) {
+                    for (EEPropertiesLayeredStore.Layer layer : EEPropertiesLayeredStore.Layer.values()) {
+                        if (editor.get(layer,propertyName) != null) {
+                            touched.get(layer).add(propertyName);
                         }
+                    }
+                }
 
+                long phaseStart = System.nanoTime();
+                EEProperties.substituteAll(editor,touched,EEProperties.this.metrics,EEProperties.this.logger);
+                if (EEProperties.this.loadProfiler != null) {
+                    EEProperties.this.loadProfiler.record(EEPropertiesLoadProfiler.PHASE_SUBSTITUTE_ALL,definition,null,phaseStart,-1,keys[0]);
+                    phaseStart = System.nanoTime();
+                }
+
+                HashSet<String> converted = new HashSet<String>();
+                EEProperties.this.unresolvedKeys.clear();
+                for (HashSet<String> layerKeys : touched.values()) {
+                    for (String propertyName : layerKeys) {
+                        String propertyValue = editor.resolve(propertyName);
+                        if (propertyValue == null || ! converted.add(propertyName)) {
+                            continue;
+                        }
+                        if (propertyValue.contains("${")) {
+                            EEProperties.this.unresolvedKeys.add(propertyName);
+                        }
+                        updateTypedValue(editor,propertyName,propertyValue);
                     }
                 }
-                else {
-                    // If it's'nothing we recognize, it's a String
-                    HashMap<String,Object> valueAndType = new HashMap<String,Object>();
-                    valueAndType.put(EEProperties.TYPED_PROPERTY_TYPE,"String");
-                    valueAndType.put(EEProperties.TYPED_PROPERTY_VALUE, propertyValue);
-                    this.typedCoreProperties.put(propertyName,valueAndType);
+                if (EEProperties.this.loadProfiler != null) {
+                    EEProperties.this.loadProfiler.record(EEPropertiesLoadProfiler.PHASE_CONVERT_TO_OBJECT_INSTANCES,definition,null,phaseStart,-1,converted.size());
                 }
             }
-        }
-        
-
+        });
+        return keys[0];
     }
 
-
     /**
-     * Convert a String value to an object value
+     * Publish the environment and external layers for a new runtime environment, replacing the current ones
      *
-     * @param objectType Type of object to convert to
-     * @param stringValue String value to convert
-     * @return Object instance with the specified value or null if conversion failed
+     * @param staged New contents of the environment and external layers
+     * @param environment New runtime environment
      */
-    private Object convertToObjectInstance(String objectType, String stringValue ) {
-
-        Pattern arrayListRegex = Pattern.compile("^[^<]+<([^>]+)>$", Pattern.CASE_INSENSITIVE);
-
-        Object returnedInstance = null;
-        String objectTypeLowerCase = objectType.toLowerCase();
-        try {
-            if (objectTypeLowerCase.equals("integer")) {
-                returnedInstance = new Integer(stringValue);
-            }
-            else if (objectTypeLowerCase.equals("short")) {
-                returnedInstance = new Short(stringValue);
-            }
-            else if (objectTypeLowerCase.equals("long")) {
-                returnedInstance = new Long(stringValue);
-            }
-            else if (objectTypeLowerCase.equals("byte")) {
-                returnedInstance = new Byte(stringValue);
-            }
-            else if (objectTypeLowerCase.equals("float")) {
-                returnedInstance = new Float(stringValue);
-            }
-            else if (objectTypeLowerCase.equals("double")) {
-                returnedInstance = new Double(stringValue);
-            }
-            else if (objectTypeLowerCase.equals("boolean")) {
-                if (stringValue.equalsIgnoreCase("true")) {
-                    returnedInstance = Boolean.TRUE;                    
-                }
-                else if (stringValue.equalsIgnoreCase("false")) {
-                    returnedInstance = Boolean.FALSE;
+    private void publishEnvironment(final EnumMap<EEPropertiesLayeredStore.Layer,Properties> staged, final String environment) {
+        this.store.update(new Consumer<EEPropertiesLayeredStore.Editor>() {
+            public void accept(EEPropertiesLayeredStore.Editor editor) {
+                // The store's update lock is held, so the current generation is the one being replaced
+                EEPropertiesLayeredStore.Generation previous = EEProperties.this.store.current();
+                final HashSet<String> affected = new HashSet<String>();
+                BiConsumer<String,String> collect = new BiConsumer<String,String>() {
+                    public void accept(String propertyName, String propertyValue) {
+                        affected.add(propertyName);
+                    }
+                };
+                editor.forEach(EEPropertiesLayeredStore.Layer.ENVIRONMENT,collect);
+                editor.forEach(EEPropertiesLayeredStore.Layer.EXTERNAL,collect);
+                editor.clear(EEPropertiesLayeredStore.Layer.ENVIRONMENT);
+                editor.clear(EEPropertiesLayeredStore.Layer.EXTERNAL);
+
+                EnumMap<EEPropertiesLayeredStore.Layer,HashSet<String>> touched =
+                    new EnumMap<EEPropertiesLayeredStore.Layer,HashSet<String>>(EEPropertiesLayeredStore.Layer.class);
+                for (EEPropertiesLayeredStore.Layer layer : EEPropertiesLayeredStore.Layer.values()) {
+                    touched.put(layer,new HashSet<String>());
                 }
-            }
-            else if (objectTypeLowerCase.equals("date")) {
-                if (stringValue.indexOf("T") > -1) {
-                    SimpleDateFormat dateAndTime = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ssZ");
-                    returnedInstance = dateAndTime.parse(stringValue);
+                for (Map.Entry<EEPropertiesLayeredStore.Layer,Properties> layerEntry : staged.entrySet()) {
+                    Properties layerProperties = layerEntry.getValue();
+                    for (String propertyName : layerProperties.stringPropertyNames()) {
+                        editor.put(layerEntry.getKey(),propertyName,layerProperties.getProperty(propertyName));
+                        touched.get(layerEntry.getKey()).add(propertyName);
+                    }
                 }
-                else {
-                    SimpleDateFormat dateOnly = new SimpleDateFormat("yyyy-MM-dd");
-                    returnedInstance = dateOnly.parse(stringValue);
+                // Defaults that contain variables are substituted again from their values as read
+                for (Map.Entry<String,String> rawDefault : EEProperties.this.rawDefaultValues.entrySet()) {
+                    editor.put(EEPropertiesLayeredStore.Layer.DEFAULTS,rawDefault.getKey(),rawDefault.getValue());
+                    touched.get(EEPropertiesLayeredStore.Layer.DEFAULTS).add(rawDefault.getKey());
                 }
-            }
-            else if (objectTypeLowerCase.startsWith("arraylist")) {
-                ArrayList<Object> returnedArray = new ArrayList<Object>();
-                String[] rawStringValues = stringValue.split(",");
-                Matcher arrayListMatcher = arrayListRegex.matcher(objectTypeLowerCase);
-                if (arrayListMatcher.matches()) {
-                    String arrayListType = arrayListMatcher.group(1);
-                    if (arrayListType.equals("string")) {
-                        ArrayList<String> stringArrayList = new ArrayList<String>();
-                        for (String rawString : rawStringValues ) {
-                            stringArrayList.add(removeLeadingTrailingWhiteSpace(rawString));
+                for (String propertyName : EEProperties.this.unresolvedKeys) {
+                    for (EEPropertiesLayeredStore.Layer layer : EEPropertiesLayeredStore.Layer.values()) {
+                        if (editor.get(layer,propertyName) != null) {
+                            touched.get(layer).add(propertyName);
                         }
-                        returnedArray.add(arrayListType);
-                        returnedArray.add(stringArrayList);
                     }
-                    else if (arrayListType.equals("integer")) {
-                        ArrayList<Integer> integerArrayList = new ArrayList<Integer>();
-                        for (String rawString : rawStringValues ) {
-                            integerArrayList.add(new Integer(removeLeadingTrailingWhiteSpace(rawString)));
-                        }
-                        returnedArray.add(arrayListType);
-                        returnedArray.add(integerArrayList);
+                }
+                editor.put(EEPropertiesLayeredStore.Layer.BOOTSTRAP,"net.olioinfo.eeproperties.runtime.environment",environment);
+                affected.add("net.olioinfo.eeproperties.runtime.environment");
+
+                EEProperties.substituteAll(editor,touched,EEProperties.this.metrics,EEProperties.this.logger);
+
+                EEProperties.this.unresolvedKeys.clear();
+                for (HashSet<String> layerKeys : touched.values()) {
+                    affected.addAll(layerKeys);
+                }
+                for (String propertyName : affected) {
+                    String propertyValue = editor.resolve(propertyName);
+                    if (propertyValue == null) {
+                        editor.removeTyped(propertyName);
+                        continue;
+                    }
+                    if (propertyValue.contains("${")) {
+                        EEProperties.this.unresolvedKeys.add(propertyName);
                     }
+                    // Only keys whose value changed need converting
+                    if (! propertyValue.equals(previous.getProperty(propertyName))) {
+                        updateTypedValue(editor,propertyName,propertyValue);
+                    }
+                }
+            }
+        });
+    }
+
+    /**
+     * Convert a value being published, or drop its typed value if conversion is left to the typed value cache
+     *
+     * @param editor Store editor
+     * @param propertyName Property name
+     * @param propertyValue Resolved value
+     */
+    private void updateTypedValue(EEPropertiesLayeredStore.Editor editor, String propertyName, String propertyValue) {
+        if (this.typedValueCache != null) {
+            // Converted when first read
+            editor.removeTyped(propertyName);
+        }
+        else if (this.extendedPropertiesSyntax) {
+            EEPropertiesTypedValue typedValue = convertToTypedValue(propertyName,propertyValue);
+            if (typedValue != null) {
+                editor.putTyped(propertyName,typedValue);
+            }
+            else {
+                editor.removeTyped(propertyName);
+            }
+        }
+    }
 
 
-                    returnedInstance = returnedArray;
+    /**
+     * Convert properties to object instances
+     *
+     * <p>Internal storage is updated. If errors occur during conversion no entry is made in the interance storage.</p>
+     *
+     * @param newProperties
+     *
+     */
+    private void convertToObjectInstances(final Properties newProperties) {
 
+        if (this.extendedPropertiesSyntax) {
+            this.store.update(new Consumer<EEPropertiesLayeredStore.Editor>() {
+                public void accept(EEPropertiesLayeredStore.Editor editor) {
+                    for (String propertyName : newProperties.stringPropertyNames()) {
+                        EEPropertiesTypedValue typedValue = convertToTypedValue(propertyName,newProperties.getProperty(propertyName));
+                        if (typedValue != null) {
+                            editor.putTyped(propertyName,typedValue);
+                        }
+                    }
                 }
+            });
+        }
+        
 
-            }
+    }
 
+    /**
+     * Convert a property value to a typed value
+     *
+     * @param propertyName Property name
+     * @param propertyValue Property value
+     * @return Typed value or null if the value didn't convert
+     */
+    private EEPropertiesTypedValue convertToTypedValue(String propertyName, String propertyValue) {
+        Matcher matcher = EEProperties.OBJECT_TYPE_PATTERN.matcher(propertyValue);
+        if (! matcher.matches()) {
+            // If it's'nothing we recognize, it's a String
+            return new EEPropertiesTypedValue("String",propertyValue);
+        }
+        String objectType = matcher.group(1);
+        String stringValue = removeLeadingTrailingWhiteSpace(matcher.group(2));
+        EEPropertiesTypedValue typedValue = null;
+        try {
+            typedValue = EEPropertiesConverters.convert(objectType,stringValue);
         }
         catch (Exception ex) {
             logger.debug(String.format("Failed to convert %s to an object of type %s",stringValue,objectType),ex);
-            returnedInstance = null;
         }
-
-        return returnedInstance;
-
+        if (typedValue == null && this.metrics != null) {
+            this.metrics.recordConversionFailure(propertyName);
+        }
+        return typedValue;
     }
 
 
@@ -1780,6 +4741,28 @@ public class EEProperties {
      * @return Properties object with all properties substituted
      */
     public static Properties substituteAll(Properties existingProperties) {
+        return EEProperties.substituteAll(existingProperties,null,null);
+    }
+
+    /**
+     * Perform variable substitution for all properties, recording the number of passes taken
+     *
+     * <p>A value that refers back to itself, directly or through other properties, is left unresolved.</p>
+     *
+     * @param existingProperties Existing properties (this is the instance to which properties are added)
+     * @param metrics Metrics registry to record passes in. Ignored if null
+     * @param logger Logger to warn about self-referencing values. Ignored if null
+     * @return Properties object with all properties substituted
+     */
+    private static Properties substituteAll(final Properties existingProperties, EEPropertiesMetrics metrics,
+                                            EEPropertiesAvailableLogger logger) {
+        SubstitutionGuard guard = new SubstitutionGuard(new Function<String,String>() {
+            public String apply(String varName) {
+                return existingProperties.getProperty(varName);
+            }
+        });
+        HashSet<String> cyclicNames = new HashSet<String>();
+        int maximumPasses = existingProperties.size() + 1;
         Integer totalPasses = 0;
         boolean anySubstitutionFound = true;
         while (anySubstitutionFound ) {
@@ -1788,28 +4771,109 @@ public class EEProperties {
             Set<String> propertyNames = existingProperties.stringPropertyNames();
             for (String propertyName : propertyNames) {
                 String propertyValue =  existingProperties.getProperty(propertyName);
-                String substitutedName = EEProperties.substituteVariables(propertyName,existingProperties);
-                if (substitutedName == null ) {
+                String substitutedName = guard.resolve(propertyName,propertyName);
+                if (substitutedName == null || substitutedName.equals(propertyName)) {
                   substitutedName = propertyName;
                 }
                 else {
                   anySubstitutionFound = true;
                 }
                 existingProperties.setProperty(substitutedName,propertyValue);
-                String substitutedValue = EEProperties.substituteVariables(propertyValue,existingProperties);
-                if (substitutedValue == null) {
+                String substitutedValue = guard.resolve(substitutedName,propertyValue);
+                if (substitutedValue == null || substitutedValue.equals(propertyValue)) {
                     substitutedValue = propertyValue;
+                    if (guard.getCycleVariable() != null && cyclicNames.add(substitutedName) && logger != null) {
+                        logger.warn(String.format("EEProperties.substituteAll: %s refers to itself through ${%s}. Leaving it unresolved",substitutedName,guard.getCycleVariable()));
+                    }
                 }
                 else {
                     anySubstitutionFound = true;
                 }
                 existingProperties.setProperty(substitutedName,substitutedValue);
             }
+            if (anySubstitutionFound && totalPasses >= maximumPasses) {
+                if (logger != null) {
+                    logger.warn(String.format("EEProperties.substituteAll: still substituting after %d passes. Leaving the remaining variables unresolved",totalPasses));
+                }
+                break;
+            }
+        }
+        if (metrics != null) {
+            metrics.recordSubstitutionPasses(totalPasses);
         }
         return existingProperties;
         
     }
 
+    /**
+     * Perform variable substitution for keys being published to the layered store, recording the number of passes taken
+     *
+     * <p>Each key is substituted within its own layer. Variables are resolved against the merged view of all layers.
+     * A value that refers back to itself, directly or through other keys, is left unresolved.</p>
+     *
+     * @param editor Store editor
+     * @param touched Keys to substitute by layer. Keys created by substitution in a key name are added
+     * @param metrics Metrics registry to record passes in. Ignored if null
+     * @param logger Logger to warn about self-referencing values
+     */
+    private static void substituteAll(final EEPropertiesLayeredStore.Editor editor,
+            EnumMap<EEPropertiesLayeredStore.Layer,HashSet<String>> touched, EEPropertiesMetrics metrics,
+            EEPropertiesAvailableLogger logger) {
+        SubstitutionGuard guard = new SubstitutionGuard(new Function<String,String>() {
+            public String apply(String varName) {
+                return editor.resolve(varName);
+            }
+        });
+        HashSet<String> cyclicNames = new HashSet<String>();
+        int maximumPasses = 1;
+        for (HashSet<String> layerKeys : touched.values()) {
+            maximumPasses += layerKeys.size();
+        }
+        int totalPasses = 0;
+        boolean anySubstitutionFound = true;
+        while (anySubstitutionFound) {
+            anySubstitutionFound = false;
+            totalPasses = totalPasses + 1;
+            for (Map.Entry<EEPropertiesLayeredStore.Layer,HashSet<String>> layerEntry : touched.entrySet()) {
+                EEPropertiesLayeredStore.Layer layer = layerEntry.getKey();
+                for (String propertyName : new ArrayList<String>(layerEntry.getValue())) {
+                    String propertyValue = editor.get(layer,propertyName);
+                    if (propertyValue == null) {
+                        continue;
+                    }
+                    String substitutedName = guard.resolve(propertyName,propertyName);
+                    if (substitutedName == null || substitutedName.equals(propertyName)) {
+                        substitutedName = propertyName;
+                    }
+                    else {
+                        anySubstitutionFound = true;
+                        editor.remove(layer,propertyName);
+                        layerEntry.getValue().remove(propertyName);
+                        layerEntry.getValue().add(substitutedName);
+                    }
+                    String substitutedValue = guard.resolve(substitutedName,propertyValue);
+                    if (substitutedValue == null || substitutedValue.equals(propertyValue)) {
+                        substitutedValue = propertyValue;
+                        if (guard.getCycleVariable() != null && cyclicNames.add(substitutedName)) {
+                            logger.warn(String.format("EEProperties.substituteAll: %s refers to itself through ${%s}. Leaving it unresolved",substitutedName,guard.getCycleVariable()));
+                        }
+                    }
+                    else {
+                        anySubstitutionFound = true;
+                    }
+                    editor.put(layer,substitutedName,substitutedValue);
+                }
+            }
+            if (anySubstitutionFound && totalPasses >= maximumPasses) {
+                logger.warn(String.format("EEProperties.substituteAll: still substituting after %d passes. Leaving the remaining variables unresolved",totalPasses));
+                break;
+            }
+        }
+        if (metrics != null) {
+            metrics.recordSubstitutionPasses(totalPasses);
+        }
+    }
+
     /**
      * Strip leading and trailing blanks from all properties
      *
@@ -1836,11 +4900,138 @@ public class EEProperties {
      * @return String with leading and trailing whitespace removed
      */
     private String removeLeadingTrailingWhiteSpace(String inputString) {
+        int length = inputString.length();
+        if (length == 0 || (! isWhiteSpace(inputString.charAt(0)) && ! isWhiteSpace(inputString.charAt(length - 1)))) {
+            // Nothing to remove. Keep the same instance so it isn't duplicated.
+            return inputString;
+        }
         String outputString = inputString.replaceFirst("^\\s*","");
         outputString = outputString.replaceFirst("\\s*$","");
         return outputString;
     }
 
+    /**
+     * Check for a character matched by \s in a regular expression
+     *
+     * @param c Character
+     * @return true if whitespace
+     */
+    private static boolean isWhiteSpace(char c) {
+        return c == ' ' || c == '\t' || c == '\n' || c == '\u000B' || c == '\f' || c == '\r';
+    }
+
+    /**
+     * Property lookup for substituteAll that follows variables whose values hold further variables
+     *
+     * <p>A variable met again while it is being expanded is a cycle. The whole value is then left unresolved, so a
+     * line such as 'a=x${a}' cannot grow on every pass.</p>
+     */
+    private static final class SubstitutionGuard implements Function<String,String> {
+
+        /**
+         * Lookup of unresolved values
+         */
+        private final Function<String,String> lookup;
+
+        /**
+         * Names being expanded
+         */
+        private final HashSet<String> expanding = new HashSet<String>();
+
+        /**
+         * Variable that closed a cycle in the last resolve, or null
+         */
+        private String cycleVariable;
+
+        SubstitutionGuard(Function<String,String> lookup) {
+            this.lookup = lookup;
+        }
+
+        /**
+         * Substitute the variables in a property name or value
+         *
+         * @param propertyName Name of the property being substituted
+         * @param inputString String to substitute
+         * @return String with substitutions or null if no substitutions or the property refers to itself
+         */
+        String resolve(String propertyName, String inputString) {
+            this.expanding.clear();
+            this.cycleVariable = null;
+            this.expanding.add(propertyName);
+            String resolved = EEProperties.resolveVariables(inputString,this);
+            return this.cycleVariable == null ? resolved : null;
+        }
+
+        /**
+         * Get the variable that closed a cycle in the last resolve
+         *
+         * @return Variable name or null if there was no cycle
+         */
+        String getCycleVariable() {
+            return this.cycleVariable;
+        }
+
+        public String apply(String varName) {
+            if (this.cycleVariable != null) {
+                return null;
+            }
+            if (this.expanding.contains(varName)) {
+                this.cycleVariable = varName;
+                return null;
+            }
+            String value = this.lookup.apply(varName);
+            if (value == null || value.indexOf("${") == -1) {
+                return value;
+            }
+            this.expanding.add(varName);
+            try {
+                String resolved = EEProperties.resolveVariables(value,this);
+                return resolved == null ? value : resolved;
+            }
+            finally {
+                this.expanding.remove(varName);
+            }
+        }
+    }
+
+    /**
+     * A file loaded so far. The source and stamp are kept together so a concurrent check never sees one without
+     * the other.
+     */
+    private static final class LoadedFile {
+
+        /**
+         * Source the file was loaded from
+         */
+        final EEPropertiesConfigSource source;
+
+        /**
+         * Last modification time, or other stamp, when loaded
+         */
+        final long lastModified;
+
+        LoadedFile(EEPropertiesConfigSource source, long lastModified) {
+            this.source = source;
+            this.lastModified = lastModified;
+        }
+    }
+
+    /**
+     * Pool of daemon threads for asynchronous loads, created on first use
+     */
+    private static final class LoadExecutorHolder {
+
+        private static final AtomicInteger THREADS = new AtomicInteger();
+
+        static final ExecutorService EXECUTOR = Executors.newCachedThreadPool(new ThreadFactory() {
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable,"eeproperties-load-" + LoadExecutorHolder.THREADS.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
     /**
      * Run standalone for testing purposes
      */
@@ -1865,4 +5056,5 @@ public class EEProperties {
 //        System.out.println("Value is " + (value == null ? "null" : "not null" )) ;
 
     }
-}
\ No newline at end of file
+
+}
@@ -0,0 +1,385 @@
+/* Copyright 2009-2010 Tracy Flynn
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.olioinfo.eeproperties;
+
+import java.lang.ref.WeakReference;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * <p>Sampling profiler for property reads.</p>
+ *
+ * <p>Each reading thread counts down to its next sample in a thread-local counter, so the unsampled path is a
+ * thread-local decrement. Sampled keys are counted in a thread-local map that is merged into a shared
+ * Space-Saving heavy-hitters summary every time it collects mergeThreshold samples, and whenever a report
+ * is requested. The samples of threads that have ended are merged and dropped when a report is requested, and
+ * every PRUNE_INTERVAL new threads, so short-lived threads don't accumulate.</p>
+ *
+ * <p>Read counts are estimates: each sample stands for sampleInterval reads. The unread keys report lists keys
+ * never seen in a sample. A key read fewer than a few times sampleInterval may be reported as unread, so use a
+ * sample interval of 1 when auditing for dead keys.</p>
+ *
+ * @author Tracy Flynn
+ * @since 2.10
+ */
+public class EEPropertiesAccessProfiler {
+
+    /**
+     * Default number of reads per sample
+     */
+    public static final int DEFAULT_SAMPLE_INTERVAL = 64;
+
+    /**
+     * Default number of hot keys tracked
+     */
+    public static final int DEFAULT_TOP_K = 100;
+
+    /**
+     * Number of samples a thread collects before merging them into the shared summary
+     */
+    private static final int MERGE_THRESHOLD = 256;
+
+    /**
+     * Number of newly registered threads between removals of the samples of threads that have ended
+     */
+    private static final int PRUNE_INTERVAL = 64;
+
+    /**
+     * Number of reads per sample
+     */
+    private final int sampleInterval;
+
+    /**
+     * Number of hot keys tracked
+     */
+    private final int topK;
+
+    /**
+     * Maximum number of counters in the Space-Saving summary
+     */
+    private final int summaryCapacity;
+
+    /**
+     * Space-Saving summary: key to {count, maximum overestimate}
+     */
+    private final HashMap<String,long[]> summary = new HashMap<String,long[]>();
+
+    /**
+     * Guards summary
+     */
+    private final ReentrantLock summaryLock = new ReentrantLock();
+
+    /**
+     * Every key seen in a sample
+     */
+    private final Set<String> sampledKeys = Collections.newSetFromMap(new ConcurrentHashMap<String,Boolean>());
+
+    /**
+     * Per-thread sample state, registered so reports can merge samples not yet merged
+     */
+    private final ConcurrentLinkedQueue<ThreadSamples> allThreadSamples = new ConcurrentLinkedQueue<ThreadSamples>();
+
+    /**
+     * Number of threads registered, used to schedule removal of ended threads
+     */
+    private final AtomicInteger registrations = new AtomicInteger();
+
+    /**
+     * Per-thread sample state
+     */
+    private final ThreadLocal<ThreadSamples> threadSamples = new ThreadLocal<ThreadSamples>() {
+        protected ThreadSamples initialValue() {
+            ThreadSamples samples = new ThreadSamples(EEPropertiesAccessProfiler.this.sampleInterval);
+            EEPropertiesAccessProfiler.this.allThreadSamples.add(samples);
+            if (EEPropertiesAccessProfiler.this.registrations.incrementAndGet() % EEPropertiesAccessProfiler.PRUNE_INTERVAL == 0) {
+                EEPropertiesAccessProfiler.this.mergeAll();
+            }
+            return samples;
+        }
+    };
+
+    /**
+     * Create a profiler with the default sample interval and number of hot keys
+     */
+    public EEPropertiesAccessProfiler() {
+        this(EEPropertiesAccessProfiler.DEFAULT_SAMPLE_INTERVAL,EEPropertiesAccessProfiler.DEFAULT_TOP_K);
+    }
+
+    /**
+     * Create a profiler
+     *
+     * @param sampleInterval Number of reads per sample. 1 samples every read
+     * @param topK Number of hot keys to track
+     */
+    public EEPropertiesAccessProfiler(int sampleInterval, int topK) {
+        this.sampleInterval = Math.max(sampleInterval,1);
+        this.topK = Math.max(topK,1);
+        this.summaryCapacity = this.topK * 10;
+    }
+
+    /**
+     * Record a read
+     *
+     * @param propertyName Property name read
+     */
+    public void recordAccess(String propertyName) {
+        ThreadSamples samples = this.threadSamples.get();
+        if (--samples.countdown > 0) {
+            return;
+        }
+        samples.countdown = this.sampleInterval;
+        if (samples.add(propertyName) >= EEPropertiesAccessProfiler.MERGE_THRESHOLD) {
+            merge(samples);
+        }
+    }
+
+    /**
+     * Get the hottest keys
+     *
+     * @return Map of key to estimated number of reads, hottest first, at most topK entries
+     */
+    public LinkedHashMap<String,Long> getHotKeys() {
+        mergeAll();
+        ArrayList<Map.Entry<String,long[]>> entries;
+        this.summaryLock.lock();
+        try {
+            entries = new ArrayList<Map.Entry<String,long[]>>();
+            for (Map.Entry<String,long[]> entry : this.summary.entrySet()) {
+                entries.add(new AbstractMap.SimpleEntry<String,long[]>(entry.getKey(),entry.getValue().clone()));
+            }
+        }
+        finally {
+            this.summaryLock.unlock();
+        }
+        Collections.sort(entries,new Comparator<Map.Entry<String,long[]>>() {
+            public int compare(Map.Entry<String,long[]> e1, Map.Entry<String,long[]> e2) {
+                return Long.compare(e2.getValue()[0],e1.getValue()[0]);
+            }
+        });
+        LinkedHashMap<String,Long> hotKeys = new LinkedHashMap<String,Long>();
+        for (Map.Entry<String,long[]> entry : entries) {
+            if (hotKeys.size() >= this.topK) {
+                break;
+            }
+            hotKeys.put(entry.getKey(),entry.getValue()[0] * this.sampleInterval);
+        }
+        return hotKeys;
+    }
+
+    /**
+     * Get the keys never seen in a sample
+     *
+     * @param allKeys All keys currently defined
+     * @return Keys from allKeys never seen in a sample
+     */
+    public ArrayList<String> getUnreadKeys(Collection<String> allKeys) {
+        mergeAll();
+        ArrayList<String> unreadKeys = new ArrayList<String>();
+        for (String key : allKeys) {
+            if (! this.sampledKeys.contains(key)) {
+                unreadKeys.add(key);
+            }
+        }
+        Collections.sort(unreadKeys);
+        return unreadKeys;
+    }
+
+    /**
+     * Get the number of reads per sample
+     *
+     * @return Sample interval
+     */
+    public int getSampleInterval() {
+        return this.sampleInterval;
+    }
+
+    /**
+     * Get the number of threads whose samples are registered
+     *
+     * @return Number of registered threads
+     */
+    int getRegisteredThreadCount() {
+        return this.allThreadSamples.size();
+    }
+
+    /**
+     * Merge samples not yet merged from every thread, dropping threads that have ended once their samples are merged
+     */
+    private void mergeAll() {
+        Iterator<ThreadSamples> samplesItr = this.allThreadSamples.iterator();
+        while (samplesItr.hasNext()) {
+            ThreadSamples samples = samplesItr.next();
+            // Check before merging: an ended thread adds no samples after its last merge
+            boolean ended = samples.isOwnerEnded();
+            merge(samples);
+            if (ended) {
+                samplesItr.remove();
+            }
+        }
+    }
+
+    /**
+     * Merge one thread's samples into the shared summary
+     *
+     * @param samples Thread samples
+     */
+    private void merge(ThreadSamples samples) {
+        HashMap<String,int[]> drained = samples.drain();
+        if (drained == null) {
+            return;
+        }
+        this.sampledKeys.addAll(drained.keySet());
+        this.summaryLock.lock();
+        try {
+            for (Map.Entry<String,int[]> entry : drained.entrySet()) {
+                offer(entry.getKey(),entry.getValue()[0]);
+            }
+        }
+        finally {
+            this.summaryLock.unlock();
+        }
+    }
+
+    /**
+     * Add a count to the Space-Saving summary. When the summary is full the key with the smallest count is
+     * replaced and its count becomes the new key's maximum overestimate.
+     *
+     * @param key Key
+     * @param count Count to add
+     */
+    private void offer(String key, long count) {
+        long[] counter = this.summary.get(key);
+        if (counter != null) {
+            counter[0] += count;
+            return;
+        }
+        if (this.summary.size() < this.summaryCapacity) {
+            this.summary.put(key,new long[] {count,0L});
+            return;
+        }
+        String minimumKey = null;
+        long minimumCount = Long.MAX_VALUE;
+        for (Map.Entry<String,long[]> entry : this.summary.entrySet()) {
+            if (entry.getValue()[0] < minimumCount) {
+                minimumCount = entry.getValue()[0];
+                minimumKey = entry.getKey();
+            }
+        }
+        this.summary.remove(minimumKey);
+        this.summary.put(key,new long[] {minimumCount + count,minimumCount});
+    }
+
+    /**
+     * Samples collected by one thread
+     */
+    private static class ThreadSamples {
+
+        /**
+         * Reads remaining until the next sample. Only touched by the owning thread.
+         */
+        int countdown;
+
+        /**
+         * Sampled key counts not yet merged
+         */
+        private HashMap<String,int[]> counts = new HashMap<String,int[]>();
+
+        /**
+         * Number of samples not yet merged
+         */
+        private int pending = 0;
+
+        /**
+         * Guards counts and pending against a report draining them from another thread
+         */
+        private final ReentrantLock lock = new ReentrantLock();
+
+        /**
+         * Owning thread. Weak so the registry does not keep ended threads reachable.
+         */
+        private final WeakReference<Thread> owner;
+
+        ThreadSamples(int sampleInterval) {
+            this.owner = new WeakReference<Thread>(Thread.currentThread());
+            // Stagger the first sample so threads started together don't sample the same reads
+            this.countdown = 1 + (int) (Thread.currentThread().getId() % sampleInterval);
+        }
+
+        /**
+         * @return true if the owning thread has ended
+         */
+        boolean isOwnerEnded() {
+            Thread thread = this.owner.get();
+            return thread == null || ! thread.isAlive();
+        }
+
+        /**
+         * Add a sample
+         *
+         * @param key Sampled key
+         * @return Number of samples not yet merged
+         */
+        int add(String key) {
+            this.lock.lock();
+            try {
+                int[] count = this.counts.get(key);
+                if (count == null) {
+                    this.counts.put(key,new int[] {1});
+                }
+                else {
+                    count[0]++;
+                }
+                return ++this.pending;
+            }
+            finally {
+                this.lock.unlock();
+            }
+        }
+
+        /**
+         * Remove and return the samples not yet merged
+         *
+         * @return Sampled key counts or null if none
+         */
+        HashMap<String,int[]> drain() {
+            this.lock.lock();
+            try {
+                if (this.pending == 0) {
+                    return null;
+                }
+                HashMap<String,int[]> drained = this.counts;
+                this.counts = new HashMap<String,int[]>();
+                this.pending = 0;
+                return drained;
+            }
+            finally {
+                this.lock.unlock();
+            }
+        }
+    }
+
+}
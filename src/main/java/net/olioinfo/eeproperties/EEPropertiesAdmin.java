@@ -0,0 +1,188 @@
+/* Copyright 2009-2010 Tracy Flynn
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.olioinfo.eeproperties;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * <p>JMX MBean exposing the singleton EEProperties instance.</p>
+ *
+ * <p>The MBean always works against the current singleton, so it remains valid across reloads.
+ * Attributes are read from values computed at load time and never lock the property store.</p>
+ *
+ * @author Tracy Flynn
+ * @since 2.10
+ */
+public class EEPropertiesAdmin implements EEPropertiesAdminMBean {
+
+    /**
+     * Name the MBean is registered under
+     */
+    public static final String OBJECT_NAME = "net.olioinfo.eeproperties:type=EEProperties";
+
+    /**
+     * Registration state
+     */
+    private static volatile boolean registered = false;
+
+    /**
+     * Serializes registration and unregistration
+     */
+    private static final ReentrantLock REGISTRATION_LOCK = new ReentrantLock();
+
+    /**
+     * Create an EEPropertiesAdmin instance
+     */
+    public EEPropertiesAdmin() {
+
+    }
+
+    /**
+     * Register the MBean with the platform MBean server if not already registered
+     *
+     * @return true if the MBean is registered
+     */
+    public static boolean register() {
+        EEPropertiesAdmin.REGISTRATION_LOCK.lock();
+        try {
+            if (! EEPropertiesAdmin.registered) {
+                try {
+                    MBeanServer mBeanServer = ManagementFactory.getPlatformMBeanServer();
+                    ObjectName objectName = new ObjectName(EEPropertiesAdmin.OBJECT_NAME);
+                    if (! mBeanServer.isRegistered(objectName)) {
+                        mBeanServer.registerMBean(new EEPropertiesAdmin(),objectName);
+                    }
+                    EEPropertiesAdmin.registered = true;
+                }
+                catch (Exception ex) {
+                    EEPropertiesAdmin.registered = false;
+                }
+            }
+            return EEPropertiesAdmin.registered;
+        }
+        finally {
+            EEPropertiesAdmin.REGISTRATION_LOCK.unlock();
+        }
+    }
+
+    /**
+     * Unregister the MBean from the platform MBean server
+     */
+    public static void unregister() {
+        EEPropertiesAdmin.REGISTRATION_LOCK.lock();
+        try {
+            try {
+                MBeanServer mBeanServer = ManagementFactory.getPlatformMBeanServer();
+                ObjectName objectName = new ObjectName(EEPropertiesAdmin.OBJECT_NAME);
+                if (mBeanServer.isRegistered(objectName)) {
+                    mBeanServer.unregisterMBean(objectName);
+                }
+            }
+            catch (Exception ex) {
+                // Nothing registered - nothing to do
+            }
+            EEPropertiesAdmin.registered = false;
+        }
+        finally {
+            EEPropertiesAdmin.REGISTRATION_LOCK.unlock();
+        }
+    }
+
+    public long getGeneration() {
+        return EEProperties.singleton().getGeneration();
+    }
+
+    public int getKeyCount() {
+        return EEProperties.singleton().getKeyCount();
+    }
+
+    public int getTypedKeyCount() {
+        return EEProperties.singleton().getTypedKeyCount();
+    }
+
+    public String getRuntimeEnvironment() {
+        return EEProperties.singleton().getRuntimeEnvironment();
+    }
+
+    public String[] getLoadDefinitions() {
+        ArrayList<EEPropertiesLoadDefinition> loadDefinitions = EEPropertiesLoadDefinition.getRegisteredDefinitionsCopy();
+        String[] descriptions = new String[loadDefinitions.size()];
+        for (int i = 0 ; i < descriptions.length ; i++) {
+            descriptions[i] = loadDefinitions.get(i).toString();
+        }
+        return descriptions;
+    }
+
+    public long getLastReloadTime() {
+        return EEProperties.singleton().getLastReloadTime();
+    }
+
+    public long getLastReloadDurationMillis() {
+        return EEProperties.singleton().getLastReloadDurationNanos() / 1000000L;
+    }
+
+    public long getEstimatedMemoryFootprint() {
+        return EEProperties.singleton().getEstimatedMemoryFootprint();
+    }
+
+    public long getStringPoolBytesSaved() {
+        EEPropertiesStringPool stringPool = EEProperties.singleton().getStringPool();
+        return stringPool == null ? 0L : stringPool.getBytesSaved();
+    }
+
+    public double getTypedValueCacheHitRate() {
+        EEPropertiesTypedValueCache typedValueCache = EEProperties.singleton().getTypedValueCache();
+        return typedValueCache == null ? 0.0 : typedValueCache.getHitRate();
+    }
+
+    public long getTypedValueCacheMemoryFootprint() {
+        EEPropertiesTypedValueCache typedValueCache = EEProperties.singleton().getTypedValueCache();
+        return typedValueCache == null ? 0L : typedValueCache.getEstimatedMemoryFootprint();
+    }
+
+    public long getKeyFilterMemoryFootprint() {
+        return EEProperties.singleton().getKeyFilterMemoryFootprint();
+    }
+
+    public double getKeyFilterFalsePositiveRate() {
+        return EEProperties.singleton().getKeyFilterFalsePositiveRate();
+    }
+
+    public boolean isConfigurationChanged() {
+        return EEProperties.singleton().isConfigurationChanged();
+    }
+
+    public void reloadConfigurations() {
+        EEProperties.sReloadConfigurations();
+    }
+
+    public boolean reloadConfigurationsIfChanged() {
+        return EEProperties.sReloadConfigurationsIfChanged();
+    }
+
+    public String lookupProperty(String propertyName) {
+        // Read the current generation directly so operator lookups are not counted as application reads
+        return EEProperties.singleton().currentGeneration().getProperty(propertyName);
+    }
+
+    public String lookupPropertyType(String propertyName) {
+        return EEProperties.singleton().getTypedPropertyType(propertyName);
+    }
+
+}
@@ -0,0 +1,126 @@
+/* Copyright 2009-2010 Tracy Flynn
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.olioinfo.eeproperties;
+
+/**
+ * JMX management interface for the singleton EEProperties instance
+ *
+ * @author Tracy Flynn
+ * @since 2.10
+ */
+public interface EEPropertiesAdminMBean {
+
+    /**
+     * @return Current generation. Changes every time the configuration changes
+     */
+    long getGeneration();
+
+    /**
+     * @return Number of String properties
+     */
+    int getKeyCount();
+
+    /**
+     * @return Number of typed properties
+     */
+    int getTypedKeyCount();
+
+    /**
+     * @return Current runtime environment
+     */
+    String getRuntimeEnvironment();
+
+    /**
+     * @return Description of each registered load definition in load order
+     */
+    String[] getLoadDefinitions();
+
+    /**
+     * @return Time of the last reload in milliseconds since the epoch, or 0 if never reloaded
+     */
+    long getLastReloadTime();
+
+    /**
+     * @return Duration of the last reload in milliseconds
+     */
+    long getLastReloadDurationMillis();
+
+    /**
+     * @return Estimated heap used by property keys and values, in bytes
+     */
+    long getEstimatedMemoryFootprint();
+
+    /**
+     * @return Estimated heap saved by deduplicating keys and values, in bytes, or 0 if the string pool is disabled
+     */
+    long getStringPoolBytesSaved();
+
+    /**
+     * @return Fraction of typed value reads answered from the typed value cache, or 0 if the cache is disabled
+     */
+    double getTypedValueCacheHitRate();
+
+    /**
+     * @return Estimated heap held by the typed value cache, in bytes, or 0 if the cache is disabled
+     */
+    long getTypedValueCacheMemoryFootprint();
+
+    /**
+     * @return Heap used by the store's key filters, in bytes, or 0 if key filters are disabled
+     */
+    long getKeyFilterMemoryFootprint();
+
+    /**
+     * @return Estimated chance that looking up an undefined property still searches a layer, or 0 if key filters
+     * are disabled
+     */
+    double getKeyFilterFalsePositiveRate();
+
+    /**
+     * @return true if any loaded file has changed since it was loaded
+     */
+    boolean isConfigurationChanged();
+
+    /**
+     * Reload all configurations
+     */
+    void reloadConfigurations();
+
+    /**
+     * Reload all configurations if any loaded file has changed
+     *
+     * @return true if a reload took place
+     */
+    boolean reloadConfigurationsIfChanged();
+
+    /**
+     * Look up a property
+     *
+     * <p>The lookup is not recorded by metrics or the access profiler.</p>
+     *
+     * @param propertyName Property name
+     * @return Property value or null if not found
+     */
+    String lookupProperty(String propertyName);
+
+    /**
+     * Look up the type of a typed property
+     *
+     * @param propertyName Property name
+     * @return Type of the property or null if not found
+     */
+    String lookupPropertyType(String propertyName);
+
+}
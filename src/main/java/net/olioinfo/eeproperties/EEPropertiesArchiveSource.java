@@ -0,0 +1,339 @@
+/* Copyright 2009-2010 Tracy Flynn
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.olioinfo.eeproperties;
+
+import java.io.ByteArrayInputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.ClosedFileSystemException;
+import java.nio.file.FileSystem;
+import java.nio.file.FileSystems;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * <p>Configuration files in a zip or jar archive, laid out like an external configuration directory.</p>
+ *
+ * <p>The archive is opened once through the zip file system provider and every file in it is indexed by name, so
+ * finding a file is a single hash lookup and the archive doesn't need to be extracted. A file is looked for first
+ * under the package path of the load definition's class, then at the top of the archive. Files are inflated when
+ * they are opened and are not kept once read. If the archive is replaced, it is opened again the next time a file
+ * is looked for. If it is missing or can't be read, opening it is tried again once it has been replaced. Within one
+ * load, the archive is checked for replacement only once.</p>
+ *
+ * @author Tracy Flynn
+ * @since 2.10
+ */
+public class EEPropertiesArchiveSource implements EEPropertiesConfigSource, Closeable {
+
+    private final File archive;
+
+    /**
+     * Guards reopening
+     */
+    private final ReentrantLock openLock = new ReentrantLock();
+
+    private volatile Contents contents;
+
+    /**
+     * Set by close. A closed source is never opened again.
+     */
+    private volatile boolean closed = false;
+
+    /**
+     * Modification time of the archive when it last failed to open, -1 if it has not failed
+     */
+    private volatile long failedLastModified = -1L;
+
+    /**
+     * Load running on each thread, unset outside loads
+     */
+    private final ThreadLocal<Load> loads = new ThreadLocal<Load>();
+
+    /**
+     * Open an archive
+     *
+     * @param archive Zip or jar file
+     * @throws IOException if the archive can't be opened
+     */
+    public EEPropertiesArchiveSource(File archive) throws IOException {
+        this.archive = archive.getAbsoluteFile();
+        this.contents = Contents.open(this.archive);
+    }
+
+    /**
+     * Check whether a configuration path names an archive
+     *
+     * @param location Configuration path
+     * @return true if the path ends in '.zip' or '.jar'
+     */
+    static boolean isArchive(String location) {
+        String lowerCase = location.toLowerCase(Locale.ROOT);
+        return lowerCase.endsWith(".zip") || lowerCase.endsWith(".jar");
+    }
+
+    public String locate(String fileName, Class<?> klass) {
+        Contents current = current();
+        if (current == null) {
+            return null;
+        }
+        String packagePath = EEPropertiesFileSource.packagePath(klass);
+        String entryName = packagePath.length() == 0 ? fileName : packagePath + "/" + fileName;
+        if (! current.entries.containsKey(entryName)) {
+            entryName = fileName;
+            if (! current.entries.containsKey(entryName)) {
+                return null;
+            }
+        }
+        return String.format("%s!/%s",this.archive.getPath(),entryName);
+    }
+
+    /**
+     * Open a file. The file is read from the archive on each call.
+     */
+    public InputStream open(String location) throws IOException {
+        String entryName = location.substring(location.indexOf("!/") + 2);
+        while (true) {
+            Contents current = current();
+            Path entry = current == null ? null : current.entries.get(entryName);
+            if (entry == null) {
+                throw new IOException(String.format("%s is not in the archive",location));
+            }
+            byte[] bytes;
+            try {
+                bytes = Files.readAllBytes(entry);
+            }
+            catch (ClosedFileSystemException ex) {
+                // The archive was replaced and reopened by another thread: read from the new version
+                if (this.contents == current) {
+                    throw new IOException(String.format("%s was closed while it was read",location),ex);
+                }
+                continue;
+            }
+            return new ByteArrayInputStream(bytes);
+        }
+    }
+
+    /**
+     * @return Modification time of the archive
+     */
+    public long lastModified(String location) {
+        Load load = this.loads.get();
+        if (load != null && load.checked && load.contents != null && load.contents == this.contents) {
+            return load.contents.lastModified;
+        }
+        return this.archive.lastModified();
+    }
+
+    public boolean isExternal() {
+        return true;
+    }
+
+    /**
+     * Start a load on the current thread. Until the outermost load ends, the archive is checked for replacement
+     * only the first time a file is looked for.
+     */
+    void beginLoad() {
+        Load load = this.loads.get();
+        if (load == null) {
+            load = new Load();
+            this.loads.set(load);
+        }
+        load.depth++;
+    }
+
+    /**
+     * End a load started on the current thread with beginLoad
+     */
+    void endLoad() {
+        Load load = this.loads.get();
+        if (load != null && --load.depth <= 0) {
+            this.loads.remove();
+        }
+    }
+
+    /**
+     * @return Number of files in the archive
+     */
+    public int getEntryCount() {
+        Contents current = current();
+        return current == null ? 0 : current.entries.size();
+    }
+
+    /**
+     * @return Archive file
+     */
+    public File getArchive() {
+        return this.archive;
+    }
+
+    public String toString() {
+        return this.archive.getPath();
+    }
+
+    /**
+     * Close the archive
+     */
+    public void close() throws IOException {
+        this.openLock.lock();
+        try {
+            this.closed = true;
+            if (this.contents != null) {
+                this.contents.fileSystem.close();
+                this.contents = null;
+            }
+        }
+        finally {
+            this.openLock.unlock();
+        }
+    }
+
+    /**
+     * Get the archive's contents. Inside a load, the contents found by the first call are used for the rest of the
+     * load unless another thread has reopened the archive since.
+     *
+     * @return Contents, or null if the archive is closed, missing or can't be read
+     */
+    private Contents current() {
+        Load load = this.loads.get();
+        if (load == null) {
+            return reopenIfChanged();
+        }
+        if (! load.checked || load.contents != this.contents) {
+            load.contents = reopenIfChanged();
+            load.checked = true;
+        }
+        return load.contents;
+    }
+
+    /**
+     * Get the archive's contents, opening it again if it has been replaced or could not be opened before
+     *
+     * @return Contents, or null if the archive is closed, missing or can't be read
+     */
+    private Contents reopenIfChanged() {
+        Contents current = this.contents;
+        long lastModified = this.archive.lastModified();
+        if (current != null && current.lastModified == lastModified) {
+            return current;
+        }
+        // Don't retry an archive that is still missing, or unchanged since it failed to open
+        if (this.closed || (current == null && (lastModified == 0L || lastModified == this.failedLastModified))) {
+            return null;
+        }
+        this.openLock.lock();
+        try {
+            if (this.closed || this.contents != current) {
+                return this.contents;
+            }
+            if (current != null) {
+                this.contents = null;
+                try {
+                    current.fileSystem.close();
+                }
+                catch (IOException ex) {
+                    // The old version is no longer used either way
+                }
+            }
+            if (this.archive.exists()) {
+                this.contents = Contents.open(this.archive);
+                this.failedLastModified = -1L;
+            }
+            return this.contents;
+        }
+        catch (IOException ex) {
+            this.failedLastModified = lastModified;
+            return null;
+        }
+        finally {
+            this.openLock.unlock();
+        }
+    }
+
+    /**
+     * Open file system and index of one version of the archive
+     */
+    private static final class Contents {
+
+        final FileSystem fileSystem;
+
+        /**
+         * Files in the archive by name, without a leading '/'
+         */
+        final HashMap<String,Path> entries;
+
+        final long lastModified;
+
+        private Contents(FileSystem fileSystem, HashMap<String,Path> entries, long lastModified) {
+            this.fileSystem = fileSystem;
+            this.entries = entries;
+            this.lastModified = lastModified;
+        }
+
+        static Contents open(File archive) throws IOException {
+            long lastModified = archive.lastModified();
+            FileSystem fileSystem = FileSystems.newFileSystem(archive.toPath(),(ClassLoader) null);
+            final HashMap<String,Path> entries = new HashMap<String,Path>();
+            try {
+                for (Path root : fileSystem.getRootDirectories()) {
+                    Files.walkFileTree(root,new SimpleFileVisitor<Path>() {
+                        public FileVisitResult visitFile(Path file, BasicFileAttributes attributes) {
+                            if (attributes.isRegularFile()) {
+                                String name = file.toString();
+                                entries.put(name.startsWith("/") ? name.substring(1) : name,file);
+                            }
+                            return FileVisitResult.CONTINUE;
+                        }
+                    });
+                }
+            }
+            catch (IOException ex) {
+                fileSystem.close();
+                throw ex;
+            }
+            return new Contents(fileSystem,entries,lastModified);
+        }
+    }
+
+    /**
+     * State of the load running on one thread
+     */
+    private static final class Load {
+
+        /**
+         * Number of nested loads running
+         */
+        int depth = 0;
+
+        /**
+         * Set once the archive has been checked for replacement during this load
+         */
+        boolean checked = false;
+
+        /**
+         * Contents found when the archive was checked, null if it was closed, missing or couldn't be read
+         */
+        Contents contents;
+    }
+
+}
@@ -0,0 +1,496 @@
+/* Copyright 2009-2010 Tracy Flynn
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.olioinfo.eeproperties;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Array;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Field;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.lang.reflect.Proxy;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.nio.DoubleBuffer;
+import java.nio.IntBuffer;
+import java.nio.LongBuffer;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.OffsetDateTime;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.regex.Matcher;
+
+/**
+ * <p>Binding of a property prefix onto an interface or a POJO.</p>
+ *
+ * <p>Each bindable member is a slot mapped to the key prefix + "." + name. Interfaces are bound through a proxy:
+ * every method without arguments is a slot, named after the method with any get or is prefix removed, and reads
+ * return an element of an array published as a whole. POJOs need a no-argument constructor: every non-static,
+ * non-final, non-transient field is a slot, and is set through a MethodHandle so reads are ordinary field
+ * reads.</p>
+ *
+ * <p>The plan for each bound class (slot names, types and setters) is built once and shared. Values are refreshed
+ * whenever a new generation changes any slot. POJO fields are all set while holding the bound instance's monitor,
+ * so readers that need a consistent view of several fields should synchronize on it.</p>
+ *
+ * @author Tracy Flynn
+ * @since 2.10
+ */
+final class EEPropertiesBinding<T> {
+
+    /**
+     * Plans by bound class
+     */
+    private static final ConcurrentHashMap<Class<?>,Plan> PLANS = new ConcurrentHashMap<Class<?>,Plan>();
+
+    /**
+     * Converter name of each bindable type other than String and enums
+     */
+    private static final HashMap<Class<?>,String> CONVERTER_NAMES = new HashMap<Class<?>,String>();
+
+    static {
+        for (Class<?> type : Arrays.<Class<?>>asList(Integer.class, Short.class, Long.class, Byte.class, Float.class,
+                Double.class, Boolean.class, Date.class, Instant.class, LocalDate.class, OffsetDateTime.class,
+                Duration.class, URI.class, InetSocketAddress.class)) {
+            EEPropertiesBinding.CONVERTER_NAMES.put(type,type.getSimpleName());
+        }
+        EEPropertiesBinding.CONVERTER_NAMES.put(int[].class,"int[]");
+        EEPropertiesBinding.CONVERTER_NAMES.put(long[].class,"long[]");
+        EEPropertiesBinding.CONVERTER_NAMES.put(double[].class,"double[]");
+        EEPropertiesBinding.CONVERTER_NAMES.put(List.class,"ImmutableList<String>");
+        EEPropertiesBinding.CONVERTER_NAMES.put(ArrayList.class,"ArrayList<String>");
+    }
+
+    private final String prefix;
+
+    private final Plan plan;
+
+    private final T instance;
+
+    private final EEPropertiesAvailableLogger logger;
+
+    /**
+     * Serializes refreshes. Guards sources and generationNumber.
+     */
+    private final ReentrantLock refreshLock = new ReentrantLock();
+
+    /**
+     * Resolved Strings the current values were built from
+     */
+    private String[] sources;
+
+    /**
+     * Number of the last generation read. Older generations are ignored.
+     */
+    private long generationNumber = 0L;
+
+    /**
+     * Current values, replaced as a whole. Only used for interfaces.
+     */
+    private volatile Object[] values;
+
+    /**
+     * Create a binding. It holds default values until the first refresh.
+     *
+     * @param prefix Key prefix, with or without a trailing "."
+     * @param type Interface or POJO class
+     * @param logger Logger for conversion failures
+     * @throws IllegalArgumentException if type can't be bound
+     */
+    EEPropertiesBinding(String prefix, Class<T> type, EEPropertiesAvailableLogger logger) {
+        this.prefix = prefix.endsWith(".") ? prefix : prefix + ".";
+        this.plan = EEPropertiesBinding.plan(type);
+        this.logger = logger;
+        this.sources = new String[this.plan.names.length];
+        this.values = defaults();
+        this.instance = type.cast(this.plan.newInstance(this));
+    }
+
+    /**
+     * @return Bound instance
+     */
+    T getInstance() {
+        return this.instance;
+    }
+
+    /**
+     * Re-populate the bound instance if any slot's resolved value differs from the one it was built from
+     *
+     * <p>Normally called by the writer that published the generation. A generation older than one already read is
+     * ignored.</p>
+     *
+     * @param generation Generation to read
+     */
+    void refresh(EEPropertiesLayeredStore.Generation generation) {
+        this.refreshLock.lock();
+        try {
+            refreshLocked(generation);
+        }
+        finally {
+            this.refreshLock.unlock();
+        }
+    }
+
+    /**
+     * Refresh while holding refreshLock
+     *
+     * @param generation Generation to read
+     */
+    private void refreshLocked(EEPropertiesLayeredStore.Generation generation) {
+        if (generation.getNumber() <= this.generationNumber) {
+            return;
+        }
+        this.generationNumber = generation.getNumber();
+        String[] names = this.plan.names;
+        String[] newSources = new String[names.length];
+        boolean changed = false;
+        for (int i = 0 ; i < names.length ; i++) {
+            newSources[i] = generation.getProperty(this.prefix + names[i]);
+            if (newSources[i] == null ? this.sources[i] != null : ! newSources[i].equals(this.sources[i])) {
+                changed = true;
+            }
+        }
+        if (! changed) {
+            return;
+        }
+        Object[] newValues = new Object[names.length];
+        for (int i = 0 ; i < names.length ; i++) {
+            String key = this.prefix + names[i];
+            try {
+                newValues[i] = EEPropertiesBinding.coerce(this.plan.types[i],generation.getTyped(key),newSources[i]);
+            }
+            catch (Exception e) {
+                this.logger.debug(String.format("EEPropertiesBinding.refresh Error converting %s for %s",key,this.plan.types[i].getName()),e);
+            }
+            if (newValues[i] == null && this.plan.types[i].isPrimitive()) {
+                newValues[i] = Array.get(Array.newInstance(this.plan.types[i],1),0);
+            }
+        }
+        this.sources = newSources;
+        if (this.plan.setters == null) {
+            this.values = newValues;
+        }
+        else {
+            synchronized (this.instance) {
+                for (int i = 0 ; i < newValues.length ; i++) {
+                    try {
+                        this.plan.setters[i].invokeExact((Object) this.instance,newValues[i]);
+                    }
+                    catch (Throwable t) {
+                        this.logger.debug(String.format("EEPropertiesBinding.refresh Error setting %s",names[i]),t);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * @return Default value of every slot
+     */
+    private Object[] defaults() {
+        Object[] defaults = new Object[this.plan.types.length];
+        for (int i = 0 ; i < defaults.length ; i++) {
+            if (this.plan.types[i].isPrimitive()) {
+                defaults[i] = Array.get(Array.newInstance(this.plan.types[i],1),0);
+            }
+        }
+        return defaults;
+    }
+
+    /**
+     * Convert a property to a slot's type
+     *
+     * @param type Slot type
+     * @param typedValue Typed value from the extended syntax, or null
+     * @param source Resolved String value, or null
+     * @return Converted value, or null if not defined or not convertible
+     * @throws Exception if the String value is not valid for the type
+     */
+    private static Object coerce(Class<?> type, EEPropertiesTypedValue typedValue, String source) throws Exception {
+        if (source == null) {
+            return null;
+        }
+        if (type == String.class) {
+            return source;
+        }
+        if (typedValue != null) {
+            Object value = EEPropertiesBinding.adapt(type,typedValue.value);
+            if (value != null) {
+                return value;
+            }
+        }
+        String stringValue = source.trim();
+        Matcher matcher = EEProperties.OBJECT_TYPE_PATTERN.matcher(stringValue);
+        if (matcher.matches()) {
+            // Extended syntax that wasn't converted at load time, e.g. set with put
+            stringValue = matcher.group(2).trim();
+            EEPropertiesTypedValue converted = EEPropertiesConverters.convert(matcher.group(1).trim(),stringValue);
+            Object value = converted == null ? null : EEPropertiesBinding.adapt(type,converted.value);
+            if (value != null) {
+                return value;
+            }
+        }
+        EEPropertiesTypedValue converted = EEPropertiesConverters.convert(EEPropertiesBinding.converterName(type),stringValue);
+        return converted == null ? null : EEPropertiesBinding.adapt(type,converted.value);
+    }
+
+    /**
+     * Adapt a converted value to a slot's type
+     *
+     * @param type Slot type
+     * @param value Converted value
+     * @return Value of the slot's type, or null if value is of another type
+     */
+    private static Object adapt(Class<?> type, Object value) {
+        if (value instanceof Instant && type == Date.class) {
+            return Date.from((Instant) value);
+        }
+        if (value instanceof IntBuffer && type == int[].class) {
+            IntBuffer buffer = ((IntBuffer) value).duplicate();
+            int[] array = new int[buffer.remaining()];
+            buffer.get(array);
+            return array;
+        }
+        if (value instanceof LongBuffer && type == long[].class) {
+            LongBuffer buffer = ((LongBuffer) value).duplicate();
+            long[] array = new long[buffer.remaining()];
+            buffer.get(array);
+            return array;
+        }
+        if (value instanceof DoubleBuffer && type == double[].class) {
+            DoubleBuffer buffer = ((DoubleBuffer) value).duplicate();
+            double[] array = new double[buffer.remaining()];
+            buffer.get(array);
+            return array;
+        }
+        return EEPropertiesBinding.box(type).isInstance(value) ? value : null;
+    }
+
+    /**
+     * Get the converter name for a slot type
+     *
+     * @param type Slot type
+     * @return Converter name or null if the type can't be bound
+     */
+    private static String converterName(Class<?> type) {
+        if (type.isEnum()) {
+            return "Enum<" + type.getName() + ">";
+        }
+        return EEPropertiesBinding.CONVERTER_NAMES.get(EEPropertiesBinding.box(type));
+    }
+
+    /**
+     * @param type Type
+     * @return Wrapper class for a primitive type, otherwise type
+     */
+    private static Class<?> box(Class<?> type) {
+        if (! type.isPrimitive()) {
+            return type;
+        }
+        return MethodType.methodType(type).wrap().returnType();
+    }
+
+    /**
+     * Get, or build, the plan for a class
+     *
+     * @param type Interface or POJO class
+     * @return Plan
+     */
+    private static Plan plan(Class<?> type) {
+        Plan plan = EEPropertiesBinding.PLANS.get(type);
+        if (plan == null) {
+            plan = type.isInterface() ? EEPropertiesBinding.interfacePlan(type) : EEPropertiesBinding.pojoPlan(type);
+            Plan existing = EEPropertiesBinding.PLANS.putIfAbsent(type,plan);
+            if (existing != null) {
+                plan = existing;
+            }
+        }
+        return plan;
+    }
+
+    private static Plan interfacePlan(Class<?> type) {
+        ArrayList<String> names = new ArrayList<String>();
+        ArrayList<Class<?>> types = new ArrayList<Class<?>>();
+        HashMap<Method,Integer> slots = new HashMap<Method,Integer>();
+        for (Method method : type.getMethods()) {
+            if (Modifier.isStatic(method.getModifiers())) {
+                continue;
+            }
+            if (method.getParameterTypes().length != 0 || method.getReturnType() == void.class) {
+                throw new IllegalArgumentException(String.format("Can't bind %s.%s: only methods without arguments that return a value can be bound",type.getName(),method.getName()));
+            }
+            slots.put(method,names.size());
+            names.add(EEPropertiesBinding.propertyName(method.getName()));
+            types.add(EEPropertiesBinding.checkBindable(type,method.getName(),method.getReturnType()));
+        }
+        return new Plan(type,names.toArray(new String[names.size()]),types.toArray(new Class<?>[types.size()]),slots,null,null);
+    }
+
+    private static Plan pojoPlan(Class<?> type) {
+        Constructor<?> constructor;
+        try {
+            constructor = type.getDeclaredConstructor();
+            constructor.setAccessible(true);
+        }
+        catch (Exception e) {
+            throw new IllegalArgumentException(String.format("Can't bind %s: a no-argument constructor is required",type.getName()),e);
+        }
+        ArrayList<String> names = new ArrayList<String>();
+        ArrayList<Class<?>> types = new ArrayList<Class<?>>();
+        ArrayList<MethodHandle> setters = new ArrayList<MethodHandle>();
+        MethodHandles.Lookup lookup = MethodHandles.lookup();
+        MethodType setterType = MethodType.methodType(void.class,Object.class,Object.class);
+        for (Class<?> klass = type ; klass != null && klass != Object.class ; klass = klass.getSuperclass()) {
+            for (Field field : klass.getDeclaredFields()) {
+                int modifiers = field.getModifiers();
+                if (Modifier.isStatic(modifiers) || Modifier.isFinal(modifiers) || Modifier.isTransient(modifiers) || field.isSynthetic()) {
+                    continue;
+                }
+                types.add(EEPropertiesBinding.checkBindable(type,field.getName(),field.getType()));
+                names.add(field.getName());
+                try {
+                    field.setAccessible(true);
+                    setters.add(lookup.unreflectSetter(field).asType(setterType));
+                }
+                catch (IllegalAccessException e) {
+                    throw new IllegalArgumentException(String.format("Can't bind %s.%s",type.getName(),field.getName()),e);
+                }
+            }
+        }
+        return new Plan(type,names.toArray(new String[names.size()]),types.toArray(new Class<?>[types.size()]),null,
+            setters.toArray(new MethodHandle[setters.size()]),constructor);
+    }
+
+    /**
+     * Check that a slot type can be bound
+     *
+     * @param type Bound class
+     * @param name Member name
+     * @param slotType Slot type
+     * @return slotType
+     * @throws IllegalArgumentException if slotType can't be bound
+     */
+    private static Class<?> checkBindable(Class<?> type, String name, Class<?> slotType) {
+        if (slotType != String.class && EEPropertiesBinding.converterName(slotType) == null) {
+            throw new IllegalArgumentException(String.format("Can't bind %s.%s: type %s is not supported",type.getName(),name,slotType.getName()));
+        }
+        return slotType;
+    }
+
+    /**
+     * Get the property name for a method name: getUrl and isEnabled become url and enabled
+     *
+     * @param methodName Method name
+     * @return Property name
+     */
+    private static String propertyName(String methodName) {
+        int start = 0;
+        if (methodName.length() > 3 && methodName.startsWith("get") && Character.isUpperCase(methodName.charAt(3))) {
+            start = 3;
+        }
+        else if (methodName.length() > 2 && methodName.startsWith("is") && Character.isUpperCase(methodName.charAt(2))) {
+            start = 2;
+        }
+        if (start == 0) {
+            return methodName;
+        }
+        return methodName.substring(start,start + 1).toLowerCase(Locale.ROOT) + methodName.substring(start + 1);
+    }
+
+    /**
+     * Slot layout of a bound class. Immutable and shared by all bindings of the class.
+     */
+    private static final class Plan {
+
+        private final Class<?> type;
+
+        private final String[] names;
+
+        private final Class<?>[] types;
+
+        /**
+         * Slot of each interface method. Null for POJOs.
+         */
+        private final HashMap<Method,Integer> slots;
+
+        /**
+         * Setter of each POJO field, as (Object,Object)void. Null for interfaces.
+         */
+        private final MethodHandle[] setters;
+
+        private final Constructor<?> constructor;
+
+        private Plan(Class<?> type, String[] names, Class<?>[] types, HashMap<Method,Integer> slots,
+                     MethodHandle[] setters, Constructor<?> constructor) {
+            this.type = type;
+            this.names = names;
+            this.types = types;
+            this.slots = slots;
+            this.setters = setters;
+            this.constructor = constructor;
+        }
+
+        /**
+         * Create the bound instance for a binding
+         *
+         * @param binding Binding
+         * @return Proxy or POJO instance
+         */
+        private Object newInstance(final EEPropertiesBinding<?> binding) {
+            if (this.setters == null) {
+                return Proxy.newProxyInstance(this.type.getClassLoader(),new Class<?>[] {this.type},new InvocationHandler() {
+                    public Object invoke(Object proxy, Method method, Object[] args) {
+                        Integer slot = Plan.this.slots.get(method);
+                        if (slot != null) {
+                            return binding.values[slot];
+                        }
+                        if (method.getName().equals("equals")) {
+                            return proxy == args[0];
+                        }
+                        if (method.getName().equals("hashCode")) {
+                            return System.identityHashCode(proxy);
+                        }
+                        return Plan.this.type.getName() + "[" + binding.prefix + "*]";
+                    }
+                });
+            }
+            try {
+                Object pojo = this.constructor.newInstance();
+                Object[] defaults = binding.values;
+                for (int i = 0 ; i < this.setters.length ; i++) {
+                    if (defaults[i] != null) {
+                        this.setters[i].invokeExact(pojo,defaults[i]);
+                    }
+                }
+                return pojo;
+            }
+            catch (Throwable t) {
+                throw new IllegalArgumentException(String.format("Can't create an instance of %s",this.type.getName()),t);
+            }
+        }
+    }
+
+}
@@ -0,0 +1,75 @@
+/* Copyright 2009-2010 Tracy Flynn
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.olioinfo.eeproperties;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URL;
+import java.net.URLConnection;
+
+/**
+ * <p>Configuration files on the classpath, found relative to the load definition's class with Class.getResource.</p>
+ *
+ * @author Tracy Flynn
+ * @since 2.10
+ */
+public class EEPropertiesClasspathSource implements EEPropertiesConfigSource {
+
+    public String locate(String fileName, Class<?> klass) {
+        URL url = klass.getResource(fileName);
+        return url == null ? null : url.toString();
+    }
+
+    public InputStream open(String location) throws IOException {
+        return new URL(location).openStream();
+    }
+
+    /**
+     * Get the modification time of a resource. For a resource in a directory this is the file's modification time;
+     * for one in a jar, the jar's.
+     *
+     * @param location Resource URL, or an absolute file name
+     * @return Modification time, or 0 if not available
+     */
+    public long lastModified(String location) {
+        try {
+            if (location.startsWith("/")) {
+                return new File(location).lastModified();
+            }
+            URL url = new URL(location);
+            if (url.getProtocol().equals("file")) {
+                return new File(url.toURI()).lastModified();
+            }
+            URLConnection connection = url.openConnection();
+            connection.setUseCaches(false);
+            long lastModified = connection.getLastModified();
+            connection.getInputStream().close();
+            return lastModified;
+        }
+        catch (Exception ex) {
+            return 0L;
+        }
+    }
+
+    public boolean isExternal() {
+        return false;
+    }
+
+    public String toString() {
+        return "classpath";
+    }
+
+}
@@ -0,0 +1,132 @@
+/* Copyright 2009-2010 Tracy Flynn
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.olioinfo.eeproperties;
+
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * <p>CLOCK replacement order for a size-bounded cache map, approximating least recently used.</p>
+ *
+ * <p>The ring holds the key of each cached entry. Readers mark an entry when they use it, without locking. When
+ * the cache is full, the hand passes over marked entries, clearing their marks, and stops at the first unmarked
+ * one, which is the entry to replace.</p>
+ *
+ * <p>Not thread-safe: the cache serializes calls that change the ring. Reads of the map may run concurrently.</p>
+ *
+ * @author Tracy Flynn
+ * @since 2.10
+ */
+final class EEPropertiesClockRing<E extends EEPropertiesClockRing.Entry> {
+
+    /**
+     * Cached entries by key. Entries are added and removed through the ring.
+     */
+    private final ConcurrentHashMap<String,E> entries;
+
+    /**
+     * Key of each cached entry, in CLOCK order
+     */
+    private final String[] ring;
+
+    /**
+     * Number of ring positions in use
+     */
+    private int ringSize = 0;
+
+    /**
+     * CLOCK hand
+     */
+    private int hand = 0;
+
+    /**
+     * Create a ring
+     *
+     * @param entries Map of the cache's entries
+     * @param capacity Maximum number of entries
+     */
+    EEPropertiesClockRing(ConcurrentHashMap<String,E> entries, int capacity) {
+        this.entries = entries;
+        this.ring = new String[capacity];
+    }
+
+    /**
+     * Add an entry if the cache is not yet full
+     *
+     * @param key Key
+     * @param entry Entry
+     * @return true if the entry was added, false if the cache is full
+     */
+    boolean addIfRoom(String key, E entry) {
+        if (this.ringSize == this.ring.length) {
+            return false;
+        }
+        this.ring[this.ringSize++] = key;
+        this.entries.put(key,entry);
+        return true;
+    }
+
+    /**
+     * Move the hand to the next entry to replace. Only called when the cache is full.
+     *
+     * @return Key of the entry to replace
+     */
+    String victim() {
+        // Every entry passed is unmarked, so this stops within one full turn
+        while (true) {
+            E victim = this.entries.get(this.ring[this.hand]);
+            if (! victim.referenced) {
+                return this.ring[this.hand];
+            }
+            victim.referenced = false;
+            this.hand = (this.hand + 1) % this.ring.length;
+        }
+    }
+
+    /**
+     * Replace the entry chosen by victim with a new one
+     *
+     * @param key New key
+     * @param entry New entry
+     * @return Entry replaced
+     */
+    E replaceVictim(String key, E entry) {
+        E victim = this.entries.remove(this.ring[this.hand]);
+        this.ring[this.hand] = key;
+        this.hand = (this.hand + 1) % this.ring.length;
+        this.entries.put(key,entry);
+        return victim;
+    }
+
+    /**
+     * Cache entry with its CLOCK mark
+     */
+    static class Entry {
+
+        /**
+         * Set on each read, cleared as the CLOCK hand passes
+         */
+        volatile boolean referenced = false;
+
+        /**
+         * Mark the entry as used. Only writes when not yet marked, so hot entries stay shared in CPU caches.
+         */
+        final void markReferenced() {
+            if (! this.referenced) {
+                this.referenced = true;
+            }
+        }
+    }
+
+}
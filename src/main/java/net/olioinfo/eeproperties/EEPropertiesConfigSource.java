@@ -0,0 +1,66 @@
+/* Copyright 2009-2010 Tracy Flynn
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.olioinfo.eeproperties;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * <p>A place configuration files are loaded from.</p>
+ *
+ * <p>For each file of a load definition, sources are consulted in order and the file is taken from the first
+ * source that has it. The configuration paths set with net.olioinfo.eeproperties.runtime.additionalConfigurationPaths
+ * come first, then sources added with EEProperties.addConfigSource, then the classpath.</p>
+ *
+ * <p>Loads of different definitions can run at the same time, so implementations must be thread-safe.</p>
+ *
+ * @author Tracy Flynn
+ * @since 2.10
+ */
+public interface EEPropertiesConfigSource {
+
+    /**
+     * Find a configuration file
+     *
+     * @param fileName File name, e.g. 'defaults-ee.properties'
+     * @param klass Class whose package the file belongs to
+     * @return Location of the file, used to open it and in logs and metrics, or null if this source doesn't have it
+     */
+    String locate(String fileName, Class<?> klass);
+
+    /**
+     * Open a file found by locate
+     *
+     * @param location Location returned by locate
+     * @return Stream of the file's contents. Closed by the caller
+     * @throws IOException if the file can't be read
+     */
+    InputStream open(String location) throws IOException;
+
+    /**
+     * Get a value that changes whenever a loaded file changes, used to decide whether a reload is needed
+     *
+     * @param location Location returned by locate
+     * @return Modification time or other stamp, or 0 if not available
+     */
+    long lastModified(String location);
+
+    /**
+     * @return true if files from this source override the files packaged with the application, i.e. are merged into
+     * the external layer
+     */
+    boolean isExternal();
+
+}
@@ -0,0 +1,37 @@
+/* Copyright 2009-2010 Tracy Flynn
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.olioinfo.eeproperties;
+
+/**
+ * <p>Converts the String part of an extended syntax value, e.g. "123" in "[Integer] 123", to an object.</p>
+ *
+ * <p>Converters are registered against a type name with EEPropertiesConverters.register. Conversion runs at load
+ * time, and implementations must be thread-safe.</p>
+ *
+ * @author Tracy Flynn
+ * @since 2.10
+ */
+public interface EEPropertiesConverter {
+
+    /**
+     * Convert a value
+     *
+     * @param stringValue Value with leading and trailing whitespace removed
+     * @return Converted value, or null if the value is not valid for the type
+     * @throws Exception if the value is not valid for the type
+     */
+    Object convert(String stringValue) throws Exception;
+
+}
@@ -0,0 +1,434 @@
+/* Copyright 2009-2010 Tracy Flynn
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.olioinfo.eeproperties;
+
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.nio.DoubleBuffer;
+import java.nio.IntBuffer;
+import java.nio.LongBuffer;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.OffsetDateTime;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeFormatterBuilder;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Locale;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * <p>Registry of the converters used for the extended syntax.</p>
+ *
+ * <p>Converters are held in a table keyed by type name. A lookup tries the name exactly as written first, then in
+ * lower case, so the usual spellings never allocate. Every pattern is compiled once.</p>
+ *
+ * <p>Built-in types are Integer, Short, Long, Byte, Float, Double, Boolean, Date, Instant, LocalDate,
+ * OffsetDateTime, ArrayList&lt;String&gt;,
+ * ArrayList&lt;Integer&gt;, int[], long[], double[], ImmutableList&lt;String&gt;, Duration, DataSize, URI,
+ * InetSocketAddress, Enum&lt;fully.qualified.ClassName&gt; and Encrypted. Encrypted values are only decoded here;
+ * they are decrypted when read.</p>
+ *
+ * @author Tracy Flynn
+ * @since 2.10
+ */
+public final class EEPropertiesConverters {
+
+    /**
+     * Type names of the form Enum&lt;fully.qualified.ClassName&gt;
+     */
+    private static final Pattern ENUM_TYPE = Pattern.compile("^enum<\\s*([^>\\s]+)\\s*>$",Pattern.CASE_INSENSITIVE);
+
+    /**
+     * Date and time with an offset. Accepts both the original "yyyy-MM-dd'T'HH:mm:ssZ" form (-0500) and ISO-8601
+     * offsets (-05:00 or Z). Formatters are immutable and thread-safe, so one instance is shared.
+     */
+    private static final DateTimeFormatter DATE_TIME = new DateTimeFormatterBuilder()
+        .append(DateTimeFormatter.ISO_LOCAL_DATE_TIME)
+        .optionalStart().appendOffset("+HH:MM","Z").optionalEnd()
+        .optionalStart().appendOffset("+HHMM","Z").optionalEnd()
+        .toFormatter(Locale.ROOT);
+
+    /**
+     * Simple durations, e.g. 500ms, 30s, 5m, 2h, 1d
+     */
+    private static final Pattern SIMPLE_DURATION = Pattern.compile("^(-?\\d+)\\s*(ns|us|ms|s|m|h|d)$",Pattern.CASE_INSENSITIVE);
+
+    /**
+     * Data sizes, e.g. 512, 64KB, 64MB, 2GB
+     */
+    private static final Pattern DATA_SIZE = Pattern.compile("^(\\d+)\\s*(b|kb|k|mb|m|gb|g|tb|t)?$",Pattern.CASE_INSENSITIVE);
+
+    /**
+     * Socket addresses, e.g. localhost:8080 or [::1]:8080
+     */
+    private static final Pattern SOCKET_ADDRESS = Pattern.compile("^\\[?([^\\[\\]]*?)\\]?:(\\d+)$");
+
+    /**
+     * Registrations by type name as registered and in lower case
+     */
+    private static final ConcurrentHashMap<String,Registration> REGISTRATIONS = new ConcurrentHashMap<String,Registration>();
+
+    static {
+        EEPropertiesConverters.registerBuiltIns();
+    }
+
+    private EEPropertiesConverters() {
+
+    }
+
+    /**
+     * Register a converter, replacing any converter already registered for the type name
+     *
+     * @param typeName Type name as used in the extended syntax. Matched ignoring case
+     * @param converter Converter
+     */
+    public static void register(String typeName, EEPropertiesConverter converter) {
+        Registration registration = new Registration(typeName,converter);
+        EEPropertiesConverters.REGISTRATIONS.put(typeName,registration);
+        EEPropertiesConverters.REGISTRATIONS.put(typeName.toLowerCase(Locale.ROOT),registration);
+    }
+
+    /**
+     * Convert a value
+     *
+     * @param typeName Type name as written in the extended syntax
+     * @param stringValue Value to convert
+     * @return Typed value or null if the type is unknown or the value didn't convert
+     * @throws Exception if the converter fails
+     */
+    static EEPropertiesTypedValue convert(String typeName, String stringValue) throws Exception {
+        Registration registration = EEPropertiesConverters.lookup(typeName);
+        if (registration == null) {
+            return null;
+        }
+        Object value = registration.converter.convert(stringValue);
+        return value == null ? null : new EEPropertiesTypedValue(registration.typeName,value);
+    }
+
+    /**
+     * Find the registration for a type name
+     *
+     * @param typeName Type name as written in the extended syntax
+     * @return Registration or null if unknown
+     */
+    private static Registration lookup(String typeName) {
+        Registration registration = EEPropertiesConverters.REGISTRATIONS.get(typeName);
+        if (registration == null) {
+            String lowerCaseTypeName = typeName.toLowerCase(Locale.ROOT);
+            registration = EEPropertiesConverters.REGISTRATIONS.get(lowerCaseTypeName);
+            if (registration == null) {
+                Matcher matcher = EEPropertiesConverters.ENUM_TYPE.matcher(typeName);
+                if (matcher.matches()) {
+                    registration = EEPropertiesConverters.enumRegistration(typeName,matcher.group(1));
+                }
+            }
+            if (registration != null) {
+                EEPropertiesConverters.REGISTRATIONS.putIfAbsent(typeName,registration);
+            }
+        }
+        return registration;
+    }
+
+    /**
+     * Create and register a converter for an enum type
+     *
+     * @param typeName Type name as written
+     * @param className Enum class name
+     * @return Registration or null if the class isn't an enum
+     */
+    private static Registration enumRegistration(String typeName, String className) {
+        final Class<?> enumClass;
+        try {
+            enumClass = Class.forName(className,true,Thread.currentThread().getContextClassLoader() == null
+                ? EEPropertiesConverters.class.getClassLoader() : Thread.currentThread().getContextClassLoader());
+        }
+        catch (ClassNotFoundException ex) {
+            return null;
+        }
+        if (! enumClass.isEnum()) {
+            return null;
+        }
+        Registration registration = new Registration(String.format("Enum<%s>",enumClass.getName()),new EEPropertiesConverter() {
+            public Object convert(String stringValue) {
+                for (Object constant : enumClass.getEnumConstants()) {
+                    if (((Enum<?>) constant).name().equalsIgnoreCase(stringValue)) {
+                        return constant;
+                    }
+                }
+                return null;
+            }
+        });
+        EEPropertiesConverters.REGISTRATIONS.putIfAbsent(registration.typeName,registration);
+        return registration;
+    }
+
+    /**
+     * Parse a duration, either ISO-8601 (PT30S) or a number with a unit (500ms, 30s, 5m, 2h, 1d)
+     *
+     * @param stringValue Value
+     * @return Duration
+     */
+    static Duration parseDuration(String stringValue) {
+        Matcher matcher = EEPropertiesConverters.SIMPLE_DURATION.matcher(stringValue);
+        if (! matcher.matches()) {
+            return Duration.parse(stringValue);
+        }
+        long amount = Long.parseLong(matcher.group(1));
+        String unit = matcher.group(2).toLowerCase(Locale.ROOT);
+        if (unit.equals("ns")) {
+            return Duration.ofNanos(amount);
+        }
+        else if (unit.equals("us")) {
+            return Duration.ofNanos(amount * 1000L);
+        }
+        else if (unit.equals("ms")) {
+            return Duration.ofMillis(amount);
+        }
+        else if (unit.equals("s")) {
+            return Duration.ofSeconds(amount);
+        }
+        else if (unit.equals("m")) {
+            return Duration.ofMinutes(amount);
+        }
+        else if (unit.equals("h")) {
+            return Duration.ofHours(amount);
+        }
+        return Duration.ofDays(amount);
+    }
+
+    /**
+     * Parse a data size. Units are powers of 1024.
+     *
+     * @param stringValue Value, e.g. 512, 64KB, 64MB, 2GB
+     * @return Size in bytes or null if not valid
+     */
+    static Long parseDataSize(String stringValue) {
+        Matcher matcher = EEPropertiesConverters.DATA_SIZE.matcher(stringValue);
+        if (! matcher.matches()) {
+            return null;
+        }
+        long amount = Long.parseLong(matcher.group(1));
+        String unit = matcher.group(2) == null ? "b" : matcher.group(2).toLowerCase(Locale.ROOT);
+        int shift = 0;
+        switch (unit.charAt(0)) {
+            case 'k':
+                shift = 10;
+                break;
+            case 'm':
+                shift = 20;
+                break;
+            case 'g':
+                shift = 30;
+                break;
+            case 't':
+                shift = 40;
+                break;
+            default:
+                shift = 0;
+        }
+        if (amount > (Long.MAX_VALUE >> shift)) {
+            return null;
+        }
+        return amount << shift;
+    }
+
+    /**
+     * Split a comma-separated list, removing leading and trailing whitespace from each element
+     *
+     * @param stringValue Value
+     * @return Elements
+     */
+    private static String[] split(String stringValue) {
+        String[] values = stringValue.split(",");
+        for (int i = 0 ; i < values.length ; i++) {
+            values[i] = values[i].trim();
+        }
+        return values;
+    }
+
+    /**
+     * Register the built-in converters
+     */
+    private static void registerBuiltIns() {
+        EEPropertiesConverters.register("Integer",new EEPropertiesConverter() {
+            public Object convert(String stringValue) {
+                return Integer.valueOf(stringValue);
+            }
+        });
+        EEPropertiesConverters.register("Short",new EEPropertiesConverter() {
+            public Object convert(String stringValue) {
+                return Short.valueOf(stringValue);
+            }
+        });
+        EEPropertiesConverters.register("Long",new EEPropertiesConverter() {
+            public Object convert(String stringValue) {
+                return Long.valueOf(stringValue);
+            }
+        });
+        EEPropertiesConverters.register("Byte",new EEPropertiesConverter() {
+            public Object convert(String stringValue) {
+                return Byte.valueOf(stringValue);
+            }
+        });
+        EEPropertiesConverters.register("Float",new EEPropertiesConverter() {
+            public Object convert(String stringValue) {
+                return Float.valueOf(stringValue);
+            }
+        });
+        EEPropertiesConverters.register("Double",new EEPropertiesConverter() {
+            public Object convert(String stringValue) {
+                return Double.valueOf(stringValue);
+            }
+        });
+        EEPropertiesConverters.register("Boolean",new EEPropertiesConverter() {
+            public Object convert(String stringValue) {
+                if (stringValue.equalsIgnoreCase("true")) {
+                    return Boolean.TRUE;
+                }
+                else if (stringValue.equalsIgnoreCase("false")) {
+                    return Boolean.FALSE;
+                }
+                return null;
+            }
+        });
+        EEPropertiesConverters.register("Date",new EEPropertiesConverter() {
+            public Object convert(String stringValue) {
+                // Held as an Instant, which is immutable. getDateProperty hands out a new Date on every call.
+                if (stringValue.indexOf('T') > -1) {
+                    return OffsetDateTime.parse(stringValue,EEPropertiesConverters.DATE_TIME).toInstant();
+                }
+                return LocalDate.parse(stringValue,DateTimeFormatter.ISO_LOCAL_DATE).atStartOfDay(ZoneId.systemDefault()).toInstant();
+            }
+        });
+        EEPropertiesConverters.register("Instant",new EEPropertiesConverter() {
+            public Object convert(String stringValue) {
+                return OffsetDateTime.parse(stringValue,EEPropertiesConverters.DATE_TIME).toInstant();
+            }
+        });
+        EEPropertiesConverters.register("LocalDate",new EEPropertiesConverter() {
+            public Object convert(String stringValue) {
+                return LocalDate.parse(stringValue,DateTimeFormatter.ISO_LOCAL_DATE);
+            }
+        });
+        EEPropertiesConverters.register("OffsetDateTime",new EEPropertiesConverter() {
+            public Object convert(String stringValue) {
+                return OffsetDateTime.parse(stringValue,EEPropertiesConverters.DATE_TIME);
+            }
+        });
+        EEPropertiesConverters.register("ArrayList<String>",new EEPropertiesConverter() {
+            public Object convert(String stringValue) {
+                return new ArrayList<String>(Arrays.asList(EEPropertiesConverters.split(stringValue)));
+            }
+        });
+        EEPropertiesConverters.register("ArrayList<Integer>",new EEPropertiesConverter() {
+            public Object convert(String stringValue) {
+                String[] values = EEPropertiesConverters.split(stringValue);
+                ArrayList<Integer> integerArrayList = new ArrayList<Integer>(values.length);
+                for (String value : values) {
+                    integerArrayList.add(Integer.valueOf(value));
+                }
+                return integerArrayList;
+            }
+        });
+        EEPropertiesConverters.register("int[]",new EEPropertiesConverter() {
+            public Object convert(String stringValue) {
+                String[] rawStringValues = EEPropertiesConverters.split(stringValue);
+                int[] values = new int[rawStringValues.length];
+                for (int i = 0 ; i < values.length ; i++) {
+                    values[i] = Integer.parseInt(rawStringValues[i]);
+                }
+                return IntBuffer.wrap(values).asReadOnlyBuffer();
+            }
+        });
+        EEPropertiesConverters.register("long[]",new EEPropertiesConverter() {
+            public Object convert(String stringValue) {
+                String[] rawStringValues = EEPropertiesConverters.split(stringValue);
+                long[] values = new long[rawStringValues.length];
+                for (int i = 0 ; i < values.length ; i++) {
+                    values[i] = Long.parseLong(rawStringValues[i]);
+                }
+                return LongBuffer.wrap(values).asReadOnlyBuffer();
+            }
+        });
+        EEPropertiesConverters.register("double[]",new EEPropertiesConverter() {
+            public Object convert(String stringValue) {
+                String[] rawStringValues = EEPropertiesConverters.split(stringValue);
+                double[] values = new double[rawStringValues.length];
+                for (int i = 0 ; i < values.length ; i++) {
+                    values[i] = Double.parseDouble(rawStringValues[i]);
+                }
+                return DoubleBuffer.wrap(values).asReadOnlyBuffer();
+            }
+        });
+        EEPropertiesConverters.register("ImmutableList<String>",new EEPropertiesConverter() {
+            public Object convert(String stringValue) {
+                return Collections.unmodifiableList(Arrays.asList(EEPropertiesConverters.split(stringValue)));
+            }
+        });
+        EEPropertiesConverters.register("Duration",new EEPropertiesConverter() {
+            public Object convert(String stringValue) {
+                return EEPropertiesConverters.parseDuration(stringValue);
+            }
+        });
+        EEPropertiesConverters.register("DataSize",new EEPropertiesConverter() {
+            public Object convert(String stringValue) {
+                return EEPropertiesConverters.parseDataSize(stringValue);
+            }
+        });
+        EEPropertiesConverters.register("URI",new EEPropertiesConverter() {
+            public Object convert(String stringValue) throws Exception {
+                return new URI(stringValue);
+            }
+        });
+        EEPropertiesConverters.register("InetSocketAddress",new EEPropertiesConverter() {
+            public Object convert(String stringValue) {
+                Matcher matcher = EEPropertiesConverters.SOCKET_ADDRESS.matcher(stringValue);
+                if (! matcher.matches()) {
+                    return null;
+                }
+                // Unresolved, so loading never waits on DNS
+                return InetSocketAddress.createUnresolved(matcher.group(1),Integer.parseInt(matcher.group(2)));
+            }
+        });
+        EEPropertiesConverters.register("Encrypted",new EEPropertiesConverter() {
+            public Object convert(String stringValue) {
+                // Decrypted on first read, so secrets never read are never decrypted
+                return EEPropertiesEncryptedValue.parse(stringValue);
+            }
+        });
+    }
+
+    /**
+     * Converter and the type name recorded for the values it produces
+     */
+    private static final class Registration {
+
+        final String typeName;
+
+        final EEPropertiesConverter converter;
+
+        Registration(String typeName, EEPropertiesConverter converter) {
+            this.typeName = typeName;
+            this.converter = converter;
+        }
+    }
+
+}
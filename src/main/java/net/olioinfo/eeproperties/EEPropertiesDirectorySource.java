@@ -0,0 +1,205 @@
+/* Copyright 2009-2010 Tracy Flynn
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.olioinfo.eeproperties;
+
+import java.io.File;
+import java.nio.file.FileSystems;
+import java.nio.file.PathMatcher;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Properties;
+
+/**
+ * <p>Drop-in configuration files in a directory, e.g. '/etc/myapp/conf.d/*.properties'.</p>
+ *
+ * <p>Every file in the directory whose name matches the pattern is loaded for every load definition, after the
+ * definition's own files, and the files are merged in lexical order of their names, so '20-cache.properties'
+ * overrides '10-db.properties'.</p>
+ *
+ * <p>Drop-in files are not specific to a definition, so the merged files are kept in a Snapshot and reused by
+ * every later definition until the directory or one of its files changes.</p>
+ *
+ * @author Tracy Flynn
+ * @since 2.10
+ */
+final class EEPropertiesDirectorySource {
+
+    private final File directory;
+
+    private final String pattern;
+
+    private final PathMatcher matcher;
+
+    private EEPropertiesDirectorySource(File directory, String pattern) {
+        this.directory = directory;
+        this.pattern = pattern;
+        this.matcher = FileSystems.getDefault().getPathMatcher("glob:" + pattern);
+    }
+
+    /**
+     * Check whether a configuration path names drop-in files, i.e. whether its last part is a pattern
+     *
+     * @param location Configuration path
+     * @return true for a drop-in directory
+     */
+    static boolean isDirectoryPattern(String location) {
+        String name = location.substring(location.lastIndexOf('/') + 1);
+        return name.indexOf('*') >= 0 || name.indexOf('?') >= 0;
+    }
+
+    /**
+     * Create a source for a configuration path ending in a pattern
+     *
+     * @param location Configuration path, e.g. '/etc/myapp/conf.d/*.properties'
+     * @return Source
+     */
+    static EEPropertiesDirectorySource forLocation(String location) {
+        int lastSlash = location.lastIndexOf('/');
+        return new EEPropertiesDirectorySource(new File(lastSlash < 0 ? "." : location.substring(0,Math.max(lastSlash,1))),
+            location.substring(lastSlash + 1));
+    }
+
+    /**
+     * @return Matching files, sorted by name. Empty if the directory doesn't exist
+     */
+    List<File> list() {
+        File[] files = this.directory.listFiles();
+        if (files == null) {
+            return Collections.emptyList();
+        }
+        Arrays.sort(files);
+        List<File> matching = new ArrayList<File>(files.length);
+        for (File file : files) {
+            if (file.isFile() && this.matcher.matches(file.toPath().getFileName())) {
+                matching.add(file);
+            }
+        }
+        return matching;
+    }
+
+    File getDirectory() {
+        return this.directory;
+    }
+
+    /**
+     * Take a snapshot of the directory's files, without their contents yet
+     *
+     * <p>Modification times are taken before the files are read, so a file changed while it is read is read again
+     * next time.</p>
+     *
+     * @return Snapshot to complete with withProperties
+     */
+    Snapshot snapshot() {
+        // Adding or removing a file changes the directory's modification time
+        long directoryModified = this.directory.lastModified();
+        List<File> files = list();
+        File[] snapshotFiles = files.toArray(new File[files.size()]);
+        long[] filesModified = new long[snapshotFiles.length];
+        long[] fileLengths = new long[snapshotFiles.length];
+        for (int i = 0 ; i < snapshotFiles.length ; i++) {
+            filesModified[i] = snapshotFiles[i].lastModified();
+            fileLengths[i] = snapshotFiles[i].length();
+        }
+        return new Snapshot(this.directory,directoryModified,snapshotFiles,filesModified,fileLengths,null,false);
+    }
+
+    /**
+     * Merged contents of a directory's files, with the modification times they were read at
+     */
+    static final class Snapshot {
+
+        private final File directory;
+
+        private final long directoryModified;
+
+        private final File[] files;
+
+        private final long[] filesModified;
+
+        private final long[] fileLengths;
+
+        private final Properties properties;
+
+        private final boolean loaded;
+
+        private Snapshot(File directory, long directoryModified, File[] files, long[] filesModified, long[] fileLengths,
+                         Properties properties, boolean loaded) {
+            this.directory = directory;
+            this.directoryModified = directoryModified;
+            this.files = files;
+            this.filesModified = filesModified;
+            this.fileLengths = fileLengths;
+            this.properties = properties;
+            this.loaded = loaded;
+        }
+
+        /**
+         * Complete a snapshot with the contents of its files
+         *
+         * @param properties Merged properties of the files
+         * @param loaded true if any file was loaded
+         * @return Completed snapshot
+         */
+        Snapshot withProperties(Properties properties, boolean loaded) {
+            return new Snapshot(this.directory,this.directoryModified,this.files,this.filesModified,this.fileLengths,
+                properties,loaded);
+        }
+
+        /**
+         * Check that no file was added, removed or changed since the snapshot was taken
+         *
+         * @return true if the snapshot can be reused
+         */
+        boolean isCurrent() {
+            if (this.directory.lastModified() != this.directoryModified) {
+                return false;
+            }
+            for (int i = 0 ; i < this.files.length ; i++) {
+                if (this.files[i].lastModified() != this.filesModified[i] || this.files[i].length() != this.fileLengths[i]) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        /**
+         * @return Files listed, sorted by name
+         */
+        List<File> getFiles() {
+            return Arrays.asList(this.files);
+        }
+
+        /**
+         * @return Merged properties of the files. Not to be modified
+         */
+        Properties getProperties() {
+            return this.properties;
+        }
+
+        /**
+         * @return true if any file was loaded
+         */
+        boolean isLoaded() {
+            return this.loaded;
+        }
+    }
+
+    public String toString() {
+        return String.format("%s/%s",this.directory.getPath(),this.pattern);
+    }
+
+}
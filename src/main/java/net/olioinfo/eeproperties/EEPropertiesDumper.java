@@ -0,0 +1,242 @@
+/* Copyright 2009-2010 Tracy Flynn
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.olioinfo.eeproperties;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.util.function.BiConsumer;
+
+/**
+ * <p>Writes every property of a generation to a channel, in properties or JSON form.</p>
+ *
+ * <p>Characters are encoded straight into one reusable buffer, which is written to the channel each time it
+ * fills, so dumping allocates nothing per property. Room for the worst case is reserved once per String, so the
+ * encoding loops don't check the buffer per character.</p>
+ *
+ * @author Tracy Flynn
+ * @since 2.10
+ */
+final class EEPropertiesDumper implements BiConsumer<String,String> {
+
+    /**
+     * Size of the output buffer
+     */
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private static final byte[] HEX_DIGITS = "0123456789ABCDEF".getBytes();
+
+    private final WritableByteChannel channel;
+
+    private final EEProperties.DumpFormat format;
+
+    private byte[] bytes = new byte[EEPropertiesDumper.BUFFER_SIZE];
+
+    /**
+     * Number of bytes in use
+     */
+    private int position = 0;
+
+    private boolean first = true;
+
+    private EEPropertiesDumper(WritableByteChannel channel, EEProperties.DumpFormat format) {
+        this.channel = channel;
+        this.format = format;
+    }
+
+    /**
+     * Dump a generation
+     *
+     * @param generation Generation to dump
+     * @param channel Destination. Not closed
+     * @param format Output format
+     * @throws IOException if writing fails
+     */
+    static void dump(EEPropertiesLayeredStore.Generation generation, WritableByteChannel channel, EEProperties.DumpFormat format) throws IOException {
+        EEPropertiesDumper dumper = new EEPropertiesDumper(channel,format);
+        try {
+            if (format == EEProperties.DumpFormat.JSON) {
+                dumper.bytes[dumper.position++] = '{';
+            }
+            generation.forEach(dumper);
+            if (format == EEProperties.DumpFormat.JSON) {
+                dumper.reserve(3);
+                if (! dumper.first) {
+                    dumper.bytes[dumper.position++] = '\n';
+                }
+                dumper.bytes[dumper.position++] = '}';
+                dumper.bytes[dumper.position++] = '\n';
+            }
+            dumper.flush();
+        }
+        catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+    }
+
+    public void accept(String key, String value) {
+        try {
+            if (this.format == EEProperties.DumpFormat.JSON) {
+                reserve(6);
+                if (! this.first) {
+                    this.bytes[this.position++] = ',';
+                }
+                this.bytes[this.position++] = '\n';
+                this.bytes[this.position++] = ' ';
+                this.bytes[this.position++] = ' ';
+                writeJsonString(key);
+                reserve(2);
+                this.bytes[this.position++] = ':';
+                this.bytes[this.position++] = ' ';
+                writeJsonString(value);
+            }
+            else {
+                writeProperties(key,true);
+                reserve(1);
+                this.bytes[this.position++] = '=';
+                writeProperties(value,false);
+                reserve(1);
+                this.bytes[this.position++] = '\n';
+            }
+            this.first = false;
+        }
+        catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Write a key or value escaped as Properties.store does, so the output can be read back with Properties.load
+     *
+     * @param value String to write
+     * @param key true for a key, which also escapes spaces
+     */
+    private void writeProperties(String value, boolean key) throws IOException {
+        int length = value.length();
+        // Each character takes at most 6 bytes (backslash u and four hex digits)
+        reserve(6 * length);
+        byte[] bytes = this.bytes;
+        int position = this.position;
+        for (int i = 0 ; i < length ; i++) {
+            char c = value.charAt(i);
+            if (c > ' ' && c < 0x7f) {
+                if (c == '\\' || c == '=' || c == ':' || c == '#' || c == '!') {
+                    bytes[position++] = '\\';
+                }
+                bytes[position++] = (byte) c;
+            }
+            else if (c == ' ') {
+                if (key || i == 0) {
+                    bytes[position++] = '\\';
+                }
+                bytes[position++] = ' ';
+            }
+            else if (c == '\t' || c == '\n' || c == '\r' || c == '\f') {
+                bytes[position++] = '\\';
+                bytes[position++] = (byte) (c == '\t' ? 't' : c == '\n' ? 'n' : c == '\r' ? 'r' : 'f');
+            }
+            else {
+                position = writeUnicodeEscape(bytes,position,c);
+            }
+        }
+        this.position = position;
+    }
+
+    /**
+     * Write a JSON string literal, encoding non-ASCII characters as UTF-8
+     *
+     * @param value String to write
+     */
+    private void writeJsonString(String value) throws IOException {
+        int length = value.length();
+        // Each character takes at most 6 bytes (an escape, or 3 bytes of UTF-8), plus the quotes
+        reserve(6 * length + 2);
+        byte[] bytes = this.bytes;
+        int position = this.position;
+        bytes[position++] = '"';
+        for (int i = 0 ; i < length ; i++) {
+            char c = value.charAt(i);
+            if (c >= ' ' && c < 0x80) {
+                if (c == '"' || c == '\\') {
+                    bytes[position++] = '\\';
+                }
+                bytes[position++] = (byte) c;
+            }
+            else if (c == '\n' || c == '\r' || c == '\t') {
+                bytes[position++] = '\\';
+                bytes[position++] = (byte) (c == '\n' ? 'n' : c == '\r' ? 'r' : 't');
+            }
+            else if (c < ' ') {
+                position = writeUnicodeEscape(bytes,position,c);
+            }
+            else if (c < 0x800) {
+                bytes[position++] = (byte) (0xc0 | (c >> 6));
+                bytes[position++] = (byte) (0x80 | (c & 0x3f));
+            }
+            else if (Character.isHighSurrogate(c) && i + 1 < length && Character.isLowSurrogate(value.charAt(i + 1))) {
+                int codePoint = Character.toCodePoint(c,value.charAt(++i));
+                bytes[position++] = (byte) (0xf0 | (codePoint >> 18));
+                bytes[position++] = (byte) (0x80 | ((codePoint >> 12) & 0x3f));
+                bytes[position++] = (byte) (0x80 | ((codePoint >> 6) & 0x3f));
+                bytes[position++] = (byte) (0x80 | (codePoint & 0x3f));
+            }
+            else if (Character.isSurrogate(c)) {
+                // Unpaired surrogate: not valid UTF-8, so keep it as an escape
+                position = writeUnicodeEscape(bytes,position,c);
+            }
+            else {
+                bytes[position++] = (byte) (0xe0 | (c >> 12));
+                bytes[position++] = (byte) (0x80 | ((c >> 6) & 0x3f));
+                bytes[position++] = (byte) (0x80 | (c & 0x3f));
+            }
+        }
+        bytes[position++] = '"';
+        this.position = position;
+    }
+
+    private static int writeUnicodeEscape(byte[] bytes, int position, char c) {
+        bytes[position++] = '\\';
+        bytes[position++] = 'u';
+        bytes[position++] = EEPropertiesDumper.HEX_DIGITS[(c >> 12) & 0xf];
+        bytes[position++] = EEPropertiesDumper.HEX_DIGITS[(c >> 8) & 0xf];
+        bytes[position++] = EEPropertiesDumper.HEX_DIGITS[(c >> 4) & 0xf];
+        bytes[position++] = EEPropertiesDumper.HEX_DIGITS[c & 0xf];
+        return position;
+    }
+
+    /**
+     * Make room in the buffer, flushing it or, for a very long String, growing it
+     *
+     * @param count Bytes needed
+     */
+    private void reserve(int count) throws IOException {
+        if (this.position + count > this.bytes.length) {
+            flush();
+            if (count > this.bytes.length) {
+                this.bytes = new byte[count];
+            }
+        }
+    }
+
+    private void flush() throws IOException {
+        ByteBuffer buffer = ByteBuffer.wrap(this.bytes,0,this.position);
+        while (buffer.hasRemaining()) {
+            this.channel.write(buffer);
+        }
+        this.position = 0;
+    }
+
+}
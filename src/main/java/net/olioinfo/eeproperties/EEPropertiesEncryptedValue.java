@@ -0,0 +1,81 @@
+/* Copyright 2009-2010 Tracy Flynn
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.olioinfo.eeproperties;
+
+import java.util.Base64;
+
+/**
+ * <p>Undecrypted value of an [Encrypted] property.</p>
+ *
+ * <p>The value is "[key identifier:]Base64", where the Base64 encodes a 12 byte AES-GCM nonce followed by the
+ * ciphertext and its 16 byte tag. Loading only decodes the Base64; the value is decrypted when it is read.</p>
+ *
+ * @author Tracy Flynn
+ * @since 2.10
+ */
+final class EEPropertiesEncryptedValue {
+
+    static final int NONCE_LENGTH = 12;
+
+    static final int TAG_LENGTH = 16;
+
+    /**
+     * Value as written after the type, compared to tell whether a cached plaintext is still current
+     */
+    final String text;
+
+    /**
+     * Key identifier, or null for the default key
+     */
+    final String keyId;
+
+    /**
+     * Nonce, ciphertext and tag
+     */
+    final byte[] sealed;
+
+    private EEPropertiesEncryptedValue(String text, String keyId, byte[] sealed) {
+        this.text = text;
+        this.keyId = keyId;
+        this.sealed = sealed;
+    }
+
+    /**
+     * Parse a value
+     *
+     * @param text Value as written after the type
+     * @return Encrypted value, or null if it is not valid
+     */
+    static EEPropertiesEncryptedValue parse(String text) {
+        int separator = text.indexOf(':');
+        String keyId = separator < 0 ? null : text.substring(0,separator).trim();
+        byte[] sealed;
+        try {
+            sealed = Base64.getDecoder().decode(text.substring(separator + 1).trim());
+        }
+        catch (IllegalArgumentException ex) {
+            return null;
+        }
+        if (sealed.length < EEPropertiesEncryptedValue.NONCE_LENGTH + EEPropertiesEncryptedValue.TAG_LENGTH) {
+            return null;
+        }
+        return new EEPropertiesEncryptedValue(text,keyId == null || keyId.length() == 0 ? null : keyId,sealed);
+    }
+
+    public String toString() {
+        return "[Encrypted]";
+    }
+
+}
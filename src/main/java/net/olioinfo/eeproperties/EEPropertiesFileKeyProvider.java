@@ -0,0 +1,88 @@
+/* Copyright 2009-2010 Tracy Flynn
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.olioinfo.eeproperties;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.security.GeneralSecurityException;
+import java.util.Arrays;
+import java.util.Base64;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * <p>Key provider reading a single AES key from a file.</p>
+ *
+ * <p>The file holds the Base64 encoding of a 16, 24 or 32 byte key, as written by EEPropertiesSecrets.generateKey.
+ * It is read when the first encrypted value is read, and the key is then kept. Key identifiers are ignored.</p>
+ *
+ * @author Tracy Flynn
+ * @since 2.10
+ */
+public class EEPropertiesFileKeyProvider implements EEPropertiesKeyProvider {
+
+    private final File keyFile;
+
+    private volatile SecretKey key = null;
+
+    /**
+     * Create a provider
+     *
+     * @param keyFile File holding the Base64 encoded key
+     */
+    public EEPropertiesFileKeyProvider(File keyFile) {
+        this.keyFile = keyFile;
+    }
+
+    public SecretKey getKey(String keyId) throws GeneralSecurityException, IOException {
+        SecretKey currentKey = this.key;
+        if (currentKey == null) {
+            byte[] encoded = Files.readAllBytes(this.keyFile.toPath());
+            byte[] keyBytes = null;
+            try {
+                keyBytes = Base64.getMimeDecoder().decode(new String(encoded,StandardCharsets.US_ASCII).trim());
+                if (keyBytes.length != 16 && keyBytes.length != 24 && keyBytes.length != 32) {
+                    throw new GeneralSecurityException(String.format("EEPropertiesFileKeyProvider: %s does not hold a 128, 192 or 256 bit key",this.keyFile));
+                }
+                currentKey = new SecretKeySpec(keyBytes,"AES");
+            }
+            catch (IllegalArgumentException ex) {
+                throw new GeneralSecurityException(String.format("EEPropertiesFileKeyProvider: %s is not Base64",this.keyFile),ex);
+            }
+            finally {
+                Arrays.fill(encoded,(byte) 0);
+                if (keyBytes != null) {
+                    Arrays.fill(keyBytes,(byte) 0);
+                }
+            }
+            this.key = currentKey;
+        }
+        return currentKey;
+    }
+
+    /**
+     * @return Key file
+     */
+    public File getKeyFile() {
+        return this.keyFile;
+    }
+
+    public String toString() {
+        return String.format("EEPropertiesFileKeyProvider %s",this.keyFile);
+    }
+
+}
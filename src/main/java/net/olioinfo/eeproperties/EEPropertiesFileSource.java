@@ -0,0 +1,88 @@
+/* Copyright 2009-2010 Tracy Flynn
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.olioinfo.eeproperties;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * <p>Configuration files in a directory.</p>
+ *
+ * <p>A file is looked for first in the sub-directory mirroring the package of the load definition's class, then
+ * in the directory itself.</p>
+ *
+ * @author Tracy Flynn
+ * @since 2.10
+ */
+public class EEPropertiesFileSource implements EEPropertiesConfigSource {
+
+    private final String directory;
+
+    /**
+     * Create a source
+     *
+     * @param directory Directory name
+     */
+    public EEPropertiesFileSource(String directory) {
+        this.directory = directory;
+    }
+
+    public String locate(String fileName, Class<?> klass) {
+        String fullFileName = String.format("%s/%s/%s",this.directory,EEPropertiesFileSource.packagePath(klass),fileName);
+        if (new File(fullFileName).exists()) {
+            return fullFileName;
+        }
+        fullFileName = String.format("%s/%s",this.directory,fileName);
+        return new File(fullFileName).exists() ? fullFileName : null;
+    }
+
+    public InputStream open(String location) throws IOException {
+        return new FileInputStream(location);
+    }
+
+    public long lastModified(String location) {
+        return new File(location).lastModified();
+    }
+
+    public boolean isExternal() {
+        return true;
+    }
+
+    /**
+     * @return Directory name
+     */
+    public String getDirectory() {
+        return this.directory;
+    }
+
+    public String toString() {
+        return this.directory;
+    }
+
+    /**
+     * Get the path of a class's package, e.g. 'net/olioinfo/eeproperties'
+     *
+     * @param klass Class
+     * @return Package path, or an empty String for the default package
+     */
+    static String packagePath(Class<?> klass) {
+        String className = klass.getName();
+        int lastDot = className.lastIndexOf('.');
+        return lastDot < 0 ? "" : className.substring(0,lastDot).replace('.','/');
+    }
+
+}
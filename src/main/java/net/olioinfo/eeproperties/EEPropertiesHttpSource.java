@@ -0,0 +1,461 @@
+/* Copyright 2009-2010 Tracy Flynn
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.olioinfo.eeproperties;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.CRC32;
+
+/**
+ * <p>Configuration files served over HTTP or HTTPS, kept in a local cache directory.</p>
+ *
+ * <p>A file is requested from '[base URL]/[package path]/[file name]', e.g.
+ * 'https://config.mysite.com/prod/net/olioinfo/eeproperties/defaults-ee.properties'. Every file received is
+ * written to the cache directory together with its ETag and Last-Modified headers, and later requests for it are
+ * conditional (If-None-Match, If-Modified-Since), so a file that hasn't changed costs one 304 response with no
+ * body. A 404 or 410 response means the server doesn't have the file. If the server can't be reached or answers
+ * with any other error, the cached copy is used, so a process can start while the server is down.</p>
+ *
+ * <p>Once the server can't be reached during a load, the rest of that load uses the cached copies without trying
+ * the server again, so a load waits for at most one timeout however many files it reads. The next load tries
+ * again.</p>
+ *
+ * @author Tracy Flynn
+ * @since 2.10
+ */
+public class EEPropertiesHttpSource implements EEPropertiesConfigSource {
+
+    /**
+     * Default connect and read timeout (milliseconds)
+     */
+    public static final int DEFAULT_TIMEOUT_MILLIS = 5000;
+
+    private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+
+    /**
+     * Number of cache locks. A power of 2
+     */
+    private static final int CACHE_STRIPES = 16;
+
+    /**
+     * Keep a cached file and its validators in step. Shared by all sources, since sources with the same cache
+     * directory and base URL use the same cache files.
+     */
+    private static final ReentrantLock[] CACHE_LOCKS = EEPropertiesHttpSource.newCacheLocks();
+
+    private final String baseUrl;
+
+    private final File cacheDirectory;
+
+    private final int timeoutMillis;
+
+    private final LongAdder requests = new LongAdder();
+
+    private final LongAdder notModifiedResponses = new LongAdder();
+
+    private final LongAdder cacheFallbacks = new LongAdder();
+
+    /**
+     * Locations refreshed by locate whose stamp hasn't been taken yet. Taking the stamp of a file just loaded
+     * doesn't need another request.
+     */
+    private final ConcurrentHashMap<String,Boolean> refreshed = new ConcurrentHashMap<String,Boolean>();
+
+    /**
+     * Load running on each thread, unset outside loads
+     */
+    private final ThreadLocal<Load> loads = new ThreadLocal<Load>();
+
+    /**
+     * Create a source with the default timeout
+     *
+     * @param baseUrl Base URL
+     * @param cacheDirectory Directory for cached files. Created if needed
+     */
+    public EEPropertiesHttpSource(String baseUrl, File cacheDirectory) {
+        this(baseUrl,cacheDirectory,EEPropertiesHttpSource.DEFAULT_TIMEOUT_MILLIS);
+    }
+
+    /**
+     * Create a source
+     *
+     * @param baseUrl Base URL
+     * @param cacheDirectory Directory for cached files. Created if needed
+     * @param timeoutMillis Connect and read timeout (milliseconds)
+     */
+    public EEPropertiesHttpSource(String baseUrl, File cacheDirectory, int timeoutMillis) {
+        this.baseUrl = baseUrl.endsWith("/") ? baseUrl.substring(0,baseUrl.length() - 1) : baseUrl;
+        this.cacheDirectory = cacheDirectory;
+        this.timeoutMillis = timeoutMillis;
+        this.cacheDirectory.mkdirs();
+    }
+
+    public String locate(String fileName, Class<?> klass) {
+        String packagePath = EEPropertiesFileSource.packagePath(klass);
+        String location = packagePath.length() == 0 ? String.format("%s/%s",this.baseUrl,fileName)
+            : String.format("%s/%s/%s",this.baseUrl,packagePath,fileName);
+        if (! refresh(location)) {
+            return null;
+        }
+        this.refreshed.put(location,Boolean.TRUE);
+        return location;
+    }
+
+    /**
+     * Open the cached copy of a file, brought up to date by locate
+     */
+    public InputStream open(String location) throws IOException {
+        ReentrantLock cacheLock = cacheLock(location);
+        cacheLock.lock();
+        try {
+            return new FileInputStream(cacheFile(location,"properties"));
+        }
+        catch (IOException ex) {
+            // Not loaded, so the next stamp must not rely on the refresh made by locate
+            this.refreshed.remove(location);
+            throw ex;
+        }
+        finally {
+            cacheLock.unlock();
+        }
+    }
+
+    /**
+     * Get a checksum of a file's contents. Unless the file was just located, the cached copy is brought up to date
+     * first.
+     *
+     * @param location File URL
+     * @return Checksum, or 0 if the file is no longer available
+     */
+    public long lastModified(String location) {
+        if (this.refreshed.remove(location) == null && ! refresh(location)) {
+            return 0L;
+        }
+        Properties validators = readValidators(location);
+        return validators == null ? 0L : Long.parseLong(validators.getProperty("checksum","0"));
+    }
+
+    public boolean isExternal() {
+        return true;
+    }
+
+    /**
+     * Start a load on the current thread. Loads may nest; the outermost one decides when the server is tried again.
+     */
+    void beginLoad() {
+        Load load = this.loads.get();
+        if (load == null) {
+            load = new Load();
+            this.loads.set(load);
+        }
+        load.depth++;
+    }
+
+    /**
+     * End a load started on the current thread with beginLoad
+     */
+    void endLoad() {
+        Load load = this.loads.get();
+        if (load != null && --load.depth <= 0) {
+            this.loads.remove();
+        }
+    }
+
+    /**
+     * @return Base URL
+     */
+    public String getBaseUrl() {
+        return this.baseUrl;
+    }
+
+    /**
+     * @return Number of requests made
+     */
+    public long getRequests() {
+        return this.requests.sum();
+    }
+
+    /**
+     * @return Number of requests answered with 304 Not Modified
+     */
+    public long getNotModifiedResponses() {
+        return this.notModifiedResponses.sum();
+    }
+
+    /**
+     * @return Number of times a cached copy was used because the server couldn't be reached or failed
+     */
+    public long getCacheFallbacks() {
+        return this.cacheFallbacks.sum();
+    }
+
+    public String toString() {
+        return this.baseUrl;
+    }
+
+    /**
+     * Make a conditional request for a file and update the cached copy
+     *
+     * @param location File URL
+     * @return true if a current or fallback copy of the file is cached
+     */
+    private boolean refresh(String location) {
+        File cached = cacheFile(location,"properties");
+        Load load = this.loads.get();
+        if (load != null && load.serverUnreachable) {
+            return fallBack(cached);
+        }
+        Properties validators = cached.exists() ? readValidators(location) : null;
+        HttpURLConnection connection = null;
+        try {
+            connection = (HttpURLConnection) new URL(location).openConnection();
+            connection.setConnectTimeout(this.timeoutMillis);
+            connection.setReadTimeout(this.timeoutMillis);
+            connection.setUseCaches(false);
+            if (validators != null) {
+                if (validators.getProperty("etag") != null) {
+                    connection.setRequestProperty("If-None-Match",validators.getProperty("etag"));
+                }
+                if (validators.getProperty("lastModified") != null) {
+                    connection.setRequestProperty("If-Modified-Since",validators.getProperty("lastModified"));
+                }
+            }
+            this.requests.increment();
+            int status = connection.getResponseCode();
+            if (status == HttpURLConnection.HTTP_NOT_MODIFIED && validators != null) {
+                this.notModifiedResponses.increment();
+                return true;
+            }
+            if (status == HttpURLConnection.HTTP_OK) {
+                byte[] contents = EEPropertiesHttpSource.readFully(connection.getInputStream());
+                store(location,contents,connection.getHeaderField("ETag"),connection.getHeaderField("Last-Modified"));
+                return true;
+            }
+            if (status == HttpURLConnection.HTTP_NOT_FOUND || status == HttpURLConnection.HTTP_GONE) {
+                ReentrantLock cacheLock = cacheLock(location);
+                cacheLock.lock();
+                try {
+                    cached.delete();
+                    cacheFile(location,"validators").delete();
+                }
+                finally {
+                    cacheLock.unlock();
+                }
+                return false;
+            }
+            InputStream errorStream = connection.getErrorStream();
+            if (errorStream != null) {
+                errorStream.close();
+            }
+        }
+        catch (IOException ex) {
+            // Unreachable: fall back to the cached copy, for the rest of the load too
+            if (load != null) {
+                load.serverUnreachable = true;
+            }
+        }
+        return fallBack(cached);
+    }
+
+    /**
+     * Use the cached copy of a file, if there is one, instead of the server's
+     *
+     * @param cached Cached copy
+     * @return true if there is a cached copy
+     */
+    private boolean fallBack(File cached) {
+        if (cached.exists()) {
+            this.cacheFallbacks.increment();
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Replace the cached copy of a file. Each file is written to a temporary file and moved into place, and both
+     * moves are made under the location's cache lock, so a reader holding the lock sees the old or the new copy
+     * together with its own validators.
+     *
+     * @param location File URL
+     * @param contents File contents
+     * @param etag ETag header or null
+     * @param lastModified Last-Modified header or null
+     */
+    private void store(String location, byte[] contents, String etag, String lastModified) throws IOException {
+        CRC32 checksum = new CRC32();
+        checksum.update(contents,0,contents.length);
+        Properties validators = new Properties();
+        validators.setProperty("location",location);
+        validators.setProperty("checksum",String.valueOf(checksum.getValue()));
+        if (etag != null) {
+            validators.setProperty("etag",etag);
+        }
+        if (lastModified != null) {
+            validators.setProperty("lastModified",lastModified);
+        }
+        ByteArrayOutputStream validatorBytes = new ByteArrayOutputStream();
+        validators.store(validatorBytes,null);
+        ReentrantLock cacheLock = cacheLock(location);
+        cacheLock.lock();
+        try {
+            replace(cacheFile(location,"properties"),contents);
+            replace(cacheFile(location,"validators"),validatorBytes.toByteArray());
+        }
+        finally {
+            cacheLock.unlock();
+        }
+    }
+
+    private void replace(File file, byte[] contents) throws IOException {
+        File temporary = File.createTempFile(file.getName(),".tmp",this.cacheDirectory);
+        try {
+            OutputStream os = new FileOutputStream(temporary);
+            try {
+                os.write(contents);
+            }
+            finally {
+                os.close();
+            }
+            Files.move(temporary.toPath(),file.toPath(),StandardCopyOption.REPLACE_EXISTING,StandardCopyOption.ATOMIC_MOVE);
+        }
+        finally {
+            temporary.delete();
+        }
+    }
+
+    /**
+     * @param location File URL
+     * @return Validators stored with the cached copy, or null if there are none
+     */
+    private Properties readValidators(String location) {
+        File file = cacheFile(location,"validators");
+        if (! file.exists()) {
+            return null;
+        }
+        Properties validators = new Properties();
+        ReentrantLock cacheLock = cacheLock(location);
+        cacheLock.lock();
+        try {
+            InputStream is = new FileInputStream(file);
+            try {
+                validators.load(is);
+            }
+            finally {
+                is.close();
+            }
+            return validators;
+        }
+        catch (IOException ex) {
+            return null;
+        }
+        finally {
+            cacheLock.unlock();
+        }
+    }
+
+    /**
+     * Get the lock keeping a location's cached copy and validators in step
+     *
+     * @param location File URL
+     * @return Cache lock
+     */
+    private ReentrantLock cacheLock(String location) {
+        int hash = this.cacheDirectory.hashCode() * 31 + location.hashCode();
+        hash ^= hash >>> 16;
+        return EEPropertiesHttpSource.CACHE_LOCKS[hash & (EEPropertiesHttpSource.CACHE_STRIPES - 1)];
+    }
+
+    /**
+     * @return Cache locks
+     */
+    private static ReentrantLock[] newCacheLocks() {
+        ReentrantLock[] locks = new ReentrantLock[EEPropertiesHttpSource.CACHE_STRIPES];
+        for (int i = 0 ; i < locks.length ; i++) {
+            locks[i] = new ReentrantLock();
+        }
+        return locks;
+    }
+
+    /**
+     * Get a cache file for a URL, named by a digest of the URL
+     *
+     * @param location File URL
+     * @param extension File extension
+     * @return Cache file
+     */
+    private File cacheFile(String location, String extension) {
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-256").digest(location.getBytes(StandardCharsets.UTF_8));
+            char[] name = new char[2 * digest.length];
+            for (int i = 0 ; i < digest.length ; i++) {
+                name[2 * i] = EEPropertiesHttpSource.HEX_DIGITS[(digest[i] >> 4) & 0xf];
+                name[2 * i + 1] = EEPropertiesHttpSource.HEX_DIGITS[digest[i] & 0xf];
+            }
+            return new File(this.cacheDirectory,new String(name) + "." + extension);
+        }
+        catch (NoSuchAlgorithmException ex) {
+            // Every JVM has SHA-256
+            throw new IllegalStateException(ex);
+        }
+    }
+
+    private static byte[] readFully(InputStream is) throws IOException {
+        try {
+            ByteArrayOutputStream bytesRead = new ByteArrayOutputStream();
+            byte[] buffer = new byte[8192];
+            int count;
+            while ((count = is.read(buffer)) != -1) {
+                bytesRead.write(buffer,0,count);
+            }
+            return bytesRead.toByteArray();
+        }
+        finally {
+            is.close();
+        }
+    }
+
+    /**
+     * State of the load running on one thread
+     */
+    private static final class Load {
+
+        /**
+         * Number of nested loads running
+         */
+        int depth = 0;
+
+        /**
+         * Set once the server couldn't be reached during the load
+         */
+        boolean serverUnreachable = false;
+    }
+
+}
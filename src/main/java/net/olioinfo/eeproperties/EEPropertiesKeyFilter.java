@@ -0,0 +1,165 @@
+/* Copyright 2009-2010 Tracy Flynn
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.olioinfo.eeproperties;
+
+import java.util.List;
+import java.util.function.BiConsumer;
+
+/**
+ * <p>Immutable Bloom filter over the keys of one store layer.</p>
+ *
+ * <p>The filter is blocked: each key sets 4 bits within a single 64-bit word, so a check reads one word and never
+ * gives a false negative. The table has at least 16 bits per key. Keys removed from the layer leave their bits set,
+ * which only makes false positives more likely; the store builds a new filter once more keys have been added than
+ * the filter was sized for.</p>
+ *
+ * @author Tracy Flynn
+ * @since 2.10
+ */
+final class EEPropertiesKeyFilter {
+
+    /**
+     * Keys per 64-bit word the table is sized for
+     */
+    private static final int KEYS_PER_WORD = 4;
+
+    private final long[] words;
+
+    private final int wordMask;
+
+    /**
+     * Number of keys added, including any since removed from the layer
+     */
+    private final int keyCount;
+
+    /**
+     * Estimated false positive rate, computed on first request. -1 until then.
+     */
+    private volatile double estimatedFalsePositiveRate = -1.0;
+
+    private EEPropertiesKeyFilter(long[] words, int keyCount) {
+        this.words = words;
+        this.wordMask = words.length - 1;
+        this.keyCount = keyCount;
+    }
+
+    /**
+     * Build a filter holding every key of a layer
+     *
+     * @param layer Layer
+     * @return Filter
+     */
+    static EEPropertiesKeyFilter build(EEPropertiesLayerMap layer) {
+        // Twice the room needed now, so keys added by later loads usually fit without a rebuild
+        int wordsNeeded = Math.max(1,(2 * layer.size() + EEPropertiesKeyFilter.KEYS_PER_WORD - 1) / EEPropertiesKeyFilter.KEYS_PER_WORD);
+        int wordCount = wordsNeeded == 1 ? 1 : Integer.highestOneBit(wordsNeeded - 1) << 1;
+        final long[] words = new long[wordCount];
+        final int wordMask = wordCount - 1;
+        layer.forEach(new BiConsumer<String,String>() {
+            public void accept(String key, String value) {
+                long hash = EEPropertiesKeyFilter.hash(key);
+                words[(int) (hash >>> 32) & wordMask] |= EEPropertiesKeyFilter.bits(hash);
+            }
+        });
+        return new EEPropertiesKeyFilter(words,layer.size());
+    }
+
+    /**
+     * Get a filter that also holds some newly added keys
+     *
+     * @param keys Keys added
+     * @return New filter, or null if the keys don't fit and the filter should be rebuilt
+     */
+    EEPropertiesKeyFilter plus(List<String> keys) {
+        int newKeyCount = this.keyCount + keys.size();
+        if (newKeyCount > this.words.length * EEPropertiesKeyFilter.KEYS_PER_WORD) {
+            return null;
+        }
+        long[] newWords = this.words.clone();
+        for (String key : keys) {
+            long hash = EEPropertiesKeyFilter.hash(key);
+            newWords[(int) (hash >>> 32) & this.wordMask] |= EEPropertiesKeyFilter.bits(hash);
+        }
+        return new EEPropertiesKeyFilter(newWords,newKeyCount);
+    }
+
+    /**
+     * Hash a key for mightContain. Hash once when checking several filters.
+     *
+     * @param key Key
+     * @return Hash
+     */
+    static long hash(String key) {
+        long hash = key.hashCode() * 0x9e3779b97f4a7c15L;
+        hash ^= hash >>> 32;
+        hash *= 0xc2b2ae3d27d4eb4fL;
+        return hash ^ (hash >>> 29);
+    }
+
+    /**
+     * Get the 4 bits a hash sets within its word
+     *
+     * @param hash Hash
+     * @return Bit mask
+     */
+    private static long bits(long hash) {
+        return (1L << hash) | (1L << (hash >>> 6)) | (1L << (hash >>> 12)) | (1L << (hash >>> 18));
+    }
+
+    /**
+     * Check whether a key may be in the layer
+     *
+     * @param hash Hash of the key
+     * @return false if the key is certainly not in the layer
+     */
+    boolean mightContain(long hash) {
+        long bits = EEPropertiesKeyFilter.bits(hash);
+        return (this.words[(int) (hash >>> 32) & this.wordMask] & bits) == bits;
+    }
+
+    /**
+     * @return Number of keys added, including any since removed from the layer
+     */
+    int getKeyCount() {
+        return this.keyCount;
+    }
+
+    /**
+     * @return Heap used by the filter table, in bytes
+     */
+    long getMemoryFootprint() {
+        return 16L + 8L * this.words.length;
+    }
+
+    /**
+     * Estimate the chance that a key not in the layer passes mightContain, from how full each word is
+     *
+     * @return Estimated false positive rate
+     */
+    double getEstimatedFalsePositiveRate() {
+        double rate = this.estimatedFalsePositiveRate;
+        if (rate < 0) {
+            double total = 0.0;
+            for (long word : this.words) {
+                double fill = Long.bitCount(word) / 64.0;
+                total += fill * fill * fill * fill;
+            }
+            rate = total / this.words.length;
+            this.estimatedFalsePositiveRate = rate;
+        }
+        return rate;
+    }
+
+}
@@ -0,0 +1,42 @@
+/* Copyright 2009-2010 Tracy Flynn
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.olioinfo.eeproperties;
+
+import java.io.IOException;
+import java.security.GeneralSecurityException;
+import javax.crypto.SecretKey;
+
+/**
+ * <p>Supplies the keys that decrypt [Encrypted] property values.</p>
+ *
+ * <p>Keys are only requested when an encrypted value is first read, so a provider should defer any expensive work,
+ * such as opening a key store, until then. Implementations must be thread-safe.</p>
+ *
+ * @author Tracy Flynn
+ * @since 2.10
+ */
+public interface EEPropertiesKeyProvider {
+
+    /**
+     * Get a key
+     *
+     * @param keyId Key identifier given in the value, e.g. "db" in "[Encrypted] db:...", or null for the default key
+     * @return AES key
+     * @throws GeneralSecurityException if the key can't be recovered
+     * @throws IOException if the key can't be read
+     */
+    SecretKey getKey(String keyId) throws GeneralSecurityException, IOException;
+
+}
@@ -0,0 +1,131 @@
+/* Copyright 2009-2010 Tracy Flynn
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.olioinfo.eeproperties;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.GeneralSecurityException;
+import java.security.Key;
+import java.security.KeyStore;
+import java.security.UnrecoverableKeyException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantLock;
+import javax.crypto.SecretKey;
+
+/**
+ * <p>Key provider reading AES keys from a key store, such as a PKCS12 or JCEKS file made with keytool -genseckey.</p>
+ *
+ * <p>The key identifier in a value is the key's alias. Values without one use the default alias. The key store is
+ * opened when the first encrypted value is read, and each key is kept once recovered.</p>
+ *
+ * @author Tracy Flynn
+ * @since 2.10
+ */
+public class EEPropertiesKeyStoreKeyProvider implements EEPropertiesKeyProvider {
+
+    private final File keyStoreFile;
+
+    private final String keyStoreType;
+
+    private final char[] storePassword;
+
+    private final String defaultAlias;
+
+    private final char[] keyPassword;
+
+    /**
+     * Serializes opening the key store. Guards keyStore.
+     */
+    private final ReentrantLock openLock = new ReentrantLock();
+
+    private KeyStore keyStore = null;
+
+    private final ConcurrentHashMap<String,SecretKey> keys = new ConcurrentHashMap<String,SecretKey>();
+
+    /**
+     * Create a provider
+     *
+     * @param keyStoreFile Key store file
+     * @param keyStoreType Key store type, e.g. "PKCS12" or "JCEKS"
+     * @param storePassword Key store password
+     * @param defaultAlias Alias of the key used by values without a key identifier
+     * @param keyPassword Key password, or null to use the key store password
+     */
+    public EEPropertiesKeyStoreKeyProvider(File keyStoreFile, String keyStoreType, char[] storePassword,
+                                           String defaultAlias, char[] keyPassword) {
+        this.keyStoreFile = keyStoreFile;
+        this.keyStoreType = keyStoreType;
+        this.storePassword = storePassword == null ? null : storePassword.clone();
+        this.defaultAlias = defaultAlias;
+        this.keyPassword = keyPassword == null ? this.storePassword : keyPassword.clone();
+    }
+
+    public SecretKey getKey(String keyId) throws GeneralSecurityException, IOException {
+        String alias = keyId == null ? this.defaultAlias : keyId;
+        if (alias == null) {
+            throw new GeneralSecurityException("EEPropertiesKeyStoreKeyProvider: no key identifier and no default alias");
+        }
+        SecretKey key = this.keys.get(alias);
+        if (key == null) {
+            Key storedKey = openKeyStore().getKey(alias,this.keyPassword);
+            if (! (storedKey instanceof SecretKey)) {
+                throw new UnrecoverableKeyException(String.format("EEPropertiesKeyStoreKeyProvider: no secret key %s in %s",alias,this.keyStoreFile));
+            }
+            key = (SecretKey) storedKey;
+            this.keys.put(alias,key);
+        }
+        return key;
+    }
+
+    /**
+     * Open the key store if not already open
+     *
+     * @return Key store
+     */
+    private KeyStore openKeyStore() throws GeneralSecurityException, IOException {
+        this.openLock.lock();
+        try {
+            if (this.keyStore == null) {
+                KeyStore newKeyStore = KeyStore.getInstance(this.keyStoreType);
+                InputStream is = new FileInputStream(this.keyStoreFile);
+                try {
+                    newKeyStore.load(is,this.storePassword);
+                }
+                finally {
+                    is.close();
+                }
+                this.keyStore = newKeyStore;
+            }
+            return this.keyStore;
+        }
+        finally {
+            this.openLock.unlock();
+        }
+    }
+
+    /**
+     * @return Key store file
+     */
+    public File getKeyStoreFile() {
+        return this.keyStoreFile;
+    }
+
+    public String toString() {
+        return String.format("EEPropertiesKeyStoreKeyProvider %s",this.keyStoreFile);
+    }
+
+}
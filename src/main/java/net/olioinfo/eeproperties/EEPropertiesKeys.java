@@ -0,0 +1,79 @@
+/* Copyright 2009-2010 Tracy Flynn
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.olioinfo.eeproperties;
+
+import java.lang.annotation.Documented;
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * <p>Declares a set of property keys to generate slot-indexed accessors for.</p>
+ *
+ * <p>Every String constant of the annotated type is a key. With the eeproperties-processor annotation processor on
+ * the compiler's processor path, a class named by value is generated in the same package, with a slot constant and
+ * accessors for each key:</p>
+ *
+ * <pre>
+ * &#64;EEPropertiesKeys("DbSettings")
+ * public interface DbKeys {
+ *     String URL = "com.mysite.db.url";
+ *     &#64;EEPropertiesKeys.Type(Integer.class)
+ *     String POOL_SIZE = "com.mysite.db.poolSize";
+ * }
+ *
+ * String url = DbSettings.url();                   // String value
+ * Integer poolSize = DbSettings.poolSizeValue();   // typed value
+ * Object urlValue = DbSettings.urlValue();         // typed value, no declared type
+ * DbSettings.reportMissingKeys();                  // after loading: warn about keys without a value
+ * </pre>
+ *
+ * <p>The typed accessor of a constant annotated with &#64;EEPropertiesKeys.Type returns that type. A typed value of
+ * another type fails with a ClassCastException, as the typed getters of EEProperties do. Without the annotation the
+ * typed accessor returns Object.</p>
+ *
+ * @author Tracy Flynn
+ * @since 2.10
+ */
+@Documented
+@Retention(RetentionPolicy.SOURCE)
+@Target(ElementType.TYPE)
+public @interface EEPropertiesKeys {
+
+    /**
+     * @return Simple name of the generated class
+     */
+    String value();
+
+    /**
+     * <p>Declares the type of the typed value of one key.</p>
+     *
+     * <p>Primitive types are returned boxed. For a generic type the accessor returns it with wildcard type
+     * arguments, for example List&lt;?&gt; for List.class.</p>
+     */
+    @Documented
+    @Retention(RetentionPolicy.SOURCE)
+    @Target(ElementType.FIELD)
+    @interface Type {
+
+        /**
+         * @return Type of the typed value
+         */
+        Class<?> value();
+
+    }
+
+}
@@ -0,0 +1,236 @@
+/* Copyright 2009-2010 Tracy Flynn
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.olioinfo.eeproperties;
+
+import java.io.File;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.function.BiConsumer;
+
+/**
+ * <p>Immutable contents of one store layer.</p>
+ *
+ * <p>A layer is an optional off-heap base table plus an on-heap EEPropertiesPersistentMap of changes made since the
+ * base was built. Without off-heap storage there is no base and the layer is just the persistent map. With it, the
+ * store moves the changes into a new base once they grow large, so the bulk of a big configuration stays out of the
+ * heap while single changes remain cheap.</p>
+ *
+ * @author Tracy Flynn
+ * @since 2.10
+ */
+final class EEPropertiesLayerMap {
+
+    /**
+     * Change marking a base key as removed. Compared by identity.
+     */
+    private static final String REMOVED = new String("");
+
+    /**
+     * Smallest number of changes moved into a new base
+     */
+    private static final int MINIMUM_COMPACTION_SIZE = 4096;
+
+    private static final EEPropertiesLayerMap EMPTY = new EEPropertiesLayerMap(null,EEPropertiesPersistentMap.<String>empty(),0);
+
+    private final EEPropertiesOffHeapTable base;
+
+    private final EEPropertiesPersistentMap<String> changes;
+
+    private final int size;
+
+    private EEPropertiesLayerMap(EEPropertiesOffHeapTable base, EEPropertiesPersistentMap<String> changes, int size) {
+        this.base = base;
+        this.changes = changes;
+        this.size = size;
+    }
+
+    /**
+     * @return Empty layer
+     */
+    static EEPropertiesLayerMap empty() {
+        return EEPropertiesLayerMap.EMPTY;
+    }
+
+    String get(String key) {
+        String value = this.changes.get(key);
+        if (value != null) {
+            return value == EEPropertiesLayerMap.REMOVED ? null : value;
+        }
+        return this.base == null ? null : this.base.get(key);
+    }
+
+    boolean containsKey(String key) {
+        String value = this.changes.get(key);
+        if (value != null) {
+            return value != EEPropertiesLayerMap.REMOVED;
+        }
+        return this.base != null && this.base.containsKey(key);
+    }
+
+    /**
+     * Get a layer with a key set
+     *
+     * @param key Key
+     * @param value Value
+     * @return New layer, or this layer if the key already had the (identical) value
+     */
+    EEPropertiesLayerMap plus(String key, String value) {
+        EEPropertiesPersistentMap<String> newChanges = this.changes.plus(key,value);
+        if (newChanges == this.changes) {
+            return this;
+        }
+        int newSize = this.size;
+        if (newChanges.size() > this.changes.size()) {
+            // New change: a new key unless the base already has it
+            if (this.base == null || ! this.base.containsKey(key)) {
+                newSize++;
+            }
+        }
+        else if (this.changes.get(key) == EEPropertiesLayerMap.REMOVED) {
+            newSize++;
+        }
+        return new EEPropertiesLayerMap(this.base,newChanges,newSize);
+    }
+
+    /**
+     * Get a layer without a key
+     *
+     * @param key Key
+     * @return New layer, or this layer if the key was not present
+     */
+    EEPropertiesLayerMap minus(String key) {
+        if (! containsKey(key)) {
+            return this;
+        }
+        EEPropertiesPersistentMap<String> newChanges = this.base != null && this.base.containsKey(key)
+            ? this.changes.plus(key,EEPropertiesLayerMap.REMOVED) : this.changes.minus(key);
+        return new EEPropertiesLayerMap(this.base,newChanges,this.size - 1);
+    }
+
+    int size() {
+        return this.size;
+    }
+
+    boolean isEmpty() {
+        return this.size == 0;
+    }
+
+    /**
+     * @return true if enough changes have accumulated to be worth moving into a new base
+     */
+    boolean needsCompaction() {
+        int changeCount = this.changes.size();
+        return changeCount >= EEPropertiesLayerMap.MINIMUM_COMPACTION_SIZE
+            && changeCount >= (this.base == null ? 0 : this.base.size() / 4);
+    }
+
+    /**
+     * Move all changes into a new off-heap base
+     *
+     * @param directory Directory for memory-mapped files, or null for direct buffers
+     * @return Compacted layer
+     */
+    EEPropertiesLayerMap compact(File directory) {
+        if (this.changes.isEmpty()) {
+            return this;
+        }
+        EEPropertiesOffHeapTable newBase = EEPropertiesOffHeapTable.build(this.base,this.changes,EEPropertiesLayerMap.REMOVED,directory);
+        return new EEPropertiesLayerMap(newBase.size() == 0 ? null : newBase,EEPropertiesPersistentMap.<String>empty(),newBase.size());
+    }
+
+    /**
+     * @return Bytes held off-heap by the base
+     */
+    long getOffHeapBytes() {
+        return this.base == null ? 0L : this.base.getOffHeapBytes();
+    }
+
+    /**
+     * Apply an action to the entries held on the heap
+     *
+     * @param action Action to apply
+     */
+    void forEachOnHeap(final BiConsumer<String,String> action) {
+        this.changes.forEach(new BiConsumer<String,String>() {
+            public void accept(String key, String value) {
+                if (value != EEPropertiesLayerMap.REMOVED) {
+                    action.accept(key,value);
+                }
+            }
+        });
+    }
+
+    void forEach(final BiConsumer<String,String> action) {
+        if (this.base != null) {
+            this.base.forEach(new BiConsumer<String,String>() {
+                public void accept(String key, String value) {
+                    if (! EEPropertiesLayerMap.this.changes.containsKey(key)) {
+                        action.accept(key,value);
+                    }
+                }
+            });
+        }
+        forEachOnHeap(action);
+    }
+
+    Iterator<Map.Entry<String,String>> iterator() {
+        if (this.base == null) {
+            return this.changes.iterator();
+        }
+        return new Iterator<Map.Entry<String,String>>() {
+
+            private final Iterator<Map.Entry<String,String>> baseIterator = EEPropertiesLayerMap.this.base.iterator();
+
+            private final Iterator<Map.Entry<String,String>> changeIterator = EEPropertiesLayerMap.this.changes.iterator();
+
+            private Map.Entry<String,String> next = advance();
+
+            public boolean hasNext() {
+                return this.next != null;
+            }
+
+            public Map.Entry<String,String> next() {
+                if (this.next == null) {
+                    throw new NoSuchElementException();
+                }
+                Map.Entry<String,String> entry = this.next;
+                this.next = advance();
+                return entry;
+            }
+
+            public void remove() {
+                throw new UnsupportedOperationException();
+            }
+
+            private Map.Entry<String,String> advance() {
+                while (this.baseIterator.hasNext()) {
+                    Map.Entry<String,String> entry = this.baseIterator.next();
+                    if (! EEPropertiesLayerMap.this.changes.containsKey(entry.getKey())) {
+                        return entry;
+                    }
+                }
+                while (this.changeIterator.hasNext()) {
+                    Map.Entry<String,String> entry = this.changeIterator.next();
+                    if (entry.getValue() != EEPropertiesLayerMap.REMOVED) {
+                        return entry;
+                    }
+                }
+                return null;
+            }
+        };
+    }
+
+}
@@ -0,0 +1,801 @@
+/* Copyright 2009-2010 Tracy Flynn
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.olioinfo.eeproperties;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+
+/**
+ * <p>Layered property store.</p>
+ *
+ * <p>Properties are held in separate layers, from lowest to highest precedence: bootstrap, defaults, environment,
+ * external (files found on the additional configuration paths) and runtime (values set with put). A lookup returns
+ * the value from the highest layer that defines the key.</p>
+ *
+ * <p>Each layer is an EEPropertiesPersistentMap, so changing a layer shares every untouched part of it with the
+ * previous version instead of copying. All layers, plus the typed values, are published together as an immutable
+ * Generation. Readers take the current generation with a single volatile read and never lock. Writers are
+ * serialized and publish a new generation when they finish.</p>
+ *
+ * <p>Each generation keeps a bounded cache of resolved values for keys that have been read, so hot keys cost a
+ * single hash lookup no matter how many layers there are.</p>
+ *
+ * <p>Each non-empty layer of a generation has a Bloom filter of its keys, built when the generation is published, so
+ * a lookup skips the layers that certainly don't define the key. A key no layer defines usually costs one hash and
+ * one filter word per layer. A filter is shared with the next generation while its layer is unchanged, and extended
+ * with a copy when keys are only added.</p>
+ *
+ * <p>With off-heap storage enabled, a layer that has accumulated many changes is rebuilt as an off-heap table when
+ * an update finishes, and only later changes stay on the heap. Very large configurations then add little to the
+ * heap and to garbage collection pauses.</p>
+ *
+ * @author Tracy Flynn
+ * @since 2.10
+ */
+public class EEPropertiesLayeredStore {
+
+    /**
+     * Store layers, lowest precedence first
+     */
+    public enum Layer {
+        BOOTSTRAP,
+        DEFAULTS,
+        ENVIRONMENT,
+        EXTERNAL,
+        RUNTIME
+    }
+
+    /**
+     * All layers, lowest precedence first
+     */
+    private static final Layer[] LAYERS = Layer.values();
+
+    /**
+     * Maximum number of resolved values cached per generation
+     */
+    private static final int FLATTENED_CACHE_CAPACITY = 8192;
+
+    /**
+     * Estimated per-entry overhead of a layer, used for memory footprint estimates
+     */
+    private static final long ESTIMATED_ENTRY_OVERHEAD = 24L;
+
+    /**
+     * Estimated fixed overhead of a String, used for memory footprint estimates
+     */
+    private static final long ESTIMATED_STRING_OVERHEAD = 40L;
+
+    /**
+     * Most changed keys an editor records. Past this a generation reports its changes as unknown.
+     */
+    private static final int CHANGED_KEYS_CAPACITY = 4096;
+
+    /**
+     * Source of generation numbers. Shared by all stores so generations keep increasing across reloads.
+     */
+    private static final AtomicLong GENERATIONS = new AtomicLong();
+
+    /**
+     * Current generation
+     */
+    private volatile Generation current;
+
+    /**
+     * Serializes writers
+     */
+    private final ReentrantLock updateLock = new ReentrantLock();
+
+    /**
+     * Called with each new generation
+     */
+    private final CopyOnWriteArrayList<Consumer<Generation>> publishListeners = new CopyOnWriteArrayList<Consumer<Generation>>();
+
+    /**
+     * True to move large layers off the heap
+     */
+    private volatile boolean offHeap = false;
+
+    /**
+     * Directory for memory-mapped off-heap tables, or null for direct buffers
+     */
+    private volatile File offHeapDirectory = null;
+
+    /**
+     * True to build key filters for generations published from now on
+     */
+    private volatile boolean keyFilters = true;
+
+    /**
+     * Metrics recording key filter outcomes in generations published from now on, or null
+     */
+    private volatile EEPropertiesMetrics metrics = null;
+
+    /**
+     * Create an empty store
+     */
+    public EEPropertiesLayeredStore() {
+        EEPropertiesLayerMap[] layers = new EEPropertiesLayerMap[EEPropertiesLayeredStore.LAYERS.length];
+        for (int i = 0 ; i < layers.length ; i++) {
+            layers[i] = EEPropertiesLayerMap.empty();
+        }
+        this.current = new Generation(EEPropertiesLayeredStore.GENERATIONS.incrementAndGet(),0L,null,layers,
+            EEPropertiesPersistentMap.<EEPropertiesTypedValue>empty(),null,null);
+    }
+
+    /**
+     * Get the current generation
+     *
+     * @return Current generation
+     */
+    public Generation current() {
+        return this.current;
+    }
+
+    /**
+     * Apply a set of changes and publish them as a new generation
+     *
+     * <p>Changes are serialized. Readers continue to see the previous generation until the changes are complete.
+     * The changes should be CPU-only: do any I/O before calling update.</p>
+     *
+     * @param changes Changes to apply
+     * @return Generation current after the update
+     */
+    public Generation update(Consumer<Editor> changes) {
+        this.updateLock.lock();
+        try {
+            Editor editor = new Editor(this.current);
+            changes.accept(editor);
+            if (editor.changed) {
+                if (this.offHeap) {
+                    for (int i = 0 ; i < editor.layers.length ; i++) {
+                        if (editor.layers[i] != this.current.layers[i] && editor.layers[i].needsCompaction()) {
+                            editor.layers[i] = editor.layers[i].compact(this.offHeapDirectory);
+                        }
+                    }
+                }
+                EEPropertiesKeyFilter[] filters = this.keyFilters ? keyFilters(editor) : null;
+                this.current = new Generation(EEPropertiesLayeredStore.GENERATIONS.incrementAndGet(),this.current.number,
+                    editor.changedKeys,editor.layers,editor.typed,filters,this.metrics);
+                for (Consumer<Generation> publishListener : this.publishListeners) {
+                    publishListener.accept(this.current);
+                }
+            }
+            return this.current;
+        }
+        finally {
+            this.updateLock.unlock();
+        }
+    }
+
+    /**
+     * Get the key filters for the layers an editor has built
+     *
+     * @param editor Editor
+     * @return Filter for each layer, null for empty layers
+     */
+    private EEPropertiesKeyFilter[] keyFilters(Editor editor) {
+        EEPropertiesKeyFilter[] previous = this.current.filters;
+        EEPropertiesKeyFilter[] filters = new EEPropertiesKeyFilter[editor.layers.length];
+        for (int i = 0 ; i < filters.length ; i++) {
+            EEPropertiesLayerMap layer = editor.layers[i];
+            if (layer.isEmpty()) {
+                continue;
+            }
+            EEPropertiesKeyFilter filter = previous == null ? null : previous[i];
+            if (filter != null && editor.addedKeys.get(i) == null) {
+                // Cleared, or too many keys added to be worth copying
+                filter = null;
+            }
+            else if (filter != null && ! editor.addedKeys.get(i).isEmpty()) {
+                filter = filter.plus(editor.addedKeys.get(i));
+            }
+            filters[i] = filter != null ? filter : EEPropertiesKeyFilter.build(layer);
+        }
+        return filters;
+    }
+
+    /**
+     * Enable or disable key filters for generations published from now on
+     *
+     * @param keyFilters true to build key filters
+     */
+    public void setKeyFilters(boolean keyFilters) {
+        this.keyFilters = keyFilters;
+    }
+
+    /**
+     * Set the metrics that record key filter outcomes in generations published from now on
+     *
+     * @param metrics Metrics, or null not to record them
+     */
+    public void setMetrics(EEPropertiesMetrics metrics) {
+        this.metrics = metrics;
+    }
+
+    /**
+     * Add a listener called with each new generation
+     *
+     * <p>Listeners run on the writer's thread before update returns, while later writers wait, so they see
+     * generations in order. They should be quick and must not update the store.</p>
+     *
+     * @param publishListener Listener
+     */
+    public void addPublishListener(Consumer<Generation> publishListener) {
+        this.publishListeners.add(publishListener);
+    }
+
+    /**
+     * Enable or disable off-heap storage for layers changed from now on
+     *
+     * @param offHeap true to move large layers off the heap
+     * @param directory Directory for memory-mapped tables, or null to use direct buffers
+     */
+    public void setOffHeap(boolean offHeap, File directory) {
+        this.offHeapDirectory = directory;
+        this.offHeap = offHeap;
+    }
+
+    /**
+     * Estimate the heap used by a String
+     *
+     * @param value String
+     * @return Estimated size in bytes
+     */
+    static long estimateStringSize(String value) {
+        return EEPropertiesLayeredStore.ESTIMATED_STRING_OVERHEAD + 2L * value.length();
+    }
+
+    /**
+     * Mutable view of a generation used to build the next one. Only valid inside update.
+     */
+    public static final class Editor {
+
+        private final EEPropertiesLayerMap[] layers;
+
+        private EEPropertiesPersistentMap<EEPropertiesTypedValue> typed;
+
+        private boolean changed = false;
+
+        /**
+         * Keys added to each layer, or null once a layer's key filter must be rebuilt
+         */
+        private final List<List<String>> addedKeys;
+
+        /**
+         * Keys whose value or typed value may have changed, or null once too many have, or a layer was cleared
+         */
+        private HashSet<String> changedKeys = new HashSet<String>();
+
+        private Editor(Generation generation) {
+            this.layers = generation.layers.clone();
+            this.typed = generation.typed;
+            this.addedKeys = new ArrayList<List<String>>(this.layers.length);
+            for (int i = 0 ; i < this.layers.length ; i++) {
+                this.addedKeys.add(new ArrayList<String>());
+            }
+        }
+
+        /**
+         * Get a value from one layer
+         *
+         * @param layer Layer
+         * @param key Key
+         * @return Value or null if the layer doesn't define the key
+         */
+        public String get(Layer layer, String key) {
+            return this.layers[layer.ordinal()].get(key);
+        }
+
+        /**
+         * Get the value from the highest layer that defines a key
+         *
+         * @param key Key
+         * @return Value or null if no layer defines the key
+         */
+        public String resolve(String key) {
+            for (int i = this.layers.length - 1 ; i >= 0 ; i--) {
+                String value = this.layers[i].get(key);
+                if (value != null) {
+                    return value;
+                }
+            }
+            return null;
+        }
+
+        /**
+         * Set a value in one layer
+         *
+         * @param layer Layer
+         * @param key Key
+         * @param value Value
+         */
+        public void put(Layer layer, String key, String value) {
+            EEPropertiesLayerMap map = this.layers[layer.ordinal()];
+            EEPropertiesLayerMap newMap = map.plus(key,value);
+            if (newMap != map) {
+                List<String> added = this.addedKeys.get(layer.ordinal());
+                if (added != null && newMap.size() > map.size()) {
+                    // Once more keys are added than the layer had, rebuilding the filter is as cheap
+                    if (added.size() >= newMap.size() / 2) {
+                        this.addedKeys.set(layer.ordinal(),null);
+                    }
+                    else {
+                        added.add(key);
+                    }
+                }
+                this.layers[layer.ordinal()] = newMap;
+                this.changed = true;
+                keyChanged(key);
+            }
+        }
+
+        /**
+         * Remove a value from one layer
+         *
+         * @param layer Layer
+         * @param key Key
+         */
+        public void remove(Layer layer, String key) {
+            EEPropertiesLayerMap map = this.layers[layer.ordinal()];
+            EEPropertiesLayerMap newMap = map.minus(key);
+            if (newMap != map) {
+                this.layers[layer.ordinal()] = newMap;
+                this.changed = true;
+                keyChanged(key);
+            }
+        }
+
+        /**
+         * Apply an action to every value in one layer
+         *
+         * @param layer Layer
+         * @param action Action to apply
+         */
+        void forEach(Layer layer, BiConsumer<String,String> action) {
+            this.layers[layer.ordinal()].forEach(action);
+        }
+
+        /**
+         * Remove every value from one layer
+         *
+         * @param layer Layer
+         */
+        void clear(Layer layer) {
+            if (! this.layers[layer.ordinal()].isEmpty()) {
+                this.layers[layer.ordinal()] = EEPropertiesLayerMap.empty();
+                this.addedKeys.set(layer.ordinal(),null);
+                this.changed = true;
+                this.changedKeys = null;
+            }
+        }
+
+        /**
+         * Get a typed value
+         *
+         * @param key Key
+         * @return Typed value or null
+         */
+        EEPropertiesTypedValue getTyped(String key) {
+            return this.typed.get(key);
+        }
+
+        /**
+         * Set a typed value
+         *
+         * @param key Key
+         * @param typedValue Typed value
+         */
+        void putTyped(String key, EEPropertiesTypedValue typedValue) {
+            this.typed = this.typed.plus(key,typedValue);
+            this.changed = true;
+            keyChanged(key);
+        }
+
+        /**
+         * Remove a typed value
+         *
+         * @param key Key
+         */
+        void removeTyped(String key) {
+            EEPropertiesPersistentMap<EEPropertiesTypedValue> newTyped = this.typed.minus(key);
+            if (newTyped != this.typed) {
+                this.typed = newTyped;
+                this.changed = true;
+                keyChanged(key);
+            }
+        }
+
+        /**
+         * Record a key whose value or typed value may have changed
+         *
+         * @param key Key
+         */
+        private void keyChanged(String key) {
+            if (this.changedKeys != null) {
+                this.changedKeys.add(key);
+                if (this.changedKeys.size() > EEPropertiesLayeredStore.CHANGED_KEYS_CAPACITY) {
+                    this.changedKeys = null;
+                }
+            }
+        }
+    }
+
+    /**
+     * <p>Immutable, published state of the store.</p>
+     *
+     * <p>Everything read from one generation is mutually consistent, whatever loads happen meanwhile.</p>
+     */
+    public static final class Generation implements Iterable<Map.Entry<String,String>> {
+
+        private final long number;
+
+        /**
+         * Number of the generation this one was built from, 0 for the first
+         */
+        private final long previousNumber;
+
+        /**
+         * Keys whose value or typed value may differ from the previous generation, or null if unknown
+         */
+        private final Set<String> changedKeys;
+
+        private final EEPropertiesLayerMap[] layers;
+
+        private final EEPropertiesPersistentMap<EEPropertiesTypedValue> typed;
+
+        /**
+         * Key filter for each layer, null for empty layers, or null if key filters are disabled
+         */
+        private final EEPropertiesKeyFilter[] filters;
+
+        /**
+         * Metrics recording key filter outcomes, or null
+         */
+        private final EEPropertiesMetrics metrics;
+
+        /**
+         * Resolved values of keys read from this generation
+         */
+        private final ConcurrentHashMap<String,String> flattened = new ConcurrentHashMap<String,String>();
+
+        /**
+         * Number of distinct keys, computed on first request. -1 until then.
+         */
+        private volatile int size = -1;
+
+        /**
+         * Estimated memory footprint, computed on first request. -1 until then.
+         */
+        private volatile long memoryFootprint = -1L;
+
+        private Generation(long number, long previousNumber, Set<String> changedKeys, EEPropertiesLayerMap[] layers,
+                           EEPropertiesPersistentMap<EEPropertiesTypedValue> typed, EEPropertiesKeyFilter[] filters,
+                           EEPropertiesMetrics metrics) {
+            this.number = number;
+            this.previousNumber = previousNumber;
+            this.changedKeys = changedKeys;
+            this.layers = layers;
+            this.typed = typed;
+            this.filters = filters;
+            this.metrics = metrics;
+        }
+
+        /**
+         * @return Generation number. Higher numbers are later generations
+         */
+        public long getNumber() {
+            return this.number;
+        }
+
+        /**
+         * @return Number of the generation this one was built from, 0 for the first
+         */
+        long getPreviousNumber() {
+            return this.previousNumber;
+        }
+
+        /**
+         * Get the keys whose value or typed value may differ from the generation this one was built from
+         *
+         * @return Changed keys, or null if unknown
+         */
+        Set<String> getChangedKeys() {
+            return this.changedKeys;
+        }
+
+        /**
+         * Get the value from the highest layer that defines a key
+         *
+         * @param key Key
+         * @return Value or null if not defined
+         */
+        public String getProperty(String key) {
+            String value = this.flattened.get(key);
+            if (value != null) {
+                return value;
+            }
+            EEPropertiesKeyFilter[] filters = this.filters;
+            long hash = filters == null ? 0L : EEPropertiesKeyFilter.hash(key);
+            for (int i = this.layers.length - 1 ; i >= 0 ; i--) {
+                if (filters != null) {
+                    if (filters[i] == null) {
+                        continue;
+                    }
+                    if (! filters[i].mightContain(hash)) {
+                        if (this.metrics != null) {
+                            this.metrics.recordKeyFilterRejection();
+                        }
+                        continue;
+                    }
+                }
+                value = this.layers[i].get(key);
+                if (value != null) {
+                    if (this.flattened.size() < EEPropertiesLayeredStore.FLATTENED_CACHE_CAPACITY) {
+                        this.flattened.put(key,value);
+                    }
+                    return value;
+                }
+                if (filters != null && this.metrics != null) {
+                    this.metrics.recordKeyFilterFalsePositive();
+                }
+            }
+            return null;
+        }
+
+        /**
+         * Get the value of a key in one layer only
+         *
+         * @param layer Layer
+         * @param key Key
+         * @return Value or null if the layer doesn't define the key
+         */
+        public String getLayerProperty(Layer layer, String key) {
+            return this.layers[layer.ordinal()].get(key);
+        }
+
+        /**
+         * Get the number of keys defined in one layer
+         *
+         * @param layer Layer
+         * @return Number of keys
+         */
+        public int getLayerSize(Layer layer) {
+            return this.layers[layer.ordinal()].size();
+        }
+
+        /**
+         * Get a typed value
+         *
+         * @param key Key
+         * @return Typed value or null
+         */
+        EEPropertiesTypedValue getTyped(String key) {
+            return this.typed.get(key);
+        }
+
+        /**
+         * Get the heap used by the key filters of all layers
+         *
+         * @return Size in bytes, 0 if key filters are disabled
+         */
+        public long getKeyFilterMemoryFootprint() {
+            long footprint = 0L;
+            if (this.filters != null) {
+                for (EEPropertiesKeyFilter filter : this.filters) {
+                    if (filter != null) {
+                        footprint += filter.getMemoryFootprint();
+                    }
+                }
+            }
+            return footprint;
+        }
+
+        /**
+         * Estimate the chance that looking up a key no layer defines still looks in at least one layer
+         *
+         * @return Estimated false positive rate, 0 if key filters are disabled
+         */
+        public double getKeyFilterFalsePositiveRate() {
+            double allRejected = 1.0;
+            if (this.filters != null) {
+                for (EEPropertiesKeyFilter filter : this.filters) {
+                    if (filter != null) {
+                        allRejected *= 1.0 - filter.getEstimatedFalsePositiveRate();
+                    }
+                }
+            }
+            return 1.0 - allRejected;
+        }
+
+        /**
+         * @return Number of typed values
+         */
+        public int getTypedSize() {
+            return this.typed.size();
+        }
+
+        /**
+         * Apply an action to every key and its resolved value. Keys shadowed by a higher layer are visited once,
+         * with the higher layer's value.
+         *
+         * @param action Action to apply
+         */
+        public void forEach(final BiConsumer<String,String> action) {
+            for (int i = this.layers.length - 1 ; i >= 0 ; i--) {
+                final int layerIndex = i;
+                this.layers[i].forEach(new BiConsumer<String,String>() {
+                    public void accept(String key, String value) {
+                        if (! definedAbove(layerIndex,key)) {
+                            action.accept(key,value);
+                        }
+                    }
+                });
+            }
+        }
+
+        /**
+         * Iterate over every key and its resolved value, as forEach does. Nothing is copied up front: the iterator
+         * walks the layers of this generation directly.
+         *
+         * @return Unordered entry iterator
+         */
+        public Iterator<Map.Entry<String,String>> iterator() {
+            return new Iterator<Map.Entry<String,String>>() {
+
+                private int layerIndex = Generation.this.layers.length;
+
+                private Iterator<Map.Entry<String,String>> layerIterator = null;
+
+                private Map.Entry<String,String> next = advance();
+
+                public boolean hasNext() {
+                    return this.next != null;
+                }
+
+                public Map.Entry<String,String> next() {
+                    if (this.next == null) {
+                        throw new NoSuchElementException();
+                    }
+                    Map.Entry<String,String> entry = this.next;
+                    this.next = advance();
+                    return entry;
+                }
+
+                public void remove() {
+                    throw new UnsupportedOperationException();
+                }
+
+                private Map.Entry<String,String> advance() {
+                    while (true) {
+                        while (this.layerIterator == null || ! this.layerIterator.hasNext()) {
+                            if (this.layerIndex == 0) {
+                                return null;
+                            }
+                            this.layerIterator = Generation.this.layers[--this.layerIndex].iterator();
+                        }
+                        Map.Entry<String,String> entry = this.layerIterator.next();
+                        if (! definedAbove(this.layerIndex,entry.getKey())) {
+                            return entry;
+                        }
+                    }
+                }
+            };
+        }
+
+        /**
+         * Get all keys
+         *
+         * @return Unordered list of keys
+         */
+        public ArrayList<String> propertyNames() {
+            final ArrayList<String> names = new ArrayList<String>(size());
+            forEach(new BiConsumer<String,String>() {
+                public void accept(String key, String value) {
+                    names.add(key);
+                }
+            });
+            return names;
+        }
+
+        /**
+         * @return Number of distinct keys across all layers
+         */
+        public int size() {
+            int currentSize = this.size;
+            if (currentSize < 0) {
+                HashSet<String> keys = new HashSet<String>();
+                for (EEPropertiesLayerMap layer : this.layers) {
+                    layer.forEach(new BiConsumer<String,String>() {
+                        public void accept(String key, String value) {
+                            keys.add(key);
+                        }
+                    });
+                }
+                currentSize = keys.size();
+                this.size = currentSize;
+            }
+            return currentSize;
+        }
+
+        /**
+         * Estimate the heap used by keys and values in all layers. Strings shared between layers are counted once
+         * per layer. Entries held off-heap are not included: see getOffHeapBytes.
+         *
+         * @return Estimated size in bytes
+         */
+        public long estimateMemoryFootprint() {
+            long footprint = this.memoryFootprint;
+            if (footprint < 0) {
+                final long[] total = new long[1];
+                for (EEPropertiesLayerMap layer : this.layers) {
+                    layer.forEachOnHeap(new BiConsumer<String,String>() {
+                        public void accept(String key, String value) {
+                            total[0] += EEPropertiesLayeredStore.ESTIMATED_ENTRY_OVERHEAD
+                                + EEPropertiesLayeredStore.estimateStringSize(key) + EEPropertiesLayeredStore.estimateStringSize(value);
+                        }
+                    });
+                }
+                footprint = total[0];
+                this.memoryFootprint = footprint;
+            }
+            return footprint;
+        }
+
+        /**
+         * @return Bytes held outside the heap by all layers
+         */
+        public long getOffHeapBytes() {
+            long total = 0L;
+            for (EEPropertiesLayerMap layer : this.layers) {
+                total += layer.getOffHeapBytes();
+            }
+            return total;
+        }
+
+        /**
+         * Check whether a layer above the given one defines a key
+         *
+         * @param layerIndex Layer index
+         * @param key Key
+         * @return true if shadowed
+         */
+        private boolean definedAbove(int layerIndex, String key) {
+            EEPropertiesKeyFilter[] filters = this.filters;
+            long hash = filters == null || layerIndex == this.layers.length - 1 ? 0L : EEPropertiesKeyFilter.hash(key);
+            for (int i = layerIndex + 1 ; i < this.layers.length ; i++) {
+                if (filters != null && (filters[i] == null || ! filters[i].mightContain(hash))) {
+                    continue;
+                }
+                if (! this.layers[i].isEmpty() && this.layers[i].containsKey(key)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+
+}
@@ -17,7 +17,7 @@ package net.olioinfo.eeproperties;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.Properties;
-import java.util.Enumeration;
+import java.util.concurrent.locks.ReentrantLock;
 
 /**
  * Bean to track where particular settings were loaded from
@@ -30,7 +30,12 @@ public class EEPropertiesLoadDefinition {
     /**
      * Registered list of entries
      */
-    private static ArrayList<EEPropertiesLoadDefinition> REGISTERED_ENTRIES = new  ArrayList<EEPropertiesLoadDefinition>();
+    private static volatile ArrayList<EEPropertiesLoadDefinition> REGISTERED_ENTRIES = new  ArrayList<EEPropertiesLoadDefinition>();
+
+    /**
+     * Guards changes to, and copies of, the registered list
+     */
+    private static final ReentrantLock REGISTRY_LOCK = new ReentrantLock();
     
     /**
      * List of environment names
@@ -43,9 +48,9 @@ public class EEPropertiesLoadDefinition {
     private Class klass = null;
     
     /**
-     * Properties
+     * Properties loaded into, or null if loaded into the EEProperties layered store
      */
-    private Properties properties = new Properties();
+    private Properties properties = null;
     
     /**
      * Options
@@ -72,36 +77,14 @@ public class EEPropertiesLoadDefinition {
     public static void createAndRegisterLoadDefinition(ArrayList<String> environmentNames,Class klass, Properties properties,HashMap<String,String> options) {
 
     	EEPropertiesLoadDefinition loadDefinition = new EEPropertiesLoadDefinition();
-    	
-    	// Have to duplicate everything
 
-    	ArrayList<String> duplicatedEnvironmentNames = new ArrayList<String>();
-    	for (String environmentString : environmentNames) {
-    		duplicatedEnvironmentNames.add(new String(environmentString));
-    	}
-    	loadDefinition.setEnvironmentNames(duplicatedEnvironmentNames);
+    	// Strings are immutable, so shallow copies of the lists are enough. The properties are kept by reference:
+    	// null for definitions loaded into the layered store, otherwise the caller's own instance.
+
+    	loadDefinition.setEnvironmentNames(new ArrayList<String>(environmentNames));
     	loadDefinition.setClassContext(klass);
-    	
-    	Properties duplicatedProperties = new Properties();
-    	for (Enumeration<?> e = properties.propertyNames() ; e.hasMoreElements();) {
-    		String elementName = (String) e.nextElement();
-    		if (elementName != null) {
-    			if (properties.getProperty(elementName) != null) {
-    				String elementValue = (String) properties.getProperty(elementName);
-    				duplicatedProperties.put(new String(elementName), new String(elementValue));
-    			}
-    		}
-    	 }
-    	loadDefinition.setProperties(duplicatedProperties);     	
-    	
-    	HashMap<String,String> duplicatedOptions = new HashMap<String,String>();
-    	for (String key : options.keySet() ) {
-    		String value = options.get(key);
-    		if (value != null) {
-    			duplicatedOptions.put(new String(key), new String(value));
-    		}
-    	}
-    	loadDefinition.setOptions(duplicatedOptions);
+    	loadDefinition.setProperties(properties);
+    	loadDefinition.setOptions(options == null ? new HashMap<String,String>() : new HashMap<String,String>(options));
     	
     	EEPropertiesLoadDefinition.registerEntry(loadDefinition);
     }
@@ -145,7 +128,13 @@ public class EEPropertiesLoadDefinition {
      * @param definition Definition to register
      */
     public static void registerEntry(EEPropertiesLoadDefinition definition) {
-        EEPropertiesLoadDefinition.REGISTERED_ENTRIES.add(definition);
+        EEPropertiesLoadDefinition.REGISTRY_LOCK.lock();
+        try {
+            EEPropertiesLoadDefinition.REGISTERED_ENTRIES.add(definition);
+        }
+        finally {
+            EEPropertiesLoadDefinition.REGISTRY_LOCK.unlock();
+        }
     }
 
     /**
@@ -157,6 +146,32 @@ public class EEPropertiesLoadDefinition {
         return EEPropertiesLoadDefinition.REGISTERED_ENTRIES;
     }
 
+    /**
+     * Get a copy of the list of registered definitions that is safe to iterate while loads are in progress
+     *
+     * @return Copy of the list of registered definitions
+     * @since 2.10
+     */
+    public static ArrayList<EEPropertiesLoadDefinition> getRegisteredDefinitionsCopy() {
+        EEPropertiesLoadDefinition.REGISTRY_LOCK.lock();
+        try {
+            return new ArrayList<EEPropertiesLoadDefinition>(EEPropertiesLoadDefinition.REGISTERED_ENTRIES);
+        }
+        finally {
+            EEPropertiesLoadDefinition.REGISTRY_LOCK.unlock();
+        }
+    }
+
+    /**
+     * Describe the definition
+     *
+     * @return Class name, environment names and options
+     * @since 2.10
+     */
+    public String toString() {
+        return String.format("%s %s %s",this.klass == null ? null : this.klass.getName(),this.environmentNames,this.options);
+    }
+
     /**
      * Reset existing definitions
      */
@@ -0,0 +1,93 @@
+/* Copyright 2009-2010 Tracy Flynn
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.olioinfo.eeproperties;
+
+/**
+ * Bean describing one timed phase recorded by EEPropertiesLoadProfiler
+ *
+ * @author Tracy Flynn
+ * @since 2.10
+ */
+public class EEPropertiesLoadEvent {
+
+    private final String phase;
+
+    private final String definition;
+
+    private final String source;
+
+    private final long startNanos;
+
+    private final long durationNanos;
+
+    private final long bytes;
+
+    private final long keys;
+
+    /**
+     * Create a load event
+     *
+     * @param phase Phase name
+     * @param definition Load definition the phase belongs to (usually the class name)
+     * @param source File, URL or resource name, or null if not file specific
+     * @param startNanos Start time relative to the start of profiling
+     * @param durationNanos Duration
+     * @param bytes Bytes read, or -1 if not applicable
+     * @param keys Keys read or processed, or -1 if not applicable
+     */
+    public EEPropertiesLoadEvent(String phase, String definition, String source, long startNanos, long durationNanos, long bytes, long keys) {
+        this.phase = phase;
+        this.definition = definition;
+        this.source = source;
+        this.startNanos = startNanos;
+        this.durationNanos = durationNanos;
+        this.bytes = bytes;
+        this.keys = keys;
+    }
+
+    public String getPhase() {
+        return this.phase;
+    }
+
+    public String getDefinition() {
+        return this.definition;
+    }
+
+    public String getSource() {
+        return this.source;
+    }
+
+    public long getStartNanos() {
+        return this.startNanos;
+    }
+
+    public long getDurationNanos() {
+        return this.durationNanos;
+    }
+
+    public long getBytes() {
+        return this.bytes;
+    }
+
+    public long getKeys() {
+        return this.keys;
+    }
+
+    public String toString() {
+        return String.format("%10.3fms %10.3fms %-24s %-40s %s bytes=%d keys=%d",
+            this.startNanos / 1e6,this.durationNanos / 1e6,this.phase,this.definition,this.source,this.bytes,this.keys);
+    }
+
+}
@@ -0,0 +1,219 @@
+/* Copyright 2009-2010 Tracy Flynn
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.olioinfo.eeproperties;
+
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * <p>Records a timeline of the phases of loading configurations.</p>
+ *
+ * <p>Each phase (initializing logging, loading the bootstrap file, classpath lookups, file reads, parsing, merging,
+ * substitution and typed conversion) is recorded as an EEPropertiesLoadEvent against the load definition and file
+ * it belongs to, together with byte and key counts where they apply.</p>
+ *
+ * <p>The profiler is opt-in. See the EEProperties class documentation for the settings that enable it.</p>
+ *
+ * @author Tracy Flynn
+ * @since 2.10
+ */
+public class EEPropertiesLoadProfiler {
+
+    public static final String PHASE_INITIALIZE_LOGGING = "initializeLogging";
+
+    public static final String PHASE_LOAD_BOOTSTRAP_FILE = "loadBootstrapFile";
+
+    public static final String PHASE_FILE_LOOKUP = "fileLookup";
+
+    public static final String PHASE_CLASSPATH_LOOKUP = "classpathLookup";
+
+    public static final String PHASE_READ = "read";
+
+    public static final String PHASE_PARSE = "parse";
+
+    public static final String PHASE_MERGE = "merge";
+
+    public static final String PHASE_SUBSTITUTE_ALL = "substituteAll";
+
+    public static final String PHASE_CONVERT_TO_OBJECT_INSTANCES = "convertToObjectInstances";
+
+    public static final String PHASE_LOAD_DEFINITION = "loadDefinition";
+
+    /**
+     * Time profiling started. Event start times are relative to this.
+     */
+    private final long originNanos = System.nanoTime();
+
+    /**
+     * Recorded events in completion order
+     */
+    private final ConcurrentLinkedQueue<EEPropertiesLoadEvent> events = new ConcurrentLinkedQueue<EEPropertiesLoadEvent>();
+
+    /**
+     * Create a profiler. Event times are measured from this point.
+     */
+    public EEPropertiesLoadProfiler() {
+
+    }
+
+    /**
+     * Get the current time for use as the start of a phase
+     *
+     * @return Current time in nanoseconds
+     */
+    public long start() {
+        return System.nanoTime();
+    }
+
+    /**
+     * Record a phase that started at startNanos and ends now
+     *
+     * @param phase Phase name
+     * @param definition Load definition the phase belongs to
+     * @param source File, URL or resource name, or null
+     * @param startNanos Value returned by start()
+     * @param bytes Bytes read, or -1 if not applicable
+     * @param keys Keys read or processed, or -1 if not applicable
+     */
+    public void record(String phase, String definition, String source, long startNanos, long bytes, long keys) {
+        long now = System.nanoTime();
+        this.events.add(new EEPropertiesLoadEvent(phase,definition,source,startNanos - this.originNanos,now - startNanos,bytes,keys));
+    }
+
+    /**
+     * Get all recorded events ordered by start time
+     *
+     * @return Events
+     */
+    public ArrayList<EEPropertiesLoadEvent> getEvents() {
+        ArrayList<EEPropertiesLoadEvent> sortedEvents = new ArrayList<EEPropertiesLoadEvent>(this.events);
+        Collections.sort(sortedEvents,new Comparator<EEPropertiesLoadEvent>() {
+            public int compare(EEPropertiesLoadEvent e1, EEPropertiesLoadEvent e2) {
+                return Long.compare(e1.getStartNanos(),e2.getStartNanos());
+            }
+        });
+        return sortedEvents;
+    }
+
+    /**
+     * Get the total time spent in each phase
+     *
+     * <p>Phases nest (a load definition contains reads, parses and so on) so the totals are not additive across phases.</p>
+     *
+     * @return Map of phase name to total nanoseconds, in order of first occurrence
+     */
+    public Map<String,Long> getTotalNanosByPhase() {
+        LinkedHashMap<String,Long> totals = new LinkedHashMap<String,Long>();
+        for (EEPropertiesLoadEvent event : getEvents()) {
+            Long total = totals.get(event.getPhase());
+            totals.put(event.getPhase(),(total == null ? 0L : total) + event.getDurationNanos());
+        }
+        return totals;
+    }
+
+    /**
+     * Get the total time spent loading each definition
+     *
+     * @return Map of definition to total nanoseconds, slowest first
+     */
+    public Map<String,Long> getTotalNanosByDefinition() {
+        LinkedHashMap<String,Long> totals = new LinkedHashMap<String,Long>();
+        for (EEPropertiesLoadEvent event : getEvents()) {
+            if (event.getPhase().equals(EEPropertiesLoadProfiler.PHASE_LOAD_DEFINITION)) {
+                Long total = totals.get(event.getDefinition());
+                totals.put(event.getDefinition(),(total == null ? 0L : total) + event.getDurationNanos());
+            }
+        }
+        ArrayList<Map.Entry<String,Long>> entries = new ArrayList<Map.Entry<String,Long>>(totals.entrySet());
+        Collections.sort(entries,new Comparator<Map.Entry<String,Long>>() {
+            public int compare(Map.Entry<String,Long> e1, Map.Entry<String,Long> e2) {
+                return Long.compare(e2.getValue(),e1.getValue());
+            }
+        });
+        LinkedHashMap<String,Long> sortedTotals = new LinkedHashMap<String,Long>();
+        for (Map.Entry<String,Long> entry : entries) {
+            sortedTotals.put(entry.getKey(),entry.getValue());
+        }
+        return sortedTotals;
+    }
+
+    /**
+     * Print the full timeline, one event per line
+     *
+     * @param printStream PrintStream to print to
+     */
+    public void printTimeline(PrintStream printStream) {
+        printStream.println(String.format("%12s %12s %-24s %-40s %s","start","duration","phase","definition","source"));
+        for (EEPropertiesLoadEvent event : getEvents()) {
+            printStream.println(event.toString());
+        }
+    }
+
+    /**
+     * Print summary tables of time by phase and by load definition
+     *
+     * @param printStream PrintStream to print to
+     */
+    public void printSummary(PrintStream printStream) {
+        LinkedHashMap<String,long[]> byPhase = new LinkedHashMap<String,long[]>();
+        LinkedHashMap<String,long[]> byDefinition = new LinkedHashMap<String,long[]>();
+        for (EEPropertiesLoadEvent event : getEvents()) {
+            accumulate(byPhase,event.getPhase(),event);
+            if (event.getPhase().equals(EEPropertiesLoadProfiler.PHASE_PARSE)) {
+                accumulate(byDefinition,event.getDefinition(),event);
+            }
+        }
+        printStream.println(String.format("%-26s %8s %12s %12s %10s","Phase","Count","Total ms","Bytes","Keys"));
+        for (Map.Entry<String,long[]> entry : byPhase.entrySet()) {
+            long[] totals = entry.getValue();
+            printStream.println(String.format("%-26s %8d %12.3f %12d %10d",entry.getKey(),totals[0],totals[1] / 1e6,totals[2],totals[3]));
+        }
+        printStream.println();
+        printStream.println(String.format("%-50s %8s %12s %12s %10s","Definition","Files","Total ms","Bytes","Keys"));
+        Map<String,Long> definitionTotals = getTotalNanosByDefinition();
+        for (Map.Entry<String,Long> entry : definitionTotals.entrySet()) {
+            long[] totals = byDefinition.get(entry.getKey());
+            if (totals == null) {
+                totals = new long[4];
+            }
+            printStream.println(String.format("%-50s %8d %12.3f %12d %10d",entry.getKey(),totals[0],entry.getValue() / 1e6,totals[2],totals[3]));
+        }
+    }
+
+    /**
+     * Add an event to a set of totals
+     *
+     * @param totals Totals keyed by name: count, nanoseconds, bytes, keys
+     * @param name Name to total under
+     * @param event Event to add
+     */
+    private static void accumulate(LinkedHashMap<String,long[]> totals, String name, EEPropertiesLoadEvent event) {
+        long[] total = totals.get(name);
+        if (total == null) {
+            total = new long[4];
+            totals.put(name,total);
+        }
+        total[0]++;
+        total[1] += event.getDurationNanos();
+        total[2] += Math.max(event.getBytes(),0L);
+        total[3] += Math.max(event.getKeys(),0L);
+    }
+
+}
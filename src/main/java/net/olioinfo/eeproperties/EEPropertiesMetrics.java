@@ -0,0 +1,334 @@
+/* Copyright 2009-2010 Tracy Flynn
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.olioinfo.eeproperties;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * <p>Metrics registry for an EEProperties instance.</p>
+ *
+ * <p>All counters are striped (LongAdder) so that recording a lookup on the read path never contends with
+ * other readers. Per-key counters are created on first use and then only incremented. The number of keys tracked
+ * individually is capped: once a per-key map holds <em>maxTrackedKeys</em> entries, lookups of further keys are
+ * counted under <em>OTHER_KEY</em>, so a caller probing many distinct or generated names cannot grow the maps
+ * without bound.</p>
+ *
+ * <p>Metrics are opt-in. See the EEProperties class documentation for the settings that enable them.</p>
+ *
+ * @author Tracy Flynn
+ * @since 2.10
+ */
+public class EEPropertiesMetrics {
+
+    /**
+     * Default number of keys tracked individually by each per-key map
+     */
+    public static final int DEFAULT_MAX_TRACKED_KEYS = 1000;
+
+    /**
+     * Key that counts lookups of keys beyond the tracked key limit
+     */
+    public static final String OTHER_KEY = "(other)";
+
+    /**
+     * Total typed (extended syntax) conversion failures
+     */
+    private final LongAdder conversionFailures = new LongAdder();
+
+    /**
+     * Total substitution passes over all substituteAll calls
+     */
+    private final LongAdder substitutionPasses = new LongAdder();
+
+    /**
+     * Total number of reloads
+     */
+    private final LongAdder reloads = new LongAdder();
+
+    /**
+     * Cumulative reload time in nanoseconds
+     */
+    private final LongAdder reloadNanos = new LongAdder();
+
+    /**
+     * Duration of the last reload in nanoseconds
+     */
+    private volatile long lastReloadNanos = 0L;
+
+    /**
+     * Layer lookups skipped because the layer's key filter ruled the key out
+     */
+    private final LongAdder keyFilterRejections = new LongAdder();
+
+    /**
+     * Layer lookups made because the layer's key filter passed a key the layer doesn't have
+     */
+    private final LongAdder keyFilterFalsePositives = new LongAdder();
+
+    /**
+     * Lookups per key (or key prefix)
+     */
+    private final ConcurrentHashMap<String,LongAdder> lookupsByKey = new ConcurrentHashMap<String,LongAdder>();
+
+    /**
+     * Misses per key (or key prefix)
+     */
+    private final ConcurrentHashMap<String,LongAdder> missesByKey = new ConcurrentHashMap<String,LongAdder>();
+
+    /**
+     * Conversion failures per key
+     */
+    private final ConcurrentHashMap<String,LongAdder> conversionFailuresByKey = new ConcurrentHashMap<String,LongAdder>();
+
+    /**
+     * Parse timings per file
+     */
+    private final ConcurrentHashMap<String,LongAdder> parseNanosByFile = new ConcurrentHashMap<String,LongAdder>();
+
+    /**
+     * Merge timings per file
+     */
+    private final ConcurrentHashMap<String,LongAdder> mergeNanosByFile = new ConcurrentHashMap<String,LongAdder>();
+
+    /**
+     * Number of times each file was loaded
+     */
+    private final ConcurrentHashMap<String,LongAdder> loadsByFile = new ConcurrentHashMap<String,LongAdder>();
+
+    /**
+     * Number of leading dotted segments used to aggregate per-key counters. 0 means the full key is used.
+     */
+    private final int keyPrefixDepth;
+
+    /**
+     * Number of keys tracked individually by each per-key map
+     */
+    private final int maxTrackedKeys;
+
+    /**
+     * Create a metrics registry that records per-key counters against the full key
+     */
+    public EEPropertiesMetrics() {
+        this(0);
+    }
+
+    /**
+     * Create a metrics registry that tracks up to DEFAULT_MAX_TRACKED_KEYS keys individually
+     *
+     * @param keyPrefixDepth Number of leading dotted segments used to aggregate per-key counters. 0 means the full key.
+     */
+    public EEPropertiesMetrics(int keyPrefixDepth) {
+        this(keyPrefixDepth,EEPropertiesMetrics.DEFAULT_MAX_TRACKED_KEYS);
+    }
+
+    /**
+     * Create a metrics registry
+     *
+     * @param keyPrefixDepth Number of leading dotted segments used to aggregate per-key counters. 0 means the full key.
+     * @param maxTrackedKeys Number of keys tracked individually by each per-key map. Further keys are counted under OTHER_KEY.
+     */
+    public EEPropertiesMetrics(int keyPrefixDepth, int maxTrackedKeys) {
+        this.keyPrefixDepth = keyPrefixDepth < 0 ? 0 : keyPrefixDepth;
+        this.maxTrackedKeys = maxTrackedKeys < 1 ? 1 : maxTrackedKeys;
+    }
+
+    /**
+     * Record a lookup
+     *
+     * @param propertyName Property name looked up
+     * @param found true if a value was found
+     */
+    public void recordLookup(String propertyName, boolean found) {
+        String key = aggregationKey(propertyName);
+        keyCounter(this.lookupsByKey,key).increment();
+        if (! found) {
+            keyCounter(this.missesByKey,key).increment();
+        }
+    }
+
+    /**
+     * Record a failed typed conversion
+     *
+     * @param propertyName Property name whose value failed to convert
+     */
+    public void recordConversionFailure(String propertyName) {
+        this.conversionFailures.increment();
+        keyCounter(this.conversionFailuresByKey,String.valueOf(propertyName)).increment();
+    }
+
+    /**
+     * Record the number of passes taken by one substitution run
+     *
+     * @param passes Number of passes
+     */
+    public void recordSubstitutionPasses(int passes) {
+        this.substitutionPasses.add(passes);
+    }
+
+    /**
+     * Record the parse and merge durations for one file
+     *
+     * @param fileName File name or URL of the loaded file
+     * @param parseNanos Time spent reading and parsing the file
+     * @param mergeNanos Time spent merging the file into the target properties
+     */
+    public void recordFileLoad(String fileName, long parseNanos, long mergeNanos) {
+        counter(this.loadsByFile,fileName).increment();
+        counter(this.parseNanosByFile,fileName).add(parseNanos);
+        counter(this.mergeNanosByFile,fileName).add(mergeNanos);
+    }
+
+    /**
+     * Record a reload
+     *
+     * @param nanos Duration of the reload
+     */
+    public void recordReload(long nanos) {
+        this.reloads.increment();
+        this.reloadNanos.add(nanos);
+        this.lastReloadNanos = nanos;
+    }
+
+    /**
+     * Record a layer lookup skipped because the layer's key filter ruled the key out
+     */
+    public void recordKeyFilterRejection() {
+        this.keyFilterRejections.increment();
+    }
+
+    /**
+     * Record a layer lookup made because the layer's key filter passed a key the layer doesn't have
+     */
+    public void recordKeyFilterFalsePositive() {
+        this.keyFilterFalsePositives.increment();
+    }
+
+    /**
+     * Take a point-in-time snapshot of all metrics
+     *
+     * <p>Total lookups and misses are derived from the per-key counters so the read path only touches one
+     * counter per lookup. Counters are read individually, so a snapshot taken while other threads are active
+     * is not an atomic cut across all counters.</p>
+     *
+     * @return Snapshot of all metrics
+     */
+    public EEPropertiesMetricsSnapshot snapshot() {
+        EEPropertiesMetricsSnapshot snapshot = new EEPropertiesMetricsSnapshot();
+        snapshot.setLookupsByKey(sums(this.lookupsByKey));
+        snapshot.setMissesByKey(sums(this.missesByKey));
+        snapshot.setLookups(total(snapshot.getLookupsByKey()));
+        snapshot.setMisses(total(snapshot.getMissesByKey()));
+        snapshot.setConversionFailures(this.conversionFailures.sum());
+        snapshot.setSubstitutionPasses(this.substitutionPasses.sum());
+        snapshot.setReloads(this.reloads.sum());
+        snapshot.setTotalReloadNanos(this.reloadNanos.sum());
+        snapshot.setLastReloadNanos(this.lastReloadNanos);
+        snapshot.setKeyFilterRejections(this.keyFilterRejections.sum());
+        snapshot.setKeyFilterFalsePositives(this.keyFilterFalsePositives.sum());
+        snapshot.setConversionFailuresByKey(sums(this.conversionFailuresByKey));
+        snapshot.setLoadsByFile(sums(this.loadsByFile));
+        snapshot.setParseNanosByFile(sums(this.parseNanosByFile));
+        snapshot.setMergeNanosByFile(sums(this.mergeNanosByFile));
+        return snapshot;
+    }
+
+    /**
+     * Get the key used to aggregate per-key counters
+     *
+     * @param propertyName Property name
+     * @return Full property name or its leading dotted segments
+     */
+    private String aggregationKey(String propertyName) {
+        if (this.keyPrefixDepth == 0 || propertyName == null) {
+            return String.valueOf(propertyName);
+        }
+        int pos = -1;
+        for (int i = 0 ; i < this.keyPrefixDepth ; i++) {
+            pos = propertyName.indexOf('.',pos + 1);
+            if (pos == -1) {
+                return propertyName;
+            }
+        }
+        return propertyName.substring(0,pos);
+    }
+
+    /**
+     * Get or create a per-key counter, falling back to the OTHER_KEY counter once the map is full
+     *
+     * <p>The size check and the insert are not atomic, so concurrent first lookups can overshoot the limit by
+     * a few entries. That keeps the common path (an existing key) to a single map read.</p>
+     *
+     * @param counters Per-key counter map
+     * @param key Counter key
+     * @return Counter
+     */
+    private LongAdder keyCounter(ConcurrentHashMap<String,LongAdder> counters, String key) {
+        LongAdder counter = counters.get(key);
+        if (counter != null) {
+            return counter;
+        }
+        if (counters.size() >= this.maxTrackedKeys) {
+            return counter(counters,EEPropertiesMetrics.OTHER_KEY);
+        }
+        return counter(counters,key);
+    }
+
+    /**
+     * Get or create a named counter
+     *
+     * @param counters Counter map
+     * @param name Counter name
+     * @return Counter
+     */
+    private static LongAdder counter(ConcurrentHashMap<String,LongAdder> counters, String name) {
+        LongAdder counter = counters.get(name);
+        if (counter == null) {
+            counter = counters.computeIfAbsent(name, k -> new LongAdder());
+        }
+        return counter;
+    }
+
+    /**
+     * Sum a map of counters
+     *
+     * @param counters Counter map
+     * @return Map of counter sums
+     */
+    private static Map<String,Long> sums(ConcurrentHashMap<String,LongAdder> counters) {
+        HashMap<String,Long> sums = new HashMap<String,Long>();
+        for (Map.Entry<String,LongAdder> entry : counters.entrySet()) {
+            sums.put(entry.getKey(),entry.getValue().sum());
+        }
+        return sums;
+    }
+
+    /**
+     * Total a map of counter sums
+     *
+     * @param sums Map of counter sums
+     * @return Total
+     */
+    private static long total(Map<String,Long> sums) {
+        long total = 0L;
+        for (Long sum : sums.values()) {
+            total += sum;
+        }
+        return total;
+    }
+
+}
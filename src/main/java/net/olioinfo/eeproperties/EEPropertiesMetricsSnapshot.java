@@ -0,0 +1,196 @@
+/* Copyright 2009-2010 Tracy Flynn
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.olioinfo.eeproperties;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Bean holding a point-in-time copy of the values in an EEPropertiesMetrics registry
+ *
+ * @author Tracy Flynn
+ * @since 2.10
+ */
+public class EEPropertiesMetricsSnapshot {
+
+    private long lookups = 0L;
+
+    private long misses = 0L;
+
+    private long conversionFailures = 0L;
+
+    private long substitutionPasses = 0L;
+
+    private long reloads = 0L;
+
+    private long totalReloadNanos = 0L;
+
+    private long lastReloadNanos = 0L;
+
+    private long keyFilterRejections = 0L;
+
+    private long keyFilterFalsePositives = 0L;
+
+    private Map<String,Long> lookupsByKey = new HashMap<String,Long>();
+
+    private Map<String,Long> missesByKey = new HashMap<String,Long>();
+
+    private Map<String,Long> conversionFailuresByKey = new HashMap<String,Long>();
+
+    private Map<String,Long> loadsByFile = new HashMap<String,Long>();
+
+    private Map<String,Long> parseNanosByFile = new HashMap<String,Long>();
+
+    private Map<String,Long> mergeNanosByFile = new HashMap<String,Long>();
+
+    /**
+     * Create a new (empty) snapshot
+     */
+    public EEPropertiesMetricsSnapshot() {
+
+    }
+
+    public long getLookups() {
+        return this.lookups;
+    }
+
+    public void setLookups(long lookups) {
+        this.lookups = lookups;
+    }
+
+    public long getMisses() {
+        return this.misses;
+    }
+
+    public void setMisses(long misses) {
+        this.misses = misses;
+    }
+
+    public long getConversionFailures() {
+        return this.conversionFailures;
+    }
+
+    public void setConversionFailures(long conversionFailures) {
+        this.conversionFailures = conversionFailures;
+    }
+
+    public long getSubstitutionPasses() {
+        return this.substitutionPasses;
+    }
+
+    public void setSubstitutionPasses(long substitutionPasses) {
+        this.substitutionPasses = substitutionPasses;
+    }
+
+    public long getReloads() {
+        return this.reloads;
+    }
+
+    public void setReloads(long reloads) {
+        this.reloads = reloads;
+    }
+
+    public long getTotalReloadNanos() {
+        return this.totalReloadNanos;
+    }
+
+    public void setTotalReloadNanos(long totalReloadNanos) {
+        this.totalReloadNanos = totalReloadNanos;
+    }
+
+    public long getLastReloadNanos() {
+        return this.lastReloadNanos;
+    }
+
+    public void setLastReloadNanos(long lastReloadNanos) {
+        this.lastReloadNanos = lastReloadNanos;
+    }
+
+    public long getKeyFilterRejections() {
+        return this.keyFilterRejections;
+    }
+
+    public void setKeyFilterRejections(long keyFilterRejections) {
+        this.keyFilterRejections = keyFilterRejections;
+    }
+
+    public long getKeyFilterFalsePositives() {
+        return this.keyFilterFalsePositives;
+    }
+
+    public void setKeyFilterFalsePositives(long keyFilterFalsePositives) {
+        this.keyFilterFalsePositives = keyFilterFalsePositives;
+    }
+
+    /**
+     * Get the measured false positive rate of the layer key filters
+     *
+     * @return Fraction of checks of keys absent from a layer that the layer's filter passed, or 0 if none
+     */
+    public double getKeyFilterFalsePositiveRate() {
+        long negatives = this.keyFilterRejections + this.keyFilterFalsePositives;
+        return negatives == 0 ? 0.0 : (double) this.keyFilterFalsePositives / negatives;
+    }
+
+    public Map<String,Long> getLookupsByKey() {
+        return this.lookupsByKey;
+    }
+
+    public void setLookupsByKey(Map<String,Long> lookupsByKey) {
+        this.lookupsByKey = Collections.unmodifiableMap(lookupsByKey);
+    }
+
+    public Map<String,Long> getMissesByKey() {
+        return this.missesByKey;
+    }
+
+    public void setMissesByKey(Map<String,Long> missesByKey) {
+        this.missesByKey = Collections.unmodifiableMap(missesByKey);
+    }
+
+    public Map<String,Long> getConversionFailuresByKey() {
+        return this.conversionFailuresByKey;
+    }
+
+    public void setConversionFailuresByKey(Map<String,Long> conversionFailuresByKey) {
+        this.conversionFailuresByKey = Collections.unmodifiableMap(conversionFailuresByKey);
+    }
+
+    public Map<String,Long> getLoadsByFile() {
+        return this.loadsByFile;
+    }
+
+    public void setLoadsByFile(Map<String,Long> loadsByFile) {
+        this.loadsByFile = Collections.unmodifiableMap(loadsByFile);
+    }
+
+    public Map<String,Long> getParseNanosByFile() {
+        return this.parseNanosByFile;
+    }
+
+    public void setParseNanosByFile(Map<String,Long> parseNanosByFile) {
+        this.parseNanosByFile = Collections.unmodifiableMap(parseNanosByFile);
+    }
+
+    public Map<String,Long> getMergeNanosByFile() {
+        return this.mergeNanosByFile;
+    }
+
+    public void setMergeNanosByFile(Map<String,Long> mergeNanosByFile) {
+        this.mergeNanosByFile = Collections.unmodifiableMap(mergeNanosByFile);
+    }
+
+}
@@ -0,0 +1,473 @@
+/* Copyright 2009-2010 Tracy Flynn
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.olioinfo.eeproperties;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.function.BiConsumer;
+
+/**
+ * <p>Immutable String table held outside the Java heap.</p>
+ *
+ * <p>Keys and values are stored as UTF-8 records in direct ByteBuffers, or in a memory-mapped file, and found
+ * through an open-addressing index that is also off-heap. The only objects per table are the buffers themselves
+ * and a small cache of recently read values, so a table of millions of entries adds almost nothing for the
+ * garbage collector to trace. Strings are decoded when they are read.</p>
+ *
+ * <p>Record layout: key length (int), key bytes, value length (int), value bytes. Index slot layout: key hash
+ * (int) and record number + 1 (int), 0 for an empty slot.</p>
+ *
+ * @author Tracy Flynn
+ * @since 2.10
+ */
+final class EEPropertiesOffHeapTable {
+
+    /**
+     * Maximum size of one data segment. Records never span segments.
+     */
+    private static final int SEGMENT_SIZE = 1 << 28;
+
+    /**
+     * Size of the first data segment of a small table. Later segments double in size up to SEGMENT_SIZE.
+     */
+    private static final int MINIMUM_SEGMENT_SIZE = 1 << 16;
+
+    /**
+     * Number of entries in the hot value cache. Must be a power of two.
+     */
+    private static final int HOT_CACHE_SIZE = 1024;
+
+    /**
+     * Data segments
+     */
+    private final ByteBuffer[] segments;
+
+    /**
+     * Address of each record: segment in the high 32 bits, offset in the low 32 bits
+     */
+    private final ByteBuffer addresses;
+
+    /**
+     * Open-addressing index
+     */
+    private final ByteBuffer index;
+
+    private final int mask;
+
+    private final int size;
+
+    private final long dataBytes;
+
+    /**
+     * Recently read values, indexed by key hash. Entries are immutable, so racing writers are harmless.
+     */
+    private final HotEntry[] hotCache = new HotEntry[EEPropertiesOffHeapTable.HOT_CACHE_SIZE];
+
+    private EEPropertiesOffHeapTable(ByteBuffer[] segments, ByteBuffer addresses, ByteBuffer index, int size, long dataBytes) {
+        this.segments = segments;
+        this.addresses = addresses;
+        this.index = index;
+        this.mask = index.capacity() / 8 - 1;
+        this.size = size;
+        this.dataBytes = dataBytes;
+    }
+
+    /**
+     * Build a table from an existing table plus changes
+     *
+     * @param base Existing table, or null
+     * @param changes Changed entries. A value that is removed (identical to the marker) removes the key
+     * @param removed Marker value for removed keys
+     * @param directory Directory for a memory-mapped file, or null for direct buffers
+     * @return New table
+     */
+    static EEPropertiesOffHeapTable build(final EEPropertiesOffHeapTable base, final EEPropertiesPersistentMap<String> changes,
+                                          final String removed, File directory) {
+        final Builder builder = new Builder(directory,base == null ? 0L : base.dataBytes);
+        if (base != null) {
+            base.forEach(new BiConsumer<String,String>() {
+                public void accept(String key, String value) {
+                    if (! changes.containsKey(key)) {
+                        builder.add(key,value);
+                    }
+                }
+            });
+        }
+        changes.forEach(new BiConsumer<String,String>() {
+            public void accept(String key, String value) {
+                if (value != removed) {
+                    builder.add(key,value);
+                }
+            }
+        });
+        return builder.build();
+    }
+
+    /**
+     * Get a value
+     *
+     * @param key Key
+     * @return Value or null if not present
+     */
+    String get(String key) {
+        int hash = key.hashCode();
+        HotEntry hotEntry = this.hotCache[hash & (EEPropertiesOffHeapTable.HOT_CACHE_SIZE - 1)];
+        if (hotEntry != null && hotEntry.key.equals(key)) {
+            return hotEntry.value;
+        }
+        long address = find(key,hash);
+        if (address < 0) {
+            return null;
+        }
+        ByteBuffer segment = this.segments[(int) (address >>> 32)];
+        int offset = (int) address;
+        int keyLength = segment.getInt(offset);
+        int valueOffset = offset + 4 + keyLength;
+        String value = decode(segment,valueOffset + 4,segment.getInt(valueOffset));
+        this.hotCache[hash & (EEPropertiesOffHeapTable.HOT_CACHE_SIZE - 1)] = new HotEntry(key,value);
+        return value;
+    }
+
+    /**
+     * Check for a key
+     *
+     * @param key Key
+     * @return true if present
+     */
+    boolean containsKey(String key) {
+        return find(key,key.hashCode()) >= 0;
+    }
+
+    /**
+     * @return Number of entries
+     */
+    int size() {
+        return this.size;
+    }
+
+    /**
+     * @return Bytes used off-heap by records and index
+     */
+    long getOffHeapBytes() {
+        return this.dataBytes + this.addresses.capacity() + this.index.capacity();
+    }
+
+    /**
+     * Apply an action to every entry, decoding each key and value
+     *
+     * @param action Action to apply
+     */
+    void forEach(BiConsumer<String,String> action) {
+        for (int i = 0 ; i < this.size ; i++) {
+            long address = this.addresses.getLong(8 * i);
+            ByteBuffer segment = this.segments[(int) (address >>> 32)];
+            int offset = (int) address;
+            int keyLength = segment.getInt(offset);
+            int valueOffset = offset + 4 + keyLength;
+            action.accept(decode(segment,offset + 4,keyLength),decode(segment,valueOffset + 4,segment.getInt(valueOffset)));
+        }
+    }
+
+    /**
+     * Iterate over the entries, decoding each key and value as it is reached
+     *
+     * @return Entry iterator
+     */
+    Iterator<Map.Entry<String,String>> iterator() {
+        return new Iterator<Map.Entry<String,String>>() {
+
+            private int next = 0;
+
+            public boolean hasNext() {
+                return this.next < EEPropertiesOffHeapTable.this.size;
+            }
+
+            public Map.Entry<String,String> next() {
+                if (this.next >= EEPropertiesOffHeapTable.this.size) {
+                    throw new NoSuchElementException();
+                }
+                long address = EEPropertiesOffHeapTable.this.addresses.getLong(8 * this.next++);
+                ByteBuffer segment = EEPropertiesOffHeapTable.this.segments[(int) (address >>> 32)];
+                int offset = (int) address;
+                int keyLength = segment.getInt(offset);
+                int valueOffset = offset + 4 + keyLength;
+                return new AbstractMap.SimpleImmutableEntry<String,String>(decode(segment,offset + 4,keyLength),
+                    decode(segment,valueOffset + 4,segment.getInt(valueOffset)));
+            }
+
+            public void remove() {
+                throw new UnsupportedOperationException();
+            }
+        };
+    }
+
+    /**
+     * Find a record
+     *
+     * @param key Key
+     * @param hash Key hash
+     * @return Record address, or -1 if not present
+     */
+    private long find(String key, int hash) {
+        int slot = EEPropertiesOffHeapTable.spread(hash) & this.mask;
+        while (true) {
+            long entry = this.index.getLong(8 * slot);
+            int record = (int) entry;
+            if (record == 0) {
+                return -1L;
+            }
+            if ((int) (entry >>> 32) == hash) {
+                long address = this.addresses.getLong(8 * (record - 1));
+                ByteBuffer segment = this.segments[(int) (address >>> 32)];
+                int offset = (int) address;
+                if (EEPropertiesOffHeapTable.keyEquals(segment,offset + 4,segment.getInt(offset),key)) {
+                    return address;
+                }
+            }
+            slot = (slot + 1) & this.mask;
+        }
+    }
+
+    /**
+     * Compare UTF-8 bytes with a String without decoding them
+     *
+     * @param segment Segment holding the bytes
+     * @param offset Offset of the first byte
+     * @param length Number of bytes
+     * @param key String to compare with
+     * @return true if equal
+     */
+    private static boolean keyEquals(ByteBuffer segment, int offset, int length, String key) {
+        int end = offset + length;
+        int keyLength = key.length();
+        int i = 0;
+        while (offset < end) {
+            if (i >= keyLength) {
+                return false;
+            }
+            int b = segment.get(offset) & 0xff;
+            if (b < 0x80) {
+                if (key.charAt(i++) != b) {
+                    return false;
+                }
+                offset++;
+                continue;
+            }
+            int codePoint;
+            int count;
+            if (b >= 0xf0) {
+                codePoint = b & 0x07;
+                count = 3;
+            }
+            else if (b >= 0xe0) {
+                codePoint = b & 0x0f;
+                count = 2;
+            }
+            else {
+                codePoint = b & 0x1f;
+                count = 1;
+            }
+            if (offset + count >= end) {
+                return false;
+            }
+            for (int j = 1 ; j <= count ; j++) {
+                codePoint = (codePoint << 6) | (segment.get(offset + j) & 0x3f);
+            }
+            offset += count + 1;
+            if (codePoint >= Character.MIN_SUPPLEMENTARY_CODE_POINT) {
+                if (i + 1 >= keyLength || key.charAt(i) != Character.highSurrogate(codePoint)
+                        || key.charAt(i + 1) != Character.lowSurrogate(codePoint)) {
+                    return false;
+                }
+                i += 2;
+            }
+            else if (key.charAt(i++) != codePoint) {
+                return false;
+            }
+        }
+        return i == keyLength;
+    }
+
+    /**
+     * Decode UTF-8 bytes
+     *
+     * @param segment Segment holding the bytes
+     * @param offset Offset of the first byte
+     * @param length Number of bytes
+     * @return Decoded String
+     */
+    private static String decode(ByteBuffer segment, int offset, int length) {
+        byte[] bytes = new byte[length];
+        ByteBuffer view = segment.duplicate();
+        view.position(offset);
+        view.get(bytes);
+        return new String(bytes,StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Spread a hash so the index uses high bits as well as low bits
+     */
+    private static int spread(int hash) {
+        return (hash ^ (hash >>> 16)) * 0x9e3779b9;
+    }
+
+    /**
+     * Value decoded by get
+     */
+    private static final class HotEntry {
+
+        final String key;
+
+        final String value;
+
+        HotEntry(String key, String value) {
+            this.key = key;
+            this.value = value;
+        }
+    }
+
+    /**
+     * Accumulates records, then builds the index
+     */
+    private static final class Builder {
+
+        private final File directory;
+
+        private final ArrayList<ByteBuffer> segments = new ArrayList<ByteBuffer>();
+
+        /**
+         * Address and hash of each record, in insertion order
+         */
+        private long[] addresses = new long[1024];
+
+        private int[] hashes = new int[1024];
+
+        private int size = 0;
+
+        private long dataBytes = 0L;
+
+        private ByteBuffer segment = null;
+
+        /**
+         * Size of the next segment to allocate
+         */
+        private int nextSegmentSize;
+
+        /**
+         * Create a builder
+         *
+         * @param directory Directory for a memory-mapped file, or null for direct buffers
+         * @param expectedBytes Expected record bytes, e.g. those of the table being rebuilt
+         */
+        Builder(File directory, long expectedBytes) {
+            this.directory = directory;
+            this.nextSegmentSize = (int) Math.min(EEPropertiesOffHeapTable.SEGMENT_SIZE,
+                Math.max(EEPropertiesOffHeapTable.MINIMUM_SEGMENT_SIZE,expectedBytes));
+        }
+
+        void add(String key, String value) {
+            byte[] keyBytes = key.getBytes(StandardCharsets.UTF_8);
+            byte[] valueBytes = value.getBytes(StandardCharsets.UTF_8);
+            int recordLength = 8 + keyBytes.length + valueBytes.length;
+            if (this.segment == null || this.segment.remaining() < recordLength) {
+                this.segment = allocate(Math.max(this.nextSegmentSize,recordLength));
+                this.segments.add(this.segment);
+                this.nextSegmentSize = (int) Math.min(EEPropertiesOffHeapTable.SEGMENT_SIZE,2L * this.nextSegmentSize);
+            }
+            if (this.size == this.addresses.length) {
+                this.addresses = Arrays.copyOf(this.addresses,2 * this.size);
+                this.hashes = Arrays.copyOf(this.hashes,2 * this.size);
+            }
+            this.addresses[this.size] = ((long) (this.segments.size() - 1) << 32) | this.segment.position();
+            this.hashes[this.size] = key.hashCode();
+            this.size++;
+            this.segment.putInt(keyBytes.length).put(keyBytes).putInt(valueBytes.length).put(valueBytes);
+            this.dataBytes += recordLength;
+        }
+
+        EEPropertiesOffHeapTable build() {
+            ByteBuffer[] finalSegments = new ByteBuffer[this.segments.size()];
+            for (int i = 0 ; i < finalSegments.length ; i++) {
+                // Trim the last segment to its content so unused space can be returned
+                ByteBuffer segment = this.segments.get(i);
+                if (i == finalSegments.length - 1 && segment.position() < segment.capacity() / 2) {
+                    ByteBuffer trimmed = allocate(Math.max(1,segment.position()));
+                    segment.flip();
+                    trimmed.put(segment);
+                    segment = trimmed;
+                }
+                finalSegments[i] = segment;
+            }
+            ByteBuffer addressBuffer = allocate(Math.max(8,8 * this.size));
+            for (int i = 0 ; i < this.size ; i++) {
+                addressBuffer.putLong(8 * i,this.addresses[i]);
+            }
+            int capacity = Integer.highestOneBit(Math.max(16,this.size * 2 - 1)) << 1;
+            ByteBuffer index = allocate(8 * capacity);
+            int mask = capacity - 1;
+            for (int i = 0 ; i < this.size ; i++) {
+                int slot = EEPropertiesOffHeapTable.spread(this.hashes[i]) & mask;
+                while (index.getLong(8 * slot) != 0L) {
+                    slot = (slot + 1) & mask;
+                }
+                index.putLong(8 * slot,((long) this.hashes[i] << 32) | ((i + 1) & 0xffffffffL));
+            }
+            return new EEPropertiesOffHeapTable(finalSegments,addressBuffer,index,this.size,this.dataBytes);
+        }
+
+        /**
+         * Allocate a zeroed buffer, either direct or mapped from a temporary file
+         *
+         * @param capacity Size in bytes
+         * @return Buffer
+         */
+        private ByteBuffer allocate(int capacity) {
+            if (this.directory == null) {
+                return ByteBuffer.allocateDirect(capacity);
+            }
+            try {
+                File file = File.createTempFile("eeproperties-offheap",".dat",this.directory);
+                RandomAccessFile randomAccessFile = new RandomAccessFile(file,"rw");
+                try {
+                    randomAccessFile.setLength(capacity);
+                    return randomAccessFile.getChannel().map(FileChannel.MapMode.READ_WRITE,0,capacity);
+                }
+                finally {
+                    // The mapping stays valid after the file is closed and, on most systems, deleted. Only a file that
+                    // can't be deleted while mapped is left for exit, since each deleteOnExit entry is kept until then.
+                    randomAccessFile.close();
+                    if (! file.delete()) {
+                        file.deleteOnExit();
+                    }
+                }
+            }
+            catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+    }
+
+}
@@ -0,0 +1,499 @@
+/* Copyright 2009-2010 Tracy Flynn
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.olioinfo.eeproperties;
+
+import java.util.AbstractMap;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.function.BiConsumer;
+
+/**
+ * <p>Immutable String-keyed map implemented as a hash array mapped trie (HAMT).</p>
+ *
+ * <p>Updates return a new map that shares every unchanged node with the original, so keeping many versions of a
+ * large map costs only the nodes on the paths that changed. Instances are safe to share between threads.</p>
+ *
+ * @author Tracy Flynn
+ * @since 2.10
+ */
+public final class EEPropertiesPersistentMap<V> implements Iterable<Map.Entry<String,V>> {
+
+    /**
+     * Marker returned by nodes when a key is absent
+     */
+    private static final Object NOT_FOUND = new Object();
+
+    /**
+     * The empty map
+     */
+    private static final EEPropertiesPersistentMap<Object> EMPTY = new EEPropertiesPersistentMap<Object>(null,0);
+
+    /**
+     * Root node or null if empty
+     */
+    private final Node root;
+
+    /**
+     * Number of entries
+     */
+    private final int size;
+
+    private EEPropertiesPersistentMap(Node root, int size) {
+        this.root = root;
+        this.size = size;
+    }
+
+    /**
+     * Get the empty map
+     *
+     * @return Empty map
+     */
+    @SuppressWarnings("unchecked")
+    public static <V> EEPropertiesPersistentMap<V> empty() {
+        return (EEPropertiesPersistentMap<V>) EEPropertiesPersistentMap.EMPTY;
+    }
+
+    /**
+     * Get a value
+     *
+     * @param key Key
+     * @return Value or null if not present
+     */
+    public V get(String key) {
+        if (this.root == null) {
+            return null;
+        }
+        Object value = this.root.find(0,hash(key),key);
+        if (value == EEPropertiesPersistentMap.NOT_FOUND) {
+            return null;
+        }
+        // Only values of type V are ever stored
+        @SuppressWarnings("unchecked")
+        V typedValue = (V) value;
+        return typedValue;
+    }
+
+    /**
+     * Check for a key
+     *
+     * @param key Key
+     * @return true if present
+     */
+    public boolean containsKey(String key) {
+        return this.root != null && this.root.find(0,hash(key),key) != EEPropertiesPersistentMap.NOT_FOUND;
+    }
+
+    /**
+     * Get a map with a key set to a value
+     *
+     * @param key Key. Must not be null
+     * @param value Value. Must not be null
+     * @return New map, or this map if the key already had the (identical) value
+     */
+    public EEPropertiesPersistentMap<V> plus(String key, V value) {
+        boolean[] added = new boolean[1];
+        Node base = this.root == null ? BitmapNode.EMPTY : this.root;
+        Node newRoot = base.put(0,hash(key),key,value,added);
+        if (newRoot == this.root) {
+            return this;
+        }
+        return new EEPropertiesPersistentMap<V>(newRoot,added[0] ? this.size + 1 : this.size);
+    }
+
+    /**
+     * Get a map without a key
+     *
+     * @param key Key
+     * @return New map, or this map if the key was not present
+     */
+    public EEPropertiesPersistentMap<V> minus(String key) {
+        if (this.root == null) {
+            return this;
+        }
+        Node newRoot = this.root.remove(0,hash(key),key);
+        if (newRoot == this.root) {
+            return this;
+        }
+        return new EEPropertiesPersistentMap<V>(newRoot,this.size - 1);
+    }
+
+    /**
+     * Get a map with all entries of another map added
+     *
+     * @param entries Entries to add
+     * @return New map
+     */
+    public EEPropertiesPersistentMap<V> plusAll(Map<String,? extends V> entries) {
+        EEPropertiesPersistentMap<V> map = this;
+        for (Map.Entry<String,? extends V> entry : entries.entrySet()) {
+            map = map.plus(entry.getKey(),entry.getValue());
+        }
+        return map;
+    }
+
+    /**
+     * @return Number of entries
+     */
+    public int size() {
+        return this.size;
+    }
+
+    /**
+     * @return true if there are no entries
+     */
+    public boolean isEmpty() {
+        return this.size == 0;
+    }
+
+    /**
+     * Apply an action to every entry without creating entry objects
+     *
+     * @param action Action to apply
+     */
+    public void forEach(BiConsumer<? super String,? super V> action) {
+        if (this.root != null) {
+            // Only values of type V are ever stored, so the action only ever sees those
+            @SuppressWarnings("unchecked")
+            BiConsumer<String,Object> untypedAction = (BiConsumer<String,Object>) action;
+            this.root.forEach(untypedAction);
+        }
+    }
+
+    /**
+     * Iterate over the entries. Iteration order is unspecified but stable for a given map.
+     *
+     * @return Entry iterator
+     */
+    public Iterator<Map.Entry<String,V>> iterator() {
+        return new EntryIterator<V>(this.root);
+    }
+
+    /**
+     * Spread the key hash so that the trie uses high bits as well as low bits
+     *
+     * @param key Key
+     * @return Hash
+     */
+    private static int hash(String key) {
+        int h = key.hashCode();
+        return h ^ (h >>> 16);
+    }
+
+    /**
+     * Trie node
+     */
+    private abstract static class Node {
+
+        abstract Object find(int shift, int hash, String key);
+
+        abstract Node put(int shift, int hash, String key, Object value, boolean[] added);
+
+        abstract Node remove(int shift, int hash, String key);
+
+        abstract void forEach(BiConsumer<String,Object> action);
+
+        /**
+         * Number of slots (key or child) in this node
+         */
+        abstract int slotCount();
+
+        /**
+         * Key in a slot, or null if the slot holds a child node
+         */
+        abstract String keyAt(int slot);
+
+        /**
+         * Value (or child node) in a slot
+         */
+        abstract Object valueAt(int slot);
+    }
+
+    /**
+     * Node holding up to 32 slots indexed by 5 bits of the hash. Each slot is a key and value pair or, when the
+     * key is null, a child node.
+     */
+    private static final class BitmapNode extends Node {
+
+        static final BitmapNode EMPTY = new BitmapNode(0,new Object[0]);
+
+        final int bitmap;
+
+        final Object[] array;
+
+        BitmapNode(int bitmap, Object[] array) {
+            this.bitmap = bitmap;
+            this.array = array;
+        }
+
+        Object find(int shift, int hash, String key) {
+            int bit = 1 << ((hash >>> shift) & 31);
+            if ((this.bitmap & bit) == 0) {
+                return EEPropertiesPersistentMap.NOT_FOUND;
+            }
+            int index = 2 * Integer.bitCount(this.bitmap & (bit - 1));
+            Object slotKey = this.array[index];
+            Object slotValue = this.array[index + 1];
+            if (slotKey == null) {
+                return ((Node) slotValue).find(shift + 5,hash,key);
+            }
+            return key.equals(slotKey) ? slotValue : EEPropertiesPersistentMap.NOT_FOUND;
+        }
+
+        Node put(int shift, int hash, String key, Object value, boolean[] added) {
+            int bit = 1 << ((hash >>> shift) & 31);
+            int index = 2 * Integer.bitCount(this.bitmap & (bit - 1));
+            if ((this.bitmap & bit) == 0) {
+                Object[] newArray = new Object[this.array.length + 2];
+                System.arraycopy(this.array,0,newArray,0,index);
+                newArray[index] = key;
+                newArray[index + 1] = value;
+                System.arraycopy(this.array,index,newArray,index + 2,this.array.length - index);
+                added[0] = true;
+                return new BitmapNode(this.bitmap | bit,newArray);
+            }
+            Object slotKey = this.array[index];
+            Object slotValue = this.array[index + 1];
+            if (slotKey == null) {
+                Node child = (Node) slotValue;
+                Node newChild = child.put(shift + 5,hash,key,value,added);
+                return newChild == child ? this : withSlot(index,null,newChild);
+            }
+            if (key.equals(slotKey)) {
+                return slotValue == value ? this : withSlot(index,slotKey,value);
+            }
+            added[0] = true;
+            return withSlot(index,null,createNode(shift + 5,(String) slotKey,slotValue,hash,key,value));
+        }
+
+        Node remove(int shift, int hash, String key) {
+            int bit = 1 << ((hash >>> shift) & 31);
+            if ((this.bitmap & bit) == 0) {
+                return this;
+            }
+            int index = 2 * Integer.bitCount(this.bitmap & (bit - 1));
+            Object slotKey = this.array[index];
+            Object slotValue = this.array[index + 1];
+            if (slotKey == null) {
+                Node child = (Node) slotValue;
+                Node newChild = child.remove(shift + 5,hash,key);
+                if (newChild == child) {
+                    return this;
+                }
+                if (newChild != null) {
+                    return withSlot(index,null,newChild);
+                }
+                return withoutSlot(bit,index);
+            }
+            if (key.equals(slotKey)) {
+                return withoutSlot(bit,index);
+            }
+            return this;
+        }
+
+        void forEach(BiConsumer<String,Object> action) {
+            for (int i = 0 ; i < this.array.length ; i += 2) {
+                if (this.array[i] == null) {
+                    ((Node) this.array[i + 1]).forEach(action);
+                }
+                else {
+                    action.accept((String) this.array[i],this.array[i + 1]);
+                }
+            }
+        }
+
+        int slotCount() {
+            return this.array.length / 2;
+        }
+
+        String keyAt(int slot) {
+            return (String) this.array[2 * slot];
+        }
+
+        Object valueAt(int slot) {
+            return this.array[2 * slot + 1];
+        }
+
+        private BitmapNode withSlot(int index, Object key, Object value) {
+            Object[] newArray = this.array.clone();
+            newArray[index] = key;
+            newArray[index + 1] = value;
+            return new BitmapNode(this.bitmap,newArray);
+        }
+
+        private BitmapNode withoutSlot(int bit, int index) {
+            if (this.bitmap == bit) {
+                return null;
+            }
+            Object[] newArray = new Object[this.array.length - 2];
+            System.arraycopy(this.array,0,newArray,0,index);
+            System.arraycopy(this.array,index + 2,newArray,index,this.array.length - index - 2);
+            return new BitmapNode(this.bitmap ^ bit,newArray);
+        }
+
+        private static Node createNode(int shift, String key1, Object value1, int hash2, String key2, Object value2) {
+            int hash1 = EEPropertiesPersistentMap.hash(key1);
+            if (hash1 == hash2) {
+                return new CollisionNode(hash1,new Object[] {key1,value1,key2,value2});
+            }
+            boolean[] added = new boolean[1];
+            return BitmapNode.EMPTY.put(shift,hash1,key1,value1,added).put(shift,hash2,key2,value2,added);
+        }
+    }
+
+    /**
+     * Node holding keys whose full hashes are equal
+     */
+    private static final class CollisionNode extends Node {
+
+        final int hash;
+
+        final Object[] array;
+
+        CollisionNode(int hash, Object[] array) {
+            this.hash = hash;
+            this.array = array;
+        }
+
+        Object find(int shift, int hash, String key) {
+            for (int i = 0 ; i < this.array.length ; i += 2) {
+                if (key.equals(this.array[i])) {
+                    return this.array[i + 1];
+                }
+            }
+            return EEPropertiesPersistentMap.NOT_FOUND;
+        }
+
+        Node put(int shift, int hash, String key, Object value, boolean[] added) {
+            if (hash != this.hash) {
+                Node wrapper = new BitmapNode(1 << ((this.hash >>> shift) & 31),new Object[] {null,this});
+                return wrapper.put(shift,hash,key,value,added);
+            }
+            for (int i = 0 ; i < this.array.length ; i += 2) {
+                if (key.equals(this.array[i])) {
+                    if (this.array[i + 1] == value) {
+                        return this;
+                    }
+                    Object[] newArray = this.array.clone();
+                    newArray[i + 1] = value;
+                    return new CollisionNode(this.hash,newArray);
+                }
+            }
+            Object[] newArray = new Object[this.array.length + 2];
+            System.arraycopy(this.array,0,newArray,0,this.array.length);
+            newArray[this.array.length] = key;
+            newArray[this.array.length + 1] = value;
+            added[0] = true;
+            return new CollisionNode(this.hash,newArray);
+        }
+
+        Node remove(int shift, int hash, String key) {
+            for (int i = 0 ; i < this.array.length ; i += 2) {
+                if (key.equals(this.array[i])) {
+                    if (this.array.length == 2) {
+                        return null;
+                    }
+                    Object[] newArray = new Object[this.array.length - 2];
+                    System.arraycopy(this.array,0,newArray,0,i);
+                    System.arraycopy(this.array,i + 2,newArray,i,this.array.length - i - 2);
+                    return new CollisionNode(this.hash,newArray);
+                }
+            }
+            return this;
+        }
+
+        void forEach(BiConsumer<String,Object> action) {
+            for (int i = 0 ; i < this.array.length ; i += 2) {
+                action.accept((String) this.array[i],this.array[i + 1]);
+            }
+        }
+
+        int slotCount() {
+            return this.array.length / 2;
+        }
+
+        String keyAt(int slot) {
+            return (String) this.array[2 * slot];
+        }
+
+        Object valueAt(int slot) {
+            return this.array[2 * slot + 1];
+        }
+    }
+
+    /**
+     * Depth-first entry iterator
+     */
+    private static final class EntryIterator<V> implements Iterator<Map.Entry<String,V>> {
+
+        private final ArrayDeque<Node> nodes = new ArrayDeque<Node>();
+
+        private final ArrayDeque<int[]> positions = new ArrayDeque<int[]>();
+
+        private Map.Entry<String,V> next = null;
+
+        EntryIterator(Node root) {
+            if (root != null) {
+                this.nodes.push(root);
+                this.positions.push(new int[] {0});
+            }
+            advance();
+        }
+
+        public boolean hasNext() {
+            return this.next != null;
+        }
+
+        public Map.Entry<String,V> next() {
+            if (this.next == null) {
+                throw new NoSuchElementException();
+            }
+            Map.Entry<String,V> entry = this.next;
+            advance();
+            return entry;
+        }
+
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
+
+        private void advance() {
+            this.next = null;
+            while (! this.nodes.isEmpty()) {
+                Node node = this.nodes.peek();
+                int[] position = this.positions.peek();
+                if (position[0] >= node.slotCount()) {
+                    this.nodes.pop();
+                    this.positions.pop();
+                    continue;
+                }
+                int slot = position[0]++;
+                String key = node.keyAt(slot);
+                if (key == null) {
+                    this.nodes.push((Node) node.valueAt(slot));
+                    this.positions.push(new int[] {0});
+                }
+                else {
+                    @SuppressWarnings("unchecked")
+                    V value = (V) node.valueAt(slot);
+                    this.next = new AbstractMap.SimpleImmutableEntry<String,V>(key,value);
+                    return;
+                }
+            }
+        }
+    }
+
+}
@@ -0,0 +1,244 @@
+/* Copyright 2009-2010 Tracy Flynn
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.olioinfo.eeproperties;
+
+import java.io.IOException;
+import java.security.GeneralSecurityException;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.LongBinaryOperator;
+
+/**
+ * <p>Decrypted [Encrypted] property values, each kept for a limited time.</p>
+ *
+ * <p>A value is decrypted the first time it is read and its plaintext kept for the time to live, so a secret read
+ * often is not decrypted on every read. Expired plaintext is zeroed on the next read of any secret, and clear zeroes
+ * all of it. Callers get a copy of the plaintext, which they should zero when done.</p>
+ *
+ * <p>Reads of cached plaintext only lock the entry being copied. Keys are fetched and values decrypted without
+ * holding any lock, and the plaintext is published afterwards, so a slow key provider only delays reads of the
+ * secrets it is decrypting.</p>
+ *
+ * @author Tracy Flynn
+ * @since 2.10
+ */
+final class EEPropertiesSecretCache {
+
+    private final long timeToLiveNanos;
+
+    /**
+     * Cached plaintext by property name
+     */
+    private final ConcurrentHashMap<String,Entry> entries = new ConcurrentHashMap<String,Entry>();
+
+    /**
+     * Earliest expiry of any cached plaintext, so reads only sweep once something has expired
+     */
+    private final AtomicLong nextExpires = new AtomicLong();
+
+    /**
+     * Held by the one read sweeping expired plaintext. Other reads don't wait for it.
+     */
+    private final ReentrantLock sweepLock = new ReentrantLock();
+
+    private final LongAdder hits = new LongAdder();
+
+    private final LongAdder decryptions = new LongAdder();
+
+    /**
+     * Create a cache
+     *
+     * @param timeToLiveNanos How long plaintext is kept after decryption, 0 not to keep it
+     */
+    EEPropertiesSecretCache(long timeToLiveNanos) {
+        this.timeToLiveNanos = Math.max(0L,timeToLiveNanos);
+    }
+
+    /**
+     * Get the plaintext of a value, decrypting it if it is not cached
+     *
+     * @param propertyName Property name
+     * @param encryptedValue Current value
+     * @param keyProvider Key provider
+     * @return Copy of the plaintext
+     * @throws GeneralSecurityException if decryption fails
+     * @throws IOException if the key can't be read
+     */
+    char[] get(String propertyName, EEPropertiesEncryptedValue encryptedValue, EEPropertiesKeyProvider keyProvider)
+            throws GeneralSecurityException, IOException {
+        long now = System.nanoTime();
+        if (! this.entries.isEmpty() && now - this.nextExpires.get() >= 0 && this.sweepLock.tryLock()) {
+            try {
+                removeExpired(now);
+            }
+            finally {
+                this.sweepLock.unlock();
+            }
+        }
+        Entry entry = this.entries.get(propertyName);
+        if (entry != null && entry.text.equals(encryptedValue.text) && now - entry.expires < 0) {
+            char[] plaintext = entry.copy();
+            // Null if the entry was zeroed since it was looked up
+            if (plaintext != null) {
+                this.hits.increment();
+                return plaintext;
+            }
+        }
+
+        char[] plaintext = EEPropertiesSecrets.decrypt(encryptedValue,keyProvider.getKey(encryptedValue.keyId));
+        this.decryptions.increment();
+        if (this.timeToLiveNanos > 0) {
+            final long expires = now + this.timeToLiveNanos;
+            Entry previous = this.entries.put(propertyName,new Entry(encryptedValue.text,plaintext.clone(),expires));
+            if (previous != null) {
+                // The value has changed, or expired, since it was cached
+                previous.zero();
+            }
+            this.nextExpires.accumulateAndGet(expires,new LongBinaryOperator() {
+                public long applyAsLong(long current, long candidate) {
+                    return candidate - current < 0 ? candidate : current;
+                }
+            });
+        }
+        else if (entry != null && this.entries.remove(propertyName,entry)) {
+            entry.zero();
+        }
+        return plaintext;
+    }
+
+    /**
+     * Zero and remove expired plaintext. Called holding sweepLock.
+     *
+     * @param now Current System.nanoTime
+     */
+    private void removeExpired(long now) {
+        boolean first = true;
+        long earliest = 0L;
+        Iterator<Entry> iterator = this.entries.values().iterator();
+        while (iterator.hasNext()) {
+            Entry entry = iterator.next();
+            if (now - entry.expires >= 0) {
+                iterator.remove();
+                entry.zero();
+            }
+            else if (first || entry.expires - earliest < 0) {
+                earliest = entry.expires;
+                first = false;
+            }
+        }
+        if (! first) {
+            this.nextExpires.set(earliest);
+        }
+    }
+
+    /**
+     * Zero and remove all cached plaintext
+     */
+    void clear() {
+        Iterator<Entry> iterator = this.entries.values().iterator();
+        while (iterator.hasNext()) {
+            Entry entry = iterator.next();
+            iterator.remove();
+            entry.zero();
+        }
+    }
+
+    /**
+     * @return Number of secrets whose plaintext is cached, including any expired but not yet removed
+     */
+    int size() {
+        return this.entries.size();
+    }
+
+    /**
+     * @return Number of reads answered from the cache
+     */
+    long getHits() {
+        return this.hits.sum();
+    }
+
+    /**
+     * @return Number of decryptions
+     */
+    long getDecryptions() {
+        return this.decryptions.sum();
+    }
+
+    /**
+     * Cached plaintext of one value
+     */
+    private static final class Entry {
+
+        final String text;
+
+        /**
+         * Guarded by lock
+         */
+        private final char[] plaintext;
+
+        /**
+         * System.nanoTime at which the plaintext expires
+         */
+        final long expires;
+
+        /**
+         * Guards plaintext and zeroed, so a copy never sees plaintext being zeroed
+         */
+        private final ReentrantLock lock = new ReentrantLock();
+
+        /**
+         * Guarded by lock
+         */
+        private boolean zeroed = false;
+
+        Entry(String text, char[] plaintext, long expires) {
+            this.text = text;
+            this.plaintext = plaintext;
+            this.expires = expires;
+        }
+
+        /**
+         * @return Copy of the plaintext, or null if it has been zeroed
+         */
+        char[] copy() {
+            this.lock.lock();
+            try {
+                return this.zeroed ? null : this.plaintext.clone();
+            }
+            finally {
+                this.lock.unlock();
+            }
+        }
+
+        /**
+         * Zero the plaintext
+         */
+        void zero() {
+            this.lock.lock();
+            try {
+                Arrays.fill(this.plaintext,'\0');
+                this.zeroed = true;
+            }
+            finally {
+                this.lock.unlock();
+            }
+        }
+    }
+
+}
@@ -0,0 +1,129 @@
+/* Copyright 2009-2010 Tracy Flynn
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.olioinfo.eeproperties;
+
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+import java.util.Arrays;
+import java.util.Base64;
+import javax.crypto.Cipher;
+import javax.crypto.KeyGenerator;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.GCMParameterSpec;
+
+/**
+ * <p>Encryption and decryption of [Encrypted] property values with AES-GCM.</p>
+ *
+ * <p>Use <em>encrypt</em> to produce the value to put in a configuration file. Plaintext is handled as char arrays,
+ * and intermediate byte arrays are zeroed, so no copy of a secret is left in an immutable String.</p>
+ *
+ * @author Tracy Flynn
+ * @since 2.10
+ */
+public final class EEPropertiesSecrets {
+
+    private static final String TRANSFORMATION = "AES/GCM/NoPadding";
+
+    private static final SecureRandom RANDOM = new SecureRandom();
+
+    private EEPropertiesSecrets() {
+
+    }
+
+    /**
+     * Generate a new 256 bit AES key
+     *
+     * @return Base64 encoded key, as read by EEPropertiesFileKeyProvider
+     * @throws GeneralSecurityException if AES is not available
+     */
+    public static String generateKey() throws GeneralSecurityException {
+        KeyGenerator keyGenerator = KeyGenerator.getInstance("AES");
+        keyGenerator.init(256,EEPropertiesSecrets.RANDOM);
+        return Base64.getEncoder().encodeToString(keyGenerator.generateKey().getEncoded());
+    }
+
+    /**
+     * Encrypt a secret for a configuration file
+     *
+     * @param plaintext Secret
+     * @param key AES key
+     * @param keyId Key identifier to record in the value, or null for the default key
+     * @return Property value, e.g. "[Encrypted] db:...."
+     * @throws GeneralSecurityException if encryption fails
+     */
+    public static String encrypt(char[] plaintext, SecretKey key, String keyId) throws GeneralSecurityException {
+        ByteBuffer encoded = StandardCharsets.UTF_8.encode(CharBuffer.wrap(plaintext));
+        byte[] plaintextBytes = new byte[encoded.remaining()];
+        encoded.get(plaintextBytes);
+        EEPropertiesSecrets.zero(encoded);
+        try {
+            byte[] sealed = new byte[EEPropertiesEncryptedValue.NONCE_LENGTH + plaintextBytes.length + EEPropertiesEncryptedValue.TAG_LENGTH];
+            byte[] nonce = new byte[EEPropertiesEncryptedValue.NONCE_LENGTH];
+            EEPropertiesSecrets.RANDOM.nextBytes(nonce);
+            System.arraycopy(nonce,0,sealed,0,nonce.length);
+            Cipher cipher = Cipher.getInstance(EEPropertiesSecrets.TRANSFORMATION);
+            cipher.init(Cipher.ENCRYPT_MODE,key,new GCMParameterSpec(8 * EEPropertiesEncryptedValue.TAG_LENGTH,nonce));
+            cipher.doFinal(plaintextBytes,0,plaintextBytes.length,sealed,nonce.length);
+            String value = Base64.getEncoder().encodeToString(sealed);
+            return keyId == null ? "[Encrypted] " + value : "[Encrypted] " + keyId + ":" + value;
+        }
+        finally {
+            Arrays.fill(plaintextBytes,(byte) 0);
+        }
+    }
+
+    /**
+     * Decrypt a value
+     *
+     * @param encryptedValue Value
+     * @param key AES key
+     * @return Secret. The caller should zero it when done
+     * @throws GeneralSecurityException if the key is wrong or the value has been altered
+     */
+    static char[] decrypt(EEPropertiesEncryptedValue encryptedValue, SecretKey key) throws GeneralSecurityException {
+        byte[] sealed = encryptedValue.sealed;
+        Cipher cipher = Cipher.getInstance(EEPropertiesSecrets.TRANSFORMATION);
+        cipher.init(Cipher.DECRYPT_MODE,key,new GCMParameterSpec(8 * EEPropertiesEncryptedValue.TAG_LENGTH,sealed,0,EEPropertiesEncryptedValue.NONCE_LENGTH));
+        byte[] plaintextBytes = cipher.doFinal(sealed,EEPropertiesEncryptedValue.NONCE_LENGTH,sealed.length - EEPropertiesEncryptedValue.NONCE_LENGTH);
+        try {
+            CharBuffer decoded = StandardCharsets.UTF_8.decode(ByteBuffer.wrap(plaintextBytes));
+            char[] plaintext = new char[decoded.remaining()];
+            decoded.get(plaintext);
+            decoded.clear();
+            while (decoded.hasRemaining()) {
+                decoded.put('\0');
+            }
+            return plaintext;
+        }
+        finally {
+            Arrays.fill(plaintextBytes,(byte) 0);
+        }
+    }
+
+    /**
+     * Zero the contents of a heap buffer
+     *
+     * @param buffer Buffer
+     */
+    private static void zero(ByteBuffer buffer) {
+        if (buffer.hasArray()) {
+            Arrays.fill(buffer.array(),(byte) 0);
+        }
+    }
+
+}
@@ -0,0 +1,175 @@
+/* Copyright 2009-2010 Tracy Flynn
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.olioinfo.eeproperties;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * <p>Registry of key slots used by generated accessors.</p>
+ *
+ * <p>Each key registered gets a small integer slot, the same for every EEProperties instance. Each instance keeps
+ * the values of all registered keys in dense arrays indexed by slot, updated whenever it publishes a new
+ * generation for just the keys that generation changed, so reading a key by slot is an array read rather than a hash lookup.</p>
+ *
+ * <p>Classes generated for &#64;EEPropertiesKeys register their keys when they are initialized.</p>
+ *
+ * @author Tracy Flynn
+ * @since 2.10
+ */
+public final class EEPropertiesSlots {
+
+    /**
+     * Slot of each registered key
+     */
+    private static final ConcurrentHashMap<String,Integer> SLOTS = new ConcurrentHashMap<String,Integer>();
+
+    /**
+     * Registered keys, by slot. Replaced, never changed, when a key is registered.
+     */
+    private static volatile String[] keys = new String[0];
+
+    /**
+     * Serializes registration
+     */
+    private static final ReentrantLock REGISTRATION_LOCK = new ReentrantLock();
+
+    private EEPropertiesSlots() {
+    }
+
+    /**
+     * Get the slot for a key, registering it if needed
+     *
+     * @param key Property key
+     * @return Slot
+     */
+    public static int slot(String key) {
+        Integer slot = EEPropertiesSlots.SLOTS.get(key);
+        if (slot != null) {
+            return slot;
+        }
+        EEPropertiesSlots.REGISTRATION_LOCK.lock();
+        try {
+            slot = EEPropertiesSlots.SLOTS.get(key);
+            if (slot == null) {
+                String[] newKeys = new String[EEPropertiesSlots.keys.length + 1];
+                System.arraycopy(EEPropertiesSlots.keys,0,newKeys,0,EEPropertiesSlots.keys.length);
+                slot = EEPropertiesSlots.keys.length;
+                newKeys[slot] = key;
+                EEPropertiesSlots.keys = newKeys;
+                EEPropertiesSlots.SLOTS.put(key,slot);
+            }
+            return slot;
+        }
+        finally {
+            EEPropertiesSlots.REGISTRATION_LOCK.unlock();
+        }
+    }
+
+    /**
+     * Get the key registered for a slot
+     *
+     * @param slot Slot
+     * @return Key
+     * @throws ArrayIndexOutOfBoundsException if no key has that slot
+     */
+    public static String key(int slot) {
+        return EEPropertiesSlots.keys[slot];
+    }
+
+    /**
+     * @return Number of keys registered
+     */
+    public static int size() {
+        return EEPropertiesSlots.keys.length;
+    }
+
+    /**
+     * Build the table of values for all registered keys
+     *
+     * <p>When the generation was built directly from the previous table's generation and knows which keys it changed,
+     * only the slots of those keys, and of keys registered since, are read again. The rest are copied.</p>
+     *
+     * @param generation Generation to read
+     * @param eeProperties Instance the table is for, which converts typed values if they are converted on demand
+     * @param previous Previous table of the instance
+     * @return Table
+     */
+    static Table table(EEPropertiesLayeredStore.Generation generation, EEProperties eeProperties, Table previous) {
+        String[] registeredKeys = EEPropertiesSlots.keys;
+        String[] properties = new String[registeredKeys.length];
+        EEPropertiesTypedValue[] typedValues = new EEPropertiesTypedValue[registeredKeys.length];
+        Set<String> changedKeys = null;
+        if (generation.getNumber() == previous.generationNumber) {
+            changedKeys = Collections.<String>emptySet();
+        }
+        else if (generation.getPreviousNumber() == previous.generationNumber) {
+            changedKeys = generation.getChangedKeys();
+        }
+        int copied = 0;
+        if (changedKeys != null) {
+            copied = previous.properties.length;
+            System.arraycopy(previous.properties,0,properties,0,copied);
+            System.arraycopy(previous.typedValues,0,typedValues,0,copied);
+        }
+        for (int i = 0 ; i < registeredKeys.length ; i++) {
+            if (i < copied && ! changedKeys.contains(registeredKeys[i])) {
+                continue;
+            }
+            properties[i] = generation.getProperty(registeredKeys[i]);
+            typedValues[i] = eeProperties.getTypedEntry(generation,registeredKeys[i]);
+        }
+        return new Table(generation.getNumber(),properties,typedValues);
+    }
+
+    /**
+     * Get the keys among some slots that have no value
+     *
+     * @param table Table
+     * @param slots Slots to check
+     * @return Keys with no value, in slot order
+     */
+    static ArrayList<String> missingKeys(Table table, int[] slots) {
+        ArrayList<String> missing = new ArrayList<String>();
+        for (int slot : slots) {
+            if (table.properties[slot] == null) {
+                missing.add(EEPropertiesSlots.key(slot));
+            }
+        }
+        return missing;
+    }
+
+    /**
+     * Values of the registered keys in one generation
+     */
+    static final class Table {
+
+        final long generationNumber;
+
+        final String[] properties;
+
+        final EEPropertiesTypedValue[] typedValues;
+
+        Table(long generationNumber, String[] properties, EEPropertiesTypedValue[] typedValues) {
+            this.generationNumber = generationNumber;
+            this.properties = properties;
+            this.typedValues = typedValues;
+        }
+    }
+
+}
@@ -0,0 +1,170 @@
+/* Copyright 2009-2010 Tracy Flynn
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.olioinfo.eeproperties;
+
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * <p>Deduplicating pool for property keys and values.</p>
+ *
+ * <p>Returns one canonical instance for every distinct String passed in, so that the same key or value loaded by
+ * many load definitions, or again on every reload, is held once. The pool only refers to canonical instances
+ * weakly: once no generation uses a String it is collected and its entry removed.</p>
+ *
+ * <p>One pool is shared by all EEProperties instances, so deduplication also works across reloads.</p>
+ *
+ * @author Tracy Flynn
+ * @since 2.10
+ */
+public class EEPropertiesStringPool {
+
+    /**
+     * Pool shared by all EEProperties instances
+     */
+    private static final EEPropertiesStringPool SHARED = new EEPropertiesStringPool();
+
+    /**
+     * Canonical instances. Each entry is its own key.
+     */
+    private final ConcurrentHashMap<Entry,Entry> entries = new ConcurrentHashMap<Entry,Entry>();
+
+    /**
+     * Entries whose String has been collected
+     */
+    private final ReferenceQueue<String> collected = new ReferenceQueue<String>();
+
+    private final LongAdder lookups = new LongAdder();
+
+    private final LongAdder duplicates = new LongAdder();
+
+    private final LongAdder bytesSaved = new LongAdder();
+
+    /**
+     * Get the pool shared by all EEProperties instances
+     *
+     * @return Shared pool
+     */
+    public static EEPropertiesStringPool shared() {
+        return EEPropertiesStringPool.SHARED;
+    }
+
+    /**
+     * Get the canonical instance of a String
+     *
+     * @param value String
+     * @return Canonical instance equal to value, or null if value is null
+     */
+    public String canonicalize(String value) {
+        if (value == null) {
+            return null;
+        }
+        expungeCollectedEntries();
+        this.lookups.increment();
+        Entry entry = new Entry(value,this.collected);
+        while (true) {
+            Entry existing = this.entries.putIfAbsent(entry,entry);
+            if (existing == null) {
+                return value;
+            }
+            String canonical = existing.get();
+            if (canonical != null) {
+                if (canonical != value) {
+                    this.duplicates.increment();
+                    this.bytesSaved.add(EEPropertiesLayeredStore.estimateStringSize(value));
+                }
+                return canonical;
+            }
+            // Collected after the lookup. Remove it and try again.
+            this.entries.remove(existing,existing);
+        }
+    }
+
+    /**
+     * @return Number of canonical instances currently held
+     */
+    public int size() {
+        expungeCollectedEntries();
+        return this.entries.size();
+    }
+
+    /**
+     * @return Number of Strings passed to canonicalize
+     */
+    public long getLookups() {
+        return this.lookups.sum();
+    }
+
+    /**
+     * @return Number of Strings replaced by an existing canonical instance
+     */
+    public long getDuplicates() {
+        return this.duplicates.sum();
+    }
+
+    /**
+     * Get the estimated heap saved so far. Each duplicate replaced counts as the size of the String it replaced.
+     *
+     * @return Estimated bytes saved
+     */
+    public long getBytesSaved() {
+        return this.bytesSaved.sum();
+    }
+
+    /**
+     * Remove entries whose String has been collected
+     */
+    private void expungeCollectedEntries() {
+        Reference<? extends String> reference;
+        while ((reference = this.collected.poll()) != null) {
+            this.entries.remove(reference,reference);
+        }
+    }
+
+    /**
+     * Weak reference to a canonical String, equal to any other entry referring to an equal String
+     */
+    private static final class Entry extends WeakReference<String> {
+
+        /**
+         * Hash of the String, kept so a collected entry can still be found and removed
+         */
+        private final int hash;
+
+        Entry(String value, ReferenceQueue<String> queue) {
+            super(value,queue);
+            this.hash = value.hashCode();
+        }
+
+        public int hashCode() {
+            return this.hash;
+        }
+
+        public boolean equals(Object other) {
+            if (this == other) {
+                return true;
+            }
+            if (! (other instanceof Entry) || ((Entry) other).hash != this.hash) {
+                return false;
+            }
+            String value = get();
+            return value != null && value.equals(((Entry) other).get());
+        }
+    }
+
+}
@@ -0,0 +1,187 @@
+/* Copyright 2009-2010 Tracy Flynn
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.olioinfo.eeproperties;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Properties;
+
+/**
+ * <p>String with ${name} variables, parsed once so it can be rendered many times.</p>
+ *
+ * <p>Variables are resolved as in variable substitution: from system properties, then environment variables, then
+ * properties. A variable that can't be resolved is left as it is. All values are looked up before the result is
+ * built, so the result is built in a StringBuilder of exactly the right size.</p>
+ *
+ * <p>Instances are immutable and may be shared between threads. Get them from EEProperties.compileTemplate.</p>
+ *
+ * @author Tracy Flynn
+ * @since 2.10
+ */
+public final class EEPropertiesTemplate {
+
+    private final String template;
+
+    /**
+     * Text before each variable, then the text after the last one
+     */
+    private final String[] literals;
+
+    private final String[] variableNames;
+
+    /**
+     * Total length of the literals
+     */
+    private final int literalLength;
+
+    private EEPropertiesTemplate(String template, String[] literals, String[] variableNames) {
+        this.template = template;
+        this.literals = literals;
+        this.variableNames = variableNames;
+        int length = 0;
+        for (String literal : literals) {
+            length += literal.length();
+        }
+        this.literalLength = length;
+    }
+
+    /**
+     * Parse a template
+     *
+     * @param template Template
+     * @return Parsed template, or null if a variable is not closed
+     */
+    static EEPropertiesTemplate parse(String template) {
+        ArrayList<String> literals = new ArrayList<String>();
+        ArrayList<String> variableNames = new ArrayList<String>();
+        int startPos = 0;
+        int matchPos;
+        while ((matchPos = template.indexOf("${",startPos)) != -1) {
+            int varNameEnd = template.indexOf('}',matchPos + 2);
+            if (varNameEnd == -1) {
+                return null;
+            }
+            literals.add(template.substring(startPos,matchPos));
+            variableNames.add(template.substring(matchPos + 2,varNameEnd));
+            startPos = varNameEnd + 1;
+        }
+        literals.add(template.substring(startPos));
+        return new EEPropertiesTemplate(template,literals.toArray(new String[literals.size()]),
+            variableNames.toArray(new String[variableNames.size()]));
+    }
+
+    /**
+     * @return Template as given
+     */
+    public String getTemplate() {
+        return this.template;
+    }
+
+    /**
+     * @return Names of the variables, in order of appearance
+     */
+    public List<String> getVariableNames() {
+        return Collections.unmodifiableList(Arrays.asList(this.variableNames));
+    }
+
+    /**
+     * Render against the singleton instance's current properties
+     *
+     * @return Rendered string
+     */
+    public String render() {
+        return render(EEProperties.singleton());
+    }
+
+    /**
+     * Render against an instance's current properties. All variables are resolved from the same generation, even if
+     * a load completes meanwhile.
+     *
+     * @param eeProperties Instance
+     * @return Rendered string
+     */
+    public String render(EEProperties eeProperties) {
+        String rendered = substitute(null,eeProperties.currentGeneration());
+        return rendered == null ? this.template : rendered;
+    }
+
+    /**
+     * Render against a Properties object
+     *
+     * @param properties Properties. Ignored if null
+     * @return Rendered string
+     */
+    public String render(Properties properties) {
+        String rendered = substitute(properties,null);
+        return rendered == null ? this.template : rendered;
+    }
+
+    /**
+     * Substitute the variables, resolving the remainder from a Properties object or a generation
+     *
+     * @param properties Properties, or null
+     * @param generation Generation, or null
+     * @return Substituted string, or null if no variable could be resolved
+     */
+    String substitute(Properties properties, EEPropertiesLayeredStore.Generation generation) {
+        int variableCount = this.variableNames.length;
+        if (variableCount == 0) {
+            return null;
+        }
+        String[] values = new String[variableCount];
+        int length = this.literalLength;
+        boolean anySubstitution = false;
+        for (int i = 0 ; i < variableCount ; i++) {
+            String varName = this.variableNames[i];
+            String value = System.getProperty(varName);
+            if (value == null) {
+                value = System.getenv(varName);
+            }
+            if (value == null) {
+                value = properties != null ? properties.getProperty(varName)
+                    : (generation != null ? generation.getProperty(varName) : null);
+            }
+            if (value != null) {
+                anySubstitution = true;
+                values[i] = value;
+                length += value.length();
+            }
+            else {
+                length += varName.length() + 3;
+            }
+        }
+        if (! anySubstitution) {
+            return null;
+        }
+        StringBuilder rendered = new StringBuilder(length);
+        for (int i = 0 ; i < variableCount ; i++) {
+            rendered.append(this.literals[i]);
+            if (values[i] != null) {
+                rendered.append(values[i]);
+            }
+            else {
+                rendered.append("${").append(this.variableNames[i]).append('}');
+            }
+        }
+        return rendered.append(this.literals[variableCount]).toString();
+    }
+
+    public String toString() {
+        return this.template;
+    }
+
+}
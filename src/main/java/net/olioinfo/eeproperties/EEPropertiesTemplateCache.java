@@ -0,0 +1,155 @@
+/* Copyright 2009-2010 Tracy Flynn
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.olioinfo.eeproperties;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * <p>Size-bounded cache of parsed templates, keyed by template string.</p>
+ *
+ * <p>When the cache is full, the least recently used template is replaced, approximated by a CLOCK sweep that
+ * passes over templates used since the hand last passed. Reads don't lock; adding a template is serialized.</p>
+ *
+ * @author Tracy Flynn
+ * @since 2.10
+ */
+final class EEPropertiesTemplateCache {
+
+    private final int maximumSize;
+
+    private final ConcurrentHashMap<String,Entry> entries;
+
+    /**
+     * Serializes additions. Guards ring.
+     */
+    private final ReentrantLock addLock = new ReentrantLock();
+
+    /**
+     * Replacement order of the cached templates. Guarded by addLock.
+     */
+    private final EEPropertiesClockRing<Entry> ring;
+
+    private final LongAdder hits = new LongAdder();
+
+    private final LongAdder misses = new LongAdder();
+
+    /**
+     * Create a cache
+     *
+     * @param maximumSize Maximum number of templates kept
+     */
+    EEPropertiesTemplateCache(int maximumSize) {
+        this.maximumSize = Math.max(1,maximumSize);
+        this.entries = new ConcurrentHashMap<String,Entry>(this.maximumSize);
+        this.ring = new EEPropertiesClockRing<Entry>(this.entries,this.maximumSize);
+    }
+
+    /**
+     * Get the parsed template for a string, parsing it on a miss
+     *
+     * @param template Template string
+     * @return Parsed template, or null if a variable is not closed
+     */
+    EEPropertiesTemplate get(String template) {
+        Entry entry = this.entries.get(template);
+        if (entry != null) {
+            entry.markReferenced();
+            this.hits.increment();
+            return entry.template;
+        }
+        this.misses.increment();
+        EEPropertiesTemplate parsed = EEPropertiesTemplate.parse(template);
+        if (parsed != null) {
+            add(template,new Entry(parsed));
+        }
+        return parsed;
+    }
+
+    /**
+     * Add a newly parsed template, replacing the least recently used one if the cache is full
+     *
+     * @param template Template string
+     * @param entry New entry
+     */
+    private void add(String template, Entry entry) {
+        this.addLock.lock();
+        try {
+            addLocked(template,entry);
+        }
+        finally {
+            this.addLock.unlock();
+        }
+    }
+
+    /**
+     * Add while holding addLock
+     *
+     * @param template Template string
+     * @param entry New entry
+     */
+    private void addLocked(String template, Entry entry) {
+        if (this.entries.containsKey(template)) {
+            // Parsed concurrently by another thread
+            return;
+        }
+        if (! this.ring.addIfRoom(template,entry)) {
+            this.ring.victim();
+            this.ring.replaceVictim(template,entry);
+        }
+    }
+
+    /**
+     * @return Maximum number of templates kept
+     */
+    int getMaximumSize() {
+        return this.maximumSize;
+    }
+
+    /**
+     * @return Number of templates currently kept
+     */
+    int size() {
+        return this.entries.size();
+    }
+
+    /**
+     * @return Number of lookups answered from the cache
+     */
+    long getHits() {
+        return this.hits.sum();
+    }
+
+    /**
+     * @return Number of lookups that needed a parse
+     */
+    long getMisses() {
+        return this.misses.sum();
+    }
+
+    /**
+     * Parsed template and its CLOCK mark
+     */
+    private static final class Entry extends EEPropertiesClockRing.Entry {
+
+        final EEPropertiesTemplate template;
+
+        Entry(EEPropertiesTemplate template) {
+            this.template = template;
+        }
+    }
+
+}
@@ -0,0 +1,40 @@
+/* Copyright 2009-2010 Tracy Flynn
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.olioinfo.eeproperties;
+
+/**
+ * Immutable pairing of a typed property value with its type name
+ *
+ * @author Tracy Flynn
+ * @since 2.10
+ */
+final class EEPropertiesTypedValue {
+
+    /**
+     * Type name as used in the extended syntax, e.g. "Integer" or "ArrayList&lt;String&gt;"
+     */
+    final String type;
+
+    /**
+     * Converted value
+     */
+    final Object value;
+
+    EEPropertiesTypedValue(String type, Object value) {
+        this.type = type;
+        this.value = value;
+    }
+
+}
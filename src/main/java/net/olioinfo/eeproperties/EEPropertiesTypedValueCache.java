@@ -0,0 +1,409 @@
+/* Copyright 2009-2010 Tracy Flynn
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.olioinfo.eeproperties;
+
+import java.nio.Buffer;
+import java.nio.DoubleBuffer;
+import java.nio.LongBuffer;
+import java.util.Collection;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.BiFunction;
+
+/**
+ * <p>Size-bounded cache of typed values converted from property strings.</p>
+ *
+ * <p>When the cache is enabled, loads keep only the property strings and typed values are converted the first
+ * time they are read. At most maximumSize converted values are kept. When the cache is full, the entry to replace
+ * is chosen by a CLOCK sweep, which passes over entries read since the hand last passed, and the new value is only
+ * admitted if it has been requested more often than the entry it would replace (TinyLFU admission). Request
+ * frequencies are estimated by a count-min sketch of 4-bit counters that are halved periodically, so keys read
+ * once in a scan don't push out keys that are read all the time.</p>
+ *
+ * <p>Reads don't lock. A hit is recorded in a small buffer owned by the reading thread, and the buffer is added
+ * to the sketch under the admission lock when it fills or when the thread next admits a value, so hits never
+ * write to memory shared with other readers. A full buffer is dropped if the lock is busy; the sketch only needs
+ * estimates. Conversions and replacements are serialized.</p>
+ *
+ * @author Tracy Flynn
+ * @since 2.10
+ */
+public class EEPropertiesTypedValueCache {
+
+    /**
+     * Estimated fixed overhead of a cache entry, its map node and its typed value wrapper
+     */
+    private static final long ESTIMATED_ENTRY_OVERHEAD = 96L;
+
+    /**
+     * Estimated size of a small value such as an Integer or Instant
+     */
+    private static final long ESTIMATED_SMALL_VALUE_SIZE = 24L;
+
+    /**
+     * Number of hits each thread buffers before adding them to the sketch
+     */
+    private static final int READ_BUFFER_SIZE = 16;
+
+    private final int maximumSize;
+
+    private final ConcurrentHashMap<String,Entry> entries;
+
+    /**
+     * Request frequencies. Guarded by admitLock.
+     */
+    private final FrequencySketch sketch;
+
+    /**
+     * Hits not yet added to the sketch, per thread
+     */
+    private final ThreadLocal<ReadBuffer> readBuffers = new ThreadLocal<ReadBuffer>() {
+        protected ReadBuffer initialValue() {
+            return new ReadBuffer();
+        }
+    };
+
+    /**
+     * Serializes admissions. Guards ring and sketch.
+     */
+    private final ReentrantLock admitLock = new ReentrantLock();
+
+    /**
+     * Replacement order of the cached entries. Guarded by admitLock.
+     */
+    private final EEPropertiesClockRing<Entry> ring;
+
+    private final LongAdder hits = new LongAdder();
+
+    private final LongAdder misses = new LongAdder();
+
+    private final LongAdder evictions = new LongAdder();
+
+    private final LongAdder rejections = new LongAdder();
+
+    /**
+     * Estimated heap held by cached entries. Written under admitLock.
+     */
+    private volatile long estimatedMemoryFootprint = 0L;
+
+    /**
+     * Create a cache
+     *
+     * @param maximumSize Maximum number of converted values kept
+     */
+    EEPropertiesTypedValueCache(int maximumSize) {
+        this.maximumSize = maximumSize;
+        this.entries = new ConcurrentHashMap<String,Entry>(Math.min(maximumSize,1 << 16));
+        this.sketch = new FrequencySketch(maximumSize);
+        this.ring = new EEPropertiesClockRing<Entry>(this.entries,maximumSize);
+    }
+
+    /**
+     * Get the typed value for a property string, converting it on a miss
+     *
+     * @param propertyName Property name
+     * @param propertyValue Current property string
+     * @param converter Conversion used on a miss. May return null if the string doesn't convert
+     * @return Typed value, or null if the string doesn't convert
+     */
+    EEPropertiesTypedValue get(String propertyName, String propertyValue,
+                               BiFunction<String,String,EEPropertiesTypedValue> converter) {
+        Entry entry = this.entries.get(propertyName);
+        if (entry != null && (entry.propertyValue == propertyValue || entry.propertyValue.equals(propertyValue))) {
+            entry.markReferenced();
+            this.hits.increment();
+            recordHit(propertyName.hashCode());
+            return entry.typedValue;
+        }
+        this.misses.increment();
+        EEPropertiesTypedValue typedValue = converter.apply(propertyName,propertyValue);
+        admit(propertyName,new Entry(propertyValue,typedValue));
+        return typedValue;
+    }
+
+    /**
+     * Buffer a hit for the sketch, adding the buffer to the sketch once it is full
+     *
+     * @param hash Hash of the property name
+     */
+    private void recordHit(int hash) {
+        ReadBuffer buffer = this.readBuffers.get();
+        buffer.hashes[buffer.count++] = hash;
+        if (buffer.count == EEPropertiesTypedValueCache.READ_BUFFER_SIZE) {
+            if (this.admitLock.tryLock()) {
+                try {
+                    drainLocked(buffer);
+                }
+                finally {
+                    this.admitLock.unlock();
+                }
+            }
+            else {
+                buffer.count = 0;
+            }
+        }
+    }
+
+    /**
+     * Add buffered hits to the sketch while holding admitLock
+     *
+     * @param buffer Buffer of the current thread
+     */
+    private void drainLocked(ReadBuffer buffer) {
+        for (int i = 0 ; i < buffer.count ; i++) {
+            this.sketch.increment(buffer.hashes[i]);
+        }
+        buffer.count = 0;
+    }
+
+    /**
+     * Add a newly converted value, replacing an older one if the cache is full and the new key is requested
+     * more often
+     *
+     * @param propertyName Property name
+     * @param entry New entry
+     */
+    private void admit(String propertyName, Entry entry) {
+        this.admitLock.lock();
+        try {
+            drainLocked(this.readBuffers.get());
+            this.sketch.increment(propertyName.hashCode());
+            admitLocked(propertyName,entry);
+        }
+        finally {
+            this.admitLock.unlock();
+        }
+    }
+
+    /**
+     * Admit while holding admitLock
+     *
+     * @param propertyName Property name
+     * @param entry New entry
+     */
+    private void admitLocked(String propertyName, Entry entry) {
+        Entry existing = this.entries.get(propertyName);
+        if (existing != null) {
+            // The property string has changed: keep the key's position
+            this.entries.put(propertyName,entry);
+            this.estimatedMemoryFootprint += entry.estimatedSize - existing.estimatedSize;
+            return;
+        }
+        if (this.ring.addIfRoom(propertyName,entry)) {
+            this.estimatedMemoryFootprint += entry.estimatedSize;
+            return;
+        }
+        String victimName = this.ring.victim();
+        if (this.sketch.frequency(propertyName.hashCode()) <= this.sketch.frequency(victimName.hashCode())) {
+            this.rejections.increment();
+            return;
+        }
+        Entry victim = this.ring.replaceVictim(propertyName,entry);
+        this.evictions.increment();
+        this.estimatedMemoryFootprint += entry.estimatedSize - victim.estimatedSize;
+    }
+
+    /**
+     * @return Maximum number of converted values kept
+     */
+    public int getMaximumSize() {
+        return this.maximumSize;
+    }
+
+    /**
+     * @return Number of converted values currently kept
+     */
+    public int size() {
+        return this.entries.size();
+    }
+
+    /**
+     * @return Number of reads answered from the cache
+     */
+    public long getHits() {
+        return this.hits.sum();
+    }
+
+    /**
+     * @return Number of reads that needed a conversion
+     */
+    public long getMisses() {
+        return this.misses.sum();
+    }
+
+    /**
+     * @return Fraction of reads answered from the cache, or 0 if nothing has been read
+     */
+    public double getHitRate() {
+        long hitCount = this.hits.sum();
+        long total = hitCount + this.misses.sum();
+        return total == 0 ? 0.0 : (double) hitCount / total;
+    }
+
+    /**
+     * @return Number of values removed to make room for others
+     */
+    public long getEvictions() {
+        return this.evictions.sum();
+    }
+
+    /**
+     * @return Number of converted values not kept because they were requested less often than the value they
+     * would have replaced
+     */
+    public long getRejections() {
+        return this.rejections.sum();
+    }
+
+    /**
+     * Get the estimated heap held by the cached values. Property names and strings, which the store holds anyway,
+     * are not counted.
+     *
+     * @return Estimated size in bytes
+     */
+    public long getEstimatedMemoryFootprint() {
+        return this.estimatedMemoryFootprint;
+    }
+
+    /**
+     * Estimate the heap used by a converted value
+     *
+     * @param value Value
+     * @return Estimated size in bytes
+     */
+    static long estimateValueSize(Object value) {
+        if (value == null) {
+            return 0L;
+        }
+        if (value instanceof String) {
+            return EEPropertiesLayeredStore.estimateStringSize((String) value);
+        }
+        if (value instanceof Buffer) {
+            int elementSize = value instanceof LongBuffer || value instanceof DoubleBuffer ? 8 : 4;
+            return 2 * EEPropertiesTypedValueCache.ESTIMATED_SMALL_VALUE_SIZE + 16L + (long) elementSize * ((Buffer) value).capacity();
+        }
+        if (value instanceof Collection) {
+            long size = 40L;
+            for (Object element : (Collection<?>) value) {
+                size += 8L + EEPropertiesTypedValueCache.estimateValueSize(element);
+            }
+            return size;
+        }
+        return EEPropertiesTypedValueCache.ESTIMATED_SMALL_VALUE_SIZE;
+    }
+
+    /**
+     * Converted value for one property string
+     */
+    private static final class Entry extends EEPropertiesClockRing.Entry {
+
+        final String propertyValue;
+
+        final EEPropertiesTypedValue typedValue;
+
+        final long estimatedSize;
+
+        Entry(String propertyValue, EEPropertiesTypedValue typedValue) {
+            this.propertyValue = propertyValue;
+            this.typedValue = typedValue;
+            this.estimatedSize = EEPropertiesTypedValueCache.ESTIMATED_ENTRY_OVERHEAD
+                + (typedValue == null ? 0L : EEPropertiesTypedValueCache.estimateValueSize(typedValue.value));
+        }
+    }
+
+    /**
+     * Hits recorded by one thread and not yet added to the sketch
+     */
+    private static final class ReadBuffer {
+
+        final int[] hashes = new int[EEPropertiesTypedValueCache.READ_BUFFER_SIZE];
+
+        int count = 0;
+    }
+
+    /**
+     * <p>Count-min sketch of 4-bit counters estimating how often each key has been requested.</p>
+     *
+     * <p>Each key increments 4 counters and its frequency is the smallest of them. After about 10 increments per
+     * cached entry all counters are halved, so old popularity fades. Only used while holding the cache's
+     * admission lock.</p>
+     */
+    private static final class FrequencySketch {
+
+        private static final long[] SEEDS = {0xc3a5c85c97cb3127L, 0xb492b66fbe98f273L, 0x9ae16a3b2f90404fL, 0xcbf29ce484222325L};
+
+        private static final long HALF_MASK = 0x7777777777777777L;
+
+        /**
+         * 16 counters per word
+         */
+        private final long[] table;
+
+        private final int counterMask;
+
+        private final int sampleSize;
+
+        private int additions = 0;
+
+        FrequencySketch(int maximumSize) {
+            int words = Integer.highestOneBit(Math.max(16,maximumSize - 1)) << 1;
+            this.table = new long[words];
+            this.counterMask = 16 * words - 1;
+            this.sampleSize = 10 * Math.max(16,maximumSize);
+        }
+
+        void increment(int hash) {
+            boolean added = false;
+            for (int i = 0 ; i < 4 ; i++) {
+                int counter = counterOf(hash,i);
+                int word = counter >>> 4;
+                int shift = (counter & 15) << 2;
+                long mask = 0xfL << shift;
+                long value = this.table[word];
+                if ((value & mask) != mask) {
+                    this.table[word] = value + (1L << shift);
+                    added = true;
+                }
+            }
+            if (added && ++this.additions >= this.sampleSize) {
+                reset();
+            }
+        }
+
+        int frequency(int hash) {
+            int frequency = 15;
+            for (int i = 0 ; i < 4 ; i++) {
+                int counter = counterOf(hash,i);
+                frequency = Math.min(frequency,(int) (this.table[counter >>> 4] >>> ((counter & 15) << 2)) & 0xf);
+            }
+            return frequency;
+        }
+
+        private int counterOf(int hash, int i) {
+            long seeded = (hash + FrequencySketch.SEEDS[i]) * FrequencySketch.SEEDS[i];
+            seeded += seeded >>> 32;
+            return (int) seeded & this.counterMask;
+        }
+
+        private void reset() {
+            for (int i = 0 ; i < this.table.length ; i++) {
+                this.table[i] = (this.table[i] >>> 1) & FrequencySketch.HALF_MASK;
+            }
+            this.additions = this.sampleSize / 2;
+        }
+    }
+
+}
@@ -0,0 +1,954 @@
+/* Copyright 2009-2010 Tracy Flynn
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.olioinfo.eeproperties;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PrintStream;
+import java.io.PrintWriter;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.nio.file.Files;
+import java.security.GeneralSecurityException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Properties;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.function.Consumer;
+import java.util.function.BiConsumer;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.SecretKeySpec;
+
+
+/**
+ * <p>Simple timing harness for EEProperties. Not run as part of the test suite.</p>
+ *
+ * <p>Run with:</p>
+ * <pre>
+ * mvn test-compile
+ * java -cp target/classes:target/test-classes:[dependencies] net.olioinfo.eeproperties.EEPropertiesBenchmark
+ * </pre>
+ *
+ * @author Tracy Flynn
+ * @since 2.10
+ */
+public class EEPropertiesBenchmark {
+
+    private static final int WARMUP_ITERATIONS = 2000000;
+
+    private static final int ITERATIONS = 10000000;
+
+    private static final int STRING_POOL_KEYS = 150000;
+
+    private static final int CONVERSION_VALUES = 100000;
+
+    private static final int DUMP_KEYS = 100000;
+
+    private static final int OFF_HEAP_KEYS = 1000000;
+
+    private static final int KEY_FILTER_KEYS = 100000;
+
+    private static final int TYPED_CACHE_KEYS = 200000;
+
+    private static final int TYPED_CACHE_SIZE = 5000;
+
+    private static final int DROP_IN_FILES = 200;
+
+    private static final int DROP_IN_KEYS = 250;
+
+    private static final int ARCHIVE_PACKAGES = 2000;
+
+    private static final int ARCHIVE_DEFINITIONS = 300;
+
+    private static final int SWITCH_DEFINITIONS = 200;
+
+    private static final int SWITCH_DEFAULT_KEYS = 500;
+
+    private static final int SWITCH_ENVIRONMENT_KEYS = 25;
+
+    private static final int SECRETS = 200;
+
+    private static final int SECRET_READS = 200000;
+
+    private static final int CONCURRENT_LOAD_DEFINITIONS = 64;
+
+    private static final int CONCURRENT_LOAD_THREADS = 8;
+
+    /**
+     * Simulated latency of each classpath lookup, as on a slow or network file system
+     */
+    private static final long CLASSPATH_LATENCY_MILLIS = 2L;
+
+    private static final String[] TYPED_VALUES = {
+        "[Integer] 123",
+        "[Long] 12345678901",
+        "[Boolean] true",
+        "[Double] 1.25",
+        "[Duration] 30s",
+        "[DataSize] 64MB",
+        "[ArrayList<String>] a, b, c",
+        "[int[]] 1, 2, 3"
+    };
+
+    private static final String[] KEYS = {
+        "net.olioinfo.eeproperties.test.value.1",
+        "net.olioinfo.eeproperties.test.value.2",
+        "net.olioinfo.eeproperties.test.value.12",
+        "net.olioinfo.eeproperties.test.missing"
+    };
+
+    /**
+     * Sink to stop the JIT discarding lookups
+     */
+    private static int sink = 0;
+
+    public static void main(String[] args) {
+        benchmarkLookups();
+        benchmarkAccessProfiling();
+        benchmarkLoadDefinitions();
+        benchmarkStringPool();
+        benchmarkConversions();
+        benchmarkSlots();
+        benchmarkTemplates();
+        benchmarkDump();
+        benchmarkOffHeap();
+        benchmarkKeyFilters();
+        benchmarkTypedValueCache();
+        benchmarkConcurrentLoads();
+        benchmarkDirectorySource();
+        benchmarkArchiveSource();
+        benchmarkSwitchEnvironment();
+        benchmarkSecrets();
+    }
+
+    /**
+     * Compare getProperty throughput with metrics disabled and enabled
+     */
+    private static void benchmarkLookups() {
+        EEProperties plain = loadedInstance(false);
+        EEProperties metered = loadedInstance(true);
+
+        lookups(plain,WARMUP_ITERATIONS);
+        lookups(metered,WARMUP_ITERATIONS);
+
+        long plainNanos = lookups(plain,ITERATIONS);
+        long meteredNanos = lookups(metered,ITERATIONS);
+
+        report("getProperty, metrics disabled",plainNanos,ITERATIONS);
+        report("getProperty, metrics enabled",meteredNanos,ITERATIONS);
+        System.out.println(String.format("Metrics overhead: %.1f%%",100.0 * (meteredNanos - plainNanos) / plainNanos));
+    }
+
+    /**
+     * Compare getProperty throughput with access profiling disabled and enabled at the default sample rate
+     */
+    private static void benchmarkAccessProfiling() {
+        EEProperties plain = loadedInstance(false);
+        HashMap<String,String> options = new HashMap<String,String>();
+        options.put("net.olioinfo.eeproperties.accessProfiling.enabled","true");
+        EEProperties profiled = loadedInstance(options);
+
+        lookups(plain,WARMUP_ITERATIONS);
+        lookups(profiled,WARMUP_ITERATIONS);
+
+        long plainNanos = lookups(plain,ITERATIONS);
+        long profiledNanos = lookups(profiled,ITERATIONS);
+
+        report("getProperty, access profiling disabled",plainNanos,ITERATIONS);
+        report("getProperty, access profiling enabled",profiledNanos,ITERATIONS);
+        System.out.println(String.format("Access profiling overhead: %.1f%%",100.0 * (profiledNanos - plainNanos) / plainNanos));
+    }
+
+    /**
+     * Measure heap and time for many load definitions, the case that used to copy every property per definition
+     */
+    private static void benchmarkLoadDefinitions() {
+        int definitions = 300;
+        HashMap<String,String> options = new HashMap<String,String>();
+        options.put("net.olioinfo.eeproperties.configurationFile.prefix","test-");
+        EEPropertiesLoadDefinition.sResetRegisteredDefinitions();
+        EEProperties eeProperties = new EEProperties();
+        for (int i = 0 ; i < 1000 ; i++) {
+            eeProperties.put("net.olioinfo.eeproperties.benchmark.value." + i,"value" + i);
+        }
+        long heapBefore = usedHeap();
+        long start = System.nanoTime();
+        for (int i = 0 ; i < definitions ; i++) {
+            eeProperties.loadPackageConfiguration(EEProperties.class,options);
+        }
+        long nanos = System.nanoTime() - start;
+        long heapAfter = usedHeap();
+        report("loadPackageConfiguration, " + definitions + " definitions",nanos,definitions);
+        System.out.println(String.format("Heap retained by %d definitions: %d KB (%d keys)",
+            definitions,(heapAfter - heapBefore) / 1024,eeProperties.getKeyCount()));
+        EEPropertiesLoadDefinition.sResetRegisteredDefinitions();
+    }
+
+    /**
+     * Compare the heap retained by a large generated configuration, loaded by two definitions, with and without
+     * the string pool
+     */
+    private static void benchmarkStringPool() {
+        File directory = null;
+        try {
+            directory = Files.createTempDirectory("eeproperties-benchmark").toFile();
+            PrintWriter writer = new PrintWriter(new File(directory,"benchmark-defaults-ee.properties"),"UTF-8");
+            String[] values = {"true","false","localhost:8080","/var/lib/application/data","${user.home}/logs"};
+            for (int i = 0 ; i < STRING_POOL_KEYS ; i++) {
+                writer.println(String.format("com.example.service%d.component%d.setting%d = %s",i % 100,i % 37,i,values[i % values.length]));
+            }
+            writer.close();
+        }
+        catch (IOException ex) {
+            throw new RuntimeException(ex);
+        }
+        for (String enabled : new String[] {"false","true"}) {
+            HashMap<String,String> options = new HashMap<String,String>();
+            options.put("net.olioinfo.eeproperties.stringPool.enabled",enabled);
+            long heapBefore = usedHeap();
+            EEProperties first = new EEProperties(options);
+            EEProperties second = new EEProperties(options);
+            for (EEProperties eeProperties : new EEProperties[] {first,second}) {
+                options = new HashMap<String,String>();
+                options.put("net.olioinfo.eeproperties.configurationFile.prefix","benchmark-");
+                options.put("net.olioinfo.eeproperties.runtime.additionalConfigurationPaths",directory.getAbsolutePath());
+                eeProperties.loadPackageConfiguration(EEProperties.class,options);
+            }
+            long heapAfter = usedHeap();
+            System.out.println(String.format("Heap retained by 2 x %d keys, string pool %s: %d KB",
+                first.getKeyCount(),enabled.equals("true") ? "enabled" : "disabled",(heapAfter - heapBefore) / 1024));
+            sink += first.getKeyCount() + second.getKeyCount();
+        }
+        System.out.println(String.format("String pool estimated bytes saved: %d KB",EEPropertiesStringPool.shared().getBytesSaved() / 1024));
+        new File(directory,"benchmark-defaults-ee.properties").delete();
+        directory.delete();
+    }
+
+    /**
+     * Time loading values in the extended syntax, which converts them through the converter table
+     */
+    private static void benchmarkConversions() {
+        Properties properties = new Properties();
+        for (int i = 0 ; i < CONVERSION_VALUES ; i++) {
+            properties.setProperty("net.olioinfo.eeproperties.benchmark.typed." + i,TYPED_VALUES[i % TYPED_VALUES.length]);
+        }
+        for (int i = 0 ; i < 3 ; i++) {
+            new EEProperties().loadAndMergeConfigurations(new ArrayList<String>(),EEProperties.class,properties,new HashMap<String,String>());
+        }
+        EEProperties eeProperties = new EEProperties();
+        long start = System.nanoTime();
+        eeProperties.loadAndMergeConfigurations(new ArrayList<String>(),EEProperties.class,properties,new HashMap<String,String>());
+        report("load and convert typed values",System.nanoTime() - start,CONVERSION_VALUES);
+    }
+
+    /**
+     * Compare reading by slot, as generated accessors do, with getProperty
+     */
+    private static void benchmarkSlots() {
+        EEProperties eeProperties = loadedInstance(false);
+        int[] slots = new int[KEYS.length];
+        for (int i = 0 ; i < KEYS.length ; i++) {
+            slots[i] = EEPropertiesSlots.slot(KEYS[i]);
+        }
+        for (int round = 0 ; round < 2 ; round++) {
+            long start = System.nanoTime();
+            for (int i = 0 ; i < ITERATIONS ; i++) {
+                String value = eeProperties.getSlotProperty(slots[i & 3]);
+                if (value != null) {
+                    sink += value.length();
+                }
+            }
+            long slotNanos = System.nanoTime() - start;
+            long lookupNanos = lookups(eeProperties,ITERATIONS);
+            if (round == 1) {
+                report("getSlotProperty",slotNanos,ITERATIONS);
+                report("getProperty",lookupNanos,ITERATIONS);
+            }
+        }
+    }
+
+    /**
+     * Compare dumpProperties with formatting each property to an unbuffered stream, as listProperties used to
+     */
+    private static void benchmarkTemplates() {
+        String[] templates = {
+            "https://${com.example.api.host}:${com.example.api.port}/v1/orders/${com.example.api.tenant}/items",
+            "${com.example.data.root}/${com.example.api.tenant}/exports/daily.csv",
+            "jdbc:postgresql://${com.example.db.host}/${com.example.db.name}?ssl=${com.example.db.ssl}"
+        };
+        Properties properties = new Properties();
+        EEProperties eeProperties = new EEProperties();
+        String[][] values = {
+            {"com.example.api.host","api.example.com"},{"com.example.api.port","8443"},{"com.example.api.tenant","acme"},
+            {"com.example.data.root","/var/lib/example"},{"com.example.db.host","db.example.com"},
+            {"com.example.db.name","orders"},{"com.example.db.ssl","true"}
+        };
+        for (String[] value : values) {
+            properties.setProperty(value[0],value[1]);
+            eeProperties.put(value[0],value[1]);
+        }
+        EEPropertiesTemplate[] compiled = new EEPropertiesTemplate[templates.length];
+        for (int i = 0 ; i < templates.length ; i++) {
+            compiled[i] = EEProperties.compileTemplate(templates[i]);
+        }
+        for (int round = 0 ; round < 3 ; round++) {
+            long start = System.nanoTime();
+            for (int i = 0 ; i < ITERATIONS / 10 ; i++) {
+                sink += EEProperties.substituteVariables(templates[i % templates.length],properties).length();
+            }
+            long substituteNanos = System.nanoTime() - start;
+            start = System.nanoTime();
+            for (int i = 0 ; i < ITERATIONS / 10 ; i++) {
+                sink += compiled[i % templates.length].render(properties).length();
+            }
+            long propertiesNanos = System.nanoTime() - start;
+            start = System.nanoTime();
+            for (int i = 0 ; i < ITERATIONS / 10 ; i++) {
+                sink += compiled[i % templates.length].render(eeProperties).length();
+            }
+            long generationNanos = System.nanoTime() - start;
+            if (round == 2) {
+                report("substituteVariables",substituteNanos,ITERATIONS / 10);
+                report("compiled template, render(Properties)",propertiesNanos,ITERATIONS / 10);
+                report("compiled template, render(EEProperties)",generationNanos,ITERATIONS / 10);
+            }
+        }
+    }
+
+    private static void benchmarkDump() {
+        final EEProperties eeProperties = new EEProperties();
+        for (int i = 0 ; i < DUMP_KEYS ; i++) {
+            eeProperties.put("net.olioinfo.eeproperties.benchmark.dump." + i,"value " + i);
+        }
+        File file = null;
+        try {
+            file = File.createTempFile("eeproperties-dump",".properties");
+            for (int round = 0 ; round < 3 ; round++) {
+                final PrintStream printStream = new PrintStream(new FileOutputStream(file));
+                long start = System.nanoTime();
+                eeProperties.forEach(new BiConsumer<String,String>() {
+                    public void accept(String propertyName, String propertyValue) {
+                        printStream.println(String.format("%s=%s",propertyName,propertyValue));
+                    }
+                });
+                printStream.close();
+                long formatNanos = System.nanoTime() - start;
+
+                start = System.nanoTime();
+                eeProperties.dumpProperties(file.toPath(),EEProperties.DumpFormat.PROPERTIES);
+                long dumpNanos = System.nanoTime() - start;
+
+                start = System.nanoTime();
+                eeProperties.dumpProperties(file.toPath(),EEProperties.DumpFormat.JSON);
+                long jsonNanos = System.nanoTime() - start;
+                if (round == 2) {
+                    report("String.format to unbuffered stream",formatNanos,DUMP_KEYS);
+                    report("dumpProperties, properties",dumpNanos,DUMP_KEYS);
+                    report("dumpProperties, JSON",jsonNanos,DUMP_KEYS);
+                }
+            }
+        }
+        catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+        finally {
+            if (file != null) {
+                file.delete();
+            }
+        }
+    }
+
+    /**
+     * Compare heap use, full collection pauses and lookup times for a very large configuration held on and off
+     * the heap
+     */
+    private static void benchmarkOffHeap() {
+        for (boolean offHeap : new boolean[] {false,true}) {
+            long heapBefore = usedHeap();
+            EEPropertiesLayeredStore store = new EEPropertiesLayeredStore();
+            store.setOffHeap(offHeap,null);
+            EEPropertiesLayeredStore.Generation generation = store.update(new Consumer<EEPropertiesLayeredStore.Editor>() {
+                public void accept(EEPropertiesLayeredStore.Editor editor) {
+                    for (int i = 0 ; i < OFF_HEAP_KEYS ; i++) {
+                        editor.put(EEPropertiesLayeredStore.Layer.DEFAULTS,
+                            "com.example.service" + (i % 100) + ".component" + (i % 37) + ".setting" + i,"value " + i);
+                    }
+                }
+            });
+            long heapAfter = usedHeap();
+
+            long collections = 0L;
+            long collectionMillis = 0L;
+            for (GarbageCollectorMXBean collector : ManagementFactory.getGarbageCollectorMXBeans()) {
+                collections -= collector.getCollectionCount();
+                collectionMillis -= collector.getCollectionTime();
+            }
+            for (int i = 0 ; i < 10 ; i++) {
+                System.gc();
+            }
+            for (GarbageCollectorMXBean collector : ManagementFactory.getGarbageCollectorMXBeans()) {
+                collections += collector.getCollectionCount();
+                collectionMillis += collector.getCollectionTime();
+            }
+
+            String label = offHeap ? "off-heap" : "on-heap";
+            System.out.println(String.format("Heap retained by %d keys, %s: %d KB (off-heap %d KB)",
+                generation.getLayerSize(EEPropertiesLayeredStore.Layer.DEFAULTS),label,(heapAfter - heapBefore) / 1024,
+                generation.getOffHeapBytes() / 1024));
+            System.out.println(String.format("Full collection pause, %s: %.1f ms average over %d collections",
+                label,(double) collectionMillis / Math.max(1L,collections),collections));
+
+            // Distinct keys, so most lookups miss the per-generation cache and go to the layer
+            String[] keys = new String[65536];
+            for (int i = 0 ; i < keys.length ; i++) {
+                int key = (i * 15) % OFF_HEAP_KEYS;
+                keys[i] = "com.example.service" + (key % 100) + ".component" + (key % 37) + ".setting" + key;
+            }
+            for (int round = 0 ; round < 3 ; round++) {
+                long start = System.nanoTime();
+                for (int i = 0 ; i < ITERATIONS / 10 ; i++) {
+                    sink += generation.getLayerProperty(EEPropertiesLayeredStore.Layer.DEFAULTS,keys[i & 65535]).length();
+                }
+                if (round == 2) {
+                    report("getLayerProperty, " + label,System.nanoTime() - start,ITERATIONS / 10);
+                }
+            }
+            generation = null;
+            store = null;
+        }
+    }
+
+    /**
+     * Compare the heap retained by many typed values converted when loaded with a bounded cache of values converted
+     * when read, and the cache's hit rate for a skewed read pattern
+     */
+    private static void benchmarkKeyFilters() {
+        final EEPropertiesLayeredStore.Layer[] layers = {EEPropertiesLayeredStore.Layer.DEFAULTS,
+            EEPropertiesLayeredStore.Layer.ENVIRONMENT,EEPropertiesLayeredStore.Layer.EXTERNAL,EEPropertiesLayeredStore.Layer.RUNTIME};
+        // Distinct keys, so lookups miss the per-generation cache
+        String[] absentKeys = new String[65536];
+        String[] defaultKeys = new String[65536];
+        for (int i = 0 ; i < absentKeys.length ; i++) {
+            absentKeys[i] = "com.example.service" + (i % 100) + ".optional" + i;
+            int key = (i * 15) % KEY_FILTER_KEYS;
+            defaultKeys[i] = "com.example.service" + (key % 100) + ".setting" + key;
+        }
+        for (boolean keyFilters : new boolean[] {false,true}) {
+            EEPropertiesLayeredStore store = new EEPropertiesLayeredStore();
+            store.setKeyFilters(keyFilters);
+            EEPropertiesLayeredStore.Generation generation = store.update(new Consumer<EEPropertiesLayeredStore.Editor>() {
+                public void accept(EEPropertiesLayeredStore.Editor editor) {
+                    for (int layer = 0 ; layer < layers.length ; layer++) {
+                        // 100000 defaults, 10000 environment, 1000 external and 100 runtime keys
+                        int keys = KEY_FILTER_KEYS;
+                        for (int i = 0 ; i < layer ; i++) {
+                            keys /= 10;
+                        }
+                        for (int i = 0 ; i < keys ; i++) {
+                            editor.put(layers[layer],"com.example.service" + (i % 100) + ".setting" + i,"value " + i);
+                        }
+                    }
+                }
+            });
+            String label = keyFilters ? "key filters" : "no key filters";
+            for (int round = 0 ; round < 3 ; round++) {
+                long start = System.nanoTime();
+                for (int i = 0 ; i < ITERATIONS / 10 ; i++) {
+                    if (generation.getProperty(absentKeys[i & 65535]) == null) {
+                        sink++;
+                    }
+                }
+                long missNanos = System.nanoTime() - start;
+                start = System.nanoTime();
+                for (int i = 0 ; i < ITERATIONS / 10 ; i++) {
+                    sink += generation.getProperty(defaultKeys[i & 65535]).length();
+                }
+                long hitNanos = System.nanoTime() - start;
+                if (round == 2) {
+                    report("getProperty, undefined key, " + label,missNanos,ITERATIONS / 10);
+                    report("getProperty, defaults layer key, " + label,hitNanos,ITERATIONS / 10);
+                }
+            }
+            if (keyFilters) {
+                System.out.println(String.format("Key filters: %d KB for %d keys, estimated false positive rate %.3f%%",
+                    generation.getKeyFilterMemoryFootprint() / 1024,generation.size(),100.0 * generation.getKeyFilterFalsePositiveRate()));
+            }
+        }
+    }
+
+    private static void benchmarkTypedValueCache() {
+        File directory = null;
+        File file = null;
+        try {
+            directory = Files.createTempDirectory("eeproperties-benchmark").toFile();
+            file = new File(directory,"benchmark-defaults-ee.properties");
+            PrintWriter writer = new PrintWriter(file,"UTF-8");
+            for (int i = 0 ; i < TYPED_CACHE_KEYS ; i++) {
+                writer.println(String.format("net.olioinfo.eeproperties.benchmark.typed.%d = [ArrayList<String>] host%d, host%d, port %d",i,i,i + 1,i));
+            }
+            writer.close();
+        }
+        catch (IOException ex) {
+            throw new RuntimeException(ex);
+        }
+        String[] keys = new String[TYPED_CACHE_KEYS];
+        for (int i = 0 ; i < keys.length ; i++) {
+            keys[i] = "net.olioinfo.eeproperties.benchmark.typed." + i;
+        }
+        // Zipf-like: key k is read roughly in proportion to 1/k
+        int[] reads = new int[ITERATIONS / 10];
+        Random random = new Random(42);
+        for (int i = 0 ; i < reads.length ; i++) {
+            reads[i] = (int) Math.min(TYPED_CACHE_KEYS - 1,Math.exp(random.nextDouble() * Math.log(TYPED_CACHE_KEYS)) - 1);
+        }
+        for (String maximumSize : new String[] {"0",String.valueOf(TYPED_CACHE_SIZE)}) {
+            HashMap<String,String> options = new HashMap<String,String>();
+            options.put("net.olioinfo.eeproperties.typedCache.maximumSize",maximumSize);
+            long heapBefore = usedHeap();
+            EEProperties eeProperties = new EEProperties(options);
+            options = new HashMap<String,String>();
+            options.put("net.olioinfo.eeproperties.configurationFile.prefix","benchmark-");
+            options.put("net.olioinfo.eeproperties.runtime.additionalConfigurationPaths",directory.getAbsolutePath());
+            eeProperties.loadPackageConfiguration(EEProperties.class,options);
+            long heapAfter = usedHeap();
+            String label = maximumSize.equals("0") ? "converted on load" : "cache of " + maximumSize;
+            System.out.println(String.format("Heap retained by %d typed values, %s: %d KB",
+                TYPED_CACHE_KEYS,label,(heapAfter - heapBefore) / 1024));
+            for (int round = 0 ; round < 3 ; round++) {
+                long start = System.nanoTime();
+                for (int read : reads) {
+                    sink += eeProperties.getArrayListStringProperty(keys[read]).size();
+                }
+                if (round == 2) {
+                    report("getArrayListStringProperty, " + label,System.nanoTime() - start,reads.length);
+                }
+            }
+            EEPropertiesTypedValueCache cache = eeProperties.getTypedValueCache();
+            if (cache != null) {
+                System.out.println(String.format("Typed value cache: hit rate %.1f%%, %d evictions, %d rejections, estimated %d KB",
+                    100.0 * cache.getHitRate(),cache.getEvictions(),cache.getRejections(),cache.getEstimatedMemoryFootprint() / 1024));
+            }
+        }
+        file.delete();
+        directory.delete();
+    }
+
+    /**
+     * Compare loading many independent definitions from one thread and from several, with slow classpath lookups.
+     * Loading from one thread takes as long as loads serialized on a single lock did.
+     */
+    private static void benchmarkConcurrentLoads() {
+        final String anchorName = LoadAnchor.class.getName();
+        URL testClasses = LoadAnchor.class.getProtectionDomain().getCodeSource().getLocation();
+        URLClassLoader slowLoader = new URLClassLoader(new URL[]{testClasses},EEPropertiesBenchmark.class.getClassLoader()) {
+            protected Class<?> loadClass(String name, boolean resolve) throws ClassNotFoundException {
+                if (name.equals(anchorName)) {
+                    Class<?> loaded = findLoadedClass(name);
+                    return loaded != null ? loaded : findClass(name);
+                }
+                return super.loadClass(name,resolve);
+            }
+
+            public URL getResource(String name) {
+                try {
+                    Thread.sleep(CLASSPATH_LATENCY_MILLIS);
+                }
+                catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                return super.getResource(name);
+            }
+        };
+        final Class<?> anchorClass;
+        try {
+            anchorClass = slowLoader.loadClass(anchorName);
+        }
+        catch (ClassNotFoundException ex) {
+            throw new RuntimeException(ex);
+        }
+        for (int threads : new int[] {1,CONCURRENT_LOAD_THREADS,1,CONCURRENT_LOAD_THREADS}) {
+            EEPropertiesLoadDefinition.sResetRegisteredDefinitions();
+            final EEProperties eeProperties = new EEProperties();
+            ExecutorService executor = Executors.newFixedThreadPool(threads);
+            List<Future<?>> loads = new ArrayList<Future<?>>();
+            long start = System.nanoTime();
+            for (int i = 0 ; i < CONCURRENT_LOAD_DEFINITIONS ; i++) {
+                final HashMap<String,String> options = new HashMap<String,String>();
+                options.put("net.olioinfo.eeproperties.configurationFile.prefix","test-");
+                options.put("net.olioinfo.eeproperties.benchmark.definition",String.valueOf(i));
+                loads.add(executor.submit(new Runnable() {
+                    public void run() {
+                        eeProperties.loadPackageConfiguration(anchorClass,options);
+                    }
+                }));
+            }
+            try {
+                for (Future<?> load : loads) {
+                    load.get();
+                }
+            }
+            catch (Exception ex) {
+                throw new RuntimeException(ex);
+            }
+            long nanos = System.nanoTime() - start;
+            executor.shutdown();
+            report(String.format("loadPackageConfiguration, %d definitions, %d thread(s)",CONCURRENT_LOAD_DEFINITIONS,threads),nanos,CONCURRENT_LOAD_DEFINITIONS);
+            sink += eeProperties.getKeyCount();
+        }
+        EEPropertiesLoadDefinition.sResetRegisteredDefinitions();
+        try {
+            slowLoader.close();
+        }
+        catch (IOException ex) {
+            throw new RuntimeException(ex);
+        }
+    }
+
+    /**
+     * Compare loading a directory of drop-in files with one loadAndMergeConfigurations call per file and as one
+     * directory source
+     */
+    private static void benchmarkDirectorySource() {
+        File directory = null;
+        String[] names = new String[DROP_IN_FILES];
+        try {
+            directory = Files.createTempDirectory("eeproperties-benchmark").toFile();
+            for (int i = 0 ; i < DROP_IN_FILES ; i++) {
+                names[i] = String.format("%03d-service",i);
+                PrintWriter writer = new PrintWriter(new File(directory,names[i] + ".properties"),"UTF-8");
+                for (int j = 0 ; j < DROP_IN_KEYS ; j++) {
+                    writer.println(String.format("com.example.service%d.setting%d = value %d %d",i,j,i,j));
+                }
+                writer.close();
+            }
+        }
+        catch (IOException ex) {
+            throw new RuntimeException(ex);
+        }
+        for (int round = 0 ; round < 3 ; round++) {
+            EEPropertiesLoadDefinition.sResetRegisteredDefinitions();
+            EEProperties perFile = new EEProperties();
+            HashMap<String,String> options = new HashMap<String,String>();
+            options.put("net.olioinfo.eeproperties.configurationFile.extension","properties");
+            options.put("net.olioinfo.eeproperties.runtime.additionalConfigurationPaths",directory.getAbsolutePath());
+            long start = System.nanoTime();
+            for (String name : names) {
+                ArrayList<String> environmentNames = new ArrayList<String>();
+                environmentNames.add(name);
+                perFile.loadAndMergeConfigurations(environmentNames,EEProperties.class,null,options);
+            }
+            long perFileNanos = System.nanoTime() - start;
+
+            EEPropertiesLoadDefinition.sResetRegisteredDefinitions();
+            EEProperties dropIn = new EEProperties();
+            options = new HashMap<String,String>();
+            options.put("net.olioinfo.eeproperties.configurationFile.prefix","test-");
+            options.put("net.olioinfo.eeproperties.runtime.additionalConfigurationPaths",directory.getAbsolutePath() + "/*.properties");
+            start = System.nanoTime();
+            dropIn.loadPackageConfiguration(EEProperties.class,options);
+            long dropInNanos = System.nanoTime() - start;
+            if (round == 2) {
+                report(String.format("%d drop-in files, one loadAndMergeConfigurations per file",DROP_IN_FILES),perFileNanos,DROP_IN_FILES);
+                report(String.format("%d drop-in files, directory source (%d processors)",DROP_IN_FILES,Runtime.getRuntime().availableProcessors()),dropInNanos,DROP_IN_FILES);
+            }
+            sink += perFile.getKeyCount() + dropIn.getKeyCount();
+        }
+        EEPropertiesLoadDefinition.sResetRegisteredDefinitions();
+        for (File file : directory.listFiles()) {
+            file.delete();
+        }
+        directory.delete();
+    }
+
+    /**
+     * Compare loading definitions from an extracted configuration directory and from the same files in a zip archive
+     */
+    private static void benchmarkArchiveSource() {
+        File directory = null;
+        File archive = null;
+        try {
+            directory = Files.createTempDirectory("eeproperties-benchmark").toFile();
+            archive = File.createTempFile("eeproperties-benchmark",".zip");
+            ZipOutputStream zip = new ZipOutputStream(new FileOutputStream(archive));
+            for (int i = 0 ; i <= ARCHIVE_PACKAGES ; i++) {
+                String packagePath = i == ARCHIVE_PACKAGES ? "net/olioinfo/eeproperties" : "com/example/service" + i;
+                for (String environment : new String[] {"defaults","development","production"}) {
+                    String entryName = String.format("%s/archive-%s-ee.properties",packagePath,environment);
+                    byte[] contents = String.format("com.example.service%d.%s = value%n",i,environment).getBytes("UTF-8");
+                    zip.putNextEntry(new ZipEntry(entryName));
+                    zip.write(contents);
+                    zip.closeEntry();
+                    File file = new File(directory,entryName);
+                    file.getParentFile().mkdirs();
+                    Files.write(file.toPath(),contents);
+                }
+            }
+            zip.close();
+        }
+        catch (IOException ex) {
+            throw new RuntimeException(ex);
+        }
+        for (int round = 0 ; round < 3 ; round++) {
+            for (File location : new File[] {directory,archive}) {
+                EEPropertiesLoadDefinition.sResetRegisteredDefinitions();
+                EEProperties eeProperties = new EEProperties();
+                HashMap<String,String> options = new HashMap<String,String>();
+                options.put("net.olioinfo.eeproperties.configurationFile.prefix","archive-");
+                options.put("net.olioinfo.eeproperties.runtime.additionalConfigurationPaths",location.getAbsolutePath());
+                // The first load opens the archive, timed separately below
+                eeProperties.loadPackageConfiguration(EEProperties.class,options);
+                long start = System.nanoTime();
+                for (int i = 0 ; i < ARCHIVE_DEFINITIONS ; i++) {
+                    eeProperties.loadPackageConfiguration(EEProperties.class,options);
+                }
+                long nanos = System.nanoTime() - start;
+                if (round == 2) {
+                    report(String.format("loadPackageConfiguration, %d definitions, %s",ARCHIVE_DEFINITIONS,
+                        location == archive ? "zip archive" : "extracted directory"),nanos,ARCHIVE_DEFINITIONS);
+                }
+                sink += eeProperties.getKeyCount();
+            }
+        }
+        EEPropertiesLoadDefinition.sResetRegisteredDefinitions();
+        long start = System.nanoTime();
+        int entries = 0;
+        try {
+            EEPropertiesArchiveSource archiveSource = new EEPropertiesArchiveSource(archive);
+            entries = archiveSource.getEntryCount();
+            archiveSource.close();
+        }
+        catch (IOException ex) {
+            throw new RuntimeException(ex);
+        }
+        System.out.println(String.format("Opening and indexing an archive of %d files: %.1f ms",entries,(System.nanoTime() - start) / 1e6));
+        archive.delete();
+        deleteTree(directory);
+    }
+
+    /**
+     * Delete a directory and everything in it
+     *
+     * @param file Directory or file
+     */
+    private static void benchmarkSwitchEnvironment() {
+        final HashMap<String,byte[]> files = new HashMap<String,byte[]>();
+        String[] environments = {"defaults","development","staging"};
+        for (int i = 0 ; i < SWITCH_DEFINITIONS ; i++) {
+            for (String environment : environments) {
+                StringBuilder file = new StringBuilder();
+                int keys = environment.equals("defaults") ? SWITCH_DEFAULT_KEYS : SWITCH_ENVIRONMENT_KEYS;
+                for (int j = 0 ; j < keys ; j++) {
+                    file.append(String.format("com.example.package%d.setting%d = %s value %d\n",i,j,environment,j));
+                }
+                file.append(String.format("com.example.package%d.url = http://${com.example.package%d.setting0}/app\n",i,i));
+                files.put(String.format("package%d-%s-ee.properties",i,environment),file.toString().getBytes());
+            }
+        }
+        EEPropertiesConfigSource memorySource = new EEPropertiesConfigSource() {
+            public String locate(String fileName, Class<?> klass) {
+                return files.containsKey(fileName) ? fileName : null;
+            }
+            public InputStream open(String location) {
+                return new ByteArrayInputStream(files.get(location));
+            }
+            public long lastModified(String location) {
+                return 0L;
+            }
+            public boolean isExternal() {
+                return false;
+            }
+        };
+        HashMap<String,String> constructorOptions = new HashMap<String,String>();
+        constructorOptions.put("net.olioinfo.eeproperties.runtime.environment","development");
+        for (int round = 0 ; round < 3 ; round++) {
+            EEPropertiesLoadDefinition.sResetRegisteredDefinitions();
+            EEProperties eeProperties = new EEProperties(constructorOptions);
+            eeProperties.addConfigSource(memorySource);
+            for (int i = 0 ; i < SWITCH_DEFINITIONS ; i++) {
+                HashMap<String,String> options = new HashMap<String,String>();
+                options.put("net.olioinfo.eeproperties.configurationFile.prefix",String.format("package%d-",i));
+                eeProperties.loadPackageConfiguration(EEProperties.class,options);
+            }
+
+            // A reload builds a new instance and loads every definition again
+            HashMap<String,String> stagingOptions = new HashMap<String,String>();
+            stagingOptions.put("net.olioinfo.eeproperties.runtime.environment","staging");
+            long start = System.nanoTime();
+            EEProperties reloaded = new EEProperties(stagingOptions);
+            reloaded.addConfigSource(memorySource);
+            for (int i = 0 ; i < SWITCH_DEFINITIONS ; i++) {
+                HashMap<String,String> options = new HashMap<String,String>();
+                options.put("net.olioinfo.eeproperties.configurationFile.prefix",String.format("package%d-",i));
+                reloaded.loadPackageConfiguration(EEProperties.class,options);
+            }
+            long reloadNanos = System.nanoTime() - start;
+
+            start = System.nanoTime();
+            eeProperties.switchEnvironment("staging");
+            long switchNanos = System.nanoTime() - start;
+            if (! eeProperties.getProperty("com.example.package0.url").equals(reloaded.getProperty("com.example.package0.url"))) {
+                throw new IllegalStateException("switchEnvironment and reload disagree");
+            }
+            if (round == 2) {
+                report(String.format("%d definitions, reload in new environment",SWITCH_DEFINITIONS),reloadNanos,1);
+                report(String.format("%d definitions, switchEnvironment",SWITCH_DEFINITIONS),switchNanos,1);
+            }
+            sink += eeProperties.getKeyCount() + reloaded.getKeyCount();
+        }
+        EEPropertiesLoadDefinition.sResetRegisteredDefinitions();
+    }
+
+    private static void deleteTree(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                deleteTree(child);
+            }
+        }
+        file.delete();
+    }
+
+    /**
+     * Class located through a class loader with slow resource lookups in benchmarkConcurrentLoads
+     */
+    public static final class LoadAnchor {
+    }
+
+    /**
+     * Get the heap in use after a full collection
+     *
+     * @return Used heap in bytes
+     */
+    private static long usedHeap() {
+        Runtime runtime = Runtime.getRuntime();
+        for (int i = 0 ; i < 3 ; i++) {
+            System.gc();
+        }
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+
+    /**
+     * Create an instance with the test configuration loaded
+     *
+     * @param metricsEnabled true to enable metrics
+     * @return Loaded instance
+     */
+    static EEProperties loadedInstance(boolean metricsEnabled) {
+        HashMap<String,String> options = new HashMap<String,String>();
+        options.put("net.olioinfo.eeproperties.metrics.enabled",String.valueOf(metricsEnabled));
+        return loadedInstance(options);
+    }
+
+    /**
+     * Create an instance with the test configuration loaded
+     *
+     * @param options Options for the instance
+     * @return Loaded instance
+     */
+    static EEProperties loadedInstance(HashMap<String,String> options) {
+        EEProperties eeProperties = new EEProperties(options);
+        options = new HashMap<String,String>();
+        options.put("net.olioinfo.eeproperties.configurationFile.prefix","test-");
+        eeProperties.loadPackageConfiguration(EEProperties.class,options);
+        return eeProperties;
+    }
+
+    /**
+     * Run a number of lookups
+     *
+     * @param eeProperties Instance to read from
+     * @param iterations Number of lookups
+     * @return Elapsed time in nanoseconds
+     */
+    private static long lookups(EEProperties eeProperties, int iterations) {
+        long start = System.nanoTime();
+        for (int i = 0 ; i < iterations ; i++) {
+            String value = eeProperties.getProperty(KEYS[i & 3]);
+            if (value != null) {
+                sink += value.length();
+            }
+        }
+        return System.nanoTime() - start;
+    }
+
+    /**
+     * Print one result line
+     *
+     * @param label Label
+     * @param nanos Elapsed time
+     * @param operations Number of operations
+     */
+    static void report(String label, long nanos, long operations) {
+        System.out.println(String.format("%-45s %8.1f ns/op (%d ops)",label,(double) nanos / operations,operations));
+    }
+
+    /**
+     * Compare reading secrets with and without cached plaintext
+     */
+    private static void benchmarkSecrets() {
+        final SecretKey key = new SecretKeySpec(new byte[32],"AES");
+        EEPropertiesKeyProvider keyProvider = new EEPropertiesKeyProvider() {
+            public SecretKey getKey(String keyId) {
+                return key;
+            }
+        };
+        Properties encrypted = new Properties();
+        try {
+            for (int i = 0 ; i < SECRETS ; i++) {
+                encrypted.setProperty("com.example.secret." + i,EEPropertiesSecrets.encrypt(("password-" + i).toCharArray(),key,null));
+            }
+        }
+        catch (GeneralSecurityException ex) {
+            throw new RuntimeException(ex);
+        }
+        HashMap<String,String> uncachedOptions = new HashMap<String,String>();
+        uncachedOptions.put("net.olioinfo.eeproperties.secrets.cacheTtlSeconds","0");
+        for (int round = 0 ; round < 3 ; round++) {
+            EEProperties cached = new EEProperties();
+            cached.setKeyProvider(keyProvider);
+            cached.loadAndMergeConfigurations(new ArrayList<String>(),EEProperties.class,encrypted,new HashMap<String,String>());
+            EEProperties uncached = new EEProperties(uncachedOptions);
+            uncached.setKeyProvider(keyProvider);
+            uncached.loadAndMergeConfigurations(new ArrayList<String>(),EEProperties.class,encrypted,new HashMap<String,String>());
+
+            long start = System.nanoTime();
+            for (int i = 0 ; i < SECRET_READS ; i++) {
+                sink += uncached.getEncryptedProperty("com.example.secret." + (i % SECRETS)).length;
+            }
+            long uncachedNanos = System.nanoTime() - start;
+            start = System.nanoTime();
+            for (int i = 0 ; i < SECRET_READS ; i++) {
+                sink += cached.getEncryptedProperty("com.example.secret." + (i % SECRETS)).length;
+            }
+            long cachedNanos = System.nanoTime() - start;
+            if (round == 2) {
+                report("getEncryptedProperty, decrypting each read",uncachedNanos,SECRET_READS);
+                report("getEncryptedProperty, cached plaintext",cachedNanos,SECRET_READS);
+            }
+        }
+    }
+
+}
@@ -19,12 +19,62 @@ import junit.framework.Test;
 import junit.framework.TestCase;
 import junit.framework.TestSuite;
 
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import net.olioinfo.eeproperties.processor.EEPropertiesKeysProcessor;
+
+import javax.crypto.SecretKey;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.tools.JavaCompiler;
+import javax.tools.StandardJavaFileManager;
+import javax.tools.ToolProvider;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.lang.reflect.Method;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.nio.DoubleBuffer;
+import java.nio.IntBuffer;
+import java.nio.LongBuffer;
+import java.nio.channels.Channels;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.GeneralSecurityException;
+import java.security.KeyStore;
 import java.text.SimpleDateFormat;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.OffsetDateTime;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.Date;
 import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
 import java.util.Properties;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
 
 
 /**
@@ -250,6 +300,44 @@ public class EEPropertiesTest  extends TestCase {
         
     }
 
+    public void testCompileTemplate() {
+        Properties properties = new Properties();
+        properties.setProperty("net.olioinfo.eeproperties.test.template.host","example.com");
+        EEPropertiesTemplate template = EEProperties.compileTemplate("http://${net.olioinfo.eeproperties.test.template.host}:${net.olioinfo.eeproperties.test.template.port}/app");
+        assert template.getVariableNames().equals(Arrays.asList("net.olioinfo.eeproperties.test.template.host","net.olioinfo.eeproperties.test.template.port"));
+        assert template.render(properties).equals("http://example.com:${net.olioinfo.eeproperties.test.template.port}/app");
+        assert template.render(new Properties()).equals(template.getTemplate());
+        assert EEProperties.compileTemplate(template.getTemplate()) == template;
+
+        // System properties take precedence, as in substituteVariables
+        System.setProperty("net.olioinfo.eeproperties.test.template.port","8080");
+        try {
+            assert template.render(properties).equals("http://example.com:8080/app");
+        }
+        finally {
+            System.clearProperty("net.olioinfo.eeproperties.test.template.port");
+        }
+
+        EEProperties eeProperties = new EEProperties();
+        eeProperties.put("net.olioinfo.eeproperties.test.template.host","instance.example.com");
+        eeProperties.put("net.olioinfo.eeproperties.test.template.port","9090");
+        assert template.render(eeProperties).equals("http://instance.example.com:9090/app");
+
+        // substituteVariables still returns null when nothing is substituted
+        assert EEProperties.substituteVariables("no variables",properties) == null;
+        assert EEProperties.substituteVariables("${net.olioinfo.eeproperties.test.template.port}",properties) == null;
+        assert EEProperties.substituteVariables("${net.olioinfo.eeproperties.test.template.host}/",properties).equals("example.com/");
+        assert EEProperties.getTemplateCache().getHits() > 0;
+
+        try {
+            EEProperties.compileTemplate("${unclosed");
+            fail("Unclosed variable compiled");
+        }
+        catch (IllegalArgumentException ex) {
+            // Expected
+        }
+    }
+
     public void testSubstituteAll() {
 
         Properties testProperties;
@@ -273,6 +361,46 @@ public class EEPropertiesTest  extends TestCase {
     }
 
 
+    public void testSelfReferencingSubstitution() throws Exception {
+        Properties testProperties = new Properties();
+        testProperties.setProperty("net.olioinfo.eeproperties.test.cycle.self","x${net.olioinfo.eeproperties.test.cycle.self}");
+        testProperties.setProperty("net.olioinfo.eeproperties.test.cycle.a","${net.olioinfo.eeproperties.test.cycle.b}");
+        testProperties.setProperty("net.olioinfo.eeproperties.test.cycle.b","${net.olioinfo.eeproperties.test.cycle.a}");
+        testProperties.setProperty("net.olioinfo.eeproperties.test.cycle.c","y${net.olioinfo.eeproperties.test.cycle.a}");
+        testProperties.setProperty("net.olioinfo.eeproperties.test.cycle.d","${net.olioinfo.eeproperties.test.cycle.e}/d");
+        testProperties.setProperty("net.olioinfo.eeproperties.test.cycle.e","${net.olioinfo.eeproperties.test.cycle.f}/e");
+        testProperties.setProperty("net.olioinfo.eeproperties.test.cycle.f","f");
+        Properties substitutedProperties = EEProperties.substituteAll(testProperties);
+        assert substitutedProperties.getProperty("net.olioinfo.eeproperties.test.cycle.self").equals("x${net.olioinfo.eeproperties.test.cycle.self}");
+        assert substitutedProperties.getProperty("net.olioinfo.eeproperties.test.cycle.a").equals("${net.olioinfo.eeproperties.test.cycle.b}");
+        assert substitutedProperties.getProperty("net.olioinfo.eeproperties.test.cycle.b").equals("${net.olioinfo.eeproperties.test.cycle.a}");
+        assert substitutedProperties.getProperty("net.olioinfo.eeproperties.test.cycle.c").equals("y${net.olioinfo.eeproperties.test.cycle.a}");
+        assert substitutedProperties.getProperty("net.olioinfo.eeproperties.test.cycle.d").equals("f/e/d");
+
+        // The same lines in an external file must not stall loading into the store
+        File directory = Files.createTempDirectory("eeproperties-cycle").toFile();
+        File file = new File(directory,"test-development-ee.properties");
+        Files.write(file.toPath(),("net.olioinfo.eeproperties.test.cycle.self = x${net.olioinfo.eeproperties.test.cycle.self}\n"
+            + "net.olioinfo.eeproperties.test.cycle.a = ${net.olioinfo.eeproperties.test.cycle.b}\n"
+            + "net.olioinfo.eeproperties.test.cycle.b = ${net.olioinfo.eeproperties.test.cycle.a}\n"
+            + "net.olioinfo.eeproperties.test.cycle.d = ${net.olioinfo.eeproperties.test.value.1}/d\n").getBytes("UTF-8"));
+        HashMap<String,String> options = new HashMap<String,String>();
+        options.put("net.olioinfo.eeproperties.configurationFile.prefix","test-");
+        options.put("net.olioinfo.eeproperties.runtime.additionalConfigurationPaths",directory.getAbsolutePath());
+        EEProperties eeProperties = new EEProperties();
+        eeProperties.loadPackageConfiguration(EEProperties.class,options);
+        assert eeProperties.getProperty("net.olioinfo.eeproperties.test.cycle.self").equals("x${net.olioinfo.eeproperties.test.cycle.self}");
+        assert eeProperties.getProperty("net.olioinfo.eeproperties.test.cycle.a").equals("${net.olioinfo.eeproperties.test.cycle.b}");
+        assert eeProperties.getProperty("net.olioinfo.eeproperties.test.cycle.b").equals("${net.olioinfo.eeproperties.test.cycle.a}");
+        assert eeProperties.getProperty("net.olioinfo.eeproperties.test.cycle.d").equals("value1/d");
+        eeProperties.put("net.olioinfo.eeproperties.test.cycle.put","${net.olioinfo.eeproperties.test.cycle.put}z");
+        assert eeProperties.getProperty("net.olioinfo.eeproperties.test.cycle.put").equals("${net.olioinfo.eeproperties.test.cycle.put}z");
+
+        file.delete();
+        directory.delete();
+    }
+
+
     public void testReLoad() {
         HashMap<String,String> options = new HashMap<String,String>();
         options.put("net.olioinfo.eeproperties.configurationFile.prefix","test-");
@@ -287,5 +415,1466 @@ public class EEPropertiesTest  extends TestCase {
         assert(EEProperties.sGetProperty("test.reload.property.1") == null);
     }
 
+    public void testReloadKeepsSingletonUntilLoaded() throws Exception {
+        HashMap<String,String> options = new HashMap<String,String>();
+        options.put("net.olioinfo.eeproperties.configurationFile.prefix","test-");
+        EEProperties.sLoadPackageConfiguration(EEProperties.class,options);
+        EEProperties previous = EEProperties.singleton();
+
+        // A source that holds the reload in its first lookup
+        final CountDownLatch entered = new CountDownLatch(1);
+        final CountDownLatch released = new CountDownLatch(1);
+        final AtomicBoolean holding = new AtomicBoolean(true);
+        previous.addConfigSource(new EEPropertiesConfigSource() {
+            public String locate(String fileName, Class<?> klass) {
+                if (holding.compareAndSet(true,false)) {
+                    entered.countDown();
+                    try {
+                        released.await(10,TimeUnit.SECONDS);
+                    }
+                    catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+                return null;
+            }
+            public InputStream open(String location) throws IOException {
+                throw new IOException(location);
+            }
+            public long lastModified(String location) {
+                return 0L;
+            }
+            public boolean isExternal() {
+                return false;
+            }
+        });
+        Thread reload = new Thread(new Runnable() {
+            public void run() {
+                EEProperties.sReloadConfigurations();
+            }
+        });
+        reload.start();
+        assert entered.await(10,TimeUnit.SECONDS);
+        try {
+            assert EEProperties.singleton() == previous;
+            assert EEProperties.sGetProperty("net.olioinfo.eeproperties.test.value.1").equals("value1");
+        }
+        finally {
+            released.countDown();
+            reload.join();
+        }
+        assert EEProperties.singleton() != previous;
+        assert EEProperties.sGetProperty("net.olioinfo.eeproperties.test.value.1").equals("value1");
+    }
+
+
+    public void testMetrics() {
+        HashMap<String,String> options = new HashMap<String,String>();
+        options.put("net.olioinfo.eeproperties.metrics.enabled","true");
+        EEProperties eeProperties = new EEProperties(options);
+        assert eeProperties.isMetricsEnabled();
+
+        options = new HashMap<String,String>();
+        options.put("net.olioinfo.eeproperties.configurationFile.prefix","test-");
+        eeProperties.loadPackageConfiguration(EEProperties.class,options);
+
+        assert eeProperties.getProperty("net.olioinfo.eeproperties.test.value.1").equals("value1");
+        assert eeProperties.getProperty("net.olioinfo.eeproperties.test.value.1").equals("value1");
+        assert eeProperties.getProperty("net.olioinfo.eeproperties.test.missing","fallback").equals("fallback");
+        assert eeProperties.getLongProperty("net.olioinfo.eeproperties.test.value.12").equals(12345678901L);
+
+        EEPropertiesMetricsSnapshot snapshot = eeProperties.getMetricsSnapshot();
+        assert snapshot.getLookups() == 4;
+        assert snapshot.getMisses() == 1;
+        assert snapshot.getLookupsByKey().get("net.olioinfo.eeproperties.test.value.1") == 2;
+        assert snapshot.getMissesByKey().get("net.olioinfo.eeproperties.test.missing") == 1;
+        assert snapshot.getSubstitutionPasses() > 0;
+        assert snapshot.getLoadsByFile().size() == 2;
+
+        assert (new EEProperties()).getMetricsSnapshot() == null;
+
+        EEPropertiesMetrics metrics = new EEPropertiesMetrics(0,3);
+        for (int i = 0 ; i < 10 ; i++) {
+            metrics.recordLookup("net.olioinfo.eeproperties.test.generated." + i,false);
+        }
+        metrics.recordLookup("net.olioinfo.eeproperties.test.generated.0",true);
+        snapshot = metrics.snapshot();
+        assert snapshot.getLookupsByKey().size() == 4;
+        assert snapshot.getLookupsByKey().get("net.olioinfo.eeproperties.test.generated.0") == 2;
+        assert snapshot.getLookupsByKey().get(EEPropertiesMetrics.OTHER_KEY) == 7;
+        assert snapshot.getLookups() == 11;
+        assert snapshot.getMisses() == 10;
+    }
+
+    public void testManagement() throws Exception {
+        HashMap<String,String> options = new HashMap<String,String>();
+        options.put("net.olioinfo.eeproperties.jmx.enabled","true");
+        new EEProperties(options);
+
+        options = new HashMap<String,String>();
+        options.put("net.olioinfo.eeproperties.configurationFile.prefix","test-");
+        EEProperties.sLoadPackageConfiguration(EEProperties.class,options);
+
+        MBeanServer mBeanServer = ManagementFactory.getPlatformMBeanServer();
+        ObjectName objectName = new ObjectName(EEPropertiesAdmin.OBJECT_NAME);
+        assert mBeanServer.isRegistered(objectName);
+        assert ((Integer) mBeanServer.getAttribute(objectName,"KeyCount")) > 0;
+        assert ((Long) mBeanServer.getAttribute(objectName,"Generation")) == EEProperties.singleton().getGeneration();
+        assert ((Long) mBeanServer.getAttribute(objectName,"EstimatedMemoryFootprint")) > 0;
+        assert ((String[]) mBeanServer.getAttribute(objectName,"LoadDefinitions")).length > 0;
+        Object value = mBeanServer.invoke(objectName,"lookupProperty",
+            new Object[] {"net.olioinfo.eeproperties.test.value.1"},new String[] {String.class.getName()});
+        assert value.equals("value1");
+        assert ! ((Boolean) mBeanServer.invoke(objectName,"reloadConfigurationsIfChanged",new Object[0],new String[0]));
+
+        EEPropertiesAdmin.unregister();
+        assert ! mBeanServer.isRegistered(objectName);
+    }
+
+    public void testLoadProfiler() {
+        HashMap<String,String> options = new HashMap<String,String>();
+        options.put("net.olioinfo.eeproperties.profiling.enabled","true");
+        EEProperties eeProperties = new EEProperties(options);
+
+        options = new HashMap<String,String>();
+        options.put("net.olioinfo.eeproperties.configurationFile.prefix","test-");
+        eeProperties.loadPackageConfiguration(EEProperties.class,options);
+
+        EEPropertiesLoadProfiler loadProfiler = eeProperties.getLoadProfiler();
+        Map<String,Long> byPhase = loadProfiler.getTotalNanosByPhase();
+        assert byPhase.containsKey(EEPropertiesLoadProfiler.PHASE_INITIALIZE_LOGGING);
+        assert byPhase.containsKey(EEPropertiesLoadProfiler.PHASE_LOAD_BOOTSTRAP_FILE);
+        assert byPhase.containsKey(EEPropertiesLoadProfiler.PHASE_CLASSPATH_LOOKUP);
+        assert byPhase.containsKey(EEPropertiesLoadProfiler.PHASE_SUBSTITUTE_ALL);
+        assert byPhase.containsKey(EEPropertiesLoadProfiler.PHASE_CONVERT_TO_OBJECT_INSTANCES);
+        assert loadProfiler.getTotalNanosByDefinition().containsKey(EEProperties.class.getName());
+
+        long parsedKeys = 0;
+        for (EEPropertiesLoadEvent event : loadProfiler.getEvents()) {
+            if (event.getPhase().equals(EEPropertiesLoadProfiler.PHASE_PARSE) && event.getSource().endsWith("test-defaults-ee.properties")) {
+                assert event.getBytes() > 0;
+                parsedKeys = event.getKeys();
+            }
+        }
+        assert parsedKeys == 14;
+
+        ByteArrayOutputStream summary = new ByteArrayOutputStream();
+        loadProfiler.printSummary(new PrintStream(summary));
+        assert summary.toString().contains(EEProperties.class.getName());
+
+        assert (new EEProperties()).getLoadProfiler() == null;
+    }
+
+    public void testAccessProfiler() {
+        HashMap<String,String> options = new HashMap<String,String>();
+        options.put("net.olioinfo.eeproperties.accessProfiling.enabled","true");
+        options.put("net.olioinfo.eeproperties.accessProfiling.sampleInterval","1");
+        options.put("net.olioinfo.eeproperties.accessProfiling.topK","2");
+        EEProperties eeProperties = new EEProperties(options);
+
+        options = new HashMap<String,String>();
+        options.put("net.olioinfo.eeproperties.configurationFile.prefix","test-");
+        eeProperties.loadPackageConfiguration(EEProperties.class,options);
+
+        for (int i = 0 ; i < 1000 ; i++) {
+            eeProperties.getProperty("net.olioinfo.eeproperties.test.value.1");
+        }
+        for (int i = 0 ; i < 500 ; i++) {
+            eeProperties.getIntegerProperty("net.olioinfo.eeproperties.test.value.10");
+        }
+        eeProperties.getProperty("net.olioinfo.eeproperties.test.value.2");
+
+        ArrayList<String> hotKeys = new ArrayList<String>(eeProperties.getHotPropertyNames().keySet());
+        assert hotKeys.size() == 2;
+        assert hotKeys.get(0).equals("net.olioinfo.eeproperties.test.value.1");
+        assert hotKeys.get(1).equals("net.olioinfo.eeproperties.test.value.10");
+        assert eeProperties.getHotPropertyNames().get("net.olioinfo.eeproperties.test.value.1") == 1000;
+
+        ArrayList<String> unreadKeys = eeProperties.getUnreadPropertyNames();
+        assert unreadKeys.contains("net.olioinfo.eeproperties.test.value.12");
+        assert ! unreadKeys.contains("net.olioinfo.eeproperties.test.value.1");
+        assert ! unreadKeys.contains("net.olioinfo.eeproperties.test.value.2");
+
+        assert (new EEProperties()).getHotPropertyNames() == null;
+    }
+
+    public void testAccessProfilerShortLivedThreads() throws Exception {
+        final EEPropertiesAccessProfiler profiler = new EEPropertiesAccessProfiler(1,10);
+        int maximumRegistered = 0;
+        for (int batch = 0 ; batch < 20 ; batch++) {
+            Thread[] threads = new Thread[100];
+            for (int i = 0 ; i < threads.length ; i++) {
+                threads[i] = new Thread(new Runnable() {
+                    public void run() {
+                        profiler.recordAccess("net.olioinfo.eeproperties.test.value.1");
+                    }
+                });
+                threads[i].start();
+            }
+            for (Thread thread : threads) {
+                thread.join();
+            }
+            maximumRegistered = Math.max(maximumRegistered,profiler.getRegisteredThreadCount());
+        }
+        // Ended threads are dropped every 64 registrations without a report
+        assert maximumRegistered < 200 : maximumRegistered;
+        assert profiler.getHotKeys().get("net.olioinfo.eeproperties.test.value.1") == 2000;
+        assert profiler.getRegisteredThreadCount() == 0;
+    }
+
+    public void testLayeredStore() {
+        EEPropertiesLayeredStore store = new EEPropertiesLayeredStore();
+        EEPropertiesLayeredStore.Generation empty = store.current();
+        EEPropertiesLayeredStore.Generation loaded = store.update(new Consumer<EEPropertiesLayeredStore.Editor>() {
+            public void accept(EEPropertiesLayeredStore.Editor editor) {
+                for (int i = 0 ; i < 1000 ; i++) {
+                    editor.put(EEPropertiesLayeredStore.Layer.DEFAULTS,"key." + i,"default" + i);
+                }
+                editor.put(EEPropertiesLayeredStore.Layer.ENVIRONMENT,"key.1","environment1");
+                editor.put(EEPropertiesLayeredStore.Layer.EXTERNAL,"key.2","external2");
+                editor.remove(EEPropertiesLayeredStore.Layer.DEFAULTS,"key.999");
+            }
+        });
+        assert loaded.getNumber() > empty.getNumber();
+        assert empty.size() == 0;
+        assert loaded.size() == 999;
+        assert loaded.getProperty("key.0").equals("default0");
+        assert loaded.getProperty("key.1").equals("environment1");
+        assert loaded.getProperty("key.2").equals("external2");
+        assert loaded.getProperty("key.999") == null;
+        assert loaded.getLayerProperty(EEPropertiesLayeredStore.Layer.DEFAULTS,"key.1").equals("default1");
+
+        EEPropertiesLayeredStore.Generation overridden = store.update(new Consumer<EEPropertiesLayeredStore.Editor>() {
+            public void accept(EEPropertiesLayeredStore.Editor editor) {
+                editor.put(EEPropertiesLayeredStore.Layer.RUNTIME,"key.2","runtime2");
+            }
+        });
+        assert overridden.getProperty("key.2").equals("runtime2");
+        assert loaded.getProperty("key.2").equals("external2");
+        assert overridden.propertyNames().size() == 999;
+
+        HashMap<String,String> options = new HashMap<String,String>();
+        options.put("net.olioinfo.eeproperties.configurationFile.prefix","test-");
+        EEProperties eeProperties = new EEProperties();
+        eeProperties.loadPackageConfiguration(EEProperties.class,options);
+        long generation = eeProperties.getGeneration();
+        eeProperties.put("net.olioinfo.eeproperties.test.value.1","runtime");
+        assert eeProperties.getGeneration() > generation;
+        assert eeProperties.getProperty("net.olioinfo.eeproperties.test.value.1").equals("runtime");
+        eeProperties.loadPackageConfiguration(EEProperties.class,options);
+        assert eeProperties.getProperty("net.olioinfo.eeproperties.test.value.1").equals("runtime");
+        assert eeProperties.getProperty("net.olioinfo.eeproperties.test.value.2").equals("value3");
+    }
+
+    public void testStringPool() {
+        EEPropertiesStringPool stringPool = new EEPropertiesStringPool();
+        String first = new String("net.olioinfo.eeproperties.test.pooled");
+        String second = new String("net.olioinfo.eeproperties.test.pooled");
+        assert stringPool.canonicalize(first) == first;
+        assert stringPool.canonicalize(second) == first;
+        assert stringPool.canonicalize(null) == null;
+        assert stringPool.getDuplicates() == 1;
+        assert stringPool.getBytesSaved() > 0;
+        assert stringPool.size() == 1;
+
+        HashMap<String,String> options = new HashMap<String,String>();
+        options.put("net.olioinfo.eeproperties.configurationFile.prefix","test-");
+        EEProperties eeProperties = new EEProperties();
+        eeProperties.loadPackageConfiguration(EEProperties.class,options);
+        EEProperties otherProperties = new EEProperties();
+        otherProperties.loadPackageConfiguration(EEProperties.class,options);
+        assert eeProperties.getProperty("net.olioinfo.eeproperties.test.value.1") == otherProperties.getProperty("net.olioinfo.eeproperties.test.value.1");
+        assert eeProperties.getStringPool().getBytesSaved() > 0;
+
+        options = new HashMap<String,String>();
+        options.put("net.olioinfo.eeproperties.stringPool.enabled","false");
+        assert (new EEProperties(options)).getStringPool() == null;
+    }
+
+    public void testPrimitiveAndImmutableListTypes() {
+        HashMap<String,String> options = new HashMap<String,String>();
+        options.put("net.olioinfo.eeproperties.configurationFile.prefix","test-");
+        EEProperties eeProperties = new EEProperties();
+        eeProperties.loadPackageConfiguration(EEProperties.class,options);
+
+        IntBuffer ints = eeProperties.getIntArrayProperty("net.olioinfo.eeproperties.test.value.22");
+        assert ints.isReadOnly();
+        assert ints.remaining() == 3;
+        assert ints.get(0) == 3 && ints.get(1) == 17 && ints.get(2) == 89;
+        ints.get();
+        assert eeProperties.getIntArrayProperty("net.olioinfo.eeproperties.test.value.22").position() == 0;
+        assert eeProperties.getTypedPropertyType("net.olioinfo.eeproperties.test.value.22").equals("int[]");
+
+        LongBuffer longs = eeProperties.getLongArrayProperty("net.olioinfo.eeproperties.test.value.23");
+        assert longs.get(0) == 12345678901L && longs.get(1) == -2L;
+
+        DoubleBuffer doubles = eeProperties.getDoubleArrayProperty("net.olioinfo.eeproperties.test.value.24");
+        assert doubles.get(0) == 1.5 && doubles.get(1) == 2.25;
+
+        List<String> strings = eeProperties.getImmutableListStringProperty("net.olioinfo.eeproperties.test.value.25");
+        assert strings.size() == 2 && strings.get(1).equals("string 2");
+        try {
+            strings.add("string 3");
+            assert false;
+        }
+        catch (UnsupportedOperationException ex) {
+            assert true;
+        }
+
+        ArrayList<Integer> integerList = eeProperties.getArrayListIntegerProperty("net.olioinfo.eeproperties.test.value.21");
+        integerList.clear();
+        assert eeProperties.getArrayListIntegerProperty("net.olioinfo.eeproperties.test.value.21").size() == 3;
+
+        int[] values = {1,2};
+        eeProperties.putIntArray("net.olioinfo.eeproperties.test.put.ints",values);
+        values[0] = 99;
+        assert eeProperties.getIntArrayProperty("net.olioinfo.eeproperties.test.put.ints").get(0) == 1;
+
+        // Null is accepted, as putDate accepts it
+        eeProperties.putIntArray("net.olioinfo.eeproperties.test.put.ints",null);
+        assert eeProperties.getIntArrayProperty("net.olioinfo.eeproperties.test.put.ints") == null;
+        eeProperties.putLongArray("net.olioinfo.eeproperties.test.value.23",null);
+        assert eeProperties.getLongArrayProperty("net.olioinfo.eeproperties.test.value.23") == null;
+        eeProperties.putDoubleArray("net.olioinfo.eeproperties.test.value.24",null);
+        assert eeProperties.getDoubleArrayProperty("net.olioinfo.eeproperties.test.value.24") == null;
+        eeProperties.putImmutableListString("net.olioinfo.eeproperties.test.value.25",null);
+        assert eeProperties.getImmutableListStringProperty("net.olioinfo.eeproperties.test.value.25") == null;
+        eeProperties.putArrayListInteger("net.olioinfo.eeproperties.test.value.21",null);
+        assert eeProperties.getArrayListIntegerProperty("net.olioinfo.eeproperties.test.value.21") == null;
+        eeProperties.putArrayListString("net.olioinfo.eeproperties.test.put.strings",null);
+        assert eeProperties.getArrayListStringProperty("net.olioinfo.eeproperties.test.put.strings") == null;
+    }
+
+    public void testConverters() {
+        EEPropertiesConverters.register("Upper",new EEPropertiesConverter() {
+            public Object convert(String stringValue) {
+                return stringValue.toUpperCase();
+            }
+        });
+        EEProperties eeProperties = new EEProperties();
+        Properties properties = new Properties();
+        properties.setProperty("test.duration.iso","[Duration] PT30S");
+        properties.setProperty("test.duration.simple","[duration] 500ms");
+        properties.setProperty("test.size","[DataSize] 64MB");
+        properties.setProperty("test.uri","[URI] http://eeproperties.olioinfo.net/path");
+        properties.setProperty("test.address","[InetSocketAddress] localhost:8080");
+        properties.setProperty("test.enum","[Enum<java.util.concurrent.TimeUnit>] seconds");
+        properties.setProperty("test.custom","[Upper] abc");
+        properties.setProperty("test.invalid","[DataSize] lots");
+        properties.setProperty("test.unknown","[NoSuchType] abc");
+        properties.setProperty("test.integer","[integer] 42");
+        eeProperties.loadAndMergeConfigurations(new ArrayList<String>(),EEProperties.class,properties,new HashMap<String,String>());
+
+        assert eeProperties.getDurationProperty("test.duration.iso").equals(Duration.ofSeconds(30));
+        assert eeProperties.getDurationProperty("test.duration.simple").equals(Duration.ofMillis(500));
+        assert eeProperties.getDataSizeProperty("test.size") == 64L * 1024 * 1024;
+        assert eeProperties.getURIProperty("test.uri").getPath().equals("/path");
+        assert eeProperties.getInetSocketAddressProperty("test.address").getPort() == 8080;
+        assert eeProperties.getEnumProperty("test.enum",TimeUnit.class) == TimeUnit.SECONDS;
+        assert eeProperties.getTypedPropertyType("test.enum").equals("Enum<java.util.concurrent.TimeUnit>");
+        assert eeProperties.getTypedPropertyValue("test.custom").equals("ABC");
+        assert eeProperties.getTypedPropertyValue("test.invalid") == null;
+        assert eeProperties.getTypedPropertyValue("test.unknown") == null;
+        assert eeProperties.getIntegerProperty("test.integer") == 42;
+        assert eeProperties.getTypedPropertyType("test.integer").equals("Integer");
+    }
+
+    public void testDateTimeTypes() {
+        HashMap<String,String> options = new HashMap<String,String>();
+        options.put("net.olioinfo.eeproperties.configurationFile.prefix","test-");
+        EEProperties eeProperties = new EEProperties();
+        eeProperties.loadPackageConfiguration(EEProperties.class,options);
+
+        Instant instant = eeProperties.getInstantProperty("net.olioinfo.eeproperties.test.value.26");
+        assert instant.equals(Instant.parse("2001-07-04T17:08:56Z"));
+        assert instant == eeProperties.getInstantProperty("net.olioinfo.eeproperties.test.value.26");
+        assert eeProperties.getLocalDateProperty("net.olioinfo.eeproperties.test.value.27").equals(LocalDate.of(2001,7,4));
+        OffsetDateTime offsetDateTime = eeProperties.getOffsetDateTimeProperty("net.olioinfo.eeproperties.test.value.28");
+        assert offsetDateTime.toInstant().equals(instant);
+        assert offsetDateTime.getOffset().getTotalSeconds() == -5 * 3600;
+
+        // Date values are copied on every read
+        Date date = eeProperties.getDateProperty("net.olioinfo.eeproperties.test.value.18");
+        assert date.toInstant().equals(instant);
+        date.setTime(0L);
+        assert eeProperties.getDateProperty("net.olioinfo.eeproperties.test.value.18").toInstant().equals(instant);
+        assert eeProperties.getTypedPropertyValue("net.olioinfo.eeproperties.test.value.18") instanceof Date;
+
+        eeProperties.putDate("test.date",new Date(1000L));
+        assert eeProperties.getDateProperty("test.date").getTime() == 1000L;
+        eeProperties.putInstant("test.instant",instant);
+        assert eeProperties.getInstantProperty("test.instant") == instant;
+    }
+
+    public interface DbConfig {
+        String getUrl();
+        int poolSize();
+        boolean isEnabled();
+        Duration getTimeout();
+        TimeUnit unit();
+        List<String> hosts();
+    }
+
+    public static class PoolConfig {
+        private int poolSize;
+        private Long maxBytes;
+        private String url;
+    }
+
+    public void testBind() {
+        EEProperties eeProperties = new EEProperties();
+        eeProperties.put("com.mysite.db.url","jdbc:test://localhost/db");
+        eeProperties.put("com.mysite.db.poolSize","8");
+        eeProperties.put("com.mysite.db.enabled","[Boolean] true");
+        eeProperties.put("com.mysite.db.timeout","30s");
+        eeProperties.put("com.mysite.db.unit","MINUTES");
+        eeProperties.put("com.mysite.db.hosts","a, b");
+        eeProperties.put("com.mysite.db.maxBytes","[DataSize] 1KB");
+
+        DbConfig dbConfig = eeProperties.bind("com.mysite.db",DbConfig.class);
+        assert dbConfig.getUrl().equals("jdbc:test://localhost/db");
+        assert dbConfig.poolSize() == 8;
+        assert dbConfig.isEnabled();
+        assert dbConfig.getTimeout().equals(Duration.ofSeconds(30));
+        assert dbConfig.unit() == TimeUnit.MINUTES;
+        assert dbConfig.hosts().size() == 2 && dbConfig.hosts().get(1).equals("b");
+
+        PoolConfig poolConfig = eeProperties.bind("com.mysite.db.",PoolConfig.class);
+        assert poolConfig.poolSize == 8;
+        assert poolConfig.maxBytes == 1024L;
+        assert poolConfig.url.equals("jdbc:test://localhost/db");
+
+        // Changes are applied to the bound instances
+        eeProperties.put("com.mysite.db.poolSize","16");
+        assert dbConfig.poolSize() == 16;
+        synchronized (poolConfig) {
+            assert poolConfig.poolSize == 16;
+        }
+        eeProperties.put("com.mysite.db.poolSize","lots");
+        assert dbConfig.poolSize() == 0;
+        assert dbConfig.getUrl().equals("jdbc:test://localhost/db");
+
+        try {
+            eeProperties.bind("com.mysite.db",Runnable.class);
+            fail("Runnable.run can't be bound");
+        }
+        catch (IllegalArgumentException e) {
+            // expected
+        }
+    }
+
+    public void testGeneratedAccessors() throws Exception {
+        JavaCompiler compiler = ToolProvider.getSystemJavaCompiler();
+        if (compiler == null) {
+            // Running on a JRE
+            return;
+        }
+        File directory = Files.createTempDirectory("eeproperties-generated").toFile();
+        File keySet = new File(directory,"GeneratedKeys.java");
+        Files.write(keySet.toPath(),("package net.olioinfo.eeproperties.generated;\n"
+            + "import net.olioinfo.eeproperties.EEPropertiesKeys;\n"
+            + "@EEPropertiesKeys(\"GeneratedSettings\")\n"
+            + "public interface GeneratedKeys {\n"
+            + "    String NAME = \"net.olioinfo.eeproperties.test.generated.name\";\n"
+            + "    @EEPropertiesKeys.Type(Integer.class) String SIZE = \"net.olioinfo.eeproperties.test.generated.size\";\n"
+            + "}\n").getBytes("UTF-8"));
+        StandardJavaFileManager fileManager = compiler.getStandardFileManager(null,null,null);
+        try {
+            JavaCompiler.CompilationTask task = compiler.getTask(null,fileManager,null,
+                Arrays.asList("-classpath",System.getProperty("java.class.path"),"-d",directory.getPath(),"-s",directory.getPath()),
+                null,fileManager.getJavaFileObjects(keySet));
+            task.setProcessors(Collections.singletonList(new EEPropertiesKeysProcessor()));
+            assert task.call();
+        }
+        finally {
+            fileManager.close();
+        }
+
+        EEProperties.sPut("net.olioinfo.eeproperties.test.generated.name","generated");
+        EEProperties.sPut("net.olioinfo.eeproperties.test.generated.size","[Integer] 7");
+        EEProperties.sPutInteger("net.olioinfo.eeproperties.test.generated.size",7);
+        URLClassLoader loader = new URLClassLoader(new URL[] {directory.toURI().toURL()},EEPropertiesTest.class.getClassLoader());
+        try {
+            Class<?> settings = loader.loadClass("net.olioinfo.eeproperties.generated.GeneratedSettings");
+            assert settings.getMethod("name").invoke(null).equals("generated");
+            Method sizeValue = settings.getMethod("sizeValue");
+            assert sizeValue.getReturnType() == Integer.class;
+            assert sizeValue.invoke(null).equals(7);
+            assert ((List<?>) settings.getMethod("missingKeys").invoke(null)).isEmpty();
+            assert ((List<?>) settings.getMethod("reportMissingKeys").invoke(null)).isEmpty();
+        }
+        finally {
+            loader.close();
+        }
+    }
+
+    public void testSlots() {
+        EEProperties eeProperties = new EEProperties();
+        eeProperties.put("net.olioinfo.eeproperties.test.slot.1","[Integer] 5");
+        int first = EEPropertiesSlots.slot("net.olioinfo.eeproperties.test.slot.1");
+        int second = EEPropertiesSlots.slot("net.olioinfo.eeproperties.test.slot.2");
+        assert EEPropertiesSlots.slot("net.olioinfo.eeproperties.test.slot.1") == first;
+        assert EEPropertiesSlots.key(second).equals("net.olioinfo.eeproperties.test.slot.2");
+
+        // Slots registered after the last load are picked up on first read
+        assert eeProperties.getSlotProperty(first).equals("[Integer] 5");
+        assert eeProperties.getSlotProperty(second) == null;
+        assert eeProperties.getMissingKeys(new int[] {first,second}).size() == 1;
+
+        eeProperties.put("net.olioinfo.eeproperties.test.slot.2","two");
+        assert eeProperties.getSlotProperty(second).equals("two");
+        assert eeProperties.reportMissingKeys("test",new int[] {first,second}).isEmpty();
+
+        eeProperties.putInteger("net.olioinfo.eeproperties.test.slot.1",6);
+        assert ((Integer) eeProperties.getSlotTypedValue(first)) == 6;
+        assert eeProperties.getSlotTypedValue(first,Integer.class) == 6;
+        try {
+            eeProperties.getSlotTypedValue(first,String.class);
+            fail("Typed value is not a String");
+        }
+        catch (ClassCastException e) {
+            // expected
+        }
+
+        // A publish only reads again the slots of the keys it changed
+        EEPropertiesLayeredStore store = new EEPropertiesLayeredStore();
+        EEPropertiesLayeredStore.Generation loaded = store.update(new Consumer<EEPropertiesLayeredStore.Editor>() {
+            public void accept(EEPropertiesLayeredStore.Editor editor) {
+                editor.put(EEPropertiesLayeredStore.Layer.DEFAULTS,"net.olioinfo.eeproperties.test.slot.1","one");
+                editor.put(EEPropertiesLayeredStore.Layer.DEFAULTS,"net.olioinfo.eeproperties.test.slot.2","two");
+            }
+        });
+        EEPropertiesSlots.Table table = EEPropertiesSlots.table(loaded,eeProperties,
+            new EEPropertiesSlots.Table(0L,new String[0],new EEPropertiesTypedValue[0]));
+        assert table.properties[first].equals("one") && table.properties[second].equals("two");
+        String[] marked = table.properties.clone();
+        marked[second] = "not read again";
+        EEPropertiesSlots.Table markedTable = new EEPropertiesSlots.Table(table.generationNumber,marked,table.typedValues);
+        EEPropertiesLayeredStore.Generation changed = store.update(new Consumer<EEPropertiesLayeredStore.Editor>() {
+            public void accept(EEPropertiesLayeredStore.Editor editor) {
+                editor.put(EEPropertiesLayeredStore.Layer.RUNTIME,"net.olioinfo.eeproperties.test.slot.1","uno");
+            }
+        });
+        table = EEPropertiesSlots.table(changed,eeProperties,markedTable);
+        assert table.properties[first].equals("uno");
+        assert table.properties[second].equals("not read again");
+
+        // Clearing a layer changes keys it doesn't list, so every slot is read again
+        marked = table.properties.clone();
+        marked[second] = "not read again";
+        markedTable = new EEPropertiesSlots.Table(table.generationNumber,marked,table.typedValues);
+        EEPropertiesLayeredStore.Generation cleared = store.update(new Consumer<EEPropertiesLayeredStore.Editor>() {
+            public void accept(EEPropertiesLayeredStore.Editor editor) {
+                editor.clear(EEPropertiesLayeredStore.Layer.RUNTIME);
+            }
+        });
+        table = EEPropertiesSlots.table(cleared,eeProperties,markedTable);
+        assert table.properties[first].equals("one") && table.properties[second].equals("two");
+    }
+
+    public void testBatchReads() {
+        HashMap<String,String> options = new HashMap<String,String>();
+        options.put("net.olioinfo.eeproperties.configurationFile.prefix","test-");
+        EEProperties eeProperties = new EEProperties();
+        eeProperties.loadPackageConfiguration(EEProperties.class,options);
+
+        String[] names = {"net.olioinfo.eeproperties.test.value.1","net.olioinfo.eeproperties.test.missing","net.olioinfo.eeproperties.test.value.10"};
+        String[] values = new String[names.length];
+        assert eeProperties.getProperties(names,values) == values;
+        for (int i = 0 ; i < names.length ; i++) {
+            String expected = eeProperties.getProperty(names[i]);
+            assert expected == null ? values[i] == null : expected.equals(values[i]);
+        }
+        assert eeProperties.getProperties("net.olioinfo.eeproperties.test.value.10")[0].equals(values[2]);
+
+        Object[] typedValues = eeProperties.getTypedPropertyValues(names,new Object[4]);
+        assert typedValues[1] == null;
+        assert typedValues[2].equals(eeProperties.getTypedPropertyValue(names[2]));
+
+        try {
+            eeProperties.getProperties(names,new String[2]);
+            fail("Array too short");
+        }
+        catch (IllegalArgumentException e) {
+            // expected
+        }
+    }
+
+    public void testIterateAndDump() throws Exception {
+        HashMap<String,String> options = new HashMap<String,String>();
+        options.put("net.olioinfo.eeproperties.configurationFile.prefix","test-");
+        EEProperties eeProperties = new EEProperties();
+        eeProperties.loadPackageConfiguration(EEProperties.class,options);
+        eeProperties.put("net.olioinfo.eeproperties.test.value.1","overridden");
+        eeProperties.put("net.olioinfo.eeproperties.test.escaped key","a=b: \"c\"\n\u00e9\u20ac\ud83d\ude00");
+
+        final HashMap<String,String> visited = new HashMap<String,String>();
+        eeProperties.forEach(new BiConsumer<String,String>() {
+            public void accept(String propertyName, String propertyValue) {
+                assert visited.put(propertyName,propertyValue) == null;
+            }
+        });
+        assert visited.size() == eeProperties.propertyNames().size();
+        assert visited.get("net.olioinfo.eeproperties.test.value.1").equals("overridden");
+
+        int iterated = 0;
+        for (Iterator<Map.Entry<String,String>> iterator = eeProperties.propertyIterator() ; iterator.hasNext() ; iterated++) {
+            Map.Entry<String,String> entry = iterator.next();
+            assert entry.getValue().equals(visited.get(entry.getKey()));
+        }
+        assert iterated == visited.size();
+
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        eeProperties.dumpProperties(Channels.newChannel(output),EEProperties.DumpFormat.PROPERTIES);
+        Properties reloaded = new Properties();
+        reloaded.load(new ByteArrayInputStream(output.toByteArray()));
+        Properties expected = new Properties();
+        expected.putAll(visited);
+        assert reloaded.equals(expected);
+
+        output = new ByteArrayOutputStream();
+        eeProperties.dumpProperties(Channels.newChannel(output),EEProperties.DumpFormat.JSON);
+        String json = new String(output.toByteArray(),"UTF-8");
+        assert json.startsWith("{\n  \"") && json.endsWith("\"\n}\n");
+        assert json.contains("\"net.olioinfo.eeproperties.test.escaped key\": \"a=b: \\\"c\\\"\\n\u00e9\u20ac\ud83d\ude00\"");
+        assert json.split("\n").length == visited.size() + 2;
+    }
+
+    public void testOffHeapStore() {
+        EEPropertiesLayeredStore store = new EEPropertiesLayeredStore();
+        store.setOffHeap(true,null);
+        EEPropertiesLayeredStore.Generation loaded = store.update(new Consumer<EEPropertiesLayeredStore.Editor>() {
+            public void accept(EEPropertiesLayeredStore.Editor editor) {
+                for (int i = 0 ; i < 10000 ; i++) {
+                    editor.put(EEPropertiesLayeredStore.Layer.DEFAULTS,"key." + i,"default\u00e9" + i);
+                }
+                editor.put(EEPropertiesLayeredStore.Layer.DEFAULTS,"key.\ud83d\ude00","emoji");
+                editor.put(EEPropertiesLayeredStore.Layer.ENVIRONMENT,"key.1","environment1");
+            }
+        });
+        assert loaded.getOffHeapBytes() > 0;
+        assert loaded.estimateMemoryFootprint() < 1000;
+        assert loaded.getLayerSize(EEPropertiesLayeredStore.Layer.DEFAULTS) == 10001;
+        assert loaded.getProperty("key.0").equals("default\u00e90");
+        assert loaded.getProperty("key.9999").equals("default\u00e99999");
+        assert loaded.getProperty("key.\ud83d\ude00").equals("emoji");
+        assert loaded.getProperty("key.1").equals("environment1");
+        assert loaded.getProperty("key.10000") == null;
+
+        EEPropertiesLayeredStore.Generation changed = store.update(new Consumer<EEPropertiesLayeredStore.Editor>() {
+            public void accept(EEPropertiesLayeredStore.Editor editor) {
+                editor.put(EEPropertiesLayeredStore.Layer.DEFAULTS,"key.0","changed");
+                editor.put(EEPropertiesLayeredStore.Layer.DEFAULTS,"key.new","new");
+                editor.remove(EEPropertiesLayeredStore.Layer.DEFAULTS,"key.2");
+                editor.remove(EEPropertiesLayeredStore.Layer.DEFAULTS,"key.2");
+                editor.remove(EEPropertiesLayeredStore.Layer.DEFAULTS,"key.missing");
+            }
+        });
+        assert changed.getOffHeapBytes() == loaded.getOffHeapBytes();
+        assert changed.getLayerSize(EEPropertiesLayeredStore.Layer.DEFAULTS) == 10001;
+        assert changed.getProperty("key.0").equals("changed");
+        assert changed.getProperty("key.new").equals("new");
+        assert changed.getProperty("key.2") == null;
+        assert loaded.getProperty("key.2").equals("default\u00e92");
+        assert changed.size() == 10001;
+
+        int iterated = 0;
+        for (Map.Entry<String,String> entry : changed) {
+            assert entry.getValue().equals(changed.getProperty(entry.getKey()));
+            iterated++;
+        }
+        assert iterated == 10001;
+
+        EEPropertiesLayeredStore.Generation compacted = store.update(new Consumer<EEPropertiesLayeredStore.Editor>() {
+            public void accept(EEPropertiesLayeredStore.Editor editor) {
+                for (int i = 0 ; i < 5000 ; i++) {
+                    editor.remove(EEPropertiesLayeredStore.Layer.DEFAULTS,"key." + i);
+                }
+                editor.put(EEPropertiesLayeredStore.Layer.DEFAULTS,"key.2","restored");
+            }
+        });
+        assert compacted.getOffHeapBytes() < changed.getOffHeapBytes();
+        assert compacted.getLayerSize(EEPropertiesLayeredStore.Layer.DEFAULTS) == 5003;
+        assert compacted.getProperty("key.2").equals("restored");
+        assert compacted.getProperty("key.4999") == null;
+        assert compacted.getProperty("key.5000").equals("default\u00e95000");
+        assert compacted.propertyNames().size() == 5004;
+
+        HashMap<String,String> options = new HashMap<String,String>();
+        options.put("net.olioinfo.eeproperties.configurationFile.prefix","test-");
+        options.put("net.olioinfo.eeproperties.store.offHeap.enabled","true");
+        options.put("net.olioinfo.eeproperties.store.offHeap.directory",System.getProperty("java.io.tmpdir"));
+        EEProperties eeProperties = new EEProperties(options);
+        eeProperties.loadPackageConfiguration(EEProperties.class,options);
+        assert eeProperties.getProperty("net.olioinfo.eeproperties.test.value.2").equals("value3");
+        assert (new EEProperties()).getOffHeapMemoryFootprint() == 0;
+    }
+
+    public void testOffHeapStoreWithSmallDirectMemory() throws Exception {
+        // Run in a JVM whose direct memory is far smaller than a full segment
+        ProcessBuilder processBuilder = new ProcessBuilder(
+            new File(new File(System.getProperty("java.home"),"bin"),"java").getAbsolutePath(),
+            "-XX:MaxDirectMemorySize=8m","-Xmx64m",
+            "-cp",System.getProperty("java.class.path"),
+            OffHeapCompactions.class.getName());
+        processBuilder.redirectErrorStream(true);
+        Process process = processBuilder.start();
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        InputStream processOutput = process.getInputStream();
+        byte[] buffer = new byte[4096];
+        int read;
+        while ((read = processOutput.read(buffer)) != -1) {
+            output.write(buffer,0,read);
+        }
+        assert process.waitFor(60,TimeUnit.SECONDS);
+        assert process.exitValue() == 0 : output.toString("UTF-8");
+    }
+
+    /**
+     * Loads and repeatedly compacts a small off-heap layer. Run by testOffHeapStoreWithSmallDirectMemory.
+     */
+    public static class OffHeapCompactions {
+
+        public static void main(String[] args) {
+            EEPropertiesLayeredStore store = new EEPropertiesLayeredStore();
+            store.setOffHeap(true,null);
+            for (int round = 0 ; round < 20 ; round++) {
+                final int base = round * 5000;
+                EEPropertiesLayeredStore.Generation generation = store.update(new Consumer<EEPropertiesLayeredStore.Editor>() {
+                    public void accept(EEPropertiesLayeredStore.Editor editor) {
+                        for (int i = 0 ; i < 5000 ; i++) {
+                            editor.remove(EEPropertiesLayeredStore.Layer.DEFAULTS,"key." + (base - 5000 + i));
+                            editor.put(EEPropertiesLayeredStore.Layer.DEFAULTS,"key." + (base + i),"value" + i);
+                        }
+                    }
+                });
+                if (generation.getLayerSize(EEPropertiesLayeredStore.Layer.DEFAULTS) != 5000
+                        || ! ("value17").equals(generation.getProperty("key." + (base + 17)))) {
+                    System.exit(1);
+                }
+            }
+        }
+    }
+
+    public void testTypedValueCache() {
+        HashMap<String,String> options = new HashMap<String,String>();
+        options.put("net.olioinfo.eeproperties.configurationFile.prefix","test-");
+        options.put("net.olioinfo.eeproperties.typedCache.maximumSize","2");
+        EEProperties eeProperties = new EEProperties(options);
+        eeProperties.loadPackageConfiguration(EEProperties.class,options);
+        EEPropertiesTypedValueCache cache = eeProperties.getTypedValueCache();
+        assert cache.getMaximumSize() == 2;
+        assert cache.size() == 0;
+
+        assert eeProperties.getIntArrayProperty("net.olioinfo.eeproperties.test.value.22").get(1) == 17;
+        assert eeProperties.getTypedPropertyType("net.olioinfo.eeproperties.test.value.22").equals("int[]");
+        assert cache.getMisses() == 1 && cache.getHits() == 1;
+        assert eeProperties.getLongArrayProperty("net.olioinfo.eeproperties.test.value.23").get(0) == 12345678901L;
+        assert cache.size() == 2;
+
+        // Full: the first read of a third key is converted but not kept, the second replaces the unreferenced entry
+        assert eeProperties.getDoubleArrayProperty("net.olioinfo.eeproperties.test.value.24").get(0) == 1.5;
+        assert cache.getRejections() == 1 && cache.getEvictions() == 0;
+        assert eeProperties.getDoubleArrayProperty("net.olioinfo.eeproperties.test.value.24").get(1) == 2.25;
+        assert cache.getEvictions() == 1 && cache.size() == 2;
+        assert eeProperties.getIntArrayProperty("net.olioinfo.eeproperties.test.value.22").get(2) == 89;
+        assert cache.getHits() == 2 && cache.getMisses() == 4;
+        assert cache.getHitRate() > 0.3 && cache.getHitRate() < 0.4;
+        assert cache.getEstimatedMemoryFootprint() > 0;
+
+        // Values set explicitly are always kept, and a new property string is converted again
+        eeProperties.putInteger("net.olioinfo.eeproperties.test.value.23",Integer.valueOf(5));
+        assert eeProperties.getIntegerProperty("net.olioinfo.eeproperties.test.value.23") == 5;
+        eeProperties.put("net.olioinfo.eeproperties.test.value.22","[int[]] 4, 5");
+        assert eeProperties.getProperty("net.olioinfo.eeproperties.test.value.22").equals("[int[]] 4, 5");
+        eeProperties.loadPackageConfiguration(EEProperties.class,options);
+        assert eeProperties.getLongArrayProperty("net.olioinfo.eeproperties.test.value.23").get(1) == -2L;
+        assert eeProperties.getTypedPropertyValue("net.olioinfo.eeproperties.test.value.1").equals("value1");
+        assert eeProperties.getTypedPropertyValue("net.olioinfo.eeproperties.test.missing") == null;
+
+        assert (new EEProperties()).getTypedValueCache() == null;
+    }
+
+    public void testKeyFilters() {
+        HashMap<String,String> options = new HashMap<String,String>();
+        options.put("net.olioinfo.eeproperties.metrics.enabled","true");
+        EEProperties eeProperties = new EEProperties(options);
+        options = new HashMap<String,String>();
+        options.put("net.olioinfo.eeproperties.configurationFile.prefix","test-");
+        eeProperties.loadPackageConfiguration(EEProperties.class,options);
+        for (int i = 0 ; i < 2000 ; i++) {
+            eeProperties.put(String.format("net.olioinfo.eeproperties.test.filter.%d",i),"filtered");
+        }
+        assert eeProperties.getKeyFilterMemoryFootprint() > 0;
+        assert eeProperties.getKeyFilterFalsePositiveRate() > 0.0 && eeProperties.getKeyFilterFalsePositiveRate() < 0.05;
+
+        // No false negatives, including keys added one generation at a time
+        for (String propertyName : eeProperties.propertyNames()) {
+            assert eeProperties.getProperty(propertyName) != null;
+        }
+        for (int i = 0 ; i < 10000 ; i++) {
+            assert eeProperties.getProperty(String.format("net.olioinfo.eeproperties.test.absent.%d",i),"fallback").equals("fallback");
+        }
+        EEPropertiesMetricsSnapshot snapshot = eeProperties.getMetricsSnapshot();
+        assert snapshot.getKeyFilterRejections() > 10000;
+        assert snapshot.getKeyFilterFalsePositiveRate() < 0.05;
+
+        options = new HashMap<String,String>();
+        options.put("net.olioinfo.eeproperties.store.keyFilters.enabled","false");
+        EEProperties unfiltered = new EEProperties(options);
+        unfiltered.put("net.olioinfo.eeproperties.test.filter.0","unfiltered");
+        assert unfiltered.getProperty("net.olioinfo.eeproperties.test.filter.0").equals("unfiltered");
+        assert unfiltered.getKeyFilterMemoryFootprint() == 0;
+    }
+
+    public void testAsyncLoad() throws Exception {
+        HashMap<String,String> options = new HashMap<String,String>();
+        options.put("net.olioinfo.eeproperties.configurationFile.prefix","test-");
+        EEProperties eeProperties = new EEProperties();
+        CompletableFuture<Void> loaded = eeProperties.loadPackageConfigurationAsync(EEProperties.class,options);
+        assert eeProperties.awaitKey("net.olioinfo.eeproperties.test.value.2",10,TimeUnit.SECONDS).equals("value3");
+        loaded.get(10,TimeUnit.SECONDS);
+        assert eeProperties.getProperty("net.olioinfo.eeproperties.test.value.1").equals("value1");
+
+        final EEProperties target = eeProperties;
+        Thread writer = new Thread(new Runnable() {
+            public void run() {
+                try {
+                    Thread.sleep(50);
+                }
+                catch (InterruptedException e) {
+                    return;
+                }
+                target.put("net.olioinfo.eeproperties.test.awaited","ready");
+            }
+        });
+        writer.start();
+        assert eeProperties.awaitKey("net.olioinfo.eeproperties.test.awaited",10,TimeUnit.SECONDS).equals("ready");
+        writer.join();
+
+        long start = System.nanoTime();
+        assert eeProperties.awaitKey("net.olioinfo.eeproperties.test.never",50,TimeUnit.MILLISECONDS) == null;
+        assert System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(50);
+
+        try {
+            eeProperties.loadPackageConfigurationAsync(EEProperties.class,null,new Executor() {
+                public void execute(Runnable command) {
+                    throw new IllegalStateException("rejected");
+                }
+            }).get();
+            assert false;
+        }
+        catch (IllegalStateException e) {
+            // expected: the executor failed synchronously
+        }
+
+        EEProperties.sLoadPackageConfigurationAsync(EEProperties.class,options).get(10,TimeUnit.SECONDS);
+        assert EEProperties.sAwaitKey("net.olioinfo.eeproperties.test.value.1",1,TimeUnit.SECONDS).equals("value1");
+    }
+
+    public void testConcurrentLoadsAndReads() throws Exception {
+        final HashMap<String,String> options = new HashMap<String,String>();
+        options.put("net.olioinfo.eeproperties.configurationFile.prefix","test-");
+        final EEProperties eeProperties = new EEProperties();
+        eeProperties.loadPackageConfiguration(EEProperties.class,options);
+
+        // Virtual threads where the JDK has them (21+), platform threads otherwise
+        Method ofVirtual = null;
+        try {
+            ofVirtual = Thread.class.getMethod("ofVirtual");
+        }
+        catch (NoSuchMethodException e) {
+            // Older JDK
+        }
+        int threadCount = ofVirtual == null ? 100 : 2000;
+        PinningRecorder pinningRecorder = ofVirtual == null ? null : new PinningRecorder();
+
+        final AtomicInteger failures = new AtomicInteger();
+        Thread[] threads = new Thread[threadCount];
+        for (int i = 0 ; i < threadCount ; i++) {
+            final int index = i;
+            Runnable task = new Runnable() {
+                public void run() {
+                    try {
+                        if (index % 20 == 0) {
+                            eeProperties.loadPackageConfiguration(EEProperties.class,options);
+                        }
+                        for (int j = 0 ; j < 100 ; j++) {
+                            if (! "value1".equals(eeProperties.getProperty("net.olioinfo.eeproperties.test.value.1"))) {
+                                failures.incrementAndGet();
+                            }
+                        }
+                        eeProperties.put("net.olioinfo.eeproperties.test.thread." + index,String.valueOf(index));
+                    }
+                    catch (Throwable t) {
+                        failures.incrementAndGet();
+                    }
+                }
+            };
+            if (ofVirtual == null) {
+                threads[i] = new Thread(task);
+                threads[i].start();
+            }
+            else {
+                Object builder = ofVirtual.invoke(null);
+                threads[i] = (Thread) Class.forName("java.lang.Thread$Builder").getMethod("start",Runnable.class).invoke(builder,task);
+            }
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        assert failures.get() == 0;
+        for (int i = 0 ; i < threadCount ; i++) {
+            assert eeProperties.getProperty("net.olioinfo.eeproperties.test.thread." + i).equals(String.valueOf(i));
+        }
+        if (pinningRecorder != null) {
+            assert pinningRecorder.stop() == 0;
+        }
+    }
+
+    public void testConcurrentDefinitionLoads() throws Exception {
+        final HashMap<String,String> options = new HashMap<String,String>();
+        options.put("net.olioinfo.eeproperties.configurationFile.prefix","test-");
+        final EEProperties eeProperties = new EEProperties();
+
+        // LoadAnchor is defined by a loader whose resource lookups wait until released
+        final CountDownLatch entered = new CountDownLatch(1);
+        final CountDownLatch released = new CountDownLatch(1);
+        final String anchorName = LoadAnchor.class.getName();
+        URL testClasses = LoadAnchor.class.getProtectionDomain().getCodeSource().getLocation();
+        URLClassLoader slowLoader = new URLClassLoader(new URL[]{testClasses},EEPropertiesTest.class.getClassLoader()) {
+            protected Class<?> loadClass(String name, boolean resolve) throws ClassNotFoundException {
+                if (name.equals(anchorName)) {
+                    Class<?> loaded = findLoadedClass(name);
+                    return loaded != null ? loaded : findClass(name);
+                }
+                return super.loadClass(name,resolve);
+            }
+
+            public URL getResource(String name) {
+                entered.countDown();
+                try {
+                    released.await(10,TimeUnit.SECONDS);
+                }
+                catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                return super.getResource(name);
+            }
+        };
+        final Class<?> anchorClass = slowLoader.loadClass(anchorName);
+        assert anchorClass != LoadAnchor.class;
+
+        final AtomicInteger failures = new AtomicInteger();
+        Thread slowLoad = new Thread(new Runnable() {
+            public void run() {
+                try {
+                    eeProperties.loadPackageConfiguration(anchorClass,options);
+                }
+                catch (Throwable t) {
+                    failures.incrementAndGet();
+                }
+            }
+        });
+        slowLoad.start();
+        assert entered.await(10,TimeUnit.SECONDS);
+
+        // A different definition loads and publishes while the first is still reading
+        HashMap<String,String> otherOptions = new HashMap<String,String>(options);
+        otherOptions.put("net.olioinfo.eeproperties.configurationFile.suffix","-ee");
+        eeProperties.loadPackageConfiguration(EEProperties.class,otherOptions);
+        assert slowLoad.isAlive();
+        assert eeProperties.getProperty("net.olioinfo.eeproperties.test.value.2").equals("value3");
+
+        released.countDown();
+        slowLoad.join();
+        slowLoader.close();
+        assert failures.get() == 0;
+        assert eeProperties.getProperty("net.olioinfo.eeproperties.test.value.1").equals("value1");
+        assert eeProperties.getProperty("net.olioinfo.eeproperties.test.value.2").equals("value3");
+    }
+
+    public void testDirectorySource() throws Exception {
+        File directory = Files.createTempDirectory("eeproperties-conf.d").toFile();
+        String[][] dropIns = {
+            {"20-cache.properties","net.olioinfo.eeproperties.test.dropIn.b = cache\nnet.olioinfo.eeproperties.test.value.1 = dropIn1\n"},
+            {"10-db.properties","net.olioinfo.eeproperties.test.dropIn.a = db\nnet.olioinfo.eeproperties.test.dropIn.b = db\n"},
+            {"notes.txt","net.olioinfo.eeproperties.test.dropIn.c = notes\n"}
+        };
+        for (String[] dropIn : dropIns) {
+            Files.write(new File(directory,dropIn[0]).toPath(),dropIn[1].getBytes("UTF-8"));
+        }
+        HashMap<String,String> options = new HashMap<String,String>();
+        options.put("net.olioinfo.eeproperties.configurationFile.prefix","test-");
+        options.put("net.olioinfo.eeproperties.runtime.additionalConfigurationPaths",directory.getAbsolutePath() + "/*.properties");
+        HashMap<String,String> profilingOptions = new HashMap<String,String>();
+        profilingOptions.put("net.olioinfo.eeproperties.profiling.enabled","true");
+        EEProperties eeProperties = new EEProperties(profilingOptions);
+        eeProperties.loadPackageConfiguration(EEProperties.class,options);
+        assert eeProperties.getProperty("net.olioinfo.eeproperties.test.dropIn.a").equals("db");
+        assert eeProperties.getProperty("net.olioinfo.eeproperties.test.dropIn.b").equals("cache");
+        assert eeProperties.getProperty("net.olioinfo.eeproperties.test.dropIn.c") == null;
+        assert eeProperties.getProperty("net.olioinfo.eeproperties.test.value.1").equals("dropIn1");
+        assert eeProperties.getProperty("net.olioinfo.eeproperties.test.value.2").equals("value3");
+        for (EEPropertiesConfigSource configSource : eeProperties.getConfigSources()) {
+            assert ! configSource.toString().endsWith("*.properties");
+        }
+
+        // Drop-ins are parsed once and reused by later definitions
+        eeProperties.loadPackageConfiguration(EEPropertiesTest.class,options);
+        assert eeProperties.getProperty("net.olioinfo.eeproperties.test.dropIn.a").equals("db");
+        assert dropInParses(eeProperties,"10-db.properties") == 1;
+
+        assert ! eeProperties.isConfigurationChanged();
+        Files.write(new File(directory,"30-extra.properties").toPath(),"net.olioinfo.eeproperties.test.dropIn.b = extra\n".getBytes("UTF-8"));
+        directory.setLastModified(directory.lastModified() + 2000);
+        assert eeProperties.isConfigurationChanged();
+        eeProperties.loadPackageConfiguration(EEProperties.class,options);
+        assert eeProperties.getProperty("net.olioinfo.eeproperties.test.dropIn.b").equals("extra");
+        assert dropInParses(eeProperties,"10-db.properties") == 2;
+
+        // A file changed in place is read again
+        Files.write(new File(directory,"10-db.properties").toPath(),"net.olioinfo.eeproperties.test.dropIn.a = changed\n".getBytes("UTF-8"));
+        eeProperties.loadPackageConfiguration(EEPropertiesTest.class,options);
+        assert eeProperties.getProperty("net.olioinfo.eeproperties.test.dropIn.a").equals("changed");
+        assert dropInParses(eeProperties,"10-db.properties") == 3;
+
+        for (File file : directory.listFiles()) {
+            file.delete();
+        }
+        directory.delete();
+    }
+
+    /**
+     * Count the profiled parses of a drop-in file
+     */
+    private static int dropInParses(EEProperties eeProperties, String fileName) {
+        int parses = 0;
+        for (EEPropertiesLoadEvent event : eeProperties.getLoadProfiler().getEvents()) {
+            if (event.getPhase().equals(EEPropertiesLoadProfiler.PHASE_PARSE) && event.getSource().endsWith("/" + fileName)) {
+                parses++;
+            }
+        }
+        return parses;
+    }
+
+    public void testArchiveSource() throws Exception {
+        File archive = File.createTempFile("eeproperties-bundle",".zip");
+        ZipOutputStream zip = new ZipOutputStream(new FileOutputStream(archive));
+        zip.putNextEntry(new ZipEntry("net/olioinfo/eeproperties/test-development-ee.properties"));
+        zip.write("net.olioinfo.eeproperties.test.value.2 = archive2\n".getBytes("UTF-8"));
+        zip.closeEntry();
+        zip.putNextEntry(new ZipEntry("test-defaults-ee.properties"));
+        zip.write("net.olioinfo.eeproperties.test.archive = top\n".getBytes("UTF-8"));
+        zip.closeEntry();
+        zip.close();
+
+        HashMap<String,String> options = new HashMap<String,String>();
+        options.put("net.olioinfo.eeproperties.configurationFile.prefix","test-");
+        options.put("net.olioinfo.eeproperties.runtime.additionalConfigurationPaths",archive.getAbsolutePath());
+        EEProperties eeProperties = new EEProperties();
+        eeProperties.loadPackageConfiguration(EEProperties.class,options);
+        assert eeProperties.getProperty("net.olioinfo.eeproperties.test.value.2").equals("archive2");
+        assert eeProperties.getProperty("net.olioinfo.eeproperties.test.archive").equals("top");
+        // The defaults file came from the archive, so the packaged one was not loaded
+        assert eeProperties.getProperty("net.olioinfo.eeproperties.test.value.1") == null;
+        assert ! eeProperties.isConfigurationChanged();
+
+        EEPropertiesArchiveSource archiveSource = new EEPropertiesArchiveSource(archive);
+        try {
+            assert archiveSource.getEntryCount() == 2;
+            assert archiveSource.locate("test-production-ee.properties",EEProperties.class) == null;
+            String location = archiveSource.locate("test-development-ee.properties",EEProperties.class);
+            assert location.endsWith("!/net/olioinfo/eeproperties/test-development-ee.properties");
+            Properties properties = new Properties();
+            InputStream is = archiveSource.open(location);
+            properties.load(is);
+            is.close();
+            assert properties.getProperty("net.olioinfo.eeproperties.test.value.2").equals("archive2");
+
+            // Replaced by delete and copy: missing at first, then read again once it is back
+            File replacement = File.createTempFile("eeproperties-bundle",".zip");
+            zip = new ZipOutputStream(new FileOutputStream(replacement));
+            zip.putNextEntry(new ZipEntry("test-development-ee.properties"));
+            zip.write("net.olioinfo.eeproperties.test.value.2 = replaced2\n".getBytes("UTF-8"));
+            zip.closeEntry();
+            zip.close();
+            long loadedLastModified = archiveSource.lastModified(location);
+            archiveSource.beginLoad();
+            try {
+                assert archiveSource.locate("test-production-ee.properties",EEProperties.class) == null;
+                archive.delete();
+                // Checked once per load: the rest of the load still sees the version found first
+                assert archiveSource.locate("test-development-ee.properties",EEProperties.class).equals(location);
+                assert archiveSource.lastModified(location) == loadedLastModified;
+            }
+            finally {
+                archiveSource.endLoad();
+            }
+            assert archiveSource.locate("test-development-ee.properties",EEProperties.class) == null;
+            assert archiveSource.getEntryCount() == 0;
+            Files.copy(replacement.toPath(),archive.toPath());
+            archive.setLastModified(System.currentTimeMillis() + 2000);
+            replacement.delete();
+            location = archiveSource.locate("test-development-ee.properties",EEProperties.class);
+            assert location.endsWith("!/test-development-ee.properties");
+            properties = new Properties();
+            is = archiveSource.open(location);
+            properties.load(is);
+            is.close();
+            assert properties.getProperty("net.olioinfo.eeproperties.test.value.2").equals("replaced2");
+        }
+        finally {
+            archiveSource.close();
+        }
+        assert archiveSource.getEntryCount() == 0;
+        archive.delete();
+    }
+
+    public void testHttpSource() throws Exception {
+        final String[] served = {"net.olioinfo.eeproperties.test.http = remote1\n","\"v1\""};
+        final AtomicInteger notModified = new AtomicInteger();
+        HttpServer server = HttpServer.create(new InetSocketAddress("127.0.0.1",0),0);
+        server.createContext("/config",new HttpHandler() {
+            public void handle(HttpExchange exchange) throws IOException {
+                if (! exchange.getRequestURI().getPath().equals("/config/net/olioinfo/eeproperties/http-defaults-ee.properties")) {
+                    exchange.sendResponseHeaders(404,-1);
+                }
+                else if (served[1].equals(exchange.getRequestHeaders().getFirst("If-None-Match"))) {
+                    notModified.incrementAndGet();
+                    exchange.sendResponseHeaders(304,-1);
+                }
+                else {
+                    byte[] body = served[0].getBytes("UTF-8");
+                    exchange.getResponseHeaders().set("ETag",served[1]);
+                    exchange.sendResponseHeaders(200,body.length);
+                    exchange.getResponseBody().write(body);
+                }
+                exchange.close();
+            }
+        });
+        server.start();
+        File cacheDirectory = Files.createTempDirectory("eeproperties-http").toFile();
+        String baseUrl = String.format("http://127.0.0.1:%d/config",server.getAddress().getPort());
+        HashMap<String,String> options = new HashMap<String,String>();
+        options.put("net.olioinfo.eeproperties.configurationFile.prefix","http-");
+        try {
+            EEProperties eeProperties = new EEProperties();
+            EEPropertiesHttpSource source = new EEPropertiesHttpSource(baseUrl,cacheDirectory);
+            eeProperties.addConfigSource(source);
+            List<EEPropertiesConfigSource> configSources = eeProperties.getConfigSources();
+            assert configSources.get(configSources.size() - 2) == source;
+            assert configSources.get(configSources.size() - 1) instanceof EEPropertiesClasspathSource;
+            eeProperties.loadPackageConfiguration(EEProperties.class,options);
+            assert eeProperties.getProperty("net.olioinfo.eeproperties.test.http").equals("remote1");
+            assert source.getRequests() == 2;
+            assert source.getNotModifiedResponses() == 0;
+
+            // Unchanged: one 304, served from the cache
+            assert ! eeProperties.isConfigurationChanged();
+            assert notModified.get() == 1;
+            EEProperties second = new EEProperties();
+            EEPropertiesHttpSource secondSource = new EEPropertiesHttpSource(baseUrl,cacheDirectory);
+            second.addConfigSource(secondSource);
+            second.loadPackageConfiguration(EEProperties.class,options);
+            assert second.getProperty("net.olioinfo.eeproperties.test.http").equals("remote1");
+            assert secondSource.getNotModifiedResponses() == 1;
+
+            served[0] = "net.olioinfo.eeproperties.test.http = remote2\n";
+            served[1] = "\"v2\"";
+            assert eeProperties.isConfigurationChanged();
+            eeProperties.loadPackageConfiguration(EEProperties.class,options);
+            assert eeProperties.getProperty("net.olioinfo.eeproperties.test.http").equals("remote2");
+            assert ! eeProperties.isConfigurationChanged();
+
+            // A file that couldn't be opened after locate is requested again for its stamp
+            String location = source.locate("http-defaults-ee.properties",EEProperties.class);
+            long requests = source.getRequests();
+            for (File file : cacheDirectory.listFiles()) {
+                if (file.getName().endsWith(".properties")) {
+                    file.delete();
+                }
+            }
+            try {
+                source.open(location).close();
+                fail("open should fail without a cached copy");
+            }
+            catch (IOException ex) {
+                // Expected
+            }
+            assert source.lastModified(location) != 0L;
+            assert source.getRequests() == requests + 1;
+        }
+        finally {
+            server.stop(0);
+        }
+
+        // Server down: the cached copy is used
+        EEProperties offline = new EEProperties();
+        EEPropertiesHttpSource offlineSource = new EEPropertiesHttpSource(baseUrl,cacheDirectory,1000);
+        offline.addConfigSource(offlineSource);
+        offline.loadPackageConfiguration(EEProperties.class,options);
+        assert offline.getProperty("net.olioinfo.eeproperties.test.http").equals("remote2");
+        assert offlineSource.getCacheFallbacks() == 1;
+
+        // Once the server can't be reached, the rest of the load doesn't try it again; the next load does
+        assert offlineSource.getRequests() == 1;
+        offline.loadPackageConfiguration(EEProperties.class,options);
+        assert offlineSource.getRequests() == 2;
+        assert offlineSource.getCacheFallbacks() == 2;
+
+        for (File file : cacheDirectory.listFiles()) {
+            file.delete();
+        }
+        cacheDirectory.delete();
+    }
+
+    public void testSwitchEnvironment() throws Exception {
+        final HashMap<String,String> files = new HashMap<String,String>();
+        files.put("switch-defaults-ee.properties","net.olioinfo.eeproperties.test.switch.url = http://${net.olioinfo.eeproperties.test.switch.host}/app\n"
+            + "net.olioinfo.eeproperties.test.switch.timeout = [Integer] 30\n");
+        files.put("switch-development-ee.properties","net.olioinfo.eeproperties.test.switch.host = dev\n"
+            + "net.olioinfo.eeproperties.test.switch.devOnly = yes\n");
+        files.put("switch-staging-ee.properties","net.olioinfo.eeproperties.test.switch.host = staging\n"
+            + "net.olioinfo.eeproperties.test.switch.timeout = [Integer] 60\n");
+        final List<String> opened = new ArrayList<String>();
+        EEPropertiesConfigSource memorySource = new EEPropertiesConfigSource() {
+            public String locate(String fileName, Class<?> klass) {
+                return files.containsKey(fileName) ? fileName : null;
+            }
+            public InputStream open(String location) throws IOException {
+                opened.add(location);
+                return new ByteArrayInputStream(files.get(location).getBytes("UTF-8"));
+            }
+            public long lastModified(String location) {
+                return 0L;
+            }
+            public boolean isExternal() {
+                return false;
+            }
+        };
+        HashMap<String,String> options = new HashMap<String,String>();
+        options.put("net.olioinfo.eeproperties.configurationFile.prefix","switch-");
+        HashMap<String,String> constructorOptions = new HashMap<String,String>();
+        constructorOptions.put("net.olioinfo.eeproperties.runtime.environment","development");
+        EEProperties eeProperties = new EEProperties(constructorOptions);
+        eeProperties.addConfigSource(memorySource);
+        eeProperties.loadPackageConfiguration(EEProperties.class,options);
+        assert eeProperties.getProperty("net.olioinfo.eeproperties.test.switch.url").equals("http://dev/app");
+        assert eeProperties.getProperty("net.olioinfo.eeproperties.test.switch.devOnly").equals("yes");
+        assert eeProperties.getIntegerProperty("net.olioinfo.eeproperties.test.switch.timeout") == 30;
+
+        opened.clear();
+        long generation = eeProperties.getGeneration();
+        eeProperties.switchEnvironment("staging");
+        assert eeProperties.getGeneration() == generation + 1;
+        // Only the new environment's file was read
+        assert opened.equals(Arrays.asList("switch-staging-ee.properties"));
+        assert eeProperties.getProperty("net.olioinfo.eeproperties.test.switch.url").equals("http://staging/app");
+        assert eeProperties.getProperty("net.olioinfo.eeproperties.test.switch.devOnly") == null;
+        assert eeProperties.getIntegerProperty("net.olioinfo.eeproperties.test.switch.timeout") == 60;
+        assert eeProperties.getProperty("net.olioinfo.eeproperties.runtime.environment").equals("staging");
+
+        // Later loads use the new environment
+        eeProperties.switchEnvironment("development");
+        assert eeProperties.getProperty("net.olioinfo.eeproperties.test.switch.url").equals("http://dev/app");
+        assert eeProperties.getIntegerProperty("net.olioinfo.eeproperties.test.switch.timeout") == 30;
+        eeProperties.loadPackageConfiguration(EEProperties.class,options);
+        assert eeProperties.getProperty("net.olioinfo.eeproperties.test.switch.devOnly").equals("yes");
+    }
+
+    public void testEncryptedValues() throws Exception {
+        File keyFile = File.createTempFile("eeproperties-secret",".key");
+        File otherKeyFile = File.createTempFile("eeproperties-other",".key");
+        try {
+            Files.write(keyFile.toPath(),EEPropertiesSecrets.generateKey().getBytes("UTF-8"));
+            Files.write(otherKeyFile.toPath(),EEPropertiesSecrets.generateKey().getBytes("UTF-8"));
+            EEPropertiesFileKeyProvider keyProvider = new EEPropertiesFileKeyProvider(keyFile);
+            String encrypted = EEPropertiesSecrets.encrypt("s3cret".toCharArray(),keyProvider.getKey(null),null);
+            assert encrypted.startsWith("[Encrypted] ");
+            Properties secrets = new Properties();
+
+            HashMap<String,String> options = new HashMap<String,String>();
+            options.put("net.olioinfo.eeproperties.secrets.keyFile",keyFile.getAbsolutePath());
+            EEProperties eeProperties = new EEProperties(options);
+            assert eeProperties.getKeyProvider() instanceof EEPropertiesFileKeyProvider;
+            secrets.setProperty("net.olioinfo.eeproperties.test.secret",encrypted);
+            eeProperties.loadAndMergeConfigurations(new ArrayList<String>(),EEProperties.class,secrets,new HashMap<String,String>());
+            eeProperties.put("net.olioinfo.eeproperties.test.plain","not secret");
+
+            // Nothing is decrypted until read, then the plaintext is kept
+            EEPropertiesSecretCache cache = eeProperties.getSecretCache();
+            assert cache.getDecryptions() == 0;
+            assert eeProperties.getTypedPropertyValue("net.olioinfo.eeproperties.test.secret").toString().equals("[Encrypted]");
+            assert cache.getDecryptions() == 0;
+            char[] plaintext = eeProperties.getEncryptedProperty("net.olioinfo.eeproperties.test.secret");
+            assert new String(plaintext).equals("s3cret");
+            Arrays.fill(plaintext,'\0');
+            assert new String(eeProperties.getEncryptedProperty("net.olioinfo.eeproperties.test.secret")).equals("s3cret");
+            assert cache.getDecryptions() == 1 && cache.getHits() == 1 && cache.size() == 1;
+            assert eeProperties.getEncryptedProperty("net.olioinfo.eeproperties.test.plain") == null;
+            assert eeProperties.getEncryptedProperty("net.olioinfo.eeproperties.test.missing") == null;
+
+            // A new value is decrypted again, and clearing forces decryption on the next read
+            secrets.setProperty("net.olioinfo.eeproperties.test.secret",
+                EEPropertiesSecrets.encrypt("changed".toCharArray(),keyProvider.getKey(null),null));
+            eeProperties.loadAndMergeConfigurations(new ArrayList<String>(),EEProperties.class,secrets,new HashMap<String,String>());
+            assert new String(eeProperties.getEncryptedProperty("net.olioinfo.eeproperties.test.secret")).equals("changed");
+            assert cache.getDecryptions() == 2;
+            eeProperties.clearSecretCache();
+            assert cache.size() == 0;
+            eeProperties.getEncryptedProperty("net.olioinfo.eeproperties.test.secret");
+            assert cache.getDecryptions() == 3;
+
+            // The wrong key, or none, gives null
+            eeProperties.setKeyProvider(new EEPropertiesFileKeyProvider(otherKeyFile));
+            assert eeProperties.getEncryptedProperty("net.olioinfo.eeproperties.test.secret") == null;
+            EEProperties noKey = new EEProperties();
+            secrets.setProperty("net.olioinfo.eeproperties.test.secret",encrypted);
+            noKey.loadAndMergeConfigurations(new ArrayList<String>(),EEProperties.class,secrets,new HashMap<String,String>());
+            assert noKey.getKeyProvider() == null;
+            assert noKey.getEncryptedProperty("net.olioinfo.eeproperties.test.secret") == null;
+
+            // Without caching each read decrypts
+            options.put("net.olioinfo.eeproperties.secrets.cacheTtlSeconds","0");
+            EEProperties uncached = new EEProperties(options);
+            secrets.setProperty("net.olioinfo.eeproperties.test.secret",encrypted);
+            uncached.loadAndMergeConfigurations(new ArrayList<String>(),EEProperties.class,secrets,new HashMap<String,String>());
+            uncached.getEncryptedProperty("net.olioinfo.eeproperties.test.secret");
+            assert new String(uncached.getEncryptedProperty("net.olioinfo.eeproperties.test.secret")).equals("s3cret");
+            assert uncached.getSecretCache().getDecryptions() == 2 && uncached.getSecretCache().size() == 0;
+
+            // A slow key read for one secret doesn't hold up reads of cached secrets
+            final EEPropertiesSecretCache sharedCache = new EEPropertiesSecretCache(TimeUnit.SECONDS.toNanos(60));
+            final EEPropertiesFileKeyProvider fastProvider = keyProvider;
+            final CountDownLatch keyRequested = new CountDownLatch(1);
+            final CountDownLatch keyReleased = new CountDownLatch(1);
+            EEPropertiesKeyProvider slowProvider = new EEPropertiesKeyProvider() {
+                public SecretKey getKey(String keyId) throws GeneralSecurityException, IOException {
+                    keyRequested.countDown();
+                    try {
+                        keyReleased.await();
+                    }
+                    catch (InterruptedException ex) {
+                        Thread.currentThread().interrupt();
+                    }
+                    return fastProvider.getKey(keyId);
+                }
+            };
+            final EEPropertiesEncryptedValue cachedValue = EEPropertiesEncryptedValue.parse(encrypted.substring("[Encrypted] ".length()));
+            final EEPropertiesEncryptedValue slowValue = EEPropertiesEncryptedValue.parse(
+                EEPropertiesSecrets.encrypt("slow".toCharArray(),keyProvider.getKey(null),null).substring("[Encrypted] ".length()));
+            assert new String(sharedCache.get("cached",cachedValue,fastProvider)).equals("s3cret");
+            CompletableFuture<char[]> slowRead = CompletableFuture.supplyAsync(new Supplier<char[]>() {
+                public char[] get() {
+                    try {
+                        return sharedCache.get("slow",slowValue,slowProvider);
+                    }
+                    catch (Exception ex) {
+                        throw new RuntimeException(ex);
+                    }
+                }
+            });
+            assert keyRequested.await(10,TimeUnit.SECONDS);
+            CompletableFuture<char[]> cachedRead = CompletableFuture.supplyAsync(new Supplier<char[]>() {
+                public char[] get() {
+                    try {
+                        return sharedCache.get("cached",cachedValue,fastProvider);
+                    }
+                    catch (Exception ex) {
+                        throw new RuntimeException(ex);
+                    }
+                }
+            });
+            assert new String(cachedRead.get(10,TimeUnit.SECONDS)).equals("s3cret");
+            assert ! slowRead.isDone();
+            keyReleased.countDown();
+            assert new String(slowRead.get(10,TimeUnit.SECONDS)).equals("slow");
+            assert sharedCache.getHits() == 1 && sharedCache.getDecryptions() == 2 && sharedCache.size() == 2;
+
+            // Keys identified by alias in a key store
+            File keyStoreFile = File.createTempFile("eeproperties-secrets",".p12");
+            try {
+                KeyStore keyStore = KeyStore.getInstance("PKCS12");
+                keyStore.load(null,null);
+                char[] password = "changeit".toCharArray();
+                keyStore.setEntry("payments",new KeyStore.SecretKeyEntry(keyProvider.getKey(null)),
+                    new KeyStore.PasswordProtection(password));
+                FileOutputStream out = new FileOutputStream(keyStoreFile);
+                try {
+                    keyStore.store(out,password);
+                }
+                finally {
+                    out.close();
+                }
+                options = new HashMap<String,String>();
+                options.put("net.olioinfo.eeproperties.secrets.keyStore",keyStoreFile.getAbsolutePath());
+                options.put("net.olioinfo.eeproperties.secrets.keyStorePassword","changeit");
+                EEProperties stored = new EEProperties(options);
+                assert stored.getKeyProvider() instanceof EEPropertiesKeyStoreKeyProvider;
+                secrets.setProperty("net.olioinfo.eeproperties.test.secret",EEPropertiesSecrets.encrypt("aliased".toCharArray(),keyProvider.getKey(null),"payments"));
+                stored.loadAndMergeConfigurations(new ArrayList<String>(),EEProperties.class,secrets,new HashMap<String,String>());
+                assert new String(stored.getEncryptedProperty("net.olioinfo.eeproperties.test.secret")).equals("aliased");
+            }
+            finally {
+                keyStoreFile.delete();
+            }
+        }
+        finally {
+            keyFile.delete();
+            otherKeyFile.delete();
+        }
+    }
+
+    /**
+     * Class located through a separate class loader in testConcurrentDefinitionLoads
+     */
+    public static final class LoadAnchor {
+    }
+
+    /**
+     * Counts virtual threads parking while pinned to their carrier, through JFR. Only created on JDKs with
+     * virtual threads. JFR is used by reflection so the tests compile against the Java 8 API.
+     */
+    private static final class PinningRecorder {
+
+        private final Object recording;
+
+        private final Class<?> recordingClass;
+
+        PinningRecorder() throws Exception {
+            this.recordingClass = Class.forName("jdk.jfr.Recording");
+            this.recording = this.recordingClass.getConstructor().newInstance();
+            Object eventSettings = this.recordingClass.getMethod("enable",String.class).invoke(this.recording,"jdk.VirtualThreadPinned");
+            Class.forName("jdk.jfr.EventSettings").getMethod("withThreshold",Duration.class).invoke(eventSettings,Duration.ZERO);
+            this.recordingClass.getMethod("start").invoke(this.recording);
+        }
+
+        /**
+         * @return Number of pinned events recorded
+         */
+        int stop() throws Exception {
+            this.recordingClass.getMethod("stop").invoke(this.recording);
+            File file = File.createTempFile("eeproperties-pinning",".jfr");
+            try {
+                this.recordingClass.getMethod("dump",Path.class).invoke(this.recording,file.toPath());
+                List<?> events = (List<?>) Class.forName("jdk.jfr.consumer.RecordingFile").getMethod("readAllEvents",Path.class)
+                    .invoke(null,file.toPath());
+                Method getEventType = Class.forName("jdk.jfr.consumer.RecordedEvent").getMethod("getEventType");
+                Method getName = Class.forName("jdk.jfr.EventType").getMethod("getName");
+                int pinned = 0;
+                for (Object event : events) {
+                    if ("jdk.VirtualThreadPinned".equals(getName.invoke(getEventType.invoke(event)))) {
+                        pinned++;
+                    }
+                }
+                return pinned;
+            }
+            finally {
+                this.recordingClass.getMethod("close").invoke(this.recording);
+                file.delete();
+            }
+        }
+    }
 
-}
\ No newline at end of file
+}